@@ -0,0 +1,234 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.db.ReadOnlyTransactions;
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.fc.schema.context.ContextProfile;
+import com.medblocks.openfhir.fc.schema.context.ContextTemplate;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Application wide index of context mappers by their profile url, used to find the right context mapper for an
+ * incoming FHIR Resource when no template id is given.
+ * <p>
+ * The index is built from all context mappers on first use and rebuilt lazily after it has been invalidated by a
+ * change of a context mapper. Resolution is a hash lookup of the Resource's meta.profile values (or those of all
+ * Bundle entries). As context profiles have so far been matched with a "contains" condition, context mappers
+ * preceding the one found (or all, if none has been found) are additionally checked for a profile that is contained
+ * in one of the Resource's profiles, which is a plain string comparison instead of a FHIRPath evaluation. As before,
+ * the first context mapper (in the order the repository returns them) that matches is used and the last one without
+ * a profile is the fallback when none matches.
+ * <p>
+ * Context mappers are looked up by their template id in the same snapshot, so mapping requests don't touch the
+ * database unless a context mapper isn't in the snapshot (yet).
+ */
+@Component
+@Slf4j
+public class FhirConnectContextIndex {
+
+    private final FhirConnectContextRepository fhirConnectContextRepository;
+    private final OpenFhirStringUtils openFhirStringUtils;
+    private final ReadOnlyTransactions readOnlyTransactions;
+
+    private final AtomicReference<ContextSnapshot> snapshot = new AtomicReference<>();
+
+    /**
+     * Incremented on every invalidation; used to detect that an index has been built from a state that was
+     * invalidated in the meantime
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    public FhirConnectContextIndex(final FhirConnectContextRepository fhirConnectContextRepository,
+                                   final OpenFhirStringUtils openFhirStringUtils) {
+        this(fhirConnectContextRepository, openFhirStringUtils, ReadOnlyTransactions.NONE);
+    }
+
+    @Autowired
+    public FhirConnectContextIndex(final FhirConnectContextRepository fhirConnectContextRepository,
+                                   final OpenFhirStringUtils openFhirStringUtils,
+                                   final ReadOnlyTransactions readOnlyTransactions) {
+        this.fhirConnectContextRepository = fhirConnectContextRepository;
+        this.openFhirStringUtils = openFhirStringUtils;
+        this.readOnlyTransactions = readOnlyTransactions;
+    }
+
+    /**
+     * Finds a context mapper by its template id (as it is, the same as
+     * {@link FhirConnectContextRepository#findByTemplateId(String)} does). A context mapper that isn't in the index
+     * is looked up in the repository, without putting it into the index.
+     *
+     * @return context mapper of the given template, null if there's none
+     */
+    public FhirConnectContextEntity findByTemplateId(final String templateId) {
+        final FhirConnectContextEntity indexed = getSnapshot().byTemplateId().get(templateId);
+        if (indexed != null) {
+            return indexed;
+        }
+        log.debug("Context mapper for template {} not indexed, looking it up in the repository", templateId);
+        return readOnlyTransactions.read(() -> fhirConnectContextRepository.findByTemplateId(templateId));
+    }
+
+    /**
+     * Finds a context mapper relevant for the given Resource based on profiles within its meta.profile or, if it's a
+     * Bundle, within meta.profile of all entries.
+     *
+     * @param resource incoming FHIR Resource
+     * @return the first context mapper with a matching profile, or a fallback context mapper without a profile
+     *         if none matches; null if there's neither
+     */
+    public FhirConnectContextEntity findForResource(final Resource resource) {
+        final ContextSnapshot contexts = getSnapshot();
+        final Set<String> resourceProfiles = getProfiles(resource);
+        int firstMatching = Integer.MAX_VALUE;
+        for (final String profile : resourceProfiles) {
+            final Integer index = contexts.indexByProfile().get(profile);
+            if (index != null && index < firstMatching) {
+                firstMatching = index;
+            }
+        }
+        final int candidates = Math.min(firstMatching, contexts.contexts().size());
+        for (int i = 0; i < candidates && !resourceProfiles.isEmpty(); i++) {
+            final String contextProfile = contexts.matchedProfiles().get(i);
+            if (contextProfile != null && resourceProfiles.stream().anyMatch(p -> p.contains(contextProfile))) {
+                firstMatching = i;
+                break;
+            }
+        }
+        if (firstMatching != Integer.MAX_VALUE) {
+            final FhirConnectContextEntity context = contexts.contexts().get(firstMatching);
+            log.info(
+                    "Found a relevant context ({}) for this input fhir Resource. If there are more relevant other than this one, others will be ignored as this was the first one found.",
+                    context.getId());
+            return context;
+        }
+        if (contexts.fallback() != null) {
+            log.warn("Returning a fallback context for this input fhir Resource {}", contexts.fallback().getId());
+        }
+        return contexts.fallback();
+    }
+
+    /**
+     * @return profile urls of all context mappers, in the order the repository returns them
+     */
+    public List<String> getValidProfiles() {
+        return getSnapshot().profiles();
+    }
+
+    /**
+     * Drops the index so it's rebuilt with the next lookup, i.e. when a context mapper has been created, updated
+     * or deleted.
+     */
+    public void invalidate() {
+        final Runnable invalidation = () -> {
+            generation.incrementAndGet();
+            snapshot.set(null);
+        };
+        invalidation.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // once more after commit, so an index built concurrently from the not-yet-committed state doesn't survive
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidation.run();
+                }
+            });
+        }
+    }
+
+    private ContextSnapshot getSnapshot() {
+        final ContextSnapshot existing = snapshot.get();
+        if (existing != null) {
+            return existing;
+        }
+        final long generationAtStart = generation.get();
+        final ContextSnapshot built = buildSnapshot();
+        if (generation.get() == generationAtStart) {
+            snapshot.compareAndSet(null, built);
+        }
+        return built;
+    }
+
+    private ContextSnapshot buildSnapshot() {
+        final List<FhirConnectContextEntity> all = readOnlyTransactions.read(fhirConnectContextRepository::findAll);
+        final List<FhirConnectContextEntity> contexts = all == null ? List.of() : new ArrayList<>(all);
+        final Map<String, FhirConnectContextEntity> byTemplateId = new HashMap<>();
+        final Map<String, Integer> indexByProfile = new HashMap<>();
+        final List<String> matchedProfiles = new ArrayList<>();
+        final List<String> profiles = new ArrayList<>();
+        FhirConnectContextEntity fallback = null;
+        for (int i = 0; i < contexts.size(); i++) {
+            final FhirConnectContextEntity context = contexts.get(i);
+            final ContextTemplate template = context.getFhirConnectContext().getContext().getTemplate();
+            if (template != null && template.getId() != null) {
+                byTemplateId.putIfAbsent(template.getId(), context);
+            }
+            final ContextProfile profile = context.getFhirConnectContext().getContext().getProfile();
+            final String profileUrl = profile == null ? null : profile.getUrl();
+            profiles.add(profileUrl);
+            if (StringUtils.isEmpty(profileUrl)) {
+                log.warn("No profile defined for context {}, context relevant for all?", context.getId());
+                fallback = context; // the last context mapper 'for all' is used if there really is no other suitable one
+                matchedProfiles.add(null);
+            } else {
+                final String matchedProfile = openFhirStringUtils.getStringFromCriteria(profileUrl).getCode();
+                matchedProfiles.add(matchedProfile);
+                indexByProfile.putIfAbsent(matchedProfile, i);
+            }
+        }
+        log.info("Indexed {} context mappers by {} profiles", contexts.size(), indexByProfile.size());
+        return new ContextSnapshot(contexts, byTemplateId, indexByProfile, matchedProfiles, fallback,
+                                   Collections.unmodifiableList(profiles));
+    }
+
+    private Set<String> getProfiles(final Resource resource) {
+        final Set<String> profiles = new LinkedHashSet<>();
+        if (resource instanceof Bundle bundle) {
+            for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() != null) {
+                    addProfiles(entry.getResource(), profiles);
+                }
+            }
+        } else {
+            addProfiles(resource, profiles);
+        }
+        return profiles;
+    }
+
+    private void addProfiles(final Resource resource, final Set<String> profiles) {
+        if (!resource.hasMeta()) {
+            return;
+        }
+        for (final CanonicalType profile : resource.getMeta().getProfile()) {
+            if (profile.getValue() != null) {
+                profiles.add(profile.getValue());
+            }
+        }
+    }
+
+    private record ContextSnapshot(List<FhirConnectContextEntity> contexts,
+                                   Map<String, FhirConnectContextEntity> byTemplateId,
+                                   Map<String, Integer> indexByProfile,
+                                   List<String> matchedProfiles,
+                                   FhirConnectContextEntity fallback,
+                                   List<String> profiles) {
+
+    }
+}
@@ -0,0 +1,55 @@
+package com.medblocks.openfhir;
+
+import java.util.Locale;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Format of a payload coming into the openFHIR engine
+ */
+public enum InputFormat {
+    /**
+     * openEHR Composition in a flat json format
+     */
+    FLAT,
+    /**
+     * openEHR Composition in a canonical json format
+     */
+    CANONICAL,
+    /**
+     * FHIR Bundle
+     */
+    FHIR_BUNDLE,
+    /**
+     * any FHIR Resource other than a Bundle
+     */
+    FHIR_RESOURCE;
+
+    /**
+     * Content type EHRbase uses for Compositions in a flat json format
+     */
+    public static final String FLAT_CONTENT_TYPE = "application/openehr.wt.flat.schema+json";
+
+    /**
+     * Determines format of an incoming openEHR Composition as explicitly requested by the caller, either by a
+     * request parameter or by the content type.
+     *
+     * @param requested format as requested by a request parameter ('flat' or 'canonical'), may be null
+     * @param contentType content type of the request, may be null
+     * @return requested format, or null if the caller hasn't requested any
+     * @throws IllegalArgumentException if requested format is neither 'flat' nor 'canonical'
+     */
+    public static InputFormat requestedOpenEhr(final String requested, final String contentType) {
+        if (StringUtils.isNotBlank(requested)) {
+            return switch (requested.trim().toLowerCase(Locale.ROOT)) {
+                case "flat" -> FLAT;
+                case "canonical" -> CANONICAL;
+                default -> throw new IllegalArgumentException(String.format(
+                        "Unsupported input format '%s', supported are 'flat' and 'canonical'.", requested));
+            };
+        }
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith(FLAT_CONTENT_TYPE)) {
+            return FLAT;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,259 @@
+package com.medblocks.openfhir;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Determines the format of incoming payloads upfront, so they're parsed exactly once with the right parser instead
+ * of trying one parser and falling back to another one on exception.
+ * <p>
+ * Detection reads the payload as a stream of json tokens only as far as needed: a flat Composition is recognized by
+ * its first key (flat paths always have a '/'), a canonical one by its _type and FHIR Resources by their
+ * resourceType. Nested values that need to be skipped on the way are tokenized, but nothing is built from them.
+ * <p>
+ * When detecting from a stream, at most {@link #SNIFF_LIMIT} characters are read and the stream is reset afterwards,
+ * so it can be parsed from the start; a template id that only comes after that isn't found.
+ * <p>
+ * Every detected (or explicitly requested) format is counted, and published as the openfhir.input.formats metric.
+ */
+@Component
+@Slf4j
+public class InputFormatDetector implements MeterBinder {
+
+    /**
+     * Max number of characters read from a stream when detecting its format
+     */
+    public static final int SNIFF_LIMIT = 1024 * 1024;
+
+    private static final String CANONICAL_TYPE = "COMPOSITION";
+
+    private final Map<InputFormat, LongAdder> counts = new EnumMap<>(InputFormat.class);
+
+    public InputFormatDetector() {
+        for (final InputFormat format : InputFormat.values()) {
+            counts.put(format, new LongAdder());
+        }
+    }
+
+    /**
+     * Detects format of an incoming openEHR Composition and its template id.
+     *
+     * @param openEhr incoming Composition in either flat or canonical json format
+     * @param requested format as explicitly requested by the caller (see {@link InputFormat#requestedOpenEhr}),
+     *         null if not requested; if requested, only template id is looked up
+     * @return detected format and template id; payloads that are neither recognized as flat nor as canonical are
+     *         considered canonical, in which case template id may be null
+     */
+    public DetectedOpenEhr detectOpenEhr(final String openEhr, final InputFormat requested) {
+        try {
+            return detectOpenEhr(new StringReader(openEhr), requested);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #detectOpenEhr(String, InputFormat)}, reading the Composition from a stream which is reset to
+     * where it was once the format has been detected.
+     *
+     * @param openEhr stream of the incoming Composition, needs to support {@link Reader#mark(int)}
+     */
+    public DetectedOpenEhr detectOpenEhr(final Reader openEhr, final InputFormat requested) throws IOException {
+        openEhr.mark(SNIFF_LIMIT);
+        final DetectedOpenEhr detected = sniffOpenEhr(new JsonReader(new LimitedReader(openEhr)), requested);
+        openEhr.reset();
+        count(detected.format());
+        return detected;
+    }
+
+    /**
+     * Detects whether an incoming FHIR Resource is a Bundle or any other Resource; payloads without a resourceType
+     * are considered to be any other Resource.
+     */
+    public InputFormat detectFhir(final String fhir) {
+        try {
+            return detectFhir(new StringReader(fhir));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #detectFhir(String)}, reading the Resource from a stream which is reset to where it was once
+     * the format has been detected.
+     *
+     * @param fhir stream of the incoming Resource, needs to support {@link Reader#mark(int)}
+     */
+    public InputFormat detectFhir(final Reader fhir) throws IOException {
+        fhir.mark(SNIFF_LIMIT);
+        final InputFormat detected = "Bundle".equals(sniffFhirResourceType(new JsonReader(new LimitedReader(fhir))))
+                ? InputFormat.FHIR_BUNDLE
+                : InputFormat.FHIR_RESOURCE;
+        fhir.reset();
+        count(detected);
+        return detected;
+    }
+
+    public void count(final InputFormat format) {
+        counts.get(format).increment();
+    }
+
+    /**
+     * @return number of payloads per detected format since startup
+     */
+    public Map<InputFormat, Long> getCounts() {
+        final Map<InputFormat, Long> snapshot = new EnumMap<>(InputFormat.class);
+        counts.forEach((format, count) -> snapshot.put(format, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        counts.forEach((format, count) -> FunctionCounter
+                .builder("openfhir.input.formats", count, LongAdder::sum)
+                .description("Incoming payloads, by their detected (or requested) format")
+                .tag("format", format.name().toLowerCase())
+                .register(registry));
+    }
+
+    // readers are deliberately not closed, as that would close the underlying stream as well
+    private DetectedOpenEhr sniffOpenEhr(final JsonReader reader, final InputFormat requested) {
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return new DetectedOpenEhr(requested == null ? InputFormat.CANONICAL : requested, null);
+            }
+            reader.beginObject();
+            boolean canonical = false;
+            String templateId = null;
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (requested != InputFormat.CANONICAL && !canonical && name.contains("/")) {
+                    return new DetectedOpenEhr(requested == null ? InputFormat.FLAT : requested,
+                                               name.split("/")[0]);
+                }
+                if ("_type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    canonical = CANONICAL_TYPE.equals(reader.nextString());
+                } else if ("archetype_details".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    templateId = readTemplateId(reader);
+                } else {
+                    reader.skipValue();
+                }
+                if (canonical && templateId != null) {
+                    break;
+                }
+            }
+            return new DetectedOpenEhr(requested == null ? InputFormat.CANONICAL : requested, templateId);
+        } catch (final IOException | IllegalStateException e) {
+            // not even valid json; left for the parser to report it properly
+            log.debug("Couldn't detect format of the incoming openEHR payload", e);
+            return new DetectedOpenEhr(requested == null ? InputFormat.CANONICAL : requested, null);
+        }
+    }
+
+    /**
+     * Reads archetype_details.template_id.value
+     */
+    private String readTemplateId(final JsonReader reader) throws IOException {
+        String templateId = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("template_id".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("value".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                        templateId = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return templateId;
+    }
+
+    private String sniffFhirResourceType(final JsonReader reader) {
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("resourceType".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (final IOException | IllegalStateException e) {
+            log.debug("Couldn't detect resourceType of the incoming FHIR payload", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reader that ends after {@link #SNIFF_LIMIT} characters, so detection never reads beyond the mark of the
+     * underlying stream
+     */
+    private static class LimitedReader extends FilterReader {
+
+        private int remaining = SNIFF_LIMIT;
+
+        LimitedReader(final Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read();
+            if (read != -1) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read(buffer, offset, Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // underlying stream is still to be parsed
+        }
+    }
+
+    /**
+     * @param format detected or requested format of the Composition
+     * @param templateId template id as found in the Composition, null if it couldn't be found
+     */
+    public record DetectedOpenEhr(InputFormat format, String templateId) {
+
+    }
+}
@@ -0,0 +1,158 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.db.ReadOnlyTransactions;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
+import com.medblocks.openfhir.db.entity.OptMetadata;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
+import com.medblocks.openfhir.db.repository.OptRepository;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the in-memory mapping state ({@link FhirConnectContextIndex}, {@link ProdOpenFhirMappingContext} and
+ * {@link OpenEhrCachedUtils}) in line with the database when it's changed by someone else than this instance, i.e.
+ * another openFHIR instance sharing the same database.
+ * <p>
+ * Periodically reads ids and content hashes of all context mappers, model mappers and OPTs (without loading any of
+ * them) and compares them to what they were on the previous refresh. Everything built from a row that has been
+ * created, updated or deleted since is invalidated, and is loaded again with the next mapping that needs it. Changes
+ * made through this instance have already been invalidated when they were made and are merely invalidated once more.
+ * <p>
+ * Rows persisted before content hashes were have none, so only their creation and deletion is detected until they're
+ * updated again.
+ */
+@Component
+@Slf4j
+public class MappingStateRefresher {
+
+    private final OptRepository optRepository;
+    private final FhirConnectContextRepository contextRepository;
+    private final FhirConnectModelRepository modelRepository;
+    private final ReadOnlyTransactions readOnlyTransactions;
+    private final OpenEhrCachedUtils cachedUtils;
+    private final ProdOpenFhirMappingContext mappingContext;
+    private final FhirConnectContextIndex contextIndex;
+
+    /**
+     * State as of the last refresh, null before the first one
+     */
+    private final AtomicReference<MappingState> state = new AtomicReference<>();
+
+    @Autowired
+    public MappingStateRefresher(final OptRepository optRepository,
+                                 final FhirConnectContextRepository contextRepository,
+                                 final FhirConnectModelRepository modelRepository,
+                                 final ReadOnlyTransactions readOnlyTransactions,
+                                 final OpenEhrCachedUtils cachedUtils,
+                                 final ProdOpenFhirMappingContext mappingContext,
+                                 final FhirConnectContextIndex contextIndex) {
+        this.optRepository = optRepository;
+        this.contextRepository = contextRepository;
+        this.modelRepository = modelRepository;
+        this.readOnlyTransactions = readOnlyTransactions;
+        this.cachedUtils = cachedUtils;
+        this.mappingContext = mappingContext;
+        this.contextIndex = contextIndex;
+    }
+
+    /**
+     * Compares the current state of the database with the one of the previous refresh and invalidates whatever has
+     * changed in between. The first refresh only takes the state.
+     */
+    @Scheduled(fixedDelayString = "${openfhir.snapshot.refresh-interval:PT30S}")
+    public void refresh() {
+        final MappingState current;
+        try {
+            current = readOnlyTransactions.read(this::readState);
+        } catch (final RuntimeException e) {
+            log.warn("Couldn't read the mapping state from the database, will try again with the next refresh", e);
+            return;
+        }
+        final MappingState previous = state.getAndSet(current);
+        if (previous == null) {
+            log.debug("Took the mapping state of {} OPTs, {} context mappers and {} model mappers",
+                      current.opts().size(), current.contexts().size(), current.models().size());
+            return;
+        }
+
+        for (final OptMetadata opt : changed(previous.opts(), current.opts())) {
+            if (opt.templateId() != null) {
+                log.info("OPT {} has changed, invalidating it", opt.templateId());
+                cachedUtils.invalidate(opt.templateId());
+                mappingContext.invalidateTemplate(opt.templateId());
+            }
+        }
+        final List<FhirConnectContextMetadata> contexts = changed(previous.contexts(), current.contexts());
+        for (final FhirConnectContextMetadata context : contexts) {
+            log.info("Context mapper {} of template {} has changed, invalidating it", context.id(),
+                     context.templateId());
+            mappingContext.invalidateTemplate(context.templateId());
+        }
+        if (!contexts.isEmpty()) {
+            contextIndex.invalidate();
+        }
+        for (final FhirConnectModelMetadata model : changed(previous.models(), current.models())) {
+            if (model.name() != null) {
+                log.info("Model mapper {} has changed, invalidating it", model.name());
+                mappingContext.invalidateModel(model.name());
+            }
+        }
+    }
+
+    private MappingState readState() {
+        return new MappingState(byId(optRepository.findAllMetadata(), OptMetadata::id),
+                                byId(contextRepository.findAllMetadata(), FhirConnectContextMetadata::id),
+                                byId(modelRepository.findAllMetadata(), FhirConnectModelMetadata::id));
+    }
+
+    private static <T> Map<String, T> byId(final List<T> metadata, final Function<T, String> id) {
+        final Map<String, T> byId = new LinkedHashMap<>();
+        if (metadata != null) {
+            metadata.forEach(m -> byId.put(id.apply(m), m));
+        }
+        return byId;
+    }
+
+    /**
+     * @return previous and current metadata of all rows that have been created, updated or deleted in between; both
+     *         are needed, as a row may have been moved to another template or renamed
+     */
+    private static <T> List<T> changed(final Map<String, T> previous, final Map<String, T> current) {
+        final Set<String> ids = new HashSet<>(previous.keySet());
+        ids.addAll(current.keySet());
+        final List<T> changed = new ArrayList<>();
+        for (final String id : ids) {
+            final T before = previous.get(id);
+            final T after = current.get(id);
+            if (!Objects.equals(before, after)) {
+                if (before != null) {
+                    changed.add(before);
+                }
+                if (after != null) {
+                    changed.add(after);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private record MappingState(Map<String, OptMetadata> opts,
+                                Map<String, FhirConnectContextMetadata> contexts,
+                                Map<String, FhirConnectModelMetadata> models) {
+
+    }
+}
@@ -1,18 +1,20 @@
 package com.medblocks.openfhir;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.medblocks.openfhir.WebTemplateIndex.FormattedAqlPath;
+import com.medblocks.openfhir.WebTemplateIndex.Siblings;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhrHelper;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_NONE;
 import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_UNDERSCORABLES;
@@ -24,6 +26,14 @@ public class OpenEhrRmWorker {
     private final OpenFhirStringUtils openFhirStringUtils;
     private final OpenFhirMapperUtils openFhirMapperUtils;
 
+    /**
+     * indexes of web templates being mapped, weakly key'd by the web template (by identity) so they're dropped
+     * together with the cached web template
+     */
+    private final Cache<WebTemplate, WebTemplateIndex> webTemplateIndexes = Caffeine.newBuilder()
+            .weakKeys()
+            .build();
+
     @Autowired
     public OpenEhrRmWorker(OpenFhirStringUtils openFhirStringUtils,
                            OpenFhirMapperUtils openFhirMapperUtils) {
@@ -53,7 +63,8 @@ public class OpenEhrRmWorker {
             final String pathToFindSuffix="/";
 
             // walk through all web template nodes and enrich them with types and occurrence indexes
-            walkThroughNodes(tree.getChildren(), String.join("/", split), constructing, forcedTypes, fhirToOpenEhrHelper,pathToFindSuffix);
+            walkThroughNodes(getIndex(webTemplate), tree.getChildren(), String.join("/", split), constructing,
+                             forcedTypes, fhirToOpenEhrHelper, pathToFindSuffix);
 
             final String actualSuffix = openFhirMapperUtils.endsWithAqlSuffix(suffix) ? openFhirMapperUtils.replaceAqlSuffixWithFlatSuffix(suffix) : suffix;
             fhirToOpenEhrHelper.setOpenEhrPath(tree.getId() + "/" + fhirToOpenEhrHelper.getOpenEhrPath() + (hasSuffix ? actualSuffix : ""));
@@ -76,21 +87,28 @@ public class OpenEhrRmWorker {
         }
     }
 
+    /**
+     * @return index of the given web template, built on first use
+     */
+    public WebTemplateIndex getIndex(final WebTemplate webTemplate) {
+        return webTemplateIndexes.get(webTemplate, WebTemplateIndex::new);
+    }
+
     /**
      * Walks through web template nodes and sets recurring indexes on simplified flat path; at the same time, it adds
      * openEHR type
      *
+     * @param index            index of the web template the nodes belong to
      * @param webTemplateNodes web template nodes as they exist on the openEHR template
      * @param path             part of openEHR path that's being searched for within the webTemplateNodes
      * @param constructing     string being constructed from the path elements, however here already including recurring indexes notation, i.e. medikationseintrag[n]
      * @param forcedTypes      if openEHR type is being "forced" by a fhir connect mapping definition, this is the one we'll try to find within the template
      */
-    public void walkThroughNodes(final List<WebTemplateNode> webTemplateNodes, final String path,
-                                 final StringJoiner constructing, final Set<String> forcedTypes,
+    public void walkThroughNodes(final WebTemplateIndex index, final List<WebTemplateNode> webTemplateNodes,
+                                 final String path, final StringJoiner constructing, final Set<String> forcedTypes,
                                  final FhirToOpenEhrHelper fhirToOpenEhrHelper, String pathToFindSuffix) {
-        final WebTemplateNode foundWithinIds = webTemplateNodes.stream()
-                .filter(wn -> path.equals(wn.getId())).findAny()
-                .orElse(null);
+        final Siblings siblings = index.siblings(webTemplateNodes);
+        final WebTemplateNode foundWithinIds = siblings.findById(path);
         if (StringUtils.isBlank(path) || foundWithinIds != null) {
             if(StringUtils.isNotBlank(path)) {
                 if(!openFhirMapperUtils.endsWithAqlSuffix(path)) {
@@ -102,27 +120,23 @@ public class OpenEhrRmWorker {
 
             // everything has been resolved
             // check for special paths
-            webTemplateNodes.stream()
-                    .filter(wn -> "identifier_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("identifier_value"));
-            webTemplateNodes.stream()
-                    .filter(wn -> "date_time_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("date_time_value"));
-            webTemplateNodes.stream()
-                    .filter(wn -> "quantity_value".equals(wn.getId())).findAny()
-                    .ifPresent(identifierValue -> constructing.add("quantity_value"));
+            if (siblings.containsId("identifier_value")) {
+                constructing.add("identifier_value");
+            }
+            if (siblings.containsId("date_time_value")) {
+                constructing.add("date_time_value");
+            }
+            if (siblings.containsId("quantity_value")) {
+                constructing.add("quantity_value");
+            }
 
             fhirToOpenEhrHelper.setOpenEhrPath(constructing.toString());
-            if (!webTemplateNodes.isEmpty()) {
+            if (!siblings.isEmpty()) {
                 if (forcedTypes == null || forcedTypes.isEmpty()) {
-                    webTemplateNodes.stream()
-                            .filter(wn -> "value".equals(wn.getId())
-                                    || "identifier_value".equals(wn.getId())
-                                    || "coded_text_value".equals(wn.getId())
-                                    || "quantity_value".equals(wn.getId())
-                                    || "date_time_value".equals(wn.getId()))
-                            .findAny().ifPresent(
-                                    valueForActualType -> fhirToOpenEhrHelper.setOpenEhrType(valueForActualType.getRmType()));
+                    final WebTemplateNode valueForActualType = siblings.getFirstValueNode();
+                    if (valueForActualType != null) {
+                        fhirToOpenEhrHelper.setOpenEhrType(valueForActualType.getRmType());
+                    }
                 }
 
             }
@@ -136,23 +150,14 @@ public class OpenEhrRmWorker {
             // we don't bother with this, can't be multiple occurrences
             constructing.add(splitOpenEhrPath[0]);
             remainingPaths = Arrays.asList(splitOpenEhrPath).subList(1, splitOpenEhrPath.length);
-            walkThroughNodes(webTemplateNodes, String.join("/", remainingPaths),
+            walkThroughNodes(index, webTemplateNodes, String.join("/", remainingPaths),
                              constructing, forcedTypes, fhirToOpenEhrHelper, pathToFindSuffix);
             return;
         }
-        AqlPath aqlPath = AqlPath.parse(pathToFind);
-        Set<String> aqlPathNodes = webTemplateNodes.stream()
-                .filter(node -> aqlPath.format(false).equals(node.getAqlPath(false)))
-                .map(node -> node.getId(false))
-                .collect(Collectors.toSet());
-        final WebTemplateNode findingTheOne = webTemplateNodes.stream()
-                .filter(ch -> aqlPath.format(true).equals(ch.getAqlPath(true)) || (
-                        aqlPath.format(false).equals(ch.getAqlPath(false)) && aqlPathNodes.size() <= 1))
-                .findAny()
-                .orElse(null);
+        final WebTemplateNode findingTheOne = siblings.findByAqlPath(index.format(pathToFind));
         if (findingTheOne == null) {
             for (WebTemplateNode itemTree : webTemplateNodes) {
-                walkThroughNodes(itemTree.getChildren(), path, constructing, forcedTypes, fhirToOpenEhrHelper,
+                walkThroughNodes(index, itemTree.getChildren(), path, constructing, forcedTypes, fhirToOpenEhrHelper,
                                  pathToFindSuffix);
             }
             fhirToOpenEhrHelper.setOpenEhrPath(constructing.toString());
@@ -177,13 +182,14 @@ public class OpenEhrRmWorker {
                                                                                constructing));
         }
         String remainingPathsStr = String.join("/", remainingPaths);
-        AqlPath remainingsAqlPath = AqlPath.parse(remainingPathsStr);
-        if (!remainingsAqlPath.format(false).equals(remainingPathsStr)) {
-            walkThroughNodes(findingTheOne.getChildren(), String.join("/", remainingPaths),
-                             constructing, forcedTypes, fhirToOpenEhrHelper, findingTheOne.getAqlPath(true) + "/");
+        final FormattedAqlPath remainingsAqlPath = index.format(remainingPathsStr);
+        final FormattedAqlPath foundAqlPath = index.getAqlPath(findingTheOne);
+        if (!remainingsAqlPath.withoutPredicates().equals(remainingPathsStr)) {
+            walkThroughNodes(index, findingTheOne.getChildren(), String.join("/", remainingPaths),
+                             constructing, forcedTypes, fhirToOpenEhrHelper, foundAqlPath.withPredicates() + "/");
         } else {
-            walkThroughNodes(findingTheOne.getChildren(), String.join("/", remainingPaths),
-                             constructing, forcedTypes, fhirToOpenEhrHelper, findingTheOne.getAqlPath(false) + "/");
+            walkThroughNodes(index, findingTheOne.getChildren(), String.join("/", remainingPaths),
+                             constructing, forcedTypes, fhirToOpenEhrHelper, foundAqlPath.withoutPredicates() + "/");
         }
     }
 
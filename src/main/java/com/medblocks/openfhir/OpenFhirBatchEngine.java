@@ -0,0 +1,313 @@
+package com.medblocks.openfhir;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenFhirEngine.ResolvedTemplate;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Maps NDJSON batches (one Composition or FHIR Resource per line) with {@link OpenFhirEngine}, where lines are
+ * mapped in parallel on a fixed number of threads shared by all batches.
+ * <p>
+ * Results are written as NDJSON in the order of the input lines, each as soon as it and all the lines before it are
+ * mapped. A line that can't be mapped doesn't fail the batch; instead, an error object is written in its place:
+ * <pre>{"line": 3, "status": 400, "error": "..."}</pre>
+ * where line is the (1-based) line number of the input and status is 400 for an invalid input and 500 for any
+ * other failure. Blank lines are skipped. Errors can also be written to a separate stream instead (see
+ * {@link BatchOutput}).
+ * <p>
+ * Templates are resolved (context mapper found, prerequisites validated, mapping cache prepared) only once per
+ * distinct template of a batch, and all lines of that template are mapped with the mapping repository resolved then,
+ * even if the template is invalidated or updated while the batch is running.
+ * <p>
+ * Every batch has at most {@link #maxInFlight} lines read and not yet written, so memory taken by a batch doesn't
+ * depend on its size.
+ */
+@Component
+@Slf4j
+public class OpenFhirBatchEngine {
+
+    private final OpenFhirEngine openFhirEngine;
+    private final Gson gson;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    /**
+     * @param threads number of threads lines are mapped on, 0 for the number of available processors
+     * @param maxInFlight max number of lines of a batch read and not yet written, 0 for four times the number of
+     *         threads
+     */
+    @Autowired
+    public OpenFhirBatchEngine(final OpenFhirEngine openFhirEngine,
+                               final Gson gson,
+                               @Value("${openfhir.batch.threads:0}") final int threads,
+                               @Value("${openfhir.batch.max-in-flight:0}") final int maxInFlight) {
+        this.openFhirEngine = openFhirEngine;
+        this.gson = gson;
+        final int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = Executors.newFixedThreadPool(poolSize, new BatchThreadFactory());
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : poolSize * 4;
+    }
+
+    /**
+     * Maps an NDJSON of Compositions to an NDJSON of FHIR Bundles.
+     *
+     * @param compositions one Composition per line, in either flat or canonical format
+     * @param templateId template id of all Compositions, optional (see {@link OpenFhirEngine#toFhir})
+     * @param requestedFormat format of all Compositions, null if it should be detected for each of them
+     * @param fhir stream results are written to
+     * @return number of lines mapped and number of them that failed
+     */
+    public BatchResult toFhir(final Reader compositions, final String templateId, final InputFormat requestedFormat,
+                              final Writer fhir) throws IOException {
+        return toFhir(compositions, templateId, requestedFormat, new BatchOutput(fhir, null, null));
+    }
+
+    /**
+     * Same as {@link #toFhir(Reader, String, InputFormat, Writer)}, writing results to the given output
+     */
+    public BatchResult toFhir(final Reader compositions, final String templateId, final InputFormat requestedFormat,
+                              final BatchOutput output) throws IOException {
+        final Map<String, ResolvedTemplate> resolvedTemplates = new ConcurrentHashMap<>();
+        return map(compositions, output, (line, out) -> openFhirEngine.toFhir(new StringReader(line), templateId,
+                                                                              requestedFormat, out,
+                                                                              resolvedTemplates));
+    }
+
+    /**
+     * Maps an NDJSON of FHIR Resources to an NDJSON of Compositions.
+     *
+     * @param fhirResources one FHIR Resource (Bundle or any other) per line
+     * @param templateId template id for all Resources, optional (see {@link OpenFhirEngine#toOpenEhr})
+     * @param flat whether Compositions should be written in a flat format
+     * @param openEhr stream results are written to
+     * @return number of lines mapped and number of them that failed
+     */
+    public BatchResult toOpenEhr(final Reader fhirResources, final String templateId, final Boolean flat,
+                                 final Writer openEhr) throws IOException {
+        return toOpenEhr(fhirResources, templateId, flat, new BatchOutput(openEhr, null, null));
+    }
+
+    /**
+     * Same as {@link #toOpenEhr(Reader, String, Boolean, Writer)}, writing results to the given output
+     */
+    public BatchResult toOpenEhr(final Reader fhirResources, final String templateId, final Boolean flat,
+                                 final BatchOutput output) throws IOException {
+        final Map<String, ResolvedTemplate> resolvedTemplates = new ConcurrentHashMap<>();
+        return map(fhirResources, output, (line, out) -> openFhirEngine.toOpenEhr(new StringReader(line), templateId,
+                                                                                 flat, out, resolvedTemplates));
+    }
+
+    private BatchResult map(final Reader input, final BatchOutput output, final LineMapper mapper)
+            throws IOException {
+        final BufferedReader lines = input instanceof BufferedReader ? (BufferedReader) input
+                : new BufferedReader(input);
+        final Deque<Future<LineResult>> inFlight = new ArrayDeque<>();
+        int lineNumber = 0;
+        int mapped = 0;
+        int failed = 0;
+        try {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                lineNumber++;
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+                if (inFlight.size() >= maxInFlight && write(inFlight.poll(), output)) {
+                    failed++;
+                }
+                final String toMap = line;
+                final int number = lineNumber;
+                inFlight.add(executor.submit(() -> mapLine(toMap, number, output.source(), mapper)));
+                mapped++;
+            }
+            while (!inFlight.isEmpty()) {
+                if (write(inFlight.poll(), output)) {
+                    failed++;
+                }
+            }
+            output.flush();
+        } finally {
+            // i.e. client went away; lines not yet mapped don't need to be
+            inFlight.forEach(future -> future.cancel(true));
+        }
+        return new BatchResult(mapped, failed);
+    }
+
+    private LineResult mapLine(final String line, final int lineNumber, final String source,
+                               final LineMapper mapper) {
+        final StringWriter result = new StringWriter();
+        try {
+            mapper.map(line, new SingleLineWriter(result));
+            return new LineResult(result.toString(), false);
+        } catch (final ResponseStatusException e) {
+            return error(source, lineNumber, e.getStatusCode().value(), e.getReason());
+        } catch (final IllegalArgumentException e) {
+            return error(source, lineNumber, 400, e.getMessage());
+        } catch (final Exception e) {
+            log.error("Error mapping line {} of a batch", lineNumber, e);
+            return error(source, lineNumber, 500, e.getMessage());
+        }
+    }
+
+    private LineResult error(final String source, final int lineNumber, final int status, final String message) {
+        final JsonObject error = new JsonObject();
+        if (source != null) {
+            error.addProperty("source", source);
+        }
+        error.addProperty("line", lineNumber);
+        error.addProperty("status", status);
+        error.addProperty("error", message);
+        return new LineResult(gson.toJson(error), true);
+    }
+
+    /**
+     * Writes the result of the oldest line in flight, flushing whatever has been written so far if it needs to be
+     * waited for
+     *
+     * @return whether the line failed to be mapped
+     */
+    private boolean write(final Future<LineResult> future, final BatchOutput output) throws IOException {
+        if (!future.isDone()) {
+            output.flush();
+        }
+        final LineResult result;
+        try {
+            result = future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a line of a batch to be mapped", e);
+        } catch (final ExecutionException | CancellationException e) {
+            // mapLine never throws, so this can't really happen
+            throw new IllegalStateException("Mapping a line of a batch failed unexpectedly", e);
+        }
+        final Writer writer = result.failed() && output.failures() != null ? output.failures() : output.results();
+        writer.write(result.json());
+        writer.write('\n');
+        return result.failed();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Where results of a batch are written to
+     *
+     * @param results stream mapped lines are written to
+     * @param failures stream errors are written to, null if they should be written to results in place of the lines
+     *         that failed
+     * @param source name of the input (i.e. a file name) added to errors, null if there's no need for it
+     */
+    public record BatchOutput(Writer results, Writer failures, String source) {
+
+        void flush() throws IOException {
+            results.flush();
+            if (failures != null) {
+                failures.flush();
+            }
+        }
+    }
+
+    /**
+     * @param lines number of lines mapped, either successfully or not
+     * @param failed number of lines that failed to be mapped
+     */
+    public record BatchResult(int lines, int failed) {
+    }
+
+    private record LineResult(String json, boolean failed) {
+    }
+
+    @FunctionalInterface
+    private interface LineMapper {
+
+        void map(String line, Writer out) throws IOException;
+    }
+
+    /**
+     * Drops line breaks (and the indentation following them) of a pretty printed json, so it can be written as a
+     * single line. A json string can't contain an unescaped line break, so these are never part of a value.
+     */
+    private static class SingleLineWriter extends FilterWriter {
+
+        private boolean afterLineBreak;
+
+        SingleLineWriter(final Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            if (!skip((char) c)) {
+                out.write(c);
+            }
+        }
+
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) throws IOException {
+            write(new String(buffer, offset, length), 0, length);
+        }
+
+        @Override
+        public void write(final String str, final int offset, final int length) throws IOException {
+            int runStart = offset;
+            for (int i = offset; i < offset + length; i++) {
+                if (skip(str.charAt(i))) {
+                    out.write(str, runStart, i - runStart);
+                    runStart = i + 1;
+                }
+            }
+            out.write(str, runStart, offset + length - runStart);
+        }
+
+        private boolean skip(final char c) {
+            if (c == '\n' || c == '\r') {
+                afterLineBreak = true;
+                return true;
+            }
+            if (afterLineBreak && (c == ' ' || c == '\t')) {
+                return true;
+            }
+            afterLineBreak = false;
+            return false;
+        }
+    }
+
+    private static class BatchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "openfhir-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package com.medblocks.openfhir;
 
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.tofhir.OpenEhrToFhirPlanStep;
+import com.medblocks.openfhir.toopenehr.PrecompiledFhirToOpenEhrHelpers;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
@@ -21,4 +28,29 @@ public class OpenFhirContextRepository {
     private Map<String, List<OpenFhirFhirConnectModelMapper>> slotMappers;
     private OPERATIONALTEMPLATE operationaltemplate;
     private WebTemplate webTemplate;
+    /**
+     * Names of all model mappers (core and extensions) this repository has been built from, so that it can be
+     * invalidated when any of them changes
+     */
+    private Set<String> modelNames;
+    /**
+     * Model mappers with a fhirConfig, key'd by fhirConfig.resource, used to find mappers for an incoming FHIR
+     * Resource; volatile as it may be built lazily by concurrent mappings
+     */
+    private volatile Map<String, List<ResourceMapper>> mappersByResource;
+    /**
+     * FHIR to openEHR helpers precompiled per model mapper (key'd by mapper identity) on first use, so they live
+     * exactly as long as the mappers and the WebTemplate they have been built from
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private Map<OpenFhirFhirConnectModelMapper, PrecompiledFhirToOpenEhrHelpers> fhirToOpenEhrHelpers =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+    /**
+     * openEHR to FHIR mapping plans compiled per model mapper (key'd by mapper identity) on first use
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> openEhrToFhirPlans =
+            Collections.synchronizedMap(new IdentityHashMap<>());
 }
@@ -1,160 +1,139 @@
 package com.medblocks.openfhir;
 
-import ca.uhn.fhir.parser.JsonParser;
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.medblocks.openfhir.InputFormatDetector.DetectedOpenEhr;
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
-import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
-import com.medblocks.openfhir.fc.FhirConnectConst;
-import com.medblocks.openfhir.fc.schema.model.Condition;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.rest.AdmissionControl;
 import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
-import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.StreamingFlatJsonUnmarshaller;
 import com.nedap.archie.rm.composition.Composition;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
 import org.ehrbase.openehr.sdk.serialisation.jsonencoding.CanonicalJson;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
-import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
-import org.hl7.fhir.r4.model.Base;
-import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
 import java.util.*;
+import java.util.function.Supplier;
 
+/**
+ * Maps between FHIR and openEHR. Everything a mapping needs (context mappers, model mappers and operational
+ * templates) is served from in-memory snapshots and caches, so mapping doesn't run in a transaction nor hold a
+ * database connection; only what's missing from them is read from the database, in a short read-only transaction
+ * (see {@link com.medblocks.openfhir.db.ReadOnlyTransactions}). Changes made elsewhere are picked up by
+ * {@link MappingStateRefresher}.
+ */
 @Component
 @Slf4j
-@Transactional
 public class OpenFhirEngine {
 
+    /**
+     * Writes canonical json the same way {@link CanonicalJson#marshal} does, but leaves the target stream open
+     */
+    private static final ObjectWriter CANONICAL_WRITER = CanonicalJson.MARSHAL_OM.writer()
+            .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     private final FhirToOpenEhr fhirToOpenEhr;
     private final OpenEhrToFhir openEhrToFhir;
-    private final FhirConnectContextRepository fhirConnectContextRepository;
-    private final JsonParser jsonParser;
+    private final FhirConnectContextIndex fhirConnectContextIndex;
+    /**
+     * HAPI parsers aren't thread safe, so a new one (which is cheap) is created from the context for every use
+     */
+    private final FhirContext fhirContext;
     private final OpenEhrCachedUtils cachedUtils;
-    private final FlatJsonUnmarshaller flatJsonUnmarshaller;
+    private final InputFormatDetector inputFormatDetector;
+    private final StreamingFlatJsonUnmarshaller flatJsonUnmarshaller;
     private final ProdOpenFhirMappingContext prodOpenFhirMappingContext;
-    private final OpenFhirStringUtils openFhirStringUtils;
-    private final FhirPathR4 fhirPathR4;
     private final Gson gson;
+    /**
+     * Counts the request for its template as soon as that's known, before the template is resolved
+     */
+    private final AdmissionControl admissionControl;
+
+    /**
+     * Whether Compositions coming in a flat format are mapped to FHIR directly instead of being unmarshalled to an
+     * RM Composition and marshalled back to a flat format first (see {@link OpenEhrToFhir#flatToFhir})
+     */
+    private final boolean directFlat;
 
     @Autowired
     public OpenFhirEngine(final FhirToOpenEhr fhirToOpenEhr,
                           final OpenEhrToFhir openEhrToFhir,
-                          final FhirConnectContextRepository fhirConnectContextRepository,
-                          final JsonParser jsonParser,
+                          final FhirConnectContextIndex fhirConnectContextIndex,
+                          final FhirContext fhirContext,
                           final OpenEhrCachedUtils cachedUtils,
-                          final FlatJsonUnmarshaller flatJsonUnmarshaller,
+                          final InputFormatDetector inputFormatDetector,
+                          final StreamingFlatJsonUnmarshaller flatJsonUnmarshaller,
                           final ProdOpenFhirMappingContext prodOpenFhirMappingContext,
-                          final OpenFhirStringUtils openFhirStringUtils,
-                          final FhirPathR4 fhirPathR4,
-                          final Gson gson) {
+                          final Gson gson,
+                          final AdmissionControl admissionControl,
+                          @Value("${openfhir.tofhir.direct-flat:false}") final boolean directFlat) {
         this.fhirToOpenEhr = fhirToOpenEhr;
         this.openEhrToFhir = openEhrToFhir;
-        this.fhirConnectContextRepository = fhirConnectContextRepository;
-        this.jsonParser = jsonParser;
+        this.fhirConnectContextIndex = fhirConnectContextIndex;
+        this.fhirContext = fhirContext;
         this.cachedUtils = cachedUtils;
+        this.inputFormatDetector = inputFormatDetector;
         this.flatJsonUnmarshaller = flatJsonUnmarshaller;
         this.prodOpenFhirMappingContext = prodOpenFhirMappingContext;
-        this.openFhirStringUtils = openFhirStringUtils;
-        this.fhirPathR4 = fhirPathR4;
         this.gson = gson;
+        this.admissionControl = admissionControl;
+        this.directFlat = directFlat;
     }
 
     /**
      * Returns context for when mapping from FHIR to openEHR, where context is either gotten from the provided
-     * templateId, or if none is provided, it will loop through all user's contexts and try to apply
-     * fhir condition on them.
+     * templateId, or if none is provided, it's looked up by profiles of the incoming Resource in the
+     * {@link FhirConnectContextIndex}.
      */
     private FhirConnectContextEntity getContextForFhir(final String templateId,
-                                                       final String incomingFhirResource) {
+                                                       final Resource resource) {
         log.debug("Getting context for template {}", templateId);
         if (StringUtils.isNotBlank(templateId)) {
-            return fhirConnectContextRepository.findByTemplateId(templateId);
+            return fhirConnectContextIndex.findByTemplateId(templateId);
         }
-        final List<FhirConnectContextEntity> allUserContexts = fhirConnectContextRepository.findAll();
-
-        FhirConnectContextEntity fallbackContext = null;
-
-        final Resource resource = parseIncomingFhirResource(incomingFhirResource);
-        for (final FhirConnectContextEntity context : allUserContexts) {
-            final Condition condition = getContextCondition(
-                    context.getFhirConnectContext().getContext().getProfile().getUrl(),
-                    resource.getResourceType().name());
-            final String resourceType = resource.getResourceType().name();
-            final String fhirPathWithCondition = openFhirStringUtils.amendFhirPath(FhirConnectConst.FHIR_RESOURCE_FC,
-                                                                                   Arrays.asList(condition),
-                                                                                   resourceType);
-            if (StringUtils.isEmpty(fhirPathWithCondition) || fhirPathWithCondition.equals(resourceType)) {
-                log.warn("No fhirpath defined for resource type, context relevant for all?");
-                fallbackContext = context; // assign it to the variable in case there really is no other suitable one.. in which case, this will be returned (or the last occurrence of such a context mapper 'for all'
-            } else {
-                final Optional<Base> evaluated = fhirPathR4.evaluateFirst(resource, fhirPathWithCondition, Base.class);
-                // if is present and is of type boolean, it also needs to be true
-                // if is present and is not of type boolean, then the mere presence means the mapper is for this resource
-                if (evaluated.isPresent() && ((!(evaluated.get() instanceof BooleanType) || ((BooleanType) evaluated.get()).getValue()))) {
-                    // mapper matches this Resource, it can handle it
-                    log.info("Found a relevant context ({}) for this input fhir Resource. If there are more relevant other than this one, others will be ignored as this was the first one found.",
-                            context.getId());
-                    return context;
-                }
-            }
-        }
-        if (fallbackContext != null) {
-            log.warn("Returning a fallback context for this input fhir Resource {}", fallbackContext.getId());
-        }
-        return fallbackContext;
-    }
-
-    private Condition getContextCondition(final String profileUrl, final String resourceType) {
-        if (profileUrl == null || StringUtils.isEmpty(profileUrl)) {
-            return null;
-        }
-        final Condition condition = new Condition();
-        if (resourceType.equals("Bundle")) {
-            condition.setTargetRoot("Bundle");
-            condition.setTargetAttribute("entry.resource.meta.profile");
-        } else {
-            condition.setTargetRoot(resourceType);
-            condition.setTargetAttribute("meta.profile");
-        }
-        condition.setOperator("one of");
-        condition.setCriteria(profileUrl);
-        return condition;
+        return fhirConnectContextIndex.findForResource(resource);
     }
 
     /**
      * Returns context for when mapping from openEHR to FHIR. It will first take the templateId from the incoming
      * payload (flatJson or Composition JSON) and then find it by user and templateId
      */
-    private FhirConnectContextEntity getContextForOpenEhr(final String incomingOpenEhr,
+    private FhirConnectContextEntity getContextForOpenEhr(final DetectedOpenEhr incomingOpenEhr,
                                                           final String incomingTemplateId) {
         log.debug("Getting context for template {}", incomingTemplateId);
         if (StringUtils.isNotBlank(incomingTemplateId)) {
-            return fhirConnectContextRepository.findByTemplateId(incomingTemplateId);
+            return fhirConnectContextIndex.findByTemplateId(incomingTemplateId);
         }
         log.debug("Will try to obtain template id from the incoming openEhr object");
-        final String templateId = getTemplateIdFromOpenEhr(incomingOpenEhr);
-        return fhirConnectContextRepository.findByTemplateId(templateId);
+        return fhirConnectContextIndex.findByTemplateId(incomingOpenEhr.templateId());
     }
 
     String getTemplateIdFromOpenEhr(final String incomingOpenEhr) {
-        final JsonObject jsonObject = gson.fromJson(incomingOpenEhr, JsonObject.class);
-        if (jsonObject.get("_type") != null && "COMPOSITION".equals(jsonObject.get("_type").getAsString())) {
-            return jsonObject.get("archetype_details").getAsJsonObject().get("template_id").getAsJsonObject().get("value").getAsString();
-        }
-        final Set<String> keys = jsonObject.keySet();
-        return new ArrayList<>(keys).get(0).split("/")[0];
+        return inputFormatDetector.detectOpenEhr(incomingOpenEhr, null).templateId();
     }
 
 
@@ -166,85 +145,240 @@ public class OpenFhirEngine {
      * if the caller will always know which template to use?
      */
     public String toOpenEhr(final String incomingFhirResource, final String incomingTemplateId, final Boolean flat) {
-        // get context and operational template
-        final Resource resource = parseIncomingFhirResource(incomingFhirResource);
-        final FhirConnectContextEntity fhirConnectContext = getContextForFhir(incomingTemplateId, incomingFhirResource);
-        if (fhirConnectContext == null) {
-            final String logMsg = String.format("Couldn't find any Context mapper for the given Resource. Make sure at least one Context mapper exists where fhir.resourceType is of this type (%s) and condition within the context mapper allows for it to be applied on this specific resource.",
-                    resource.getResourceType().name());
-            log.error(logMsg);
-            throw new IllegalArgumentException(logMsg);
+        final StringWriter openEhr = new StringWriter();
+        try {
+            toOpenEhr(new StringReader(incomingFhirResource), incomingTemplateId, flat, openEhr);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
         }
-        final String templateIdToUse = fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId();
-
-        validatePrerequisites(fhirConnectContext, templateIdToUse);
+        return openEhr.toString();
+    }
 
-        final OPERATIONALTEMPLATE operationalTemplate = cachedUtils.getOperationalTemplate(templateIdToUse);
-        final WebTemplate webTemplate = cachedUtils.parseWebTemplate(operationalTemplate);
+    /**
+     * Same as {@link #toOpenEhr(String, String, Boolean)}, parsing the FHIR Resource directly from the given stream
+     * and serializing the mapped Composition directly to the given one, so neither exists as a whole String.
+     * Nothing is written before mapping is done, so a failed mapping never leaves a partial Composition in the output.
+     *
+     * @param incomingFhirResource stream of the incoming FHIR Resource; not closed
+     * @param openEhr stream the Composition is written to; not closed
+     */
+    public void toOpenEhr(final Reader incomingFhirResource, final String incomingTemplateId, final Boolean flat,
+                          final Writer openEhr) throws IOException {
+        toOpenEhr(incomingFhirResource, incomingTemplateId, flat, openEhr, null);
+    }
 
-        prodOpenFhirMappingContext.initMappingCache(fhirConnectContext.getFhirConnectContext(), operationalTemplate, webTemplate);
+    /**
+     * Same as {@link #toOpenEhr(Reader, String, Boolean, Writer)}, where templates are resolved only once for all
+     * mappings sharing the given map, i.e. all lines of a batch.
+     *
+     * @param resolvedTemplates templates already resolved, key'd by template id; null if templates shouldn't be
+     *         kept beyond this mapping
+     */
+    public void toOpenEhr(final Reader incomingFhirResource, final String incomingTemplateId, final Boolean flat,
+                          final Writer openEhr, final Map<String, ResolvedTemplate> resolvedTemplates)
+            throws IOException {
+        // get context and operational template
+        final Resource resource = parseIncomingFhirResource(markable(incomingFhirResource));
+        final ResolvedTemplate template;
+        if (StringUtils.isNotBlank(incomingTemplateId)) {
+            admissionControl.admitTemplate(incomingTemplateId);
+            template = resolve(resolvedTemplates, incomingTemplateId,
+                               () -> getExistingContextForFhir(incomingTemplateId, resource), incomingTemplateId);
+        } else {
+            final FhirConnectContextEntity fhirConnectContext = getExistingContextForFhir(null, resource);
+            final String templateIdToUse = fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId();
+            admissionControl.admitTemplate(templateIdToUse);
+            template = resolve(resolvedTemplates, templateIdToUse, () -> fhirConnectContext, templateIdToUse);
+        }
+        final FhirConnectContext fhirConnectContext = template.context().getFhirConnectContext();
 
         if (flat != null && flat) {
-            final JsonObject jsonObject = fhirToOpenEhr.fhirToFlatJsonObject(fhirConnectContext.getFhirConnectContext(),
+            final JsonObject jsonObject = fhirToOpenEhr.fhirToFlatJsonObject(fhirConnectContext,
                     resource,
-                    operationalTemplate);
-            return gson.toJson(jsonObject);
+                    template.operationalTemplate(),
+                    template.repository());
+            gson.toJson(jsonObject, openEhr);
         } else {
-            final Composition composition = fhirToOpenEhr.fhirToCompositionRm(fhirConnectContext.getFhirConnectContext(),
+            final Composition composition = fhirToOpenEhr.fhirToCompositionRm(fhirConnectContext,
                     resource,
-                    operationalTemplate);
-            return new CanonicalJson().marshal(composition);
+                    template.operationalTemplate(),
+                    template.repository());
+            CANONICAL_WRITER.writeValue(openEhr, composition);
+        }
+        openEhr.flush();
+    }
+
+    private FhirConnectContextEntity getExistingContextForFhir(final String templateId, final Resource resource) {
+        final FhirConnectContextEntity fhirConnectContext = getContextForFhir(templateId, resource);
+        if (fhirConnectContext == null) {
+            final String logMsg = String.format("Couldn't find any Context mapper for the given Resource. Make sure at least one Context mapper exists where fhir.resourceType is of this type (%s) and condition within the context mapper allows for it to be applied on this specific resource.",
+                    resource.getResourceType().name());
+            log.error(logMsg);
+            throw new IllegalArgumentException(logMsg);
         }
+        return fhirConnectContext;
     }
 
     private void preProcessIncomingResource() {
         //todo: FhirToOpenEhrPreProcessor
     }
 
-    private Resource parseIncomingFhirResource(final String incomingFhirResource) {
-        try {
-            return jsonParser.parseResource(Bundle.class, incomingFhirResource);
-        } catch (final Exception e) {
-            return (Resource) jsonParser.parseResource(incomingFhirResource);
+    private Resource parseIncomingFhirResource(final Reader incomingFhirResource) throws IOException {
+        if (inputFormatDetector.detectFhir(incomingFhirResource) == InputFormat.FHIR_BUNDLE) {
+            return fhirContext.newJsonParser().parseResource(Bundle.class, incomingFhirResource);
         }
+        return (Resource) fhirContext.newJsonParser().parseResource(incomingFhirResource);
     }
 
     public String toFhir(final String openEhrCompositionJson, final String incomingTemplateId) {
-        // find the context mapper for the given template
-        final FhirConnectContextEntity fhirConnectContext = getContextForOpenEhr(openEhrCompositionJson, incomingTemplateId);
+        return toFhir(openEhrCompositionJson, incomingTemplateId, null);
+    }
 
+    /**
+     * @param openEhrCompositionJson incoming Composition in either flat or canonical json format
+     * @param incomingTemplateId template id, optional
+     * @param requestedFormat format of the Composition as explicitly requested by the caller, null if it should
+     *         be detected from the Composition itself
+     * @return FHIR Bundle with mapped Resources, as json
+     */
+    public String toFhir(final String openEhrCompositionJson, final String incomingTemplateId,
+                         final InputFormat requestedFormat) {
+        final StringWriter fhir = new StringWriter();
+        try {
+            toFhir(new StringReader(openEhrCompositionJson), incomingTemplateId, requestedFormat, fhir);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return fhir.toString();
+    }
+
+    /**
+     * Same as {@link #toFhir(String, String, InputFormat)}, parsing the Composition directly from the given stream
+     * and serializing the mapped Bundle directly to the given one. Nothing is written before mapping is done, so a
+     * failed mapping never leaves a partial Bundle in the output.
+     *
+     * @param openEhrCompositionJson stream of the incoming Composition; not closed
+     * @param fhir stream the Bundle is written to; not closed
+     */
+    public void toFhir(final Reader openEhrCompositionJson, final String incomingTemplateId,
+                       final InputFormat requestedFormat, final Writer fhir) throws IOException {
+        toFhir(openEhrCompositionJson, incomingTemplateId, requestedFormat, fhir, null);
+    }
+
+    /**
+     * Same as {@link #toFhir(Reader, String, InputFormat, Writer)}, where templates are resolved only once for all
+     * mappings sharing the given map, i.e. all lines of a batch.
+     *
+     * @param resolvedTemplates templates already resolved, key'd by template id; null if templates shouldn't be
+     *         kept beyond this mapping
+     */
+    public void toFhir(final Reader openEhrCompositionJson, final String incomingTemplateId,
+                       final InputFormat requestedFormat, final Writer fhir,
+                       final Map<String, ResolvedTemplate> resolvedTemplates) throws IOException {
+        final Reader composition = markable(openEhrCompositionJson);
+
+        // determine format upfront, so the Composition is parsed only once and with the right parser
+        final DetectedOpenEhr detected = inputFormatDetector.detectOpenEhr(composition, requestedFormat);
+
+        // find the context mapper for the given template and validate prerequisites before starting any kind of
+        // mapping logic
+        final String templateIdToFind = StringUtils.isNotBlank(incomingTemplateId) ? incomingTemplateId
+                : detected.templateId();
+        admissionControl.admitTemplate(templateIdToFind);
+        final ResolvedTemplate template = resolve(resolvedTemplates, templateIdToFind,
+                                                  () -> getContextForOpenEhr(detected, incomingTemplateId),
+                                                  incomingTemplateId);
+        final FhirConnectContext fhirConnectContext = template.context().getFhirConnectContext();
+
+        final Bundle bundle;
+        if (detected.format() == InputFormat.FLAT && directFlat) {
+            // flat json is mapped as it is, without a round-trip through an RM Composition
+            bundle = openEhrToFhir.flatToFhir(gson.fromJson(composition, JsonObject.class),
+                    template.operationalTemplate(),
+                    template.repository());
+        } else {
+            final Composition rmComposition = detected.format() == InputFormat.FLAT
+                    ? unmarshalFlat(composition, template.webTemplate())
+                    : unmarshalCanonical(composition);
+            bundle = openEhrToFhir.compositionToFhir(rmComposition,
+                    template.operationalTemplate(),
+                    template.repository());
+        }
+        fhirContext.newJsonParser().encodeResourceToWriter(bundle, fhir);
+        fhir.flush();
+    }
+
+    /**
+     * Finds the context mapper, validates prerequisites and prepares the mapping cache for a template, or takes all of
+     * that from the already resolved templates.
+     *
+     * @param resolvedTemplates already resolved templates, null if there are none
+     * @param templateId template id the resolved template is key'd by, can be null if it isn't known
+     * @param context finds the context mapper
+     * @param templateIdForError template id logged when no context mapper is found
+     */
+    private ResolvedTemplate resolve(final Map<String, ResolvedTemplate> resolvedTemplates, final String templateId,
+                                     final Supplier<FhirConnectContextEntity> context,
+                                     final String templateIdForError) {
+        if (resolvedTemplates == null || templateId == null) {
+            return resolve(context.get(), templateIdForError);
+        }
+        final ResolvedTemplate existing = resolvedTemplates.get(templateId);
+        if (existing != null) {
+            return existing;
+        }
+        // not computeIfAbsent, as resolving may hit the database (on a miss) and shouldn't block other templates
+        final ResolvedTemplate resolved = resolve(context.get(), templateIdForError);
+        final ResolvedTemplate raced = resolvedTemplates.putIfAbsent(templateId, resolved);
+        return raced != null ? raced : resolved;
+    }
+
+    private ResolvedTemplate resolve(final FhirConnectContextEntity fhirConnectContext,
+                                     final String templateIdForError) {
         // validate prerequisites before starting any kind of mapping logic
-        validatePrerequisites(fhirConnectContext, fhirConnectContext != null ? fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId() : incomingTemplateId);
+        validatePrerequisites(fhirConnectContext, fhirConnectContext != null ? fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId() : templateIdForError);
 
         final String templateIdToUse = fhirConnectContext.getFhirConnectContext().getContext().getTemplate().getId(); // fhirConnectContext can not be null because prerequisites are validated above
 
-
         final OPERATIONALTEMPLATE operationalTemplate = cachedUtils.getOperationalTemplate(templateIdToUse);
         final WebTemplate webTemplate = cachedUtils.parseWebTemplate(operationalTemplate);
 
-        // prepare cache (OpenFhirContextRepository) for the mapping
-        prodOpenFhirMappingContext.initMappingCache(fhirConnectContext.getFhirConnectContext(), operationalTemplate, webTemplate);
+        // prepare cache (OpenFhirContextRepository) for the mapping; the mapping uses this very repository, even if
+        // the cached one is invalidated meanwhile
+        final OpenFhirContextRepository repository = prodOpenFhirMappingContext.initMappingCache(
+                fhirConnectContext.getFhirConnectContext(), operationalTemplate, webTemplate);
+        return new ResolvedTemplate(fhirConnectContext, operationalTemplate, webTemplate, repository);
+    }
+
+    /**
+     * Detecting the input format requires a stream that can be reset to where detection started
+     */
+    private static Reader markable(final Reader reader) {
+        return reader.markSupported() ? reader : new BufferedReader(reader);
+    }
 
-        Composition composition;
+    private Composition unmarshalFlat(final Reader openEhrCompositionJson, final WebTemplate webTemplate) {
         try {
-            // try to unmarshall to Composition with a flat json unmarshaller, if it fails, we assume it's actually
-            // Composition in a Canonical format (//todo if this proves to be a performance issue, perhaps whether
-            // todo its in flat format or canonical should be passed as an input parameter to the RESTful call)
-            composition = flatJsonUnmarshaller.unmarshal(openEhrCompositionJson, cachedUtils.parseWebTemplate(operationalTemplate));
-        } catch (Exception e) {
-            log.error("Error trying to unmarshall flat path, {}. Will try with a canonical json unmarshaller.", e.getMessage());
-            // try to unmarshall content from a canonical parser
-            composition = new CanonicalJson().unmarshal(openEhrCompositionJson);
-            if (composition.getContent().isEmpty()) {
-                log.error("Composition not properly unmarshalled. Empty content. Aborting translation.", e);
-                throw new IllegalArgumentException("Composition not properly unmarshalled. Empty content. Aborting translation. See log for more info.");
-            }
+            return flatJsonUnmarshaller.unmarshal(openEhrCompositionJson, webTemplate);
+        } catch (final Exception e) {
+            log.error("Error trying to unmarshall flat path, {}.", e.getMessage());
+            throw new IllegalArgumentException(String.format(
+                    "Composition in a flat format could not be unmarshalled: %s. Aborting translation.", e.getMessage()), e);
         }
+    }
 
-        final Bundle fhir = openEhrToFhir.compositionToFhir(fhirConnectContext.getFhirConnectContext(),
-                composition,
-                operationalTemplate);
-        return jsonParser.encodeResourceToString(fhir);
+    private Composition unmarshalCanonical(final Reader openEhrCompositionJson) {
+        final Composition composition;
+        try {
+            composition = CanonicalJson.MARSHAL_OM.readValue(openEhrCompositionJson, Composition.class);
+        } catch (final IOException e) {
+            throw new UnmarshalException(e.getMessage(), e);
+        }
+        if (composition.getContent().isEmpty()) {
+            log.error("Composition not properly unmarshalled. Empty content. Aborting translation.");
+            throw new IllegalArgumentException("Composition not properly unmarshalled. Empty content. Aborting translation. See log for more info.");
+        }
+        return composition;
     }
 
     /**
@@ -273,11 +407,16 @@ public class OpenFhirEngine {
     }
 
     public List<String> getValidProfiles(final String reqId) {
-        List<FhirConnectContextEntity> contextEntities = fhirConnectContextRepository.findAll();
-        List<String> profiles = new ArrayList<>();
-        for (final FhirConnectContextEntity contextEntity : contextEntities){
-            profiles.add(contextEntity.getFhirConnectContext().getContext().getProfile().getUrl());
-        }
-        return profiles;
+        return fhirConnectContextIndex.getValidProfiles();
+    }
+
+    /**
+     * Everything a mapping needs of a template, i.e. its context mapper, parsed operational template and the
+     * repository of its model mappers, with its prerequisites already validated
+     */
+    public record ResolvedTemplate(FhirConnectContextEntity context,
+                                   OPERATIONALTEMPLATE operationalTemplate,
+                                   WebTemplate webTemplate,
+                                   OpenFhirContextRepository repository) {
     }
 }
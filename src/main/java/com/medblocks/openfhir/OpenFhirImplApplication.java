@@ -1,8 +1,11 @@
 package com.medblocks.openfhir;
 
+import com.medblocks.openfhir.cli.OpenFhirCli;
+import java.util.Arrays;
 import lombok.extern.slf4j.Slf4j;
 import org.pf4j.DefaultPluginManager;
 import org.pf4j.PluginManager;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.data.mongo.MongoRepositoriesAutoConfiguration;
@@ -14,13 +17,17 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 
-@SpringBootApplication(exclude = {SecurityAutoConfiguration.class, DataSourceAutoConfiguration.class, MongoRepositoriesAutoConfiguration.class, MongoAutoConfiguration.class})
+@SpringBootApplication(exclude = {SecurityAutoConfiguration.class, ManagementWebSecurityAutoConfiguration.class, DataSourceAutoConfiguration.class, MongoRepositoriesAutoConfiguration.class, MongoAutoConfiguration.class})
 @EnableScheduling
 @Slf4j
 public class OpenFhirImplApplication {
 
 
     public static void main(String[] args) {
+        if (args.length > 0 && OpenFhirCli.COMMAND.equals(args[0])) {
+            // offline bulk conversion instead of the server
+            System.exit(OpenFhirCli.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         SpringApplication.run(OpenFhirImplApplication.class, args);
     }
 
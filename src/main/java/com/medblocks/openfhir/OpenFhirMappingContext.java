@@ -1,18 +1,26 @@
 package com.medblocks.openfhir;
 
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
 import com.medblocks.openfhir.fc.schema.model.Condition;
+import com.medblocks.openfhir.fc.schema.model.Mapping;
+import com.medblocks.openfhir.tofhir.OpenEhrToFhirPlanStep;
+import com.medblocks.openfhir.toopenehr.PrecompiledFhirToOpenEhrHelpers;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
@@ -24,10 +32,13 @@ import org.hl7.fhir.r4.model.Resource;
 @Slf4j
 public abstract class OpenFhirMappingContext {
 
-    @Getter
-    Map<String, OpenFhirContextRepository> repository = new HashMap<>();
+    /**
+     * Repositories of templates, key'd by normalized template id; only modified by implementations building and
+     * invalidating them
+     */
+    protected final Map<String, OpenFhirContextRepository> repository = new ConcurrentHashMap<>();
 
-    private final FhirPathR4 fhirPathR4;
+    protected final FhirPathR4 fhirPathR4;
     private final OpenFhirStringUtils openFhirStringUtils;
     protected final FhirConnectModelMerger modelMerger;
 
@@ -39,21 +50,52 @@ public abstract class OpenFhirMappingContext {
         this.modelMerger = modelMerger;
     }
 
+    /**
+     * @return read only view of the repositories of templates, key'd by normalized template id
+     */
+    public Map<String, OpenFhirContextRepository> getRepository() {
+        return Collections.unmodifiableMap(repository);
+    }
+
+    /**
+     * @param templateId template id, doesn't need to be normalized
+     * @return repository of the given template as currently cached, null if there's none (yet); a mapping should
+     *         take the repository once and use it throughout, as the cached one may be invalidated meanwhile
+     */
+    public OpenFhirContextRepository getRepository(final String templateId) {
+        return repository.get(normalizeTemplateId(templateId));
+    }
+
     /**
      * Returns a fhir connect model mapper for a specific archetype within a template.
+     * <p>
+     * Returned mappers are the cached ones and are shared between mappings, they must not be modified. Mappings that
+     * need to be rewritten as part of the mapping process are derived, see {@link Mapping#derive()}.
      */
     public List<OpenFhirFhirConnectModelMapper> getMapperForArchetype(final String templateId,
                                                                       final String archetypeId) {
-        final OpenFhirContextRepository repoForTemplate = repository.get(normalizeTemplateId(templateId));
+        final OpenFhirContextRepository repoForTemplate = getRepository(templateId);
         if (repoForTemplate == null) {
             log.warn("No repo exists for template: {}", templateId);
             return null;
         }
+        return getMapperForArchetype(repoForTemplate, archetypeId);
+    }
+
+    /**
+     * Same as {@link #getMapperForArchetype(String, String)}, with mappers of the given repository of a template
+     */
+    public List<OpenFhirFhirConnectModelMapper> getMapperForArchetype(final OpenFhirContextRepository repoForTemplate,
+                                                                      final String archetypeId) {
+        if (repoForTemplate == null) {
+            log.warn("No repo exists for archetype: {}", archetypeId);
+            return null;
+        }
         final List<OpenFhirFhirConnectModelMapper> fhirConnectMapper = repoForTemplate.getMappers().get(archetypeId);
         if (fhirConnectMapper == null) {
             return null;
         }
-        return fhirConnectMapper.stream().map(OpenFhirFhirConnectModelMapper::copy).collect(Collectors.toList());
+        return Collections.unmodifiableList(fhirConnectMapper);
     }
 
 
@@ -76,7 +118,7 @@ public abstract class OpenFhirMappingContext {
         if (fhirConnectMapper == null) {
             return null;
         }
-        return fhirConnectMapper.stream().map(map -> map.copy()).collect(Collectors.toList());
+        return Collections.unmodifiableList(fhirConnectMapper);
     }
 
     /**
@@ -95,18 +137,45 @@ public abstract class OpenFhirMappingContext {
      * the
      * available one
      *
+     * @param templateId template id of the context that has been selected for this mapping; only mappers of this
+     *                   template's repository are considered
      * @param resource incoming Resource that is to be mapped
-     * @return a list of relevant FhirConnectMappers for the incoming FHIR Resource
+     * @return a list of relevant FhirConnectMappers for the incoming FHIR Resource; these are the cached mappers and
+     *         must not be modified
      */
-    public List<OpenFhirFhirConnectModelMapper> getMapperForResource(final Resource resource) {
+    public List<OpenFhirFhirConnectModelMapper> getMapperForResource(final String templateId,
+                                                                     final Resource resource) {
+        final OpenFhirContextRepository specificRepo = getRepository(templateId);
+        if (specificRepo == null) {
+            log.warn("No repo exists for template: {}", templateId);
+            return null;
+        }
+        return getMapperForResource(specificRepo, resource);
+    }
+
+    /**
+     * Same as {@link #getMapperForResource(String, Resource)}, with mappers of the given repository of a template
+     */
+    public List<OpenFhirFhirConnectModelMapper> getMapperForResource(final OpenFhirContextRepository specificRepo,
+                                                                     final Resource resource) {
+        if (specificRepo == null) {
+            log.warn("No repo exists for Resource: {}", resource.getResourceType().name());
+            return null;
+        }
         final List<OpenFhirFhirConnectModelMapper> relevantMappers = new ArrayList<>();
-        final Set<Map.Entry<String, OpenFhirContextRepository>> repos = repository.entrySet();
-        for (Map.Entry<String, OpenFhirContextRepository> repo : repos) {
-            final OpenFhirContextRepository specificRepo = repo.getValue();
-            final Map<String, List<OpenFhirFhirConnectModelMapper>> mappers = specificRepo.getMappers();
-            for (Map.Entry<String, List<OpenFhirFhirConnectModelMapper>> mapperEntry : mappers.entrySet()) {
-                final List<OpenFhirFhirConnectModelMapper> connectMappers = mapperEntry.getValue();
-                getMappers(connectMappers, relevantMappers, resource);
+        Map<String, List<ResourceMapper>> mappersByResource = specificRepo.getMappersByResource();
+        if (mappersByResource == null) {
+            // repository has been populated without an index, i.e. directly with mappers
+            mappersByResource = indexByResource(specificRepo.getMappers().values().stream()
+                                                        .flatMap(List::stream)
+                                                        .collect(Collectors.toList()));
+            specificRepo.setMappersByResource(mappersByResource);
+        }
+        final List<ResourceMapper> candidates = mappersByResource.getOrDefault(resource.getResourceType().name(),
+                                                                               Collections.emptyList());
+        for (final ResourceMapper candidate : candidates) {
+            if (isRelevant(candidate, resource)) {
+                relevantMappers.add(candidate.mapper());
             }
         }
         if (relevantMappers.isEmpty()) {
@@ -120,36 +189,132 @@ public abstract class OpenFhirMappingContext {
         return relevantMappers;
     }
 
-    private void getMappers(final List<OpenFhirFhirConnectModelMapper> connectMappers,
-                            final List<OpenFhirFhirConnectModelMapper> relevantMappers,
-                            final Resource resource) {
-        for (OpenFhirFhirConnectModelMapper connectMapper : connectMappers) {
-            if (connectMapper.getFhirConfig() == null) {
+    /**
+     * Returns FHIR to openEHR helpers of the given model mapper, compiling them on first use and keeping them in the
+     * template's repository for subsequent mappings.
+     *
+     * @param templateId template id the model mapper belongs to
+     * @param mapper model mapper as returned by {@link #getMapperForResource(String, Resource)}
+     * @param compiler creates helpers for a model mapper
+     * @return precompiled helpers; these are shared and must not be modified
+     */
+    public PrecompiledFhirToOpenEhrHelpers getFhirToOpenEhrHelpers(final String templateId,
+                                                                   final OpenFhirFhirConnectModelMapper mapper,
+                                                                   final Function<OpenFhirFhirConnectModelMapper, PrecompiledFhirToOpenEhrHelpers> compiler) {
+        return getFhirToOpenEhrHelpers(getRepository(templateId), mapper, compiler);
+    }
+
+    /**
+     * Same as {@link #getFhirToOpenEhrHelpers(String, OpenFhirFhirConnectModelMapper, Function)}, keeping helpers in
+     * the given repository of a template; compiled anew on every call if there's none
+     */
+    public PrecompiledFhirToOpenEhrHelpers getFhirToOpenEhrHelpers(final OpenFhirContextRepository specificRepo,
+                                                                   final OpenFhirFhirConnectModelMapper mapper,
+                                                                   final Function<OpenFhirFhirConnectModelMapper, PrecompiledFhirToOpenEhrHelpers> compiler) {
+        return getOrCompile(specificRepo == null ? null : specificRepo.getFhirToOpenEhrHelpers(), mapper, compiler);
+    }
+
+    /**
+     * Returns openEHR to FHIR mapping plan of the given model mapper, compiling it on first use and keeping it in the
+     * template's repository for subsequent mappings.
+     *
+     * @param templateId template id the model mapper belongs to
+     * @param mapper model mapper as returned by {@link #getMapperForArchetype(String, String)}
+     * @param compiler creates a plan for a model mapper
+     * @return precompiled plan; it is shared and must not be modified
+     */
+    public List<OpenEhrToFhirPlanStep> getOpenEhrToFhirPlan(final String templateId,
+                                                            final OpenFhirFhirConnectModelMapper mapper,
+                                                            final Function<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> compiler) {
+        return getOpenEhrToFhirPlan(getRepository(templateId), mapper, compiler);
+    }
+
+    /**
+     * Same as {@link #getOpenEhrToFhirPlan(String, OpenFhirFhirConnectModelMapper, Function)}, keeping plans in the
+     * given repository of a template; compiled anew on every call if there's none
+     */
+    public List<OpenEhrToFhirPlanStep> getOpenEhrToFhirPlan(final OpenFhirContextRepository specificRepo,
+                                                            final OpenFhirFhirConnectModelMapper mapper,
+                                                            final Function<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> compiler) {
+        return getOrCompile(specificRepo == null ? null : specificRepo.getOpenEhrToFhirPlans(), mapper, compiler);
+    }
+
+    private <T> T getOrCompile(final Map<OpenFhirFhirConnectModelMapper, T> compiled,
+                               final OpenFhirFhirConnectModelMapper mapper,
+                               final Function<OpenFhirFhirConnectModelMapper, T> compiler) {
+        if (compiled == null) {
+            return compiler.apply(mapper);
+        }
+        final T existing = compiled.get(mapper);
+        if (existing != null) {
+            return existing;
+        }
+        // compiled outside of the lock; if two mappings compile the same mapper concurrently, the first one is kept
+        final T created = compiler.apply(mapper);
+        final T previous = compiled.putIfAbsent(mapper, created);
+        return previous != null ? previous : created;
+    }
+
+    private boolean isRelevant(final ResourceMapper candidate, final Resource resource) {
+        if (candidate.relevantForAll()) {
+            log.warn("No fhirpath defined for resource type, mapper relevant for all Resources of this type?");
+            return true;
+        }
+        final Optional<Base> evaluated = candidate.condition() != null
+                ? fhirPathR4.evaluateFirst(resource, candidate.condition(), Base.class)
+                : fhirPathR4.evaluateFirst(resource, candidate.fhirPathWithCondition(), Base.class);
+        // if is present and is of type boolean, it also needs to be true
+        // if is present and is not of type boolean, then the mere presence means the mapper is for this resource
+        return evaluated.isPresent() && ((!(evaluated.get() instanceof BooleanType)
+                || ((BooleanType) evaluated.get()).getValue()));
+    }
+
+    /**
+     * Indexes model mappers by their fhirConfig.resource, so only those for the type of the incoming Resource are
+     * considered when looking for relevant mappers. Mappers are deduplicated (they're kept in the repository by
+     * both their name and archetype) and their fhirConfig.condition is parsed upfront. Mappers without fhirConfig
+     * are not indexed as they can't be a starting point of a mapping.
+     *
+     * @param mappers all model mappers of a template
+     * @return mappers key'd by fhirConfig.resource, in the order they have been given
+     */
+    protected Map<String, List<ResourceMapper>> indexByResource(
+            final Collection<OpenFhirFhirConnectModelMapper> mappers) {
+        final Map<String, List<ResourceMapper>> index = new HashMap<>();
+        final Set<OpenFhirFhirConnectModelMapper> indexed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final OpenFhirFhirConnectModelMapper mapper : mappers) {
+            if (mapper.getFhirConfig() == null || !indexed.add(mapper)) {
                 continue;
             }
-            final List<Condition> conditions = connectMapper.getFhirConfig().getCondition();
-            final String fhirPathWithCondition = openFhirStringUtils.amendFhirPath(FhirConnectConst.FHIR_RESOURCE_FC,
-                                                                                   conditions,
-                                                                                   connectMapper.getFhirConfig()
-                                                                                           .getResource());
-            if (StringUtils.isEmpty(fhirPathWithCondition)
-                    || fhirPathWithCondition.equals(connectMapper.getFhirConfig().getResource())
-                    && connectMapper.getFhirConfig().getResource().equals(resource.getResourceType().name())) {
-                log.warn("No fhirpath defined for resource type, mapper relevant for all Resources of this type?");
-                relevantMappers.add(
-                        connectMapper.copy()); // IMPORTANT! as a mapper is being edited as part of the mapping process, this needs to be copied!
-            } else {
-                final Optional<Base> evaluated = fhirPathR4.evaluateFirst(resource, fhirPathWithCondition, Base.class);
-                // if is present and is of type boolean, it also needs to be true
-                // if is present and is not of type boolean, then the mere presence means the mapper is for this resource
-                if (evaluated.isPresent() && ((!(evaluated.get() instanceof BooleanType)
-                        || ((BooleanType) evaluated.get()).getValue()))) {
-                    // mapper matches this Resource, it can handle it
-                    relevantMappers.add(
-                            connectMapper.copy()); // IMPORTANT! as a mapper is being edited as part of the mapping process, this needs to be copied!
+            final String resourceType = mapper.getFhirConfig().getResource();
+            final String fhirPathWithCondition = getFhirPathWithCondition(mapper);
+            final boolean relevantForAll = StringUtils.isEmpty(fhirPathWithCondition)
+                    || fhirPathWithCondition.equals(resourceType);
+            IParsedExpression condition = null;
+            if (!relevantForAll) {
+                try {
+                    condition = fhirPathR4.parse(fhirPathWithCondition);
+                } catch (final Exception e) {
+                    log.warn("Couldn't parse FHIR path {} of mapper {}: {}", fhirPathWithCondition, mapper.getName(),
+                             e.getMessage());
                 }
             }
+            index.computeIfAbsent(resourceType, type -> new ArrayList<>())
+                    .add(new ResourceMapper(mapper, fhirPathWithCondition, condition, relevantForAll));
         }
+        index.replaceAll((type, resourceMappers) -> Collections.unmodifiableList(resourceMappers));
+        return index;
+    }
+
+    /**
+     * @return FHIR path that evaluates whether the given model mapper is relevant for a Resource, built from the
+     *         model mapper's fhirConfig.condition
+     */
+    String getFhirPathWithCondition(final OpenFhirFhirConnectModelMapper connectMapper) {
+        final List<Condition> conditions = connectMapper.getFhirConfig().getCondition();
+        return openFhirStringUtils.amendFhirPath(FhirConnectConst.FHIR_RESOURCE_FC,
+                                                 conditions,
+                                                 connectMapper.getFhirConfig().getResource());
     }
 
     public static String normalizeTemplateId(final String templateId) {
@@ -1,5 +1,6 @@
 package com.medblocks.openfhir;
 
+import com.medblocks.openfhir.db.ReadOnlyTransactions;
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
 import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
@@ -10,47 +11,83 @@ import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.web.context.annotation.RequestScope;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
- * RequestScoped cache of all the needed information for mapping (Context mappers, Model mappers and parsed
- * OPERATIONALTEMPLATE and WebTemplate. This is requested multiple time throughout the mapping but except for the first
- * time, should only be taken from cache directly to avoid performance issues
+ * Application wide cache of all the needed information for mapping (Context mappers, Model mappers and parsed
+ * OPERATIONALTEMPLATE and WebTemplate), key'd by a normalized template id. Repositories are built once and reused by
+ * all subsequent requests until they are invalidated by a change of a context mapper, a model mapper or an operational
+ * template they have been built from.
+ * <p>
+ * Every invalidation bumps a generation counter; a repository that was being built while an invalidation happened is
+ * still used by the request that built it, but is not put into the cache, so a stale repository can never overwrite a
+ * fresher state.
+ * <p>
+ * Model mappers are only read from the database when a repository is built, each time in a short read-only
+ * transaction, so mapping with a repository that's already cached doesn't touch the database at all.
  */
 @Component
-@RequestScope
 @Slf4j
 public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
 
-    private FhirConnectModelRepository fhirConnectModelRepository;
+    private final FhirConnectModelRepository fhirConnectModelRepository;
+    private final ReadOnlyTransactions readOnlyTransactions;
+
+    /**
+     * Incremented on every invalidation; used to detect that a repository has been built from a state that was
+     * invalidated in the meantime
+     */
+    private final AtomicLong generation = new AtomicLong();
 
-    @Autowired
     public ProdOpenFhirMappingContext(final FhirPathR4 fhirPathR4,
                                       final OpenFhirStringUtils openFhirStringUtils,
                                       final FhirConnectModelRepository fhirConnectModelRepository,
                                       final FhirConnectModelMerger modelMerger) {
+        this(fhirPathR4, openFhirStringUtils, fhirConnectModelRepository, modelMerger, ReadOnlyTransactions.NONE);
+    }
+
+    @Autowired
+    public ProdOpenFhirMappingContext(final FhirPathR4 fhirPathR4,
+                                      final OpenFhirStringUtils openFhirStringUtils,
+                                      final FhirConnectModelRepository fhirConnectModelRepository,
+                                      final FhirConnectModelMerger modelMerger,
+                                      final ReadOnlyTransactions readOnlyTransactions) {
         super(fhirPathR4, openFhirStringUtils, modelMerger);
         this.fhirConnectModelRepository = fhirConnectModelRepository;
+        this.readOnlyTransactions = readOnlyTransactions;
     }
 
-    public void initMappingCache(final FhirConnectContext context,
-                                 final OPERATIONALTEMPLATE operationaltemplate,
-                                 final WebTemplate webTemplate) {
+    /**
+     * Makes sure a repository for the template of the given context exists in the cache. If it's already there, this
+     * is a mere map lookup, otherwise model mappers are loaded from the database and joined together.
+     *
+     * @return repository for the template of the given context
+     */
+    public OpenFhirContextRepository initMappingCache(final FhirConnectContext context,
+                                                      final OPERATIONALTEMPLATE operationaltemplate,
+                                                      final WebTemplate webTemplate) {
         final String templateId = context.getContext().getTemplate().getId();
         final String normalizedRepoId = normalizeTemplateId(templateId);
-        if (repository.containsKey(normalizedRepoId)) {
-            log.info("Repository for template {} already initialized", normalizedRepoId);
-            return;
+        final OpenFhirContextRepository existing = repository.get(normalizedRepoId);
+        if (existing != null) {
+            log.debug("Repository for template {} already initialized", normalizedRepoId);
+            return existing;
         }
+        final long generationAtStart = generation.get();
         final OpenFhirContextRepository fhirContextRepo = new OpenFhirContextRepository();
         fhirContextRepo.setOperationaltemplate(operationaltemplate);
         fhirContextRepo.setWebTemplate(webTemplate);
@@ -88,21 +125,111 @@ public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
 
         fhirContextRepo.setMappers(mappers);
         fhirContextRepo.setSlotMappers(slotMappers);
+        fhirContextRepo.setModelNames(getModelNames(context.getContext()));
+        fhirContextRepo.setMappersByResource(indexByResource(openFhirFhirConnectModelMappers));
+
+        final OpenFhirContextRepository cached = repository.compute(normalizedRepoId,
+                                                                    (id, current) -> current != null ? current
+                                                                            : generation.get() == generationAtStart
+                                                                                    ? fhirContextRepo : null);
+        if (cached == null) {
+            log.info("Repository for template {} was invalidated while being built, not caching it.",
+                     normalizedRepoId);
+            return fhirContextRepo;
+        }
+        log.info("Initialized repository for template {}", normalizedRepoId);
+        return cached;
+    }
+
+    /**
+     * Removes a cached repository of the given template, i.e. when a context mapper or an operational template for
+     * this template has been created or updated.
+     *
+     * @param templateId template id, doesn't need to be normalized
+     */
+    public void invalidateTemplate(final String templateId) {
+        if (StringUtils.isBlank(templateId)) {
+            return;
+        }
+        runNowAndAfterCommit(() -> {
+            generation.incrementAndGet();
+            if (repository.remove(normalizeTemplateId(templateId)) != null) {
+                log.info("Invalidated cached repository for template {}", templateId);
+            }
+        });
+    }
+
+    /**
+     * Removes all cached repositories that have been built using a model mapper with the given name, either as a core
+     * model or as an extension.
+     *
+     * @param modelName name of a model mapper (metadata.name) that has been created or updated
+     */
+    public void invalidateModel(final String modelName) {
+        runNowAndAfterCommit(() -> {
+            generation.incrementAndGet();
+            repository.entrySet().removeIf(entry -> {
+                final Set<String> modelNames = entry.getValue().getModelNames();
+                final boolean affected = modelNames == null || modelNames.contains(modelName);
+                if (affected) {
+                    log.info("Invalidated cached repository for template {} as model {} changed", entry.getKey(),
+                             modelName);
+                }
+                return affected;
+            });
+        });
+    }
 
-        repository.put(normalizedRepoId, fhirContextRepo);
+    /**
+     * Removes all cached repositories.
+     */
+    public void invalidateAll() {
+        runNowAndAfterCommit(() -> {
+            generation.incrementAndGet();
+            repository.clear();
+        });
+    }
+
+    /**
+     * Invalidation is done right away and, if invoked within a transaction, once more after it commits, so that a
+     * repository built concurrently from the not-yet-committed state doesn't survive in the cache.
+     */
+    private void runNowAndAfterCommit(final Runnable invalidation) {
+        invalidation.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidation.run();
+                }
+            });
+        }
+    }
+
+    private Set<String> getModelNames(final Context context) {
+        final Set<String> modelNames = new HashSet<>();
+        if (context.getArchetypes() != null) {
+            modelNames.addAll(context.getArchetypes());
+        }
+        if (context.getExtensions() != null) {
+            modelNames.addAll(context.getExtensions());
+        }
+        return modelNames;
     }
 
     private List<OpenFhirFhirConnectModelMapper> prepareJoinedModels(final Context context) {
         // now load mappings
-        final List<FhirConnectModelEntity> modelEntities = fhirConnectModelRepository.findByName(
-                context.getArchetypes());
+        final List<FhirConnectModelEntity> modelEntities = readOnlyTransactions.read(
+                () -> fhirConnectModelRepository.findByName(context.getArchetypes()));
         if (modelEntities == null || modelEntities.isEmpty()) {
             log.error("Couldn't find any model entities that would match {}", context.getArchetypes());
             throw new IllegalArgumentException("Couldn't find any model entities for this template.");
         }
 
+        // merging modifies models, which are shared by entities loaded from the database
         final List<FhirConnectModel> coreModels = modelEntities.stream()
                 .map(FhirConnectModelEntity::getFhirConnectModel)
+                .map(FhirConnectModel::copy)
                 .collect(Collectors.toList());
         final List<FhirConnectModel> extensionsModels = loadExtensions(context.getExtensions());
         return modelMerger.joinModelMappers(coreModels, extensionsModels);
@@ -113,13 +240,15 @@ public class ProdOpenFhirMappingContext extends OpenFhirMappingContext {
             log.debug("No extensions defined.");
             return null;
         }
-        final List<FhirConnectModelEntity> extensionEntities = fhirConnectModelRepository.findByName(extensions);
+        final List<FhirConnectModelEntity> extensionEntities = readOnlyTransactions.read(
+                () -> fhirConnectModelRepository.findByName(extensions));
         if (extensionEntities == null || extensionEntities.isEmpty()) {
             log.error("Couldn't find extension model mappers ({}) in the database.", extensions);
             throw new IllegalArgumentException("Couldn't find defined extension model mappers in the database.");
         }
         return extensionEntities.stream()
                 .map(FhirConnectModelEntity::getFhirConnectModel)
+                .map(FhirConnectModel::copy)
                 .collect(Collectors.toList());
     }
 
@@ -0,0 +1,20 @@
+package com.medblocks.openfhir;
+
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+
+/**
+ * A model mapper as indexed by its fhirConfig.resource, together with its precompiled fhirConfig.condition.
+ *
+ * @param mapper model mapper
+ * @param fhirPathWithCondition FHIR path built from the mapper's fhirConfig.condition
+ * @param condition parsed fhirPathWithCondition; null if the mapper is relevant for all Resources of its type
+ *         or if the FHIR path couldn't be parsed (in which case it's evaluated as a String and fails as such)
+ * @param relevantForAll whether the mapper has no condition and is relevant for all Resources of its type
+ */
+public record ResourceMapper(OpenFhirFhirConnectModelMapper mapper,
+                             String fhirPathWithCondition,
+                             IParsedExpression condition,
+                             boolean relevantForAll) {
+
+}
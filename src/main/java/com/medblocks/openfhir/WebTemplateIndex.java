@@ -0,0 +1,218 @@
+package com.medblocks.openfhir;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
+
+/**
+ * Index of a WebTemplate's nodes used when resolving simplified openEHR paths against the template (see
+ * {@link OpenEhrRmWorker#fixFlatWithOccurrences}).
+ * <p>
+ * For every list of sibling nodes, nodes are key'd by their id and by their AQL path with and without predicates,
+ * so finding the node for a path segment is a hash lookup instead of formatting AQL paths of all siblings. Siblings
+ * also know upfront whether they include the special value nodes (identifier_value, date_time_value,
+ * quantity_value, ..). Parsed and formatted AQL paths of path segments being resolved are cached as well.
+ * <p>
+ * The index is read-only once built and can be shared between threads.
+ */
+public class WebTemplateIndex {
+
+    private static final String CONTENT_PREFIX = "/content[";
+    private static final Set<String> VALUE_NODE_IDS = Set.of("value", "identifier_value", "coded_text_value",
+                                                             "quantity_value", "date_time_value");
+
+    private final Map<List<WebTemplateNode>, Siblings> siblingsByChildren = new IdentityHashMap<>();
+    private final Map<WebTemplateNode, WebTemplateNode> parents = new IdentityHashMap<>();
+    private final Map<WebTemplateNode, FormattedAqlPath> nodeAqlPaths = new IdentityHashMap<>();
+    private final Map<String, FormattedAqlPath> formattedAqlPaths = new ConcurrentHashMap<>();
+    private final String rootId;
+    private final Siblings topLevel;
+    private final Map<String, String> contentArchetypeNodeIds = new HashMap<>();
+
+    public WebTemplateIndex(final WebTemplate webTemplate) {
+        rootId = webTemplate.getTree().getId();
+        final Deque<WebTemplateNode> toIndex = new ArrayDeque<>();
+        toIndex.add(webTemplate.getTree());
+        while (!toIndex.isEmpty()) {
+            final WebTemplateNode node = toIndex.poll();
+            final List<WebTemplateNode> children = node.getChildren();
+            if (siblingsByChildren.containsKey(children)) {
+                continue;
+            }
+            for (final WebTemplateNode child : children) {
+                parents.putIfAbsent(child, node);
+                nodeAqlPaths.putIfAbsent(child, new FormattedAqlPath(child.getAqlPath(true), child.getAqlPath(false)));
+                toIndex.add(child);
+            }
+            siblingsByChildren.put(children, new Siblings(children, this::getAqlPath));
+        }
+        topLevel = siblings(webTemplate.getTree().getChildren());
+        for (final WebTemplateNode content : webTemplate.getTree().getChildren()) {
+            if (getAqlPath(content).withoutPredicates().startsWith(CONTENT_PREFIX)) {
+                contentArchetypeNodeIds.putIfAbsent(content.getId(), content.getNodeId());
+            }
+        }
+    }
+
+    /**
+     * @return id of the root node, which is the first segment of every flat path of the template
+     */
+    public String getRootId() {
+        return rootId;
+    }
+
+    /**
+     * @param id id of a top level node, as used in flat paths (i.e. 'blood_pressure' in
+     *         'vital_signs/blood_pressure:0/any_event:0/systolic|magnitude')
+     * @return archetype node id of the Composition.content with the given id, null if there's none
+     */
+    public String getContentArchetypeNodeId(final String id) {
+        return contentArchetypeNodeIds.get(id);
+    }
+
+    /**
+     * @return whether there's a top level node with the given id
+     */
+    public boolean isTopLevelId(final String id) {
+        return topLevel.containsId(id);
+    }
+
+    /**
+     * @param nodes children of a node within the indexed WebTemplate
+     * @return index of the given sibling nodes; nodes not being part of the WebTemplate are indexed on the fly
+     */
+    public Siblings siblings(final List<WebTemplateNode> nodes) {
+        final Siblings siblings = siblingsByChildren.get(nodes);
+        return siblings != null ? siblings : new Siblings(nodes, this::getAqlPath);
+    }
+
+    /**
+     * @return AQL path of the given node with and without predicates
+     */
+    public FormattedAqlPath getAqlPath(final WebTemplateNode node) {
+        final FormattedAqlPath indexed = nodeAqlPaths.get(node);
+        if (indexed != null) {
+            return indexed;
+        }
+        return new FormattedAqlPath(node.getAqlPath(true), node.getAqlPath(false));
+    }
+
+    /**
+     * @return parent of the given node, null if it's the root of the WebTemplate
+     */
+    public WebTemplateNode getParent(final WebTemplateNode node) {
+        return parents.get(node);
+    }
+
+    /**
+     * Parses the given path as an AQL path and formats it with and without predicates; results are cached as paths
+     * being resolved are the same for every mapping of the same template.
+     */
+    public FormattedAqlPath format(final String path) {
+        return formattedAqlPaths.computeIfAbsent(path, p -> {
+            final AqlPath aqlPath = AqlPath.parse(p);
+            return new FormattedAqlPath(aqlPath.format(true), aqlPath.format(false));
+        });
+    }
+
+    public record FormattedAqlPath(String withPredicates, String withoutPredicates) {
+
+    }
+
+    /**
+     * Index of sibling nodes; where more nodes would match, the first one in the order of the siblings is returned
+     */
+    public static class Siblings {
+
+        private final Map<String, WebTemplateNode> byId = new HashMap<>();
+        private final Map<String, Integer> byAqlPath = new HashMap<>();
+        private final Map<String, Integer> byAqlPathWithoutPredicates = new HashMap<>();
+        private final Map<String, Integer> distinctIdsByAqlPathWithoutPredicates = new HashMap<>();
+        private final List<WebTemplateNode> nodes;
+        private final Set<String> ids = new HashSet<>();
+        private final WebTemplateNode firstValueNode;
+
+        Siblings(final List<WebTemplateNode> nodes, final Function<WebTemplateNode, FormattedAqlPath> aqlPaths) {
+            this.nodes = Collections.unmodifiableList(nodes);
+            final Map<String, Set<String>> idsByAqlPath = new HashMap<>();
+            WebTemplateNode valueNode = null;
+            for (int i = 0; i < nodes.size(); i++) {
+                final WebTemplateNode node = nodes.get(i);
+                final FormattedAqlPath aqlPath = aqlPaths.apply(node);
+                final String aqlPathWithoutPredicates = aqlPath.withoutPredicates();
+                byId.putIfAbsent(node.getId(), node);
+                ids.add(node.getId());
+                byAqlPath.putIfAbsent(aqlPath.withPredicates(), i);
+                byAqlPathWithoutPredicates.putIfAbsent(aqlPathWithoutPredicates, i);
+                idsByAqlPath.computeIfAbsent(aqlPathWithoutPredicates, k -> new HashSet<>()).add(node.getId(false));
+                if (valueNode == null && VALUE_NODE_IDS.contains(node.getId())) {
+                    valueNode = node;
+                }
+            }
+            idsByAqlPath.forEach((aqlPath, idsOfPath) -> distinctIdsByAqlPathWithoutPredicates.put(aqlPath,
+                                                                                                   idsOfPath.size()));
+            this.firstValueNode = valueNode;
+        }
+
+        public List<WebTemplateNode> getNodes() {
+            return nodes;
+        }
+
+        public boolean isEmpty() {
+            return nodes.isEmpty();
+        }
+
+        /**
+         * @return first node with the given id, null if there's none
+         */
+        public WebTemplateNode findById(final String id) {
+            return byId.get(id);
+        }
+
+        public boolean containsId(final String id) {
+            return ids.contains(id);
+        }
+
+        /**
+         * Finds the first node that either has the same AQL path including predicates or the same AQL path without
+         * predicates, where the latter only applies if there are no siblings with different ids sharing that path.
+         *
+         * @return matching node, null if there's none
+         */
+        public WebTemplateNode findByAqlPath(final FormattedAqlPath aqlPath) {
+            final Integer withPredicates = byAqlPath.get(aqlPath.withPredicates());
+            final Integer withoutPredicates =
+                    distinctIdsByAqlPathWithoutPredicates.getOrDefault(aqlPath.withoutPredicates(), 0) <= 1
+                            ? byAqlPathWithoutPredicates.get(aqlPath.withoutPredicates())
+                            : null;
+            if (withPredicates == null && withoutPredicates == null) {
+                return null;
+            }
+            if (withPredicates == null) {
+                return nodes.get(withoutPredicates);
+            }
+            if (withoutPredicates == null) {
+                return nodes.get(withPredicates);
+            }
+            return nodes.get(Math.min(withPredicates, withoutPredicates));
+        }
+
+        /**
+         * @return first node that holds the actual value of an element (value, identifier_value, ..), null if none
+         */
+        public WebTemplateNode getFirstValueNode() {
+            return firstValueNode;
+        }
+    }
+}
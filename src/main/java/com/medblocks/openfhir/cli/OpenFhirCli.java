@@ -0,0 +1,263 @@
+package com.medblocks.openfhir.cli;
+
+import com.google.gson.JsonParser;
+import com.medblocks.openfhir.InputFormat;
+import com.medblocks.openfhir.OpenFhirBatchEngine;
+import com.medblocks.openfhir.OpenFhirBatchEngine.BatchOutput;
+import com.medblocks.openfhir.OpenFhirBatchEngine.BatchResult;
+import com.medblocks.openfhir.OpenFhirImplApplication;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.boot.DefaultApplicationArguments;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Offline bulk conversion, running the engine without the HTTP server and without a database:
+ * <pre>
+ * java -jar openfhir.jar convert --bootstrap=/mappings --direction=tofhir --input=compositions.ndjson --output=fhir.ndjson
+ * </pre>
+ * Context mappers, model mappers and operational templates are bootstrapped from the bootstrap directory the same way
+ * {@link com.medblocks.openfhir.bootstrap.BootstrapRunner} does it (.opt, *.context.yaml, *.yaml), into in-memory
+ * repositories (db.type=memory).
+ * <p>
+ * Input is either an NDJSON file (one Composition or FHIR Resource per line) or a directory of such files (*.ndjson,
+ * *.jsonl) and of json files with a single Composition or Resource each (*.json). Output is an NDJSON file for an
+ * input file and a directory with an NDJSON file per input file for an input directory. Records that can't be mapped
+ * are written to a failure file (see {@link OpenFhirBatchEngine} for their format).
+ * <p>
+ * Options:
+ * <ul>
+ *     <li>--bootstrap: directory with mappers and templates, required</li>
+ *     <li>--direction: either 'tofhir' or 'toopenehr', required</li>
+ *     <li>--input, --output: input and output file or directory, required</li>
+ *     <li>--failures: failure file, defaults to output file + '.failures.ndjson' or failures.ndjson in the output
+ *     directory</li>
+ *     <li>--template-id: template id of all records, optional</li>
+ *     <li>--input-format: 'flat' or 'canonical', when converting to FHIR; detected per record if not given</li>
+ *     <li>--flat: when converting to openEHR, whether Compositions should be written in a flat format</li>
+ *     <li>--threads: number of threads records are mapped on, defaults to all available cores</li>
+ * </ul>
+ * Any other --key=value is passed on to Spring as a property. Exit code is 0 if all records have been converted, 2
+ * if some of them failed and 1 if the conversion couldn't run at all.
+ */
+@Slf4j
+public class OpenFhirCli {
+
+    public static final String COMMAND = "convert";
+
+    private static final String TO_FHIR = "tofhir";
+    private static final String TO_OPENEHR = "toopenehr";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final OpenFhirBatchEngine batchEngine;
+    private final Options options;
+
+    private long records;
+    private long failed;
+    private long bytes;
+
+    OpenFhirCli(final OpenFhirBatchEngine batchEngine, final Options options) {
+        this.batchEngine = batchEngine;
+        this.options = options;
+    }
+
+    /**
+     * Runs a conversion
+     *
+     * @param args command line arguments, without the command itself
+     * @return exit code
+     */
+    public static int run(final String... args) {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (final IllegalArgumentException e) {
+            log.error("{} Usage: {} --bootstrap=<dir> --direction=tofhir|toopenehr --input=<file|dir> "
+                              + "--output=<file|dir> [--failures=<file>] [--template-id=<id>] "
+                              + "[--input-format=flat|canonical] [--flat] [--threads=<n>]", e.getMessage(), COMMAND);
+            return 1;
+        }
+        final List<String> springArgs = new ArrayList<>(List.of(args));
+        springArgs.add("--db.type=memory");
+        springArgs.add("--bootstrap.dir=" + options.bootstrap());
+        springArgs.add("--bootstrap.recursively-open-directories=true");
+        if (options.threads() != null) {
+            springArgs.add("--openfhir.batch.threads=" + options.threads());
+        }
+        try (final ConfigurableApplicationContext context = new SpringApplicationBuilder(OpenFhirImplApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(springArgs.toArray(String[]::new))) {
+            return new OpenFhirCli(context.getBean(OpenFhirBatchEngine.class), options).convert();
+        } catch (final Exception e) {
+            log.error("Conversion failed", e);
+            return 1;
+        }
+    }
+
+    int convert() throws IOException {
+        final long start = System.nanoTime();
+        final Path input = options.input();
+        final Path output = options.output();
+        final List<Path> inputs;
+        final Path failuresFile;
+        if (Files.isDirectory(input)) {
+            try (final Stream<Path> files = Files.list(input)) {
+                inputs = files.filter(Files::isRegularFile)
+                        .filter(file -> isNdjson(file) || isJson(file))
+                        .sorted()
+                        .toList();
+            }
+            Files.createDirectories(output);
+            failuresFile = options.failures() != null ? options.failures() : output.resolve("failures.ndjson");
+        } else {
+            inputs = List.of(input);
+            createParent(output);
+            failuresFile = options.failures() != null ? options.failures()
+                    : output.resolveSibling(output.getFileName() + ".failures.ndjson");
+        }
+        createParent(failuresFile);
+
+        try (final Writer failures = writer(failuresFile)) {
+            for (final Path file : inputs) {
+                final Path outputFile = Files.isDirectory(input)
+                        ? output.resolve(StringUtils.substringBeforeLast(file.getFileName().toString(), ".")
+                                                 + ".ndjson")
+                        : output;
+                convert(file, outputFile, failures);
+            }
+        }
+
+        final double seconds = Math.max((System.nanoTime() - start) / 1_000_000_000d, 0.001);
+        log.info("Converted {} records from {} file(s) in {} s, {} failed (see {}); {} records/s, {} MB/s",
+                 records, inputs.size(), format(seconds), failed, failuresFile, format(records / seconds),
+                 format(bytes / 1024d / 1024d / seconds));
+        return failed == 0 ? 0 : 2;
+    }
+
+    private void convert(final Path file, final Path outputFile, final Writer failures) throws IOException {
+        final long start = System.nanoTime();
+        final long size = Files.size(file);
+        final BatchResult result;
+        try (final Reader reader = reader(file);
+             final Writer results = writer(outputFile)) {
+            final BatchOutput output = new BatchOutput(results, failures, file.getFileName().toString());
+            result = TO_FHIR.equals(options.direction())
+                    ? batchEngine.toFhir(reader, options.templateId(), options.inputFormat(), output)
+                    : batchEngine.toOpenEhr(reader, options.templateId(), options.flat(), output);
+        }
+        records += result.lines();
+        failed += result.failed();
+        bytes += size;
+        final double seconds = Math.max((System.nanoTime() - start) / 1_000_000_000d, 0.001);
+        log.info("Converted {} ({} records, {} failed) in {} s; {} records/s, {} MB/s", file, result.lines(),
+                 result.failed(), format(seconds), format(result.lines() / seconds),
+                 format(size / 1024d / 1024d / seconds));
+    }
+
+    /**
+     * NDJSON files are read line by line; a json file is a single record that may be pretty printed, so it's
+     * compacted to a single line
+     */
+    private Reader reader(final Path file) throws IOException {
+        if (isJson(file)) {
+            try (final Reader json = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return new StringReader(JsonParser.parseReader(json).toString());
+            }
+        }
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8),
+                                  BUFFER_SIZE);
+    }
+
+    private static Writer writer(final Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8),
+                                  BUFFER_SIZE);
+    }
+
+    private static void createParent(final Path file) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+
+    private static boolean isNdjson(final Path file) {
+        final String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".ndjson") || name.endsWith(".jsonl");
+    }
+
+    private static boolean isJson(final Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json");
+    }
+
+    private static String format(final double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    record Options(Path bootstrap, String direction, Path input, Path output, Path failures, String templateId,
+                   InputFormat inputFormat, Boolean flat, Integer threads) {
+
+        static Options parse(final String... args) {
+            final DefaultApplicationArguments arguments = new DefaultApplicationArguments(args);
+            final String direction = StringUtils.lowerCase(required(arguments, "direction"));
+            if (!TO_FHIR.equals(direction) && !TO_OPENEHR.equals(direction)) {
+                throw new IllegalArgumentException(
+                        String.format("Direction must be either '%s' or '%s'.", TO_FHIR, TO_OPENEHR));
+            }
+            final Path bootstrap = Path.of(required(arguments, "bootstrap"));
+            if (!Files.isDirectory(bootstrap)) {
+                throw new IllegalArgumentException(String.format("Bootstrap '%s' is not a directory.", bootstrap));
+            }
+            final Path input = Path.of(required(arguments, "input"));
+            if (!Files.exists(input)) {
+                throw new IllegalArgumentException(String.format("Input '%s' doesn't exist.", input));
+            }
+            final String failures = optional(arguments, "failures");
+            final String threads = optional(arguments, "threads");
+            final String flat = optional(arguments, "flat");
+            try {
+                return new Options(bootstrap,
+                                   direction,
+                                   input,
+                                   Path.of(required(arguments, "output")),
+                                   failures == null ? null : Path.of(failures),
+                                   optional(arguments, "template-id"),
+                                   InputFormat.requestedOpenEhr(optional(arguments, "input-format"), null),
+                                   // --flat without a value means true
+                                   arguments.containsOption("flat") && (flat == null || Boolean.parseBoolean(flat)),
+                                   threads == null ? null : Integer.valueOf(threads));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Threads '%s' is not a number.", threads));
+            }
+        }
+
+        private static String required(final DefaultApplicationArguments arguments, final String name) {
+            final String value = optional(arguments, name);
+            if (StringUtils.isBlank(value)) {
+                throw new IllegalArgumentException(String.format("Option --%s is required.", name));
+            }
+            return value;
+        }
+
+        private static String optional(final DefaultApplicationArguments arguments, final String name) {
+            final List<String> values = arguments.getOptionValues(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.medblocks.openfhir.db;
 
+import com.medblocks.openfhir.FhirConnectContextIndex;
+import com.medblocks.openfhir.ProdOpenFhirMappingContext;
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
 import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
 import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
@@ -25,14 +28,20 @@ public class FhirConnectService {
     private final FhirConnectModelRepository modelRepository;
     private final FhirConnectContextRepository contextRepository;
     private final FhirConnectValidator validator;
+    private final ProdOpenFhirMappingContext mappingContext;
+    private final FhirConnectContextIndex contextIndex;
 
     @Autowired
     public FhirConnectService(final FhirConnectModelRepository modelRepository,
                               final FhirConnectContextRepository contextRepository,
-                              final FhirConnectValidator validator) {
+                              final FhirConnectValidator validator,
+                              final ProdOpenFhirMappingContext mappingContext,
+                              final FhirConnectContextIndex contextIndex) {
         this.modelRepository = modelRepository;
         this.contextRepository = contextRepository;
         this.validator = validator;
+        this.mappingContext = mappingContext;
+        this.contextIndex = contextIndex;
     }
 
     /**
@@ -49,6 +58,9 @@ public class FhirConnectService {
                 final FhirConnectModelEntity existingModel = modelRepository.byId(id);
                 if (existingModel == null) {
                     id = null; // ensuring it will be created and it won't override someone else model mapper!!
+                } else if (existingModel.getFhirConnectModel() != null) {
+                    // in case it's being renamed, repositories built from the old one are stale as well
+                    mappingContext.invalidateModel(existingModel.getFhirConnectModel().getMetadata().getName());
                 }
             }
 
@@ -68,7 +80,7 @@ public class FhirConnectService {
             }
 
             // check if model with this name already exists
-            final List<FhirConnectModelEntity> existingModel = modelRepository.findByName(
+            final List<FhirConnectModelMetadata> existingModel = modelRepository.findMetadataByName(
                     Collections.singletonList(fhirConnectModel.getMetadata().getName()));
             if (id == null && existingModel != null && !existingModel.isEmpty()) {
                 throw new RequestValidationException(
@@ -82,6 +94,7 @@ public class FhirConnectService {
                     .id(StringUtils.isBlank(id) ? null : id)
                     .build();
             final FhirConnectModelEntity saved = modelRepository.save(build);
+            mappingContext.invalidateModel(fhirConnectModel.getMetadata().getName());
             saved.setFhirConnectModel(
                     fhirConnectModel); // unless we do this, when postgres is used, this will be empty in response
             saved.getFhirConnectModel().setId(saved.getId());
@@ -115,6 +128,10 @@ public class FhirConnectService {
                 final FhirConnectContextEntity existingContext = contextRepository.byId(id);
                 if (existingContext == null) {
                     id = null; // ensuring it will be created and it won't override someone else context mapper!!
+                } else if (existingContext.getFhirConnectContext() != null) {
+                    // in case it's being moved to another template, the old template's repository is stale as well
+                    mappingContext.invalidateTemplate(
+                            existingContext.getFhirConnectContext().getContext().getTemplate().getId());
                 }
             }
 
@@ -140,6 +157,8 @@ public class FhirConnectService {
                                                      List.of("A context mapper for this template already exists."));
             }
             final FhirConnectContextEntity saved = contextRepository.save(build);
+            mappingContext.invalidateTemplate(fhirContext.getContext().getTemplate().getId());
+            contextIndex.invalidate();
             saved.setFhirConnectContext(
                     fhirContext); // unless we do this, when postgres is used, this will be empty in response
             saved.getFhirConnectContext().setId(saved.getId());
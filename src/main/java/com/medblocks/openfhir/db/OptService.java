@@ -1,12 +1,16 @@
 package com.medblocks.openfhir.db;
 
 import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.ProdOpenFhirMappingContext;
 import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
 import com.medblocks.openfhir.db.repository.OptRepository;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import com.medblocks.openfhir.util.WebTemplateSerializer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.xmlbeans.XmlException;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.openehr.schemas.v1.TemplateDocument;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,10 +27,14 @@ public class OptService {
 
     private final OpenEhrCachedUtils openEhrApplicationScopedUtils;
 
+    private final ProdOpenFhirMappingContext mappingContext;
+
     @Autowired
-    public OptService(OptRepository optRepository, OpenEhrCachedUtils openEhrApplicationScopedUtils) {
+    public OptService(OptRepository optRepository, OpenEhrCachedUtils openEhrApplicationScopedUtils,
+                      ProdOpenFhirMappingContext mappingContext) {
         this.optRepository = optRepository;
         this.openEhrApplicationScopedUtils = openEhrApplicationScopedUtils;
+        this.mappingContext = mappingContext;
     }
 
     /**
@@ -42,16 +50,23 @@ public class OptService {
         try {
             final OPERATIONALTEMPLATE operationaltemplate = parseOptFromString(opt);
             final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(operationaltemplate.getTemplateId().getValue());
-            openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
-            final OptEntity existing = optRepository.findByTemplateId(normalizedTemplateId);
+            final WebTemplate webTemplate = openEhrApplicationScopedUtils.createWebTemplate(operationaltemplate);
+            final OptMetadata existing = optRepository.findMetadataByTemplateId(normalizedTemplateId);
             if (existing != null) {
                 throw new IllegalArgumentException("Template with templateId " + operationaltemplate.getTemplateId() + " (normalized to: " + normalizedTemplateId + ") already exists.");
             }
             // get name from it
             final OptEntity entity = new OptEntity(StringUtils.isEmpty(id) ? null : id, opt, normalizedTemplateId, operationaltemplate.getTemplateId().getValue(), operationaltemplate.getTemplateId().getValue());
+            // persist the parsed WebTemplate as well, so it won't have to be parsed again when loading the template
+            entity.setContentHash(WebTemplateSerializer.contentHash(opt));
+            entity.setWebTemplateFormat(WebTemplateSerializer.FORMAT_VERSION);
+            entity.setWebTemplate(WebTemplateSerializer.serialize(webTemplate));
             final OptEntity insert = optRepository.save(entity);
+            openEhrApplicationScopedUtils.invalidate(normalizedTemplateId);
+            mappingContext.invalidateTemplate(normalizedTemplateId);
             final OptEntity copied = insert.copy();
             copied.setContent("redacted");
+            copied.setWebTemplate(null);
             return copied;
         } catch (final Exception e) {
             log.error("Couldn't create a template, reqId: {}", reqId, e);
@@ -59,8 +74,11 @@ public class OptService {
         }
     }
 
-    public List<OptEntity> all(final String reqId) {
-        return optRepository.findAll();
+    /**
+     * @return metadata of all operational templates, without their content
+     */
+    public List<OptMetadata> all(final String reqId) {
+        return optRepository.findAllMetadata();
     }
 
 
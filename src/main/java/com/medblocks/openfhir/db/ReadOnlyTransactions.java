@@ -0,0 +1,58 @@
+package com.medblocks.openfhir.db;
+
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs reads of the mapping state (context mappers, model mappers and OPTs) in short read-only transactions, so that
+ * a database connection is only held for as long as the read takes and not for the whole mapping.
+ * <p>
+ * Mapping itself is served from in-memory snapshots and caches, and only reads what they are missing this way. If
+ * there's no transaction manager (i.e. with mongo), reads are run as they are.
+ */
+@Component
+@Slf4j
+public class ReadOnlyTransactions {
+
+    /**
+     * Runs reads without a transaction, i.e. for tests
+     */
+    public static final ReadOnlyTransactions NONE = new ReadOnlyTransactions((TransactionTemplate) null);
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public ReadOnlyTransactions(final ObjectProvider<PlatformTransactionManager> transactionManager) {
+        this(readOnly(transactionManager.getIfUnique()));
+    }
+
+    private ReadOnlyTransactions(final TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+        if (transactionTemplate == null) {
+            log.debug("No transaction manager, reads of the mapping state are run without a transaction.");
+        }
+    }
+
+    public <T> T read(final Supplier<T> read) {
+        if (transactionTemplate == null) {
+            return read.get();
+        }
+        return transactionTemplate.execute(status -> read.get());
+    }
+
+    private static TransactionTemplate readOnly(final PlatformTransactionManager transactionManager) {
+        if (transactionManager == null) {
+            return null;
+        }
+        final TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(true);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRED);
+        return template;
+    }
+}
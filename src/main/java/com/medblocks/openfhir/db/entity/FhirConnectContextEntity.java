@@ -1,7 +1,6 @@
 package com.medblocks.openfhir.db.entity;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.gson.Gson;
 import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import jakarta.persistence.*;
 import lombok.*;
@@ -26,6 +25,12 @@ public class FhirConnectContextEntity {
     @JsonIgnore
     String fhirConnectContextJson;
 
+    /**
+     * Hash of fhirConnectContextJson, has to change whenever the json does; with mongo, it's the hash the json would have
+     */
+    @Setter(AccessLevel.NONE)
+    String contentHash;
+
 
     @Setter(AccessLevel.NONE)  // Prevents setter generation for this field
     @Getter(AccessLevel.NONE)  // Prevents getter generation for this field
@@ -42,7 +47,8 @@ public class FhirConnectContextEntity {
             return;
         }
         // Serialize object to JSON before persisting
-        this.fhirConnectContextJson = new Gson().toJson(fhirConnectContext);
+        this.fhirConnectContextJson = MapperJsonCodec.encode(fhirConnectContext);
+        this.contentHash = MapperJsonCodec.hash(fhirConnectContextJson);
         this.templateId = fhirConnectContext.getContext().getTemplate().getId();
     }
 
@@ -51,8 +57,9 @@ public class FhirConnectContextEntity {
         if (StringUtils.isEmpty(fhirConnectContextJson)) {
             return;
         }
-        // Deserialize JSON after loading from DB
-        this.fhirConnectContext = new Gson().fromJson(fhirConnectContextJson, FhirConnectContext.class);
+        // Deserialize JSON after loading from DB, unless it has been deserialized already (shared, not to be modified)
+        this.fhirConnectContext = MapperJsonCodec.decode(id, contentHash, fhirConnectContextJson,
+                                                       FhirConnectContext.class);
         this.fhirConnectContext.setId(id);
     }
 
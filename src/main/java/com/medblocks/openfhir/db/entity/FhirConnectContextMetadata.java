@@ -0,0 +1,24 @@
+package com.medblocks.openfhir.db.entity;
+
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+
+/**
+ * Metadata of a context mapper, without the mapper itself, for detecting changes of context mappers without loading
+ * and decoding all of them.
+ *
+ * @param contentHash hash of the mapper json, null if it was persisted before hashes were
+ */
+public record FhirConnectContextMetadata(String id,
+                                         String templateId,
+                                         String contentHash) {
+
+    /**
+     * Template id is taken from the context when the entity doesn't have it as a separate attribute
+     */
+    public static FhirConnectContextMetadata of(final FhirConnectContextEntity entity) {
+        final FhirConnectContext context = entity.getFhirConnectContext();
+        final String templateId = context == null || context.getContext() == null
+                || context.getContext().getTemplate() == null ? null : context.getContext().getTemplate().getId();
+        return new FhirConnectContextMetadata(entity.getId(), templateId, entity.getContentHash());
+    }
+}
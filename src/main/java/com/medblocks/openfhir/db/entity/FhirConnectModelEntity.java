@@ -1,7 +1,6 @@
 package com.medblocks.openfhir.db.entity;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.gson.Gson;
 import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
 import jakarta.persistence.*;
 import lombok.*;
@@ -26,6 +25,12 @@ public class FhirConnectModelEntity {
     @JsonIgnore
     String fhirConnectModelJson;
 
+    /**
+     * Hash of fhirConnectModelJson, has to change whenever the json does; with mongo, it's the hash the json would have
+     */
+    @Setter(AccessLevel.NONE)
+    String contentHash;
+
     String archetype;
     String name;
 
@@ -39,7 +44,8 @@ public class FhirConnectModelEntity {
             return;
         }
         // Serialize object to JSON before persisting
-        this.fhirConnectModelJson = new Gson().toJson(fhirConnectModel);
+        this.fhirConnectModelJson = MapperJsonCodec.encode(fhirConnectModel);
+        this.contentHash = MapperJsonCodec.hash(fhirConnectModelJson);
         if (fhirConnectModel.getSpec().getOpenEhrConfig() != null) {
             this.archetype = fhirConnectModel.getSpec().getOpenEhrConfig().getArchetype();
         }
@@ -53,8 +59,9 @@ public class FhirConnectModelEntity {
         if (StringUtils.isEmpty(fhirConnectModelJson)) {
             return;
         }
-        // Deserialize JSON after loading from DB
-        this.fhirConnectModel = new Gson().fromJson(fhirConnectModelJson, FhirConnectModel.class);
+        // Deserialize JSON after loading from DB, unless it has been deserialized already (shared, not to be modified)
+        this.fhirConnectModel = MapperJsonCodec.decode(id, contentHash, fhirConnectModelJson,
+                                                       FhirConnectModel.class);
         this.fhirConnectModel.setId(id);
     }
 
@@ -0,0 +1,33 @@
+package com.medblocks.openfhir.db.entity;
+
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+
+/**
+ * Metadata of a model mapper, without the mapper itself, for checking whether one exists without loading and
+ * decoding the whole mapper.
+ *
+ * @param contentHash hash of the mapper json, null if it was persisted before hashes were
+ */
+public record FhirConnectModelMetadata(String id,
+                                       String name,
+                                       String archetype,
+                                       String contentHash) {
+
+    /**
+     * Name and archetype are taken from the model when the entity doesn't have them as separate attributes
+     */
+    public static FhirConnectModelMetadata of(final FhirConnectModelEntity entity) {
+        String name = entity.getName();
+        String archetype = entity.getArchetype();
+        final FhirConnectModel model = entity.getFhirConnectModel();
+        if (model != null) {
+            if (name == null && model.getMetadata() != null) {
+                name = model.getMetadata().getName();
+            }
+            if (archetype == null && model.getSpec() != null && model.getSpec().getOpenEhrConfig() != null) {
+                archetype = model.getSpec().getOpenEhrConfig().getArchetype();
+            }
+        }
+        return new FhirConnectModelMetadata(entity.getId(), name, archetype, entity.getContentHash());
+    }
+}
@@ -0,0 +1,74 @@
+package com.medblocks.openfhir.db.entity;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.Gson;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.util.CacheLoads;
+import com.medblocks.openfhir.util.ContentHash;
+
+/**
+ * Encodes and decodes context and model mappers that entities persist as json.
+ * <p>
+ * A single Gson is shared by all entities, with its type adapters for the mappers created upfront. Decoded mappers
+ * are cached by the id of their entity and the hash of their json, so loading a row that hasn't changed since it was
+ * last loaded returns the mapper decoded back then instead of decoding it again. Mappers decoded this way are shared
+ * between all the loads and must not be modified; copy them first if needed (see {@link FhirConnectModel#copy()}).
+ */
+final class MapperJsonCodec {
+
+    /**
+     * Max number of decoded mappers kept; mappers of rows that have changed since are not removed explicitly and are
+     * evicted eventually
+     */
+    private static final long MAX_DECODED = 10_000;
+
+    private static final Gson GSON = new Gson();
+    private static final AsyncCache<DecodedKey, Object> DECODED = Caffeine.newBuilder()
+            .maximumSize(MAX_DECODED)
+            .buildAsync();
+
+    static {
+        GSON.getAdapter(FhirConnectModel.class);
+        GSON.getAdapter(FhirConnectContext.class);
+    }
+
+    private MapperJsonCodec() {
+    }
+
+    static String encode(final Object mapper) {
+        return GSON.toJson(mapper);
+    }
+
+    static String hash(final String json) {
+        return ContentHash.sha256(json);
+    }
+
+    /**
+     * @param id id of the entity the mapper belongs to
+     * @param contentHash hash of the json as persisted with it, null if there's none (rows persisted before hashes
+     *         were) in which case it's computed from the json
+     * @param json json of the mapper
+     * @param type type of the mapper
+     * @return decoded mapper, possibly shared with other entities of the same id and json
+     */
+    static <T> T decode(final String id, final String contentHash, final String json, final Class<T> type) {
+        if (id == null) {
+            return GSON.fromJson(json, type);
+        }
+        final DecodedKey key = new DecodedKey(type, id, contentHash != null ? contentHash : hash(json));
+        return type.cast(CacheLoads.get(DECODED, key, k -> GSON.fromJson(json, type)));
+    }
+
+    /**
+     * Drops all decoded mappers, i.e. for tests
+     */
+    static void clear() {
+        DECODED.synchronous().invalidateAll();
+    }
+
+    private record DecodedKey(Class<?> type, String id, String contentHash) {
+
+    }
+}
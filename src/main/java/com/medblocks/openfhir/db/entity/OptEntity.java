@@ -1,5 +1,7 @@
 package com.medblocks.openfhir.db.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.medblocks.openfhir.util.WebTemplateSerializer;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -25,7 +27,36 @@ public class OptEntity {
     String originalTemplateId;
     String displayTemplateId;
 
+    /**
+     * SHA-256 of the content that webTemplate was parsed from
+     */
+    String contentHash;
+    /**
+     * {@link WebTemplateSerializer#FORMAT_VERSION} webTemplate was serialized with
+     */
+    String webTemplateFormat;
+    /**
+     * WebTemplate parsed from the content, serialized with {@link WebTemplateSerializer}
+     */
+    @JsonIgnore
+    byte[] webTemplate;
+
+    public OptEntity(final String id, final String content, final String templateId, final String originalTemplateId,
+                     final String displayTemplateId) {
+        this(id, content, templateId, originalTemplateId, displayTemplateId, null, null, null);
+    }
+
     public OptEntity copy() {
-        return new OptEntity(id, content, templateId, originalTemplateId, displayTemplateId);
+        return new OptEntity(id, content, templateId, originalTemplateId, displayTemplateId, contentHash,
+                             webTemplateFormat, webTemplate);
+    }
+
+    /**
+     * @return whether webTemplate is set and can be used for the current content
+     */
+    public boolean hasCurrentWebTemplate(final String currentContentHash) {
+        return webTemplate != null
+                && WebTemplateSerializer.FORMAT_VERSION.equals(webTemplateFormat)
+                && currentContentHash.equals(contentHash);
     }
 }
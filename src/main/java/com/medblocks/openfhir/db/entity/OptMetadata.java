@@ -0,0 +1,20 @@
+package com.medblocks.openfhir.db.entity;
+
+/**
+ * Metadata of an operational template, without its content (and anything derived from it), for listing templates
+ * and checking whether one exists without loading the whole template.
+ *
+ * @param contentHash hash of the content, null if it was persisted before hashes were
+ */
+public record OptMetadata(String id,
+                          String templateId,
+                          String originalTemplateId,
+                          String displayTemplateId,
+                          String contentHash) {
+
+    public static OptMetadata of(final OptEntity entity) {
+        return entity == null ? null : new OptMetadata(entity.getId(), entity.getTemplateId(),
+                                                       entity.getOriginalTemplateId(),
+                                                       entity.getDisplayTemplateId(), entity.getContentHash());
+    }
+}
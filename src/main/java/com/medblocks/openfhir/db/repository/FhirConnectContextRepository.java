@@ -2,13 +2,18 @@ package com.medblocks.openfhir.db.repository;
 
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 
-import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
 import java.util.List;
 
 public interface FhirConnectContextRepository {
     FhirConnectContextEntity findByTemplateId(final String templateId);
     List<FhirConnectContextEntity> findAll();
 
+    /**
+     * Same as {@link #findAll()}, without loading the mappers
+     */
+    List<FhirConnectContextMetadata> findAllMetadata();
+
     FhirConnectContextEntity save(final FhirConnectContextEntity entity);
     FhirConnectContextEntity byId(String id);
     void deleteAll();
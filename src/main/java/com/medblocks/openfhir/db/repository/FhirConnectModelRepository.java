@@ -2,14 +2,24 @@ package com.medblocks.openfhir.db.repository;
 
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
 
-import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
 import java.util.List;
 
 public interface FhirConnectModelRepository {
 
     List<FhirConnectModelEntity> findByArchetype(final List<String> archetype);
     List<FhirConnectModelEntity> findByName(final List<String> name);
+
+    /**
+     * Same as {@link #findByName(List)}, without loading the mappers
+     */
+    List<FhirConnectModelMetadata> findMetadataByName(final List<String> name);
     List<FhirConnectModelEntity> findAll();
+
+    /**
+     * Same as {@link #findAll()}, without loading the mappers
+     */
+    List<FhirConnectModelMetadata> findAllMetadata();
     FhirConnectModelEntity byId(String id);
 
     FhirConnectModelEntity save(final FhirConnectModelEntity entity);
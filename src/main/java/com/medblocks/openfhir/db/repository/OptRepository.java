@@ -1,6 +1,7 @@
 package com.medblocks.openfhir.db.repository;
 
 import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
 
 import java.util.List;
 
@@ -10,7 +11,29 @@ public interface OptRepository {
     OptEntity findByTemplateId(final String templateId);
     List<OptEntity> findAll();
 
+    /**
+     * Same as {@link #findByTemplateId(String)}, without loading the content
+     */
+    OptMetadata findMetadataByTemplateId(final String templateId);
+
+    /**
+     * Same as {@link #findAll()}, without loading the content of any of them
+     */
+    List<OptMetadata> findAllMetadata();
+
     OptEntity save(OptEntity entity);
+
+    /**
+     * Sets the WebTemplate of an OPT, unless it has been deleted or its content has changed since it was read, i.e.
+     * by an upsert that has persisted a WebTemplate of its own
+     *
+     * @param id id of the OPT
+     * @param readContentHash content hash of the OPT as it was read, null if it had none
+     * @return number of OPTs updated, 0 or 1
+     */
+    int updateWebTemplate(String id, String readContentHash, String contentHash, String webTemplateFormat,
+                          byte[] webTemplate);
+
     OptEntity byId(String id);
 
     void deleteAll();
@@ -1,5 +1,10 @@
 package com.medblocks.openfhir.db.repository;
 
+import com.medblocks.openfhir.db.repository.memory.BootstrapMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectContextMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectModelMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.MemoryTransactionManager;
+import com.medblocks.openfhir.db.repository.memory.OptMemoryRepository;
 import com.medblocks.openfhir.db.repository.mongodb.BootstrapMongoRepository;
 import com.medblocks.openfhir.db.repository.mongodb.FhirConnectContextMongoRepository;
 import com.medblocks.openfhir.db.repository.mongodb.FhirConnectModelMongoRepository;
@@ -13,6 +18,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.transaction.PlatformTransactionManager;
 
 @Configuration
 public class RepositoryProducers {
@@ -103,4 +109,38 @@ public class RepositoryProducers {
     public FhirConnectModelMongoRepository mongoFhirConnectModelRepository() {
         return fhirConnectModelMongoRepository;
     }
+
+    /**
+     * db.type=memory keeps all state in memory only, i.e. for offline bulk conversions where it's bootstrapped from
+     * bootstrap.dir on startup; nothing is persisted
+     */
+    @Bean
+    @ConditionalOnProperty(name = "db.type", havingValue = "memory")
+    public BootstrapRepository memoryBootstrapRepository() {
+        return new BootstrapMemoryRepository();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "db.type", havingValue = "memory")
+    public OptRepository memoryOptRepository() {
+        return new OptMemoryRepository();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "db.type", havingValue = "memory")
+    public FhirConnectContextRepository memoryFhirConnectContextRepository() {
+        return new FhirConnectContextMemoryRepository();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "db.type", havingValue = "memory")
+    public FhirConnectModelRepository memoryFhirConnectModelRepository() {
+        return new FhirConnectModelMemoryRepository();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "db.type", havingValue = "memory")
+    public PlatformTransactionManager memoryTransactionManager() {
+        return new MemoryTransactionManager();
+    }
 }
@@ -0,0 +1,17 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import com.medblocks.openfhir.db.entity.BootstrapEntity;
+import com.medblocks.openfhir.db.repository.BootstrapRepository;
+import java.util.List;
+
+public class BootstrapMemoryRepository extends MemoryRepository<BootstrapEntity> implements BootstrapRepository {
+
+    public BootstrapMemoryRepository() {
+        super(BootstrapEntity::getId, BootstrapEntity::setId);
+    }
+
+    @Override
+    public List<BootstrapEntity> findByFile(final String file) {
+        return findWhere(BootstrapEntity::getFile, List.of(file));
+    }
+}
@@ -0,0 +1,26 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import java.util.List;
+import java.util.Objects;
+
+public class FhirConnectContextMemoryRepository extends MemoryRepository<FhirConnectContextEntity>
+        implements FhirConnectContextRepository {
+
+    public FhirConnectContextMemoryRepository() {
+        super(FhirConnectContextEntity::getId, FhirConnectContextEntity::setId);
+    }
+
+    @Override
+    public FhirConnectContextEntity findByTemplateId(final String templateId) {
+        return findFirst(context -> context.getFhirConnectContext() != null
+                && Objects.equals(templateId, context.getFhirConnectContext().getContext().getTemplate().getId()));
+    }
+
+    @Override
+    public List<FhirConnectContextMetadata> findAllMetadata() {
+        return findAll().stream().map(FhirConnectContextMetadata::of).toList();
+    }
+}
@@ -0,0 +1,40 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
+import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
+import java.util.List;
+
+public class FhirConnectModelMemoryRepository extends MemoryRepository<FhirConnectModelEntity>
+        implements FhirConnectModelRepository {
+
+    public FhirConnectModelMemoryRepository() {
+        super(FhirConnectModelEntity::getId, FhirConnectModelEntity::setId);
+    }
+
+    @Override
+    public List<FhirConnectModelEntity> findByArchetype(final List<String> archetype) {
+        return findWhere(model -> model.getFhirConnectModel() == null
+                                 || model.getFhirConnectModel().getSpec().getOpenEhrConfig() == null ? null
+                                 : model.getFhirConnectModel().getSpec().getOpenEhrConfig().getArchetype(),
+                         archetype);
+    }
+
+    @Override
+    public List<FhirConnectModelEntity> findByName(final List<String> name) {
+        return findWhere(model -> model.getFhirConnectModel() == null
+                                 || model.getFhirConnectModel().getMetadata() == null ? null
+                                 : model.getFhirConnectModel().getMetadata().getName(),
+                         name);
+    }
+
+    @Override
+    public List<FhirConnectModelMetadata> findMetadataByName(final List<String> name) {
+        return findByName(name).stream().map(FhirConnectModelMetadata::of).toList();
+    }
+
+    @Override
+    public List<FhirConnectModelMetadata> findAllMetadata() {
+        return findAll().stream().map(FhirConnectModelMetadata::of).toList();
+    }
+}
@@ -0,0 +1,68 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Base of repositories that keep entities in memory only, key'd by their id and in the order they have been saved
+ * in. Used when openFHIR runs without a database, i.e. for offline bulk conversions.
+ *
+ * @param <T> type of the entity
+ */
+abstract class MemoryRepository<T> {
+
+    private final Map<String, T> entities = new LinkedHashMap<>();
+    private final Function<T, String> getId;
+    private final IdSetter<T> setId;
+
+    MemoryRepository(final Function<T, String> getId, final IdSetter<T> setId) {
+        this.getId = getId;
+        this.setId = setId;
+    }
+
+    /**
+     * Saves an entity, assigning it a random id if it doesn't have one yet
+     */
+    public synchronized T save(final T entity) {
+        if (getId.apply(entity) == null) {
+            setId.set(entity, UUID.randomUUID().toString());
+        }
+        entities.put(getId.apply(entity), entity);
+        return entity;
+    }
+
+    public synchronized T byId(final String id) {
+        return id == null ? null : entities.get(id);
+    }
+
+    public synchronized List<T> findAll() {
+        return new ArrayList<>(entities.values());
+    }
+
+    public synchronized void deleteAll() {
+        entities.clear();
+    }
+
+    synchronized T findFirst(final Predicate<T> predicate) {
+        return entities.values().stream().filter(predicate).findFirst().orElse(null);
+    }
+
+    synchronized List<T> findWhere(final Function<T, String> attribute, final Collection<String> values) {
+        return entities.values().stream()
+                .filter(entity -> values.contains(attribute.apply(entity)))
+                .collect(Collectors.toList());
+    }
+
+    @FunctionalInterface
+    interface IdSetter<T> {
+
+        void set(T entity, String id);
+    }
+}
@@ -0,0 +1,30 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Transaction manager of the in-memory repositories. There's nothing to commit or roll back in memory, so
+ * transactions only drive transaction synchronizations (i.e. invalidation of the mapping state once a change is
+ * done).
+ */
+public class MemoryTransactionManager extends AbstractPlatformTransactionManager {
+
+    @Override
+    protected Object doGetTransaction() {
+        return new Object();
+    }
+
+    @Override
+    protected void doBegin(final Object transaction, final TransactionDefinition definition) {
+    }
+
+    @Override
+    protected void doCommit(final DefaultTransactionStatus status) {
+    }
+
+    @Override
+    protected void doRollback(final DefaultTransactionStatus status) {
+    }
+}
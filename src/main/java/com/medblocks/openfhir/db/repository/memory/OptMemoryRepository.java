@@ -0,0 +1,42 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
+import com.medblocks.openfhir.db.repository.OptRepository;
+import java.util.List;
+import java.util.Objects;
+
+public class OptMemoryRepository extends MemoryRepository<OptEntity> implements OptRepository {
+
+    public OptMemoryRepository() {
+        super(OptEntity::getId, OptEntity::setId);
+    }
+
+    @Override
+    public OptEntity findByTemplateId(final String templateId) {
+        return findFirst(opt -> Objects.equals(templateId, opt.getTemplateId()));
+    }
+
+    @Override
+    public OptMetadata findMetadataByTemplateId(final String templateId) {
+        return OptMetadata.of(findByTemplateId(templateId));
+    }
+
+    @Override
+    public synchronized int updateWebTemplate(final String id, final String readContentHash, final String contentHash,
+                                              final String webTemplateFormat, final byte[] webTemplate) {
+        final OptEntity opt = byId(id);
+        if (opt == null || !Objects.equals(readContentHash, opt.getContentHash())) {
+            return 0;
+        }
+        opt.setContentHash(contentHash);
+        opt.setWebTemplateFormat(webTemplateFormat);
+        opt.setWebTemplate(webTemplate);
+        return 1;
+    }
+
+    @Override
+    public List<OptMetadata> findAllMetadata() {
+        return findAll().stream().map(OptMetadata::of).toList();
+    }
+}
@@ -1,16 +1,26 @@
 package com.medblocks.openfhir.db.repository.mongodb;
 
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
 import lombok.NonNull;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.List;
+
 public interface FhirConnectContextMongoRepository extends FhirConnectContextRepository, MongoRepository<FhirConnectContextEntity, String> {
 
     @Query("{'fhirConnectContext.context.template.id': ?0}")
     FhirConnectContextEntity findByTemplateId(final String templateId);
 
+    @Query(value = "{}", fields = "{ 'fhirConnectContext.context.template.id' : 1, 'contentHash' : 1 }")
+    List<FhirConnectContextEntity> findAllWithoutMappings();
+
+    default List<FhirConnectContextMetadata> findAllMetadata() {
+        return findAllWithoutMappings().stream().map(FhirConnectContextMetadata::of).toList();
+    }
+
     @Query("{'id': ?0}")
     FhirConnectContextEntity byId(@NonNull final String id);
 }
@@ -2,6 +2,7 @@ package com.medblocks.openfhir.db.repository.mongodb;
 
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
 import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
 import lombok.NonNull;
 import org.springframework.data.mongodb.repository.MongoRepository;
@@ -16,6 +17,22 @@ public interface FhirConnectModelMongoRepository extends FhirConnectModelReposit
     @Query("{'fhirConnectModel.metadata.name': { $in: ?0 }}")
     List<FhirConnectModelEntity> findByName(final List<String> name);
 
+    @Query(value = "{'fhirConnectModel.metadata.name': { $in: ?0 }}",
+            fields = "{ 'fhirConnectModel.metadata.name' : 1, 'fhirConnectModel.spec.openEhrConfig.archetype' : 1, 'contentHash' : 1 }")
+    List<FhirConnectModelEntity> findByNameWithoutMappings(final List<String> name);
+
+    default List<FhirConnectModelMetadata> findMetadataByName(final List<String> name) {
+        return findByNameWithoutMappings(name).stream().map(FhirConnectModelMetadata::of).toList();
+    }
+
+    @Query(value = "{}",
+            fields = "{ 'fhirConnectModel.metadata.name' : 1, 'fhirConnectModel.spec.openEhrConfig.archetype' : 1, 'contentHash' : 1 }")
+    List<FhirConnectModelEntity> findAllWithoutMappings();
+
+    default List<FhirConnectModelMetadata> findAllMetadata() {
+        return findAllWithoutMappings().stream().map(FhirConnectModelMetadata::of).toList();
+    }
+
     @Query("{'id': ?0}")
     FhirConnectModelEntity byId(@NonNull final String id);
 }
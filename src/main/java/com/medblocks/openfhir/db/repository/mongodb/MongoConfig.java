@@ -1,5 +1,7 @@
 package com.medblocks.openfhir.db.repository.mongodb;
 
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
 import com.mongodb.ConnectionString;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -10,6 +12,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.config.AbstractMongoClientConfiguration;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertCallback;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 
 @Configuration
@@ -34,4 +37,24 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
     public MongoClient mongoClient() {
         return MongoClients.create(mongoUri); // Creates a MongoClient with the specified URI
     }
+
+    /**
+     * Mongo persists mappers as they are, but their content hash (set when they are prepared for persisting) is
+     * persisted as well, so that changes can be detected without loading the mappers
+     */
+    @Bean
+    public BeforeConvertCallback<FhirConnectContextEntity> contextContentHashCallback() {
+        return (entity, collection) -> {
+            entity.prePersist();
+            return entity;
+        };
+    }
+
+    @Bean
+    public BeforeConvertCallback<FhirConnectModelEntity> modelContentHashCallback() {
+        return (entity, collection) -> {
+            entity.prePersist();
+            return entity;
+        };
+    }
 }
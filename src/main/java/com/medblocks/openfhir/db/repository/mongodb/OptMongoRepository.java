@@ -1,9 +1,11 @@
 package com.medblocks.openfhir.db.repository.mongodb;
 
 import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
 import com.medblocks.openfhir.db.repository.OptRepository;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Update;
 
 import java.util.List;
 import org.springframework.data.repository.query.Param;
@@ -11,11 +13,32 @@ import org.springframework.data.repository.query.Param;
 
 public interface OptMongoRepository extends OptRepository, MongoRepository<OptEntity, String> {
 
-    @Query(value = "{}", fields = "{ 'content' : 0 }")
+    @Query(value = "{}", fields = "{ 'content' : 0, 'webTemplate' : 0 }")
     List<OptEntity> searchWithEmptyContent();
 
+    @Query(value = "{'templateId': ?0}", fields = "{ 'content' : 0, 'webTemplate' : 0 }")
+    OptEntity findByTemplateIdWithEmptyContent(final String templateId);
+
+    default OptMetadata findMetadataByTemplateId(final String templateId) {
+        return OptMetadata.of(findByTemplateIdWithEmptyContent(templateId));
+    }
+
+    default List<OptMetadata> findAllMetadata() {
+        return searchWithEmptyContent().stream().map(OptMetadata::of).toList();
+    }
+
     OptEntity findByTemplateId(final String templateId);
 
     @Query(value = "{'id': ?0}")
     OptEntity byId(final String id);
+
+    @Query(value = "{'id': ?0, 'contentHash': ?1}")
+    @Update("{'$set': {'contentHash': ?2, 'webTemplateFormat': ?3, 'webTemplate': ?4}}")
+    long updateWebTemplateOf(final String id, final String readContentHash, final String contentHash,
+                             final String webTemplateFormat, final byte[] webTemplate);
+
+    default int updateWebTemplate(final String id, final String readContentHash, final String contentHash,
+                                  final String webTemplateFormat, final byte[] webTemplate) {
+        return (int) updateWebTemplateOf(id, readContentHash, contentHash, webTemplateFormat, webTemplate);
+    }
 }
@@ -1,15 +1,22 @@
 package com.medblocks.openfhir.db.repository.postgres;
 
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 
+import java.util.List;
+
 public interface FhirConnectContextPgRepository extends FhirConnectContextRepository, JpaRepository<FhirConnectContextEntity, String> {
 
     @Query("SELECT b FROM FhirConnectContextEntity b WHERE b.templateId = :templateId")
     FhirConnectContextEntity findByTemplateId(final String templateId);
 
+    @Query("SELECT new com.medblocks.openfhir.db.entity.FhirConnectContextMetadata(b.id, b.templateId, b.contentHash) "
+            + "FROM FhirConnectContextEntity b")
+    List<FhirConnectContextMetadata> findAllMetadata();
+
     @Query("SELECT b FROM FhirConnectContextEntity b WHERE b.id = :id")
     FhirConnectContextEntity byId(final String id);
 
@@ -2,6 +2,7 @@ package com.medblocks.openfhir.db.repository.postgres;
 
 import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
 import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
 import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
@@ -16,6 +17,14 @@ public interface FhirConnectModelPgRepository extends FhirConnectModelRepository
     @Query("SELECT b FROM FhirConnectModelEntity b WHERE b.name IN (:name)")
     List<FhirConnectModelEntity> findByName(final List<String> name);
 
+    @Query("SELECT new com.medblocks.openfhir.db.entity.FhirConnectModelMetadata(b.id, b.name, b.archetype, "
+            + "b.contentHash) FROM FhirConnectModelEntity b WHERE b.name IN (:name)")
+    List<FhirConnectModelMetadata> findMetadataByName(final List<String> name);
+
+    @Query("SELECT new com.medblocks.openfhir.db.entity.FhirConnectModelMetadata(b.id, b.name, b.archetype, "
+            + "b.contentHash) FROM FhirConnectModelEntity b")
+    List<FhirConnectModelMetadata> findAllMetadata();
+
     @Query("SELECT b FROM FhirConnectModelEntity b WHERE b.id = :id")
     FhirConnectModelEntity byId(final String id);
 }
@@ -1,10 +1,14 @@
 package com.medblocks.openfhir.db.repository.postgres;
 
 import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
+import java.util.List;
 import com.medblocks.openfhir.db.repository.OptRepository;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 
 public interface OptPgRepository extends OptRepository, JpaRepository<OptEntity, String> {
@@ -14,4 +18,22 @@ public interface OptPgRepository extends OptRepository, JpaRepository<OptEntity,
 
     @Query("SELECT o FROM OptEntity o WHERE o.id = :id")
     OptEntity byId(@Param("id") final String id);
+
+    @Query("SELECT new com.medblocks.openfhir.db.entity.OptMetadata(o.id, o.templateId, o.originalTemplateId, "
+            + "o.displayTemplateId, o.contentHash) FROM OptEntity o WHERE o.templateId = :templateId")
+    OptMetadata findMetadataByTemplateId(@Param("templateId") final String templateId);
+
+    @Query("SELECT new com.medblocks.openfhir.db.entity.OptMetadata(o.id, o.templateId, o.originalTemplateId, "
+            + "o.displayTemplateId, o.contentHash) FROM OptEntity o")
+    List<OptMetadata> findAllMetadata();
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE OptEntity o SET o.contentHash = :contentHash, o.webTemplateFormat = :webTemplateFormat, "
+            + "o.webTemplate = :webTemplate WHERE o.id = :id "
+            + "AND COALESCE(o.contentHash, '') = COALESCE(:readContentHash, '')")
+    int updateWebTemplate(@Param("id") final String id, @Param("readContentHash") final String readContentHash,
+                          @Param("contentHash") final String contentHash,
+                          @Param("webTemplateFormat") final String webTemplateFormat,
+                          @Param("webTemplate") final byte[] webTemplate);
 }
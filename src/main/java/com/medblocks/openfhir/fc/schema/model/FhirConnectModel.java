@@ -8,6 +8,7 @@ import com.medblocks.openfhir.fc.schema.Metadata;
 import com.medblocks.openfhir.fc.schema.SchemaType;
 import com.medblocks.openfhir.fc.schema.Spec;
 import java.util.List;
+import java.util.stream.Collectors;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -187,5 +188,22 @@ public class FhirConnectModel {
         this.spec = spec;
     }
 
+    /**
+     * Copies the model so that its mappings can be modified (i.e. merged with extensions) without modifying this
+     * one. Metadata, spec and preprocessor are only ever read and are shared with the copy.
+     */
+    public FhirConnectModel copy() {
+        final FhirConnectModel copy = new FhirConnectModel();
+        copy.setId(id);
+        copy.setGrammar(grammar);
+        copy.setType(type);
+        copy.setMetadata(metadata);
+        copy.setSpec(spec);
+        copy.setPreprocessor(preprocessor);
+        copy.setMappings(mappings == null ? null : mappings.stream().map(Mapping::copy)
+                .collect(Collectors.toList()));
+        return copy;
+    }
+
 
 }
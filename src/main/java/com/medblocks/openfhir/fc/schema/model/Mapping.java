@@ -90,6 +90,32 @@ public class Mapping {
         return mapping;
     }
 
+    /**
+     * Shallow derivation of this mapping used when paths and conditions need to be rewritten for a specific mapping
+     * run. Only the parts that are being rewritten on a single level (with, conditions and type conditions) are
+     * copied, whereas followedBy and reference are shared with the original and need to be derived themselves (and
+     * set on the derived mapping) before being rewritten.
+     *
+     * @return a new Mapping that can be modified without affecting this one
+     */
+    public Mapping derive() {
+        final Mapping mapping = new Mapping();
+        mapping.setName(name);
+        mapping.setExtension(extension);
+        mapping.setAppendTo(appendTo);
+        mapping.setSlotArchetype(slotArchetype);
+        mapping.setWith(with == null ? null : with.copy());
+        mapping.setMappingCode(mappingCode);
+        mapping.setManual(manual);
+        mapping.setFhirCondition(fhirCondition == null ? null : fhirCondition.copy());
+        mapping.setOpenehrCondition(openehrCondition == null ? null : openehrCondition.copy());
+        mapping.setFollowedBy(followedBy);
+        mapping.setReference(reference);
+        mapping.setUnidirectional(unidirectional);
+        mapping.setTypeConditions(typeConditions == null ? null : new ArrayList<>(typeConditions));
+        return mapping;
+    }
+
     public Mapping copyOverWith(final Mapping copyingFrom) {
         this.setName(copyingFrom.getName());
         this.setExtension(copyingFrom.getExtension());
@@ -2,13 +2,13 @@ package com.medblocks.openfhir.producers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
-import ca.uhn.fhir.parser.JsonParser;
+import com.medblocks.openfhir.util.CachedFhirPathR4;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
@@ -25,9 +25,14 @@ public class FhirProducer {
         return FhirContext.forR4();
     }
 
+    /**
+     * FhirPathR4 with a cache of parsed expressions, shared by all mappings
+     *
+     * @param maxExpressions max number of parsed FHIR path expressions kept in the cache
+     */
     @Bean
-    public FhirPathR4 getFhirPath() {
-        final FhirPathR4 fhirPathR4 = new FhirPathR4(FhirContext.forR4());
+    public CachedFhirPathR4 getFhirPath(@Value("${openfhir.cache.fhir-path.max-size:10000}") final long maxExpressions) {
+        final CachedFhirPathR4 fhirPathR4 = new CachedFhirPathR4(FhirContext.forR4(), maxExpressions);
         fhirPathR4.setEvaluationContext(new IFhirPathEvaluationContext() {
             // todo!!
             @Override
@@ -40,10 +45,4 @@ public class FhirProducer {
         });
         return fhirPathR4;
     }
-
-
-    @Bean
-    public JsonParser getJsonParser() {
-        return (JsonParser) FhirContext.forR4().newJsonParser();
-    }
 }
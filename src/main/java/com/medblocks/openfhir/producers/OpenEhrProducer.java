@@ -1,7 +1,7 @@
 package com.medblocks.openfhir.producers;
 
+import com.medblocks.openfhir.util.StreamingFlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 /**
@@ -11,8 +11,8 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenEhrProducer {
     @Bean
-    public FlatJsonUnmarshaller flatJsonUnmarshaller() {
-        return new FlatJsonUnmarshaller();
+    public StreamingFlatJsonUnmarshaller flatJsonUnmarshaller() {
+        return new StreamingFlatJsonUnmarshaller();
     }
 
     @Bean
@@ -0,0 +1,410 @@
+package com.medblocks.openfhir.rest;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides whether a mapping request may start, so that a burst of requests (or a few huge ones) can't take every
+ * worker thread and all of the heap at once.
+ * <p>
+ * A request is admitted if all of these hold once it's added, otherwise it waits for up to {@link #queueTimeoutNanos}
+ * for requests in flight to complete, and is rejected if they still don't:
+ * <ul>
+ *     <li>at most {@link #maxInFlight} requests are in flight,</li>
+ *     <li>at most {@link #maxInFlightPerTemplate} requests of the same template are in flight,</li>
+ *     <li>bodies of requests in flight take at most {@link #maxBytesInFlight} bytes.</li>
+ * </ul>
+ * Any limit of 0 (the default) means no limit.
+ * <p>
+ * The template of a request is often only known once its body is read (from the Composition itself, or from the
+ * profile of a FHIR Resource), so a request admitted without one is counted for its template later on, with
+ * {@link #admitTemplate(String)} on the thread the request's {@link Permit} is bound to.
+ * <p>
+ * Requests in flight, their bytes, queued requests, and admitted and rejected requests are published as metrics
+ * (openfhir.admission.*), i.e. for an autoscaler to scrape them from the prometheus endpoint.
+ */
+@Component
+@Slf4j
+public class AdmissionControl implements MeterBinder {
+
+    private final int maxInFlight;
+    private final int maxInFlightPerTemplate;
+    private final long maxBytesInFlight;
+    private final long queueTimeoutNanos;
+    private final long retryAfterSeconds;
+
+    private final ThreadLocal<Permit> bound = new ThreadLocal<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // guarded by the lock
+    private final Map<String, Integer> inFlightByTemplate = new HashMap<>();
+    private int inFlight;
+    private long bytesInFlight;
+    private int queued;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final Map<Rejection, AtomicLong> rejected = new EnumMap<>(Rejection.class);
+
+    /**
+     * @param maxInFlight max number of requests in flight, 0 for no limit
+     * @param maxInFlightPerTemplate max number of requests of the same template in flight, 0 for no limit
+     * @param maxBytesInFlight max number of bytes of all request bodies in flight, 0 for no limit
+     * @param queueTimeoutMs how long a request that can't be admitted right away waits for others to complete
+     *         before it's rejected, 0 to reject it right away
+     * @param retryAfterSeconds how long a rejected client is asked to wait before it retries
+     */
+    @Autowired
+    public AdmissionControl(@Value("${openfhir.admission.max-in-flight:0}") final int maxInFlight,
+                            @Value("${openfhir.admission.max-in-flight-per-template:0}") final int maxInFlightPerTemplate,
+                            @Value("${openfhir.admission.max-bytes-in-flight:0}") final long maxBytesInFlight,
+                            @Value("${openfhir.admission.queue-timeout-ms:0}") final long queueTimeoutMs,
+                            @Value("${openfhir.admission.retry-after-seconds:1}") final long retryAfterSeconds) {
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerTemplate = maxInFlightPerTemplate;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        this.retryAfterSeconds = retryAfterSeconds;
+        for (final Rejection rejection : Rejection.values()) {
+            rejected.put(rejection, new AtomicLong());
+        }
+    }
+
+    /**
+     * Admits a request, waiting for others to complete if needed.
+     *
+     * @param templateId template of the request, null if it isn't known upfront, in which case the per template
+     *         limit applies once it's known (see {@link #admitTemplate(String)})
+     * @param bytes size of the request body
+     * @return permit to be closed once the request completes
+     * @throws AdmissionRejectedException if the request can't be admitted
+     */
+    public Permit admit(final String templateId, final long bytes) throws InterruptedException {
+        final String template = StringUtils.isBlank(templateId) ? null : templateId;
+        if (maxBytesInFlight > 0 && bytes > maxBytesInFlight) {
+            // would never be admitted, no matter how long it waits
+            throw reject(Rejection.BODY_TOO_LARGE, template, bytes);
+        }
+        long remaining = queueTimeoutNanos;
+        lock.lock();
+        try {
+            Rejection rejection = rejection(template, bytes);
+            if (rejection != null && remaining > 0) {
+                queued++;
+                try {
+                    while (rejection != null && remaining > 0) {
+                        remaining = released.awaitNanos(remaining);
+                        rejection = rejection(template, bytes);
+                    }
+                } finally {
+                    queued--;
+                }
+            }
+            if (rejection != null) {
+                throw reject(rejection, template, bytes);
+            }
+            inFlight++;
+            bytesInFlight += bytes;
+            if (template != null) {
+                inFlightByTemplate.merge(template, 1, Integer::sum);
+            }
+        } finally {
+            lock.unlock();
+        }
+        admitted.incrementAndGet();
+        return new Permit(template, bytes);
+    }
+
+    /**
+     * Counts the request of the permit bound to the current thread for its template, once that's known, waiting for
+     * others of the same template to complete if needed. Does nothing if no permit is bound (i.e. for batches mapped
+     * on threads of their own, or mappings outside a request) or if it's already counted for a template.
+     *
+     * @throws AdmissionRejectedException if the template is at its limit
+     */
+    public void admitTemplate(final String templateId) {
+        final Permit permit = bound.get();
+        if (permit != null && StringUtils.isNotBlank(templateId)) {
+            permit.countFor(templateId);
+        }
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("openfhir.admission.in.flight", this, control -> control.metrics().inFlight())
+                .description("Mapping requests in flight")
+                .register(registry);
+        Gauge.builder("openfhir.admission.bytes.in.flight", this, control -> control.metrics().bytesInFlight())
+                .description("Bytes of bodies of mapping requests in flight")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("openfhir.admission.queued", this, control -> control.metrics().queued())
+                .description("Mapping requests waiting to be admitted")
+                .register(registry);
+        FunctionCounter.builder("openfhir.admission.admitted", admitted, AtomicLong::get)
+                .description("Mapping requests admitted")
+                .register(registry);
+        rejected.forEach((rejection, count) -> FunctionCounter
+                .builder("openfhir.admission.rejected", count, AtomicLong::get)
+                .description("Mapping requests rejected, by the limit they've been rejected for")
+                .tag("reason", rejection.name().toLowerCase())
+                .tag("status", String.valueOf(rejection.status().value()))
+                .register(registry));
+    }
+
+    /**
+     * @return current state and counters of all admissions so far
+     */
+    public Metrics metrics() {
+        lock.lock();
+        try {
+            final Map<Rejection, Long> rejections = new EnumMap<>(Rejection.class);
+            rejected.forEach((rejection, count) -> rejections.put(rejection, count.get()));
+            return new Metrics(inFlight, bytesInFlight, queued, Map.copyOf(inFlightByTemplate), admitted.get(),
+                               Map.copyOf(rejections));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return limit that would be exceeded by admitting the request, null if there's none
+     */
+    private Rejection rejection(final String template, final long bytes) {
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            return Rejection.MAX_IN_FLIGHT;
+        }
+        if (maxInFlightPerTemplate > 0 && template != null
+                && inFlightByTemplate.getOrDefault(template, 0) >= maxInFlightPerTemplate) {
+            return Rejection.MAX_IN_FLIGHT_PER_TEMPLATE;
+        }
+        if (maxBytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight) {
+            return Rejection.MAX_BYTES_IN_FLIGHT;
+        }
+        return null;
+    }
+
+    private AdmissionRejectedException reject(final Rejection rejection, final String template, final long bytes) {
+        rejected.get(rejection).incrementAndGet();
+        log.debug("Rejected request of template {} with {} bytes: {}", template, bytes, rejection);
+        return new AdmissionRejectedException(rejection, retryAfterSeconds);
+    }
+
+    /**
+     * Counts a request in flight for its template, waiting for up to {@link #queueTimeoutNanos} for others of the
+     * same template to complete.
+     *
+     * @throws AdmissionRejectedException if the template is still at its limit
+     */
+    private void count(final String template) {
+        long remaining = queueTimeoutNanos;
+        lock.lock();
+        try {
+            if (maxInFlightPerTemplate > 0 && !belowTemplateLimit(template) && remaining > 0) {
+                queued++;
+                try {
+                    while (!belowTemplateLimit(template) && remaining > 0) {
+                        remaining = released.awaitNanos(remaining);
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    queued--;
+                }
+            }
+            if (maxInFlightPerTemplate > 0 && !belowTemplateLimit(template)) {
+                throw reject(Rejection.MAX_IN_FLIGHT_PER_TEMPLATE, template, 0);
+            }
+            inFlightByTemplate.merge(template, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean belowTemplateLimit(final String template) {
+        return inFlightByTemplate.getOrDefault(template, 0) < maxInFlightPerTemplate;
+    }
+
+    /**
+     * Adds bytes to those of a request in flight right away, for bodies whose size is only known once they're read.
+     *
+     * @param held bytes the request already holds
+     * @throws AdmissionRejectedException if the bytes would exceed a limit; doesn't wait for others to complete, as
+     *         the request already holds a part of its body
+     */
+    private void reserve(final String template, final long held, final long bytes) {
+        if (maxBytesInFlight > 0 && held + bytes > maxBytesInFlight) {
+            throw reject(Rejection.BODY_TOO_LARGE, template, held + bytes);
+        }
+        lock.lock();
+        try {
+            if (maxBytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight) {
+                throw reject(Rejection.MAX_BYTES_IN_FLIGHT, template, held + bytes);
+            }
+            bytesInFlight += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final String template, final long bytes) {
+        lock.lock();
+        try {
+            inFlight--;
+            bytesInFlight -= bytes;
+            if (template != null) {
+                inFlightByTemplate.computeIfPresent(template, (t, count) -> count > 1 ? count - 1 : null);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limit a request has been rejected for, with the status it's responded with
+     */
+    public enum Rejection {
+        /**
+         * Too many requests in flight overall
+         */
+        MAX_IN_FLIGHT(HttpStatus.SERVICE_UNAVAILABLE, "too many requests in flight"),
+        /**
+         * Too many requests of the same template in flight
+         */
+        MAX_IN_FLIGHT_PER_TEMPLATE(HttpStatus.TOO_MANY_REQUESTS, "too many requests of this template in flight"),
+        /**
+         * Bodies of requests in flight would take too much memory
+         */
+        MAX_BYTES_IN_FLIGHT(HttpStatus.SERVICE_UNAVAILABLE, "too many bytes of request bodies in flight"),
+        /**
+         * Body alone is larger than what all bodies in flight may take
+         */
+        BODY_TOO_LARGE(HttpStatus.PAYLOAD_TOO_LARGE, "request body too large");
+
+        private final HttpStatus status;
+        private final String description;
+
+        Rejection(final HttpStatus status, final String description) {
+            this.status = status;
+            this.description = description;
+        }
+
+        public HttpStatus status() {
+            return status;
+        }
+
+        public String description() {
+            return description;
+        }
+    }
+
+    /**
+     * Admission of a single request, releasing what it took once closed
+     */
+    public final class Permit implements AutoCloseable {
+
+        private String template;
+        private long bytes;
+        private boolean closed;
+        private AdmissionRejectedException rejected;
+
+        private Permit(final String template, final long bytes) {
+            this.template = template;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Binds the permit to the current thread until it's closed, so the request is counted for its template once
+         * that's known (see {@link #admitTemplate(String)})
+         */
+        public void bind() {
+            bound.set(this);
+        }
+
+        /**
+         * Adds bytes to those the request holds, once more of its body has been read
+         *
+         * @throws AdmissionRejectedException if the bytes would exceed a limit, or the request has already been
+         *         rejected
+         */
+        public void reserve(final long moreBytes) {
+            if (closed) {
+                throw new IllegalStateException("Permit already closed");
+            }
+            if (rejected != null) {
+                throw rejected;
+            }
+            try {
+                AdmissionControl.this.reserve(template, bytes, moreBytes);
+            } catch (final AdmissionRejectedException e) {
+                rejected = e;
+                throw e;
+            }
+            bytes += moreBytes;
+        }
+
+        /**
+         * @return rejection of the request once it's been admitted (i.e. for its template, or for bytes of its body
+         *         read later on), null if there's none
+         */
+        public AdmissionRejectedException getRejected() {
+            return rejected;
+        }
+
+        private void countFor(final String templateId) {
+            if (closed || template != null) {
+                return;
+            }
+            if (rejected != null) {
+                throw rejected;
+            }
+            try {
+                count(templateId);
+            } catch (final AdmissionRejectedException e) {
+                rejected = e;
+                throw e;
+            }
+            template = templateId;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (bound.get() == this) {
+                    bound.remove();
+                }
+                release(template, bytes);
+            }
+        }
+    }
+
+    /**
+     * @param inFlight number of requests in flight
+     * @param bytesInFlight bytes of bodies of all requests in flight
+     * @param queued number of requests waiting to be admitted
+     * @param inFlightByTemplate number of requests in flight by their template, for requests with a template
+     * @param admitted number of requests admitted so far
+     * @param rejected number of requests rejected so far, by the limit they've been rejected for
+     */
+    public record Metrics(int inFlight, long bytesInFlight, int queued, Map<String, Integer> inFlightByTemplate,
+                          long admitted, Map<Rejection, Long> rejected) {
+
+    }
+}
@@ -0,0 +1,171 @@
+package com.medblocks.openfhir.rest;
+
+import com.medblocks.openfhir.rest.AdmissionControl.Permit;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Admits mapping requests with {@link AdmissionControl} before their body is read, and responds right away to those
+ * that aren't admitted: with 503 if the server as a whole is at its limit, 429 if the template of the request is, both
+ * with a Retry-After header, and with 413 if the body alone is larger than what all bodies in flight may take.
+ * <p>
+ * Requests are counted for their template right away if they're given one with the templateId parameter, otherwise
+ * once the mapping has found it (see {@link AdmissionControl#admitTemplate(String)}), which is why the permit is bound
+ * to the request's thread. Bodies are counted with their Content-Length, or if it isn't given (chunked bodies) as
+ * they're read. Bodies of batches aren't counted, as they're mapped line by line and never held in memory as a whole
+ * (see {@link com.medblocks.openfhir.OpenFhirBatchEngine}). A request rejected only once it's been admitted is responded
+ * to the same way, unless its response has already been committed.
+ */
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    static final String BATCH_SUFFIX = "/$batch";
+
+    private final AdmissionControl admissionControl;
+
+    public AdmissionFilter(final AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        final boolean batch = request.getRequestURI().endsWith(BATCH_SUFFIX);
+        final long contentLength = request.getContentLengthLong();
+        final Permit permit;
+        try {
+            permit = admissionControl.admit(request.getParameter("templateId"),
+                                            batch ? 0 : Math.max(contentLength, 0));
+        } catch (final AdmissionRejectedException e) {
+            reject(response, e);
+            return;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        try (permit) {
+            permit.bind();
+            filterChain.doFilter(batch || contentLength >= 0 ? request : new CountingRequest(request, permit),
+                                 response);
+        } catch (final IOException | ServletException | RuntimeException e) {
+            // the rejection may reach here wrapped by whatever read the body, or not at all if it has been handled
+            if (permit.getRejected() == null || response.isCommitted()) {
+                throw e;
+            }
+        }
+        if (permit.getRejected() != null && !response.isCommitted()) {
+            response.reset();
+            reject(response, permit.getRejected());
+        }
+    }
+
+    private void reject(final HttpServletResponse response, final AdmissionRejectedException e) throws IOException {
+        final HttpStatus status = e.getRejection().status();
+        response.setStatus(status.value());
+        if (status != HttpStatus.PAYLOAD_TOO_LARGE) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        }
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(e.getMessage());
+    }
+
+    /**
+     * Request whose body is reserved with its permit as it's read, for bodies without a Content-Length
+     */
+    private static final class CountingRequest extends HttpServletRequestWrapper {
+
+        private final Permit permit;
+        private ServletInputStream inputStream;
+        private BufferedReader reader;
+
+        private CountingRequest(final HttpServletRequest request, final Permit permit) {
+            super(request);
+            this.permit = permit;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (reader != null) {
+                throw new IllegalStateException("getReader() has already been called for this request");
+            }
+            if (inputStream == null) {
+                inputStream = new CountingInputStream(super.getInputStream());
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                final String encoding = getCharacterEncoding();
+                final Charset charset = encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+                reader = new BufferedReader(new InputStreamReader(getInputStream(), charset));
+            }
+            return reader;
+        }
+
+        private void reserve(final int bytes) {
+            if (bytes > 0) {
+                permit.reserve(bytes);
+            }
+        }
+
+        private final class CountingInputStream extends ServletInputStream {
+
+            private final ServletInputStream delegate;
+
+            private CountingInputStream(final ServletInputStream delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final int read = delegate.read();
+                reserve(read < 0 ? 0 : 1);
+                return read;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int read = delegate.read(b, off, len);
+                reserve(read);
+                return read;
+            }
+
+            @Override
+            public boolean isFinished() {
+                return delegate.isFinished();
+            }
+
+            @Override
+            public boolean isReady() {
+                return delegate.isReady();
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener) {
+                delegate.setReadListener(readListener);
+            }
+
+            @Override
+            public void close() throws IOException {
+                delegate.close();
+            }
+        }
+    }
+}
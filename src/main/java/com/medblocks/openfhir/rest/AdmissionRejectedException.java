@@ -0,0 +1,20 @@
+package com.medblocks.openfhir.rest;
+
+import com.medblocks.openfhir.rest.AdmissionControl.Rejection;
+import lombok.Getter;
+
+/**
+ * Thrown when a request isn't admitted by {@link AdmissionControl}
+ */
+@Getter
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final Rejection rejection;
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(final Rejection rejection, final long retryAfterSeconds) {
+        super("Request rejected, " + rejection.description());
+        this.rejection = rejection;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -1,20 +1,33 @@
 package com.medblocks.openfhir.rest;
 
+import com.medblocks.openfhir.InputFormat;
+import com.medblocks.openfhir.OpenFhirBatchEngine;
+import com.medblocks.openfhir.OpenFhirBatchEngine.BatchResult;
 import com.medblocks.openfhir.OpenFhirEngine;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -28,11 +41,16 @@ import org.springframework.web.server.ResponseStatusException;
 @Tag(name = "openFHIR API", description = "Operations related to openFHIR (mapping between openEHR and FHIR)")
 public class OpenFhirController {
 
+    private static final String NDJSON = "application/x-ndjson";
+
     private final OpenFhirEngine openFhirEngine;
+    private final OpenFhirBatchEngine openFhirBatchEngine;
 
     @Autowired
-    public OpenFhirController(final OpenFhirEngine openFhirEngine) {
+    public OpenFhirController(final OpenFhirEngine openFhirEngine,
+                              final OpenFhirBatchEngine openFhirBatchEngine) {
         this.openFhirEngine = openFhirEngine;
+        this.openFhirBatchEngine = openFhirBatchEngine;
     }
 
     /**
@@ -44,6 +62,8 @@ public class OpenFhirController {
      *         flat format,
      *         this parameter is required, because the engine can not determine templateId in that case (yet
      *         requires it to find the correct state of the Engine)
+     * @param inputFormat format of the composition, either 'flat' or 'canonical'; optional, if not given (and
+     *         content type isn't {@link InputFormat#FLAT_CONTENT_TYPE}), it's detected from the composition itself
      * @return FHIR Bundle with mapped Resources inside
      */
     @PostMapping(value = "/openfhir/tofhir", produces = "application/json")
@@ -56,20 +76,25 @@ public class OpenFhirController {
             requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
                     description = "openEHR Composition in either flat or canonical format",
                     content = {
-                            @Content(mediaType = "application/json")
+                            @Content(mediaType = "application/json"),
+                            @Content(mediaType = InputFormat.FLAT_CONTENT_TYPE)
                     }
             )
     )
-    ResponseEntity toFhir(@RequestBody String composition, @RequestParam(required = false) String templateId,
-                          @RequestHeader(value = "x-req-id", required = false) final String reqId) {
+    void toFhir(final InputStream composition, @RequestParam(required = false) String templateId,
+                @RequestParam(required = false) String inputFormat,
+                @RequestHeader(value = "Content-Type", required = false) final String contentType,
+                @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                final HttpServletResponse response) throws IOException {
         try {
 
-            final String fhir = openFhirEngine.toFhir(composition, templateId);
+            prepareResponse(response);
+            openFhirEngine.toFhir(reader(composition, contentType), templateId,
+                                  InputFormat.requestedOpenEhr(inputFormat, contentType), response.getWriter());
 
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fhir);
         } catch (ResponseStatusException | IllegalArgumentException e) {
 
-            return ResponseEntity.badRequest().body(e.getMessage());
+            badRequest(response, e);
         }
     }
 
@@ -103,22 +128,139 @@ public class OpenFhirController {
                     }
             )
     )
-    ResponseEntity toOpenEhr(@RequestBody String fhirResource,
-                             @RequestParam(required = false) String templateId,
-                             @RequestParam(required = false) Boolean flat,
-                             @RequestHeader(value = "x-req-id", required = false) final String reqId) {
+    void toOpenEhr(final InputStream fhirResource,
+                   @RequestParam(required = false) String templateId,
+                   @RequestParam(required = false) Boolean flat,
+                   @RequestHeader(value = "Content-Type", required = false) final String contentType,
+                   @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                   final HttpServletResponse response) throws IOException {
         try {
 
-            final String openEhr = openFhirEngine.toOpenEhr(fhirResource, templateId, flat);
+            prepareResponse(response);
+            openFhirEngine.toOpenEhr(reader(fhirResource, contentType), templateId, flat, response.getWriter());
 
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(openEhr);
         } catch (ResponseStatusException | IllegalArgumentException e) {
 
-            return ResponseEntity.badRequest().body(e.getMessage());
-        }catch (Exception e) {
+            badRequest(response, e);
+        }
+    }
+
+    /**
+     * Accepts an NDJSON of openEHR Compositions (one per line) and maps each of them to FHIR, same as
+     * {@link #toFhir} does. Lines are mapped in parallel and results are streamed back as NDJSON in the order of the
+     * input; a line that couldn't be mapped is replaced with an error object (see {@link OpenFhirBatchEngine}).
+     *
+     * @param compositions NDJSON of Compositions in either flat or canonical format
+     * @param templateId template id of all Compositions, optional
+     * @param inputFormat format of all Compositions, either 'flat' or 'canonical'; optional, if not given, it's
+     *         detected for each Composition
+     * @return NDJSON of FHIR Bundles
+     */
+    @PostMapping(value = "/openfhir/tofhir/$batch", produces = NDJSON)
+    @Operation(
+            summary = "Maps an NDJSON of openEHR Compositions to FHIR",
+            description = "Maps every line of an NDJSON of openEHR Compositions to FHIR according to FHIR Connect state of the engine. Results are streamed back as NDJSON in the order of the input, with an error object in place of any line that couldn't be mapped.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "NDJSON of FHIR Bundles and errors")
+            },
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "NDJSON of openEHR Compositions in either flat or canonical format",
+                    content = {
+                            @Content(mediaType = NDJSON)
+                    }
+            )
+    )
+    void toFhirBatch(final InputStream compositions, @RequestParam(required = false) String templateId,
+                     @RequestParam(required = false) String inputFormat,
+                     @RequestHeader(value = "Content-Type", required = false) final String contentType,
+                     @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                     final HttpServletResponse response) throws IOException {
+        final InputFormat requestedFormat;
+        try {
+            requestedFormat = InputFormat.requestedOpenEhr(inputFormat, null);
+        } catch (final IllegalArgumentException e) {
+            badRequest(response, e);
+            return;
+        }
+        response.setContentType(NDJSON);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        final BatchResult result = openFhirBatchEngine.toFhir(reader(compositions, contentType), templateId,
+                                                              requestedFormat, response.getWriter());
+        log.info("[{}] Mapped a batch of {} Compositions to FHIR, {} failed", reqId, result.lines(), result.failed());
+    }
+
+    /**
+     * Accepts an NDJSON of FHIR Resources (one per line) and maps each of them to an openEHR Composition, same as
+     * {@link #toOpenEhr} does. Lines are mapped in parallel and results are streamed back as NDJSON in the order of
+     * the input; a line that couldn't be mapped is replaced with an error object (see {@link OpenFhirBatchEngine}).
+     *
+     * @param fhirResources NDJSON of FHIR Resources (Bundle or any other), R4
+     * @param templateId template id for all Resources, optional
+     * @param flat if you want the mapped Compositions to be provided in a flat format, default is false
+     * @return NDJSON of openEHR Compositions
+     */
+    @PostMapping(value = "/openfhir/toopenehr/$batch", produces = NDJSON)
+    @Operation(
+            summary = "Maps an NDJSON of FHIR Resources to openEHR Compositions",
+            description = "Maps every line of an NDJSON of FHIR Resources to an openEHR Composition according to FHIR Connect state of the engine. Results are streamed back as NDJSON in the order of the input, with an error object in place of any line that couldn't be mapped.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "NDJSON of openEHR Compositions and errors")
+            },
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "NDJSON of FHIR Resources",
+                    content = {
+                            @Content(mediaType = NDJSON)
+                    }
+            )
+    )
+    void toOpenEhrBatch(final InputStream fhirResources,
+                        @RequestParam(required = false) String templateId,
+                        @RequestParam(required = false) Boolean flat,
+                        @RequestHeader(value = "Content-Type", required = false) final String contentType,
+                        @RequestHeader(value = "x-req-id", required = false) final String reqId,
+                        final HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        final BatchResult result = openFhirBatchEngine.toOpenEhr(reader(fhirResources, contentType), templateId, flat,
+                                                                 response.getWriter());
+        log.info("[{}] Mapped a batch of {} FHIR Resources to openEHR, {} failed", reqId, result.lines(),
+                 result.failed());
+    }
+
+    /**
+     * Request bodies are decoded with the charset of their content type, UTF-8 if none is given
+     */
+    private Reader reader(final InputStream body, final String contentType) {
+        Charset charset = StandardCharsets.UTF_8;
+        if (StringUtils.isNotBlank(contentType)) {
+            try {
+                final Charset requested = MediaType.parseMediaType(contentType).getCharset();
+                if (requested != null) {
+                    charset = requested;
+                }
+            } catch (final InvalidMediaTypeException e) {
+                log.warn("Couldn't parse content type {}, will read request body as UTF-8", contentType);
+            }
+        }
+        return new BufferedReader(new InputStreamReader(body, charset));
+    }
+
+    private void prepareResponse(final HttpServletResponse response) {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    }
 
+    /**
+     * Engine writes to the response only once mapping is done, so a failed mapping can still be turned into a
+     * bad request
+     */
+    private void badRequest(final HttpServletResponse response, final RuntimeException e) throws IOException {
+        if (response.isCommitted()) {
             throw e;
         }
+        response.resetBuffer();
+        response.setStatus(HttpStatus.BAD_REQUEST.value());
+        response.getWriter().write(String.valueOf(e.getMessage()));
     }
 
     /**
@@ -2,6 +2,7 @@ package com.medblocks.openfhir.rest;
 
 import com.medblocks.openfhir.db.OptService;
 import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -97,11 +98,11 @@ public class OptController {
             description = "Returns metadata of all existing Operational Templates currently in the engine",
             responses = {
                     @ApiResponse(responseCode = "200", description = "OK", content = @Content(array = @ArraySchema(
-                            schema = @Schema(implementation = OptEntity.class)
+                            schema = @Schema(implementation = OptMetadata.class)
                     )))
             }
     )
-    List<OptEntity> allOpts(@RequestHeader(value = "x-req-id", required = false) final String reqId) {
+    List<OptMetadata> allOpts(@RequestHeader(value = "x-req-id", required = false) final String reqId) {
         return optService.all(reqId);
     }
 
@@ -1,8 +1,11 @@
 package com.medblocks.openfhir.rest;
 
+import com.medblocks.openfhir.FhirConnectContextIndex;
+import com.medblocks.openfhir.ProdOpenFhirMappingContext;
 import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
 import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
 import com.medblocks.openfhir.db.repository.OptRepository;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -16,14 +19,23 @@ public class TestController {
     private final OptRepository optRepository;
     private final FhirConnectModelRepository fhirConnectMapperRepository;
     private final FhirConnectContextRepository fhirConnectContextRepository;
+    private final OpenEhrCachedUtils openEhrCachedUtils;
+    private final ProdOpenFhirMappingContext mappingContext;
+    private final FhirConnectContextIndex contextIndex;
 
     @Autowired
     public TestController(OptRepository optRepository,
                           FhirConnectModelRepository fhirConnectMapperRepository,
-                          FhirConnectContextRepository fhirConnectContextRepository) {
+                          FhirConnectContextRepository fhirConnectContextRepository,
+                          OpenEhrCachedUtils openEhrCachedUtils,
+                          ProdOpenFhirMappingContext mappingContext,
+                          FhirConnectContextIndex contextIndex) {
         this.optRepository = optRepository;
         this.fhirConnectMapperRepository = fhirConnectMapperRepository;
         this.fhirConnectContextRepository = fhirConnectContextRepository;
+        this.openEhrCachedUtils = openEhrCachedUtils;
+        this.mappingContext = mappingContext;
+        this.contextIndex = contextIndex;
     }
 
     @GetMapping("/$purge")
@@ -32,6 +44,9 @@ public class TestController {
             optRepository.deleteAll();
             fhirConnectMapperRepository.deleteAll();
             fhirConnectContextRepository.deleteAll();
+            openEhrCachedUtils.invalidateAll();
+            mappingContext.invalidateAll();
+            contextIndex.invalidate();
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(e.getMessage());
         }
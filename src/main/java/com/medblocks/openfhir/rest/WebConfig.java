@@ -4,6 +4,8 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
 import java.util.List;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageConverter;
@@ -32,4 +34,15 @@ public class WebConfig implements WebMvcConfigurer {
         configurer.defaultContentType(MediaType.APPLICATION_JSON);
     }
 
+    /**
+     * Admission control in front of the mapping endpoints only
+     */
+    @Bean
+    public FilterRegistrationBean<AdmissionFilter> admissionFilter(final AdmissionControl admissionControl) {
+        final FilterRegistrationBean<AdmissionFilter> registration = new FilterRegistrationBean<>(
+                new AdmissionFilter(admissionControl));
+        registration.addUrlPatterns("/openfhir/tofhir", "/openfhir/tofhir/*", "/openfhir/toopenehr",
+                                    "/openfhir/toopenehr/*");
+        return registration;
+    }
 }
@@ -26,7 +26,8 @@ public class YamlHttpMessageConverter extends AbstractHttpMessageConverter<Objec
 
     @Override
     protected boolean supports(Class<?> clazz) {
-        return true;
+        // raw bytes (i.e. the prometheus scrape of actuator) are left to be written as they are
+        return clazz != byte[].class;
     }
 
     @Override
@@ -28,18 +28,23 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.OpenEhrRmWorker;
+import com.medblocks.openfhir.OpenFhirContextRepository;
+import com.medblocks.openfhir.WebTemplateIndex;
 import com.medblocks.openfhir.OpenFhirMappingContext;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.OpenFhirFhirConfig;
 import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
 import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import com.medblocks.openfhir.fc.schema.model.Condition;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectReference;
+import com.medblocks.openfhir.fc.schema.model.FollowedBy;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhrHelper;
 import com.medblocks.openfhir.util.FhirInstanceCreator;
 import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
 import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.Futures;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
 import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
 import com.medblocks.openfhir.util.OpenFhirConst;
@@ -47,18 +52,23 @@ import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import com.nedap.archie.rm.composition.Composition;
 import com.nedap.archie.rm.composition.ContentItem;
+import jakarta.annotation.PreDestroy;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -86,6 +96,7 @@ import org.hl7.fhir.r4.model.TimeType;
 import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses.ClassTypeInfo;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -95,6 +106,8 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenEhrToFhir {
 
+    private static final String FLAT_CTX_PREFIX = "ctx/";
+
     final private FlatJsonMarshaller flatJsonMarshaller;
     final private OpenFhirMappingContext openFhirTemplateRepo;
     final private OpenEhrCachedUtils openEhrApplicationScopedUtils;
@@ -109,8 +122,12 @@ public class OpenEhrToFhir {
     final private IntermediateCacheProcessing intermediateCacheProcessing;
     final private OpenEhrConditionEvaluator openEhrConditionEvaluator;
 
+    /**
+     * Pool independent archetypes of a Composition are mapped on concurrently, null if they're mapped one after
+     * another
+     */
+    final private ForkJoinPool archetypePool;
 
-    @Autowired
     public OpenEhrToFhir(final FlatJsonMarshaller flatJsonMarshaller,
                          final OpenFhirMappingContext openFhirTemplateRepo,
                          final OpenEhrCachedUtils openEhrApplicationScopedUtils,
@@ -123,6 +140,32 @@ public class OpenEhrToFhir {
                          final FhirPathR4 fhirPathR4,
                          final IntermediateCacheProcessing intermediateCacheProcessing,
                          final OpenEhrConditionEvaluator openEhrConditionEvaluator) {
+        this(flatJsonMarshaller, openFhirTemplateRepo, openEhrApplicationScopedUtils, gson, openFhirStringUtils,
+             openEhrRmWorker, openFhirMapperUtils, fhirInstancePopulator, fhirInstanceCreator,
+             fhirInstanceCreatorUtility, fhirPathR4, intermediateCacheProcessing, openEhrConditionEvaluator, false, 0);
+    }
+
+    /**
+     * @param parallelArchetypes whether top level archetypes of a Composition that don't build upon resources
+     *         created by preceding ones are mapped concurrently; the resulting Bundle is the same either way
+     * @param parallelism number of threads archetypes are mapped on if they're mapped concurrently, 0 for the
+     *         number of available processors
+     */
+    @Autowired
+    public OpenEhrToFhir(final FlatJsonMarshaller flatJsonMarshaller,
+                         final OpenFhirMappingContext openFhirTemplateRepo,
+                         final OpenEhrCachedUtils openEhrApplicationScopedUtils,
+                         final Gson gson, OpenFhirStringUtils openFhirStringUtils,
+                         final OpenEhrRmWorker openEhrRmWorker,
+                         final OpenFhirMapperUtils openFhirMapperUtils,
+                         final FhirInstancePopulator fhirInstancePopulator,
+                         final FhirInstanceCreator fhirInstanceCreator,
+                         final FhirInstanceCreatorUtility fhirInstanceCreatorUtility,
+                         final FhirPathR4 fhirPathR4,
+                         final IntermediateCacheProcessing intermediateCacheProcessing,
+                         final OpenEhrConditionEvaluator openEhrConditionEvaluator,
+                         @Value("${openfhir.tofhir.parallel-archetypes:false}") final boolean parallelArchetypes,
+                         @Value("${openfhir.tofhir.parallelism:0}") final int parallelism) {
         this.flatJsonMarshaller = flatJsonMarshaller;
         this.openFhirTemplateRepo = openFhirTemplateRepo;
         this.openEhrApplicationScopedUtils = openEhrApplicationScopedUtils;
@@ -136,6 +179,16 @@ public class OpenEhrToFhir {
         this.fhirPathR4 = fhirPathR4;
         this.intermediateCacheProcessing = intermediateCacheProcessing;
         this.openEhrConditionEvaluator = openEhrConditionEvaluator;
+        this.archetypePool = parallelArchetypes
+                ? new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors())
+                : null;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (archetypePool != null) {
+            archetypePool.shutdownNow();
+        }
     }
 
     /**
@@ -143,113 +196,289 @@ public class OpenEhrToFhir {
      *
      * @param context fhir connect context mapper
      * @param composition incoming Composition that needs to be mapped (this is serialized immediately to a
-     *         flat json format, meaning if it already comes like this to the openFHIR engine,
-     *         we're doing 2 de/serializations; rethink if it makes sense or not - right not, this is
-     *         also how we're implicitly validating incoming request, but that could be done smarter)
+     *         flat json format; if the Composition comes to the openFHIR engine in a flat format already, see
+     *         {@link #flatToFhir(FhirConnectContext, JsonObject, OPERATIONALTEMPLATE)})
      * @param operationaltemplate operational template that is related to the incoming Composition
      * @return Bundle that is a result of the mapping engine
      */
     public Bundle compositionToFhir(final FhirConnectContext context,
                                     final Composition composition,
                                     final OPERATIONALTEMPLATE operationaltemplate) {
+        return compositionToFhir(composition, operationaltemplate, currentRepository(context));
+    }
+
+    /**
+     * Same as {@link #compositionToFhir(FhirConnectContext, Composition, OPERATIONALTEMPLATE)}, with mappers of the
+     * given repository, as resolved for the request, instead of the one currently cached for the template
+     *
+     * @param repo repository of the template the Composition is based on
+     */
+    public Bundle compositionToFhir(final Composition composition,
+                                    final OPERATIONALTEMPLATE operationaltemplate,
+                                    final OpenFhirContextRepository repo) {
         // create flat from composition
         final WebTemplate webTemplate = openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
         final String flatJson = flatJsonMarshaller.toFlatJson(composition, webTemplate);
         final JsonObject flatJsonObject = gson.fromJson(flatJson, JsonObject.class);
-        final String templateId = OpenFhirMappingContext.normalizeTemplateId(
-                context.getContext().getTemplate().getId());
+        final List<String> archetypeNodeIds = composition.getContent().stream()
+                .map(ContentItem::getArchetypeNodeId)
+                .collect(Collectors.toList());
+        return flatToFhir(repo, flatJsonObject, webTemplate, archetypeNodeIds);
+    }
+
+    /**
+     * Maps a Composition that is already in a flat format to a FHIR Bundle, without unmarshalling it to an RM
+     * Composition and marshalling it back to a flat format first. Archetypes within Composition.content are derived
+     * from the flat paths themselves, in the order they first appear in.
+     * <p>
+     * As the flat Composition isn't validated by unmarshalling it, it's only validated against the structure of the
+     * template (see {@link #validateFlat(JsonObject, WebTemplateIndex)}); entries that don't exist within the
+     * template are simply never picked up by the mappings.
+     *
+     * @param context fhir connect context mapper
+     * @param flatJsonObject incoming Composition in a flat format
+     * @param operationaltemplate operational template that is related to the incoming Composition
+     * @return Bundle that is a result of the mapping engine
+     * @throws IllegalArgumentException if the flat Composition doesn't match the template
+     */
+    public Bundle flatToFhir(final FhirConnectContext context,
+                             final JsonObject flatJsonObject,
+                             final OPERATIONALTEMPLATE operationaltemplate) {
+        return flatToFhir(flatJsonObject, operationaltemplate, currentRepository(context));
+    }
+
+    /**
+     * Same as {@link #flatToFhir(FhirConnectContext, JsonObject, OPERATIONALTEMPLATE)}, with mappers of the given
+     * repository, as resolved for the request, instead of the one currently cached for the template
+     *
+     * @param repo repository of the template the Composition is based on
+     */
+    public Bundle flatToFhir(final JsonObject flatJsonObject,
+                             final OPERATIONALTEMPLATE operationaltemplate,
+                             final OpenFhirContextRepository repo) {
+        final WebTemplate webTemplate = openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
+        final WebTemplateIndex webTemplateIndex = openEhrRmWorker.getIndex(webTemplate);
+        validateFlat(flatJsonObject, webTemplateIndex);
+        return flatToFhir(repo, flatJsonObject, webTemplate, getContentArchetypeNodeIds(flatJsonObject,
+                                                                                         webTemplateIndex));
+    }
+
+    private OpenFhirContextRepository currentRepository(final FhirConnectContext context) {
+        return openFhirTemplateRepo.getRepository(context.getContext().getTemplate().getId());
+    }
+
+    private Bundle flatToFhir(final OpenFhirContextRepository repo,
+                              final JsonObject flatJsonObject,
+                              final WebTemplate webTemplate,
+                              final List<String> archetypeNodeIds) {
         final Bundle creatingBundle = prepareBundle();
+        final Set<String> createdAndAdded = new HashSet<>();
+        final List<ArchetypeMapping> archetypeMappings = prepareArchetypeMappings(repo, archetypeNodeIds);
+
+        // archetypes that don't build upon resources of preceding ones can be mapped upfront and concurrently; their
+        // resources are still added to the Bundle in the order of the archetypes, so it's the same as when mapped one
+        // after another
+        final List<CompletableFuture<List<List<Resource>>>> forked = forkIndependent(repo,
+                                                                                    archetypeMappings,
+                                                                                    flatJsonObject,
+                                                                                    webTemplate);
+        try {
+            for (int i = 0; i < archetypeMappings.size(); i++) {
+                if (forked.get(i) != null) {
+                    Futures.join(forked.get(i)).forEach(created -> addEntriesToBundle(creatingBundle, created,
+                                                                              createdAndAdded));
+                } else {
+                    mapArchetype(repo, archetypeMappings.get(i), flatJsonObject, webTemplate, creatingBundle,
+                                 created -> addEntriesToBundle(creatingBundle, created, createdAndAdded));
+                }
+            }
+        } finally {
+            // the ones not needed anymore because of a failure
+            forked.stream().filter(Objects::nonNull).forEach(future -> future.cancel(false));
+        }
+
+        return creatingBundle;
+    }
+
+    /**
+     * Decides which mappers map each of the top level archetypes and which of them build upon a resource created by
+     * a preceding one, in the same way and order as archetypes are then mapped.
+     *
+     * @param repo repository of the template the Composition is based on
+     * @param archetypeNodeIds archetypes within Composition.content, in their order
+     * @return archetypes that have mappers, each only once
+     */
+    private List<ArchetypeMapping> prepareArchetypeMappings(final OpenFhirContextRepository repo,
+                                                            final List<String> archetypeNodeIds) {
         final Map<String, Boolean> isMultipleByResourceType = new HashMap<>();
         final Map<String, Map<String, Object>> intermediateCaches = new HashMap<>();
-        final Set<String> createdAndAdded = new HashSet<>();
         final Set<String> archetypesAlreadyProcessed = new HashSet<>();
+        final List<ArchetypeMapping> archetypeMappings = new ArrayList<>();
 
         // loop through top level content/archetypes within the Composition
-        for (final ContentItem archetypesWithinContent : composition.getContent()) {
+        for (final String archetypeNodeId : archetypeNodeIds) {
 
             // elements instantiated throughout the mapping (FHIR dataelements instantiated, key'd by created object + fhir path + openehr path)
             // instanced here so multiple archetypes can share them
             final Map<String, Object> instantiatedIntermediateElements = new HashMap<>();
 
-            final String archetypeNodeId = archetypesWithinContent.getArchetypeNodeId();
             if (archetypesAlreadyProcessed.contains(archetypeNodeId)) {
                 continue;
             }
 
             // get mapper by templateid (context) + archetype id (model)
             final List<OpenFhirFhirConnectModelMapper> theMappers = openFhirTemplateRepo.getMapperForArchetype(
-                    templateId, archetypeNodeId);
+                    repo, archetypeNodeId);
             if (theMappers == null) {
                 log.error("No mappers defined for archetype within this composition: {}. No mapping possible.",
                           archetypeNodeId);
                 continue;
             }
-            handleMappings(theMappers,
-                           createdAndAdded,
-                           intermediateCaches,
-                           isMultipleByResourceType,
-                           flatJsonObject,
-                           webTemplate,
-                           instantiatedIntermediateElements,
-                           creatingBundle,
-                           archetypesAlreadyProcessed,
-                           archetypesWithinContent,
-                           archetypeNodeId);
+
+            final List<MapperMapping> mapperMappings = new ArrayList<>();
+            for (final OpenFhirFhirConnectModelMapper theMapper : theMappers) {
+                if (theMapper.getFhirConfig() == null) {
+                    // if fhir config is null, it means it's a slot mapper and it can't be a first-level Composition.content one
+                    continue;
+                }
+                final String resource = theMapper.getFhirConfig().getResource();
+                final Boolean existingEntry = isMultipleByResourceType.getOrDefault(resource, true);
+
+                // fhirConfig.multiple signals if model mapper should return in multiple base FHIR Resources or a single one
+                // if not multiple, then we need to get an existing already created FHIR Resource and use that one for the
+                // following mappings
+                final boolean shouldUseExisting = existingEntry && !theMapper.getFhirConfig().getMultiple();
+                isMultipleByResourceType.put(resource, shouldUseExisting);
+                intermediateCaches.put(resource,
+                                       intermediateCaches.getOrDefault(resource, instantiatedIntermediateElements));
+                mapperMappings.add(new MapperMapping(theMapper,
+                                                     shouldUseExisting,
+                                                     shouldUseExisting
+                                                             ? intermediateCaches.get(resource)
+                                                             : instantiatedIntermediateElements));
+            }
+            if (!mapperMappings.isEmpty()) {
+                archetypeMappings.add(new ArchetypeMapping(archetypeNodeId, mapperMappings));
+                archetypesAlreadyProcessed.add(archetypeNodeId);
+            }
         }
+        return archetypeMappings;
+    }
 
-        return creatingBundle;
+    /**
+     * Starts mapping archetypes that don't build upon resources created by preceding ones on {@link #archetypePool},
+     * if there is one and there's more than a single such archetype.
+     *
+     * @return mapping of each archetype (in the same order), null for the ones that need to be mapped in order
+     */
+    private List<CompletableFuture<List<List<Resource>>>> forkIndependent(final OpenFhirContextRepository repo,
+                                                                          final List<ArchetypeMapping> archetypeMappings,
+                                                                          final JsonObject flatJsonObject,
+                                                                          final WebTemplate webTemplate) {
+        final List<CompletableFuture<List<List<Resource>>>> forked = new ArrayList<>(
+                Collections.nCopies(archetypeMappings.size(), null));
+        if (archetypePool == null
+                || archetypeMappings.stream().filter(ArchetypeMapping::isIndependent).count() < 2) {
+            return forked;
+        }
+        for (int i = 0; i < archetypeMappings.size(); i++) {
+            final ArchetypeMapping archetypeMapping = archetypeMappings.get(i);
+            if (archetypeMapping.isIndependent()) {
+                forked.set(i, CompletableFuture.supplyAsync(() -> {
+                    final List<List<Resource>> created = new ArrayList<>();
+                    mapArchetype(repo, archetypeMapping, flatJsonObject, webTemplate, null, created::add);
+                    return created;
+                }, archetypePool));
+            }
+        }
+        return forked;
     }
 
     /**
-     * Loops over available mappings, creates helpers for mappings and then corresponding FHIR Resources
-     * to given openEHR Compositions
+     * Validates that all entries of a flat Composition belong to the given template, meaning they start with the
+     * id of the template's root node and continue with one of its top level nodes or RM attributes (or are 'ctx/'
+     * entries), and that all values are primitives.
      *
-     * @param theMappers fhir connect mappers available for mapping
-     * @param createdAndAdded set of string of already created Resources, so we don't do duplicates
-     * @param isMultipleByResourceType if certain mapping produces multiple resources
-     * @param flatJsonObject Composition in a flat json format that needs to be mapped
-     * @param webTemplate web template of the inbound Composition
-     * @param instantiatedIntermediateElements elements instantiated throughout the mapping (FHIR dataelements
-     *         instantiated,
-     * @param intermediateCaches cached intermediate caches per Resource type
-     *         key'd by created object + fhir path + openehr path)
-     * @param creatingBundle Bundle that is being created as part of the mappings
-     * @param archetypesAlreadyProcessed set of archetypes already processed
-     * @param archetypesWithinContent archetype within a Composition that is currently being mapped
-     * @param archetypeNodeId archetype id within a Composition that is currently being mapped
+     * @throws IllegalArgumentException if there's an entry that doesn't
      */
-    private void handleMappings(final List<OpenFhirFhirConnectModelMapper> theMappers,
-                                final Set<String> createdAndAdded,
-                                final Map<String, Map<String, Object>> intermediateCaches,
-                                final Map<String, Boolean> isMultipleByResourceType,
-                                final JsonObject flatJsonObject,
-                                final WebTemplate webTemplate,
-                                final Map<String, Object> instantiatedIntermediateElements,
-                                final Bundle creatingBundle,
-                                final Set<String> archetypesAlreadyProcessed,
-                                final ContentItem archetypesWithinContent,
-                                final String archetypeNodeId) {
-        for (final OpenFhirFhirConnectModelMapper theMapper : theMappers) {
-            if (theMapper.getFhirConfig() == null) {
-                // if fhir config is null, it means it's a slot mapper and it can't be a first-level Composition.content one
+    void validateFlat(final JsonObject flatJsonObject, final WebTemplateIndex webTemplateIndex) {
+        if (flatJsonObject.isEmpty()) {
+            throw new IllegalArgumentException("Flat Composition is empty. Aborting translation.");
+        }
+        final String root = webTemplateIndex.getRootId();
+        for (final Entry<String, JsonElement> entry : flatJsonObject.entrySet()) {
+            final String key = entry.getKey();
+            if (key.startsWith(FLAT_CTX_PREFIX)) {
                 continue;
             }
+            final String[] segments = key.split("/");
+            if (segments.length < 2 || !segments[0].equals(root)
+                    || !isTopLevelSegment(withoutIndexAndPipe(segments[1]), webTemplateIndex)) {
+                throw new IllegalArgumentException(String.format(
+                        "Flat path '%s' doesn't exist within template '%s'. Aborting translation.", key, root));
+            }
+            if (!entry.getValue().isJsonPrimitive() && !entry.getValue().isJsonNull()) {
+                throw new IllegalArgumentException(String.format(
+                        "Flat path '%s' needs to have a primitive value. Aborting translation.", key));
+            }
+        }
+    }
+
+    /**
+     * @return archetype node ids of Composition.content items, derived from flat paths in the order they first
+     *         appear in
+     */
+    List<String> getContentArchetypeNodeIds(final JsonObject flatJsonObject,
+                                            final WebTemplateIndex webTemplateIndex) {
+        final Set<String> contentIds = new LinkedHashSet<>();
+        for (final String key : flatJsonObject.keySet()) {
+            final String[] segments = key.split("/");
+            if (segments.length > 1 && !key.startsWith(FLAT_CTX_PREFIX)) {
+                contentIds.add(withoutIndexAndPipe(segments[1]));
+            }
+        }
+        return contentIds.stream()
+                .map(webTemplateIndex::getContentArchetypeNodeId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
 
-            final Boolean existingEntry = isMultipleByResourceType.getOrDefault(theMapper.getFhirConfig().getResource(),
-                                                                                true);
+    /**
+     * Top level segments are either nodes of the template or RM attributes of the Composition which the flat format
+     * prefixes with an underscore (i.e. _uid, _link, _feeder_audit)
+     */
+    private boolean isTopLevelSegment(final String segment, final WebTemplateIndex webTemplateIndex) {
+        return segment.startsWith("_") || webTemplateIndex.isTopLevelId(segment);
+    }
 
-            // fhirConfig.multiple signals if model mapper should return in multiple base FHIR Resources or a single one
-            // if not multiple, then we need to get an existing already created FHIR Resource and use that one for the
-            // following mappings
-            final boolean shouldUseExisting = existingEntry && !theMapper.getFhirConfig().getMultiple();
-            isMultipleByResourceType.put(theMapper.getFhirConfig().getResource(), shouldUseExisting);
-            intermediateCaches.put(theMapper.getFhirConfig().getResource(),
-                                   intermediateCaches.getOrDefault(theMapper.getFhirConfig().getResource(),
-                                                                   instantiatedIntermediateElements));
+    private String withoutIndexAndPipe(final String segment) {
+        return segment.split("\\|")[0].replaceAll(":\\d+$", "");
+    }
+
+    /**
+     * Loops over mappers of an archetype, creates helpers for mappings and then corresponding FHIR Resources
+     * to given openEHR Compositions
+     *
+     * @param repo repository of the template the Composition is based on
+     * @param archetypeMapping archetype within a Composition that is currently being mapped, with its mappers
+     * @param flatJsonObject Composition in a flat json format that needs to be mapped
+     * @param webTemplate web template of the inbound Composition
+     * @param creatingBundle Bundle that is being created as part of the mappings, with resources of preceding
+     *         mappers already added; only needed if the archetype isn't independent
+     * @param createdResources consumer of the Resources created by each mapper, called in the order of mappers
+     */
+    private void mapArchetype(final OpenFhirContextRepository repo,
+                              final ArchetypeMapping archetypeMapping,
+                              final JsonObject flatJsonObject,
+                              final WebTemplate webTemplate,
+                              final Bundle creatingBundle,
+                              final Consumer<List<Resource>> createdResources) {
+        for (final MapperMapping mapperMapping : archetypeMapping.mappers()) {
+            final OpenFhirFhirConnectModelMapper theMapper = mapperMapping.mapper();
 
             // helper POJOs that help for openEHR to FHIR mappings
             final List<OpenEhrToFhirHelper> helpers = new ArrayList<>();
-            String firstFlatPath;
+            final String firstFlatPath;
             if (!theMapper.getOpenEhrConfig().getArchetype().contains("CLUSTER")) {
                 firstFlatPath =
                         webTemplate.getTree().getId() + "/content[" + theMapper.getOpenEhrConfig().getArchetype() + "]";
@@ -257,23 +486,24 @@ public class OpenEhrToFhir {
                 firstFlatPath = webTemplate.getTree().getId();
             }
 
-            prepareOpenEhrToFhirHelpers(theMapper,
-                                        theMapper.getFhirConfig().getResource(),
-                                        firstFlatPath,
-                                        theMapper.getMappings(),
-                                        helpers,
-                                        webTemplate,
-                                        flatJsonObject,
-                                        false,
-                                        null,
-                                        null,
-                                        firstFlatPath,
-                                        false);
+            // the plan only depends on the template and the mapper, so it's compiled once and reused
+            final List<OpenEhrToFhirPlanStep> plan = openFhirTemplateRepo.getOpenEhrToFhirPlan(
+                    repo, theMapper, mapper -> compilePlan(repo, mapper,
+                                                                 mapper.getFhirConfig().getResource(),
+                                                                 firstFlatPath,
+                                                                 mapper.getMappings(),
+                                                                 webTemplate,
+                                                                 false,
+                                                                 null,
+                                                                 null,
+                                                                 firstFlatPath,
+                                                                 false));
+            executePlan(plan, flatJsonObject, helpers);
 
             // within helpers, you should have everything you need to create a FHIR Resource now
             final List<Resource> created = createResourceFromOpenEhrToFhirHelper(helpers,
                                                                                  theMapper.getFhirConfig(),
-                                                                                 shouldUseExisting
+                                                                                 mapperMapping.shouldUseExisting()
                                                                                          ? creatingBundle.getEntry()
                                                                                          .stream()
                                                                                          .map(Bundle.BundleEntryComponent::getResource)
@@ -283,21 +513,46 @@ public class OpenEhrToFhir {
                                                                                                                  .getResource()))
                                                                                          .findAny()
                                                                                          .orElse(null) : null,
-                                                                                 shouldUseExisting
-                                                                                         ? intermediateCaches.getOrDefault(
-                                                                                         theMapper.getFhirConfig()
-                                                                                                 .getResource(),
-                                                                                         instantiatedIntermediateElements)
-                                                                                         : instantiatedIntermediateElements);
+                                                                                 mapperMapping.intermediateElements());
 
             log.info("Constructed {} resources for archetype {}.", created.size(),
-                     archetypesWithinContent.getArchetypeNodeId());
+                     archetypeMapping.archetypeNodeId());
+
+            createdResources.accept(created);
+        }
+    }
+
+    /**
+     * A top level archetype of a Composition with the mappers it's mapped with
+     *
+     * @param archetypeNodeId archetype id within a Composition
+     * @param mappers mappers of the archetype, in the order they're applied in
+     */
+    private record ArchetypeMapping(String archetypeNodeId, List<MapperMapping> mappers) {
 
-            addEntriesToBundle(creatingBundle, created, createdAndAdded);
-            archetypesAlreadyProcessed.add(archetypeNodeId);
+        /**
+         * @return whether none of the mappers builds upon a resource created by a preceding archetype, so the
+         *         archetype can be mapped regardless of what's been mapped before it
+         */
+        boolean isIndependent() {
+            return mappers.stream().noneMatch(MapperMapping::shouldUseExisting);
         }
     }
 
+    /**
+     * @param mapper fhir connect mapper
+     * @param shouldUseExisting whether the mapper adds to an already created resource of the same type instead of
+     *         creating a new one (fhirConfig.multiple being false)
+     * @param intermediateElements elements instantiated throughout the mapping (FHIR dataelements instantiated,
+     *         key'd by created object + fhir path + openehr path), shared with the archetypes whose resource is
+     *         added to if shouldUseExisting
+     */
+    private record MapperMapping(OpenFhirFhirConnectModelMapper mapper,
+                                 boolean shouldUseExisting,
+                                 Map<String, Object> intermediateElements) {
+
+    }
+
     /**
      * Prepares Bundle that is being created. This method should handle references between resources,
      * Bundle metadata, ....
@@ -894,16 +1149,16 @@ public class OpenEhrToFhir {
     }
 
     /**
-     * Prepare helper objects for openEHR to FHIR mappings. Helper objects in a friendly and easily accessible way store
-     * see @javadoc of OpenEhrToFhirHelper.class
+     * Prepares a plan for openEHR to FHIR mappings of the given mappings. The plan contains everything that depends
+     * on the template and the model mappers only, so it can be compiled once per model mapper and then executed on
+     * every Composition; see {@link #executePlan(List, JsonObject, List)}.
      *
+     * @param repo repository of the template, slot archetype mappers are taken from
      * @param theMapper fhir connect mapper
      * @param resourceType fhir resource type being mapped to
      * @param firstFlatPath first flat path - in most cases template id
      * @param mappings model mapper mappings
-     * @param helpers a list of helpers being constructed
      * @param webTemplate openEHR web template object
-     * @param originalFlatJsonObject flat json we're constructing FHIR from
      * @param isFollowedBy if a mapper is a followed by mapper (true if followedBy or slotArchetype)
      * @param parentFollowedByFhir if followed by, this is parent's fhir path
      * @param parentFollowedByOpenEhr if followed by, this is parent's openehr path
@@ -911,23 +1166,26 @@ public class OpenEhrToFhir {
      *         mappings
      * @param possibleRecursion if there's a possibility we're in a recursion loop (i.e. if we came here from a
      *         slot mapping
+     * @return steps of the plan, in the order helpers are to be created
      */
-    void prepareOpenEhrToFhirHelpers(final OpenFhirFhirConnectModelMapper theMapper,
-                                     final String resourceType,
-                                     final String firstFlatPath,
-                                     final List<Mapping> mappings,
-                                     final List<OpenEhrToFhirHelper> helpers,
-                                     final WebTemplate webTemplate,
-                                     final JsonObject originalFlatJsonObject,
-                                     boolean isFollowedBy,
-                                     final String parentFollowedByFhir,
-                                     final String parentFollowedByOpenEhr,
-                                     final String slotContext,
-                                     final boolean possibleRecursion) {
+    List<OpenEhrToFhirPlanStep> compilePlan(final OpenFhirContextRepository repo,
+                                            final OpenFhirFhirConnectModelMapper theMapper,
+                                            final String resourceType,
+                                            final String firstFlatPath,
+                                            final List<Mapping> mappings,
+                                            final WebTemplate webTemplate,
+                                            boolean isFollowedBy,
+                                            final String parentFollowedByFhir,
+                                            final String parentFollowedByOpenEhr,
+                                            final String slotContext,
+                                            final boolean possibleRecursion) {
+        final List<OpenEhrToFhirPlanStep> steps = new ArrayList<>();
         if (mappings == null) {
-            return;
+            return steps;
         }
-        for (final Mapping mapping : mappings) {
+        for (final Mapping originalMapping : mappings) {
+            // mappings come from the cached mappers and must not be modified, paths are rewritten on a derived one
+            final Mapping mapping = originalMapping.derive();
 
             final With with = mapping.getWith();
             if (with == null) {
@@ -974,12 +1232,12 @@ public class OpenEhrToFhir {
             final Condition openEhrCondition = mapping.getOpenehrCondition();
             prepareOpenEhrCondition(openEhrCondition, firstFlatPath, webTemplate);
 
-            final JsonObject flatJsonObject = openEhrConditionEvaluator.splitByOpenEhrCondition(originalFlatJsonObject,
-                                                                                                openEhrCondition,
-                                                                                                parentFollowedByOpenEhr
-                                                                                                        == null
-                                                                                                        ? firstFlatPath
-                                                                                                        : parentFollowedByOpenEhrWithOutAqlPath);
+            // flat paths are narrowed down by the openEHR condition when the plan is executed
+            final OpenEhrToFhirPlanStep.OpenEhrToFhirPlanStepBuilder step = OpenEhrToFhirPlanStep.builder()
+                    .openEhrCondition(openEhrCondition)
+                    .openEhrConditionRoot(parentFollowedByOpenEhr == null
+                                                  ? firstFlatPath
+                                                  : parentFollowedByOpenEhrWithOutAqlPath);
 
             final String rmType = getRmType(openehrAqlPath, mapping, webTemplate);
 
@@ -994,10 +1252,9 @@ public class OpenEhrToFhir {
             if (definedMappingWithOpenEhr.startsWith(FhirConnectConst.REFERENCE) && mapping.getReference() != null) {
                 final String openEhrForReferenceMappings =
                         OpenFhirConst.INVALID_DATA_POINT.equals(openehr) ? parentFollowedByOpenEhr : openehr;
-                handleReferenceMapping(mapping, resourceType, parentFollowedByFhir, parentFollowedByOpenEhr, theMapper,
-                                       firstFlatPath, definedMappingWithOpenEhr, fhirPath, isFollowedBy, helpers,
-                                       webTemplate,
-                                       flatJsonObject, slotContext, openEhrForReferenceMappings, possibleRecursion);
+                compileReferenceMapping(repo, step, mapping, resourceType, parentFollowedByFhir, parentFollowedByOpenEhr,
+                                        theMapper, firstFlatPath, definedMappingWithOpenEhr, fhirPath, isFollowedBy,
+                                        webTemplate, slotContext, openEhrForReferenceMappings, possibleRecursion);
             } else {
                 boolean manuallyAddingOccurrence = openehr.contains(RECURRING_SYNTAX);
                 if (manuallyAddingOccurrence) {
@@ -1009,34 +1266,81 @@ public class OpenEhrToFhir {
                 if (mapping.getSlotArchetype() != null) {
                     final String openEhrForReferenceMappings =
                             OpenFhirConst.INVALID_DATA_POINT.equals(openehr) ? parentFollowedByOpenEhr : openehr;
-                    handleSlotMapping(mapping, resourceType, parentFollowedByFhir, theMapper, firstFlatPath,
-                                      definedMappingWithOpenEhr,
-                                      openFhirStringUtils.getFhirPathWithConditions(fhirPath,
-                                                                                    mapping.getFhirCondition(),
-                                                                                    resourceType, parentFollowedByFhir),
-                                      helpers, webTemplate, flatJsonObject, slotContext, openEhrForReferenceMappings,
-                                      possibleRecursion);
+                    compileSlotMapping(repo, step, mapping, resourceType, parentFollowedByFhir, theMapper, firstFlatPath,
+                                       definedMappingWithOpenEhr,
+                                       openFhirStringUtils.getFhirPathWithConditions(fhirPath,
+                                                                                     mapping.getFhirCondition(),
+                                                                                     resourceType,
+                                                                                     parentFollowedByFhir),
+                                       webTemplate, slotContext, openEhrForReferenceMappings,
+                                       possibleRecursion);
                 } else {
                     // adds regex pattern to simplified path in a way that we can extract data from a given flat path
                     final String withRegex = openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(openehr);
 
-                    // get all entries from the flat path that match the simplified flat path with regex pattern
-                    final List<String> matchingEntries = openFhirStringUtils.getAllEntriesThatMatch(withRegex,
-                                                                                                    flatJsonObject);
-                    final Map<String, List<String>> joinedEntries = openFhirStringUtils.joinValuesThatAreOne(matchingEntries);
-                    handleRegularMapping(mapping, resourceType, parentFollowedByFhir,
-                                         parentFollowedByOpenEhrWithOutAqlPath,
-                                         theMapper,
-                                         firstFlatPath, definedMappingWithOpenEhr, fhirPath, isFollowedBy, helpers,
-                                         webTemplate,
-                                         flatJsonObject, slotContext, openehr, joinedEntries, rmType, hardcodedValue,
-                                         possibleRecursion);
+                    compileRegularMapping(repo, step, mapping, resourceType, parentFollowedByFhir,
+                                          parentFollowedByOpenEhrWithOutAqlPath,
+                                          theMapper,
+                                          firstFlatPath, definedMappingWithOpenEhr, fhirPath, isFollowedBy,
+                                          webTemplate, slotContext, openehr, withRegex, rmType, hardcodedValue,
+                                          possibleRecursion);
                 }
             }
+            steps.add(step.build());
+        }
+        return steps;
+    }
 
+    /**
+     * Executes a plan on a Composition in a flat format and creates helper objects for openEHR to FHIR mappings from
+     * it. Helper objects in a friendly and easily accessible way store see @javadoc of OpenEhrToFhirHelper.class
+     *
+     * @param steps plan as compiled with {@link #compilePlan}
+     * @param originalFlatJsonObject flat json we're constructing FHIR from
+     * @param helpers a list of helpers being constructed
+     */
+    void executePlan(final List<OpenEhrToFhirPlanStep> steps,
+                     final JsonObject originalFlatJsonObject,
+                     final List<OpenEhrToFhirHelper> helpers) {
+        for (final OpenEhrToFhirPlanStep step : steps) {
+            final JsonObject flatJsonObject = openEhrConditionEvaluator.splitByOpenEhrCondition(originalFlatJsonObject,
+                                                                                                step.getOpenEhrCondition(),
+                                                                                                step.getOpenEhrConditionRoot());
+            switch (step.getKind()) {
+                case REFERENCE -> executeReferenceMapping(step, flatJsonObject, helpers);
+                case SLOT -> executePlan(step.getChildren(), flatJsonObject, helpers);
+                case REGULAR -> {
+                    // get all entries from the flat path that match the simplified flat path with regex pattern
+                    final List<String> matchingEntries = openFhirStringUtils.getAllEntriesThatMatch(
+                            step.getOpenEhrPathRegex(), flatJsonObject);
+                    final Map<String, List<String>> joinedEntries = openFhirStringUtils.joinValuesThatAreOne(
+                            matchingEntries);
+                    final List<OpenEhrToFhirHelper.DataWithIndex> values = extractValues(step.getMapping(),
+                                                                                         joinedEntries,
+                                                                                         step.getRmType(),
+                                                                                         flatJsonObject,
+                                                                                         step.getHardcodedValue());
+                    if (step.getHelper() != null) {
+                        helpers.add(withData(step.getHelper(), values));
+                    }
+                    executePlan(step.getChildren(), flatJsonObject, helpers);
+                }
+            }
         }
     }
 
+    /**
+     * Helpers within a plan are shared, so each execution creates its own one with the extracted data
+     */
+    private OpenEhrToFhirHelper withData(final OpenEhrToFhirHelper helper,
+                                         final List<OpenEhrToFhirHelper.DataWithIndex> values) {
+        return helper.toBuilder()
+                .data(values == null ? new ArrayList<>() : values)
+                .typeConditions(helper.getTypeConditions() == null ? null
+                                        : new ArrayList<>(helper.getTypeConditions()))
+                .build();
+    }
+
     private void prepareOpenEhrCondition(final Condition openEhrCondition,
                                          final String firstFlatPath,
                                          final WebTemplate webTemplate) {
@@ -1096,26 +1400,28 @@ public class OpenEhrToFhir {
     }
 
     /**
-     * Handles regular mapping (no slot and no reference)
+     * Compiles regular mapping (no slot and no reference)
      */
-    private void handleRegularMapping(final Mapping mapping, final String resourceType,
-                                      final String parentFollowedByFhir,
-                                      final String parentFollowedByOpenEhr,
-                                      final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
-                                      final String definedMappingWithOpenEhr, final String fhirPath,
-                                      final boolean isFollowedBy,
-                                      final List<OpenEhrToFhirHelper> helpers, final WebTemplate webTemplate,
-                                      final JsonObject flatJsonObject,
-                                      final String slotContext, final String openehr,
-                                      final Map<String, List<String>> joinedEntries,
-                                      final String rmType, final String hardcodedValue,
-                                      final boolean possibleRecursion) {
+    private void compileRegularMapping(final OpenFhirContextRepository repo,
+                                       final OpenEhrToFhirPlanStep.OpenEhrToFhirPlanStepBuilder step,
+                                       final Mapping mapping, final String resourceType,
+                                       final String parentFollowedByFhir,
+                                       final String parentFollowedByOpenEhr,
+                                       final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
+                                       final String definedMappingWithOpenEhr, final String fhirPath,
+                                       final boolean isFollowedBy,
+                                       final WebTemplate webTemplate,
+                                       final String slotContext, final String openehr,
+                                       final String withRegex,
+                                       final String rmType, final String hardcodedValue,
+                                       final boolean possibleRecursion) {
+        step.kind(OpenEhrToFhirPlanStep.Kind.REGULAR)
+                .mapping(mapping)
+                .openEhrPathRegex(withRegex)
+                .rmType(rmType)
+                .hardcodedValue(hardcodedValue);
+
         String openEhrPath = null;
-        List<OpenEhrToFhirHelper.DataWithIndex> values = extractValues(mapping, joinedEntries, rmType, flatJsonObject,
-                                                                       hardcodedValue);
-//        if(values != null && openehr.equals(parentFollowedByOpenEhr) && rmType!=null  ){
-//           values.clear();
-//        }
         if (!OPENEHR_TYPE_NONE.equals(mapping.getWith().getType())) {
             openEhrPath = openehr;
         } else if (mapping.getFhirCondition() != null) {
@@ -1123,71 +1429,68 @@ public class OpenEhrToFhir {
         }
 
         if (openEhrPath != null) {
-            // Initialize values with an empty list if it's null to prevent NullPointerException
-            if (values == null) {
-                values = new ArrayList<>();
-            }
-            
-            OpenEhrToFhirHelper openEhrToFhirHelper = OpenEhrToFhirHelper.builder()
-                    .mainArchetype(theMapper.getOpenEhrConfig().getArchetype())
-                    .targetResource(resourceType)
-                    .openEhrPath(openEhrPath)
-                    .fhirPath(fhirPath)
-                    .openEhrType(mapping.getWith().getType())
-                    .data(values)
-                    .isFollowedBy(isFollowedBy)
-                    .typeConditions(mapping.getTypeConditions())
-                    .parentFollowedByFhirPath(parentFollowedByFhir == null ? null
-                                                      : parentFollowedByFhir.replace(FhirConnectConst.FHIR_RESOURCE_FC,
-                                                                                     resourceType))
-                    .parentFollowedByOpenEhr(parentFollowedByOpenEhr == null ? null : parentFollowedByOpenEhr.replace(
-                            FhirConnectConst.OPENEHR_ARCHETYPE_FC, firstFlatPath))
-                    .condition(mapping.getFhirCondition())
-                    .openehrCondition(mapping.getOpenehrCondition())
-                    .build();
-            helpers.add(openEhrToFhirHelper);
+            // data is extracted when the plan is executed
+            step.helper(OpenEhrToFhirHelper.builder()
+                                .mainArchetype(theMapper.getOpenEhrConfig().getArchetype())
+                                .targetResource(resourceType)
+                                .openEhrPath(openEhrPath)
+                                .fhirPath(fhirPath)
+                                .openEhrType(mapping.getWith().getType())
+                                .isFollowedBy(isFollowedBy)
+                                .typeConditions(mapping.getTypeConditions())
+                                .parentFollowedByFhirPath(parentFollowedByFhir == null ? null
+                                                                  : parentFollowedByFhir.replace(
+                                                                          FhirConnectConst.FHIR_RESOURCE_FC,
+                                                                          resourceType))
+                                .parentFollowedByOpenEhr(parentFollowedByOpenEhr == null ? null
+                                                                 : parentFollowedByOpenEhr.replace(
+                                                                         FhirConnectConst.OPENEHR_ARCHETYPE_FC,
+                                                                         firstFlatPath))
+                                .condition(mapping.getFhirCondition())
+                                .openehrCondition(mapping.getOpenehrCondition())
+                                .build());
         }
 
         if (mapping.getFollowedBy() != null) {
-            final List<Mapping> followedByMappings = mapping.getFollowedBy().getMappings();
-
-            openFhirMapperUtils.prepareFollowedByMappings(followedByMappings,
-                                                          fhirPath,
-                                                          definedMappingWithOpenEhr,
-                                                          slotContext,
-                                                          mapping);
-
-            prepareOpenEhrToFhirHelpers(theMapper,
-                                        resourceType,
-                                        firstFlatPath,
-                                        followedByMappings,
-                                        helpers,
-                                        webTemplate,
-                                        flatJsonObject,
-                                        true,
-                                        openFhirStringUtils.getFhirPathWithConditions(mapping.getWith().getFhir(),
-                                                                                      mapping.getFhirCondition(),
-                                                                                      resourceType,
-                                                                                      parentFollowedByFhir),
-                                        definedMappingWithOpenEhr == null ? firstFlatPath : definedMappingWithOpenEhr,
-                                        slotContext,
-                                        possibleRecursion);
+            final List<Mapping> followedByMappings = openFhirMapperUtils.prepareFollowedByMappings(
+                    mapping.getFollowedBy().getMappings(),
+                    fhirPath,
+                    definedMappingWithOpenEhr,
+                    slotContext,
+                    mapping);
+            mapping.setFollowedBy(new FollowedBy().withMappings(followedByMappings));
+
+            step.children(compilePlan(repo, theMapper,
+                                      resourceType,
+                                      firstFlatPath,
+                                      followedByMappings,
+                                      webTemplate,
+                                      true,
+                                      openFhirStringUtils.getFhirPathWithConditions(mapping.getWith().getFhir(),
+                                                                                    mapping.getFhirCondition(),
+                                                                                    resourceType,
+                                                                                    parentFollowedByFhir),
+                                      definedMappingWithOpenEhr == null ? firstFlatPath : definedMappingWithOpenEhr,
+                                      slotContext,
+                                      possibleRecursion));
+        } else {
+            step.children(Collections.emptyList());
         }
     }
 
     /**
-     * Handles slot mapping, so when a mapping references a slot archetype
+     * Compiles slot mapping, so when a mapping references a slot archetype
      */
-    private void handleSlotMapping(final Mapping mapping, final String resourceType, final String parentFollowedByFhir,
-                                   final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
-                                   final String definedMappingWithOpenEhr, final String fhirPath,
-                                   final List<OpenEhrToFhirHelper> helpers, final WebTemplate webTemplate,
-                                   final JsonObject flatJsonObject,
-                                   final String slotContext, final String openehr, final boolean breakRecursion) {
-        final String templateId = webTemplate.getTemplateId();
-
+    private void compileSlotMapping(final OpenFhirContextRepository repo,
+                                    final OpenEhrToFhirPlanStep.OpenEhrToFhirPlanStepBuilder step,
+                                    final Mapping mapping, final String resourceType,
+                                    final String parentFollowedByFhir,
+                                    final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
+                                    final String definedMappingWithOpenEhr, final String fhirPath,
+                                    final WebTemplate webTemplate,
+                                    final String slotContext, final String openehr, final boolean breakRecursion) {
         final List<OpenFhirFhirConnectModelMapper> slotArchetypeMapperss = openFhirTemplateRepo.getMapperForArchetype(
-                templateId, mapping.getSlotArchetype());
+                repo, mapping.getSlotArchetype());
         if (slotArchetypeMapperss == null) {
             log.error("Couldn't find referenced slot archetype mapper {}. Referenced in {}", mapping.getSlotArchetype(),
                       mapping.getName());
@@ -1196,138 +1499,149 @@ public class OpenEhrToFhir {
                                   mapping.getSlotArchetype(),
                                   mapping.getName()));
         }
-        for (final OpenFhirFhirConnectModelMapper slotArchetypeMappers : slotArchetypeMapperss) {
-            boolean possibleRecursion = slotArchetypeMappers.getName().equals(theMapper.getName());
+        final List<OpenEhrToFhirPlanStep> children = new ArrayList<>();
+        for (final OpenFhirFhirConnectModelMapper slotArchetypeMapper : slotArchetypeMapperss) {
+            boolean possibleRecursion = slotArchetypeMapper.getName().equals(theMapper.getName());
             if (breakRecursion && possibleRecursion) {
-                log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMappers.getName());
+                log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMapper.getName());
                 break;
             }
 
-            openFhirMapperUtils.prepareForwardingSlotArchetypeMapper(slotArchetypeMappers,
-                                                                     theMapper,
-                                                                     fhirPath,
-                                                                     getOpenEhrKey(definedMappingWithOpenEhr, null,
-                                                                                   firstFlatPath));
+            final OpenFhirFhirConnectModelMapper slotArchetypeMappers = openFhirMapperUtils
+                    .prepareForwardingSlotArchetypeMapper(slotArchetypeMapper,
+                                                          theMapper,
+                                                          fhirPath,
+                                                          getOpenEhrKey(definedMappingWithOpenEhr, null,
+                                                                        firstFlatPath));
 
             // recursively prepare all slot archetype mappers
             final String childWithParentFhirPath = openFhirStringUtils.setParentsWherePathToTheCorrectPlace(fhirPath,
                                                                                                             parentFollowedByFhir);
-            prepareOpenEhrToFhirHelpers(slotArchetypeMappers, resourceType, firstFlatPath,
+            children.addAll(compilePlan(repo, slotArchetypeMappers, resourceType, firstFlatPath,
                                         slotArchetypeMappers.getMappings(),
-                                        helpers, webTemplate, flatJsonObject, true, childWithParentFhirPath,
+                                        webTemplate, true, childWithParentFhirPath,
                                         definedMappingWithOpenEhr,
                                         definedMappingWithOpenEhr,
-                                        possibleRecursion);
+                                        possibleRecursion));
 
             // slot archetype can be followed by other mappers as well
             if (mapping.getFollowedBy() != null) {
-                final List<Mapping> followedByMappings = mapping.getFollowedBy().getMappings();
-
-                openFhirMapperUtils.prepareFollowedByMappings(followedByMappings,
-                                                              fhirPath,
-                                                              definedMappingWithOpenEhr,
-                                                              slotContext,
-                                                              mapping);
-
-                prepareOpenEhrToFhirHelpers(theMapper, resourceType, firstFlatPath, followedByMappings, helpers,
-                                            webTemplate,
-                                            flatJsonObject, true,
+                final List<Mapping> followedByMappings = openFhirMapperUtils.prepareFollowedByMappings(
+                        mapping.getFollowedBy().getMappings(),
+                        fhirPath,
+                        definedMappingWithOpenEhr,
+                        slotContext,
+                        mapping);
+                mapping.setFollowedBy(new FollowedBy().withMappings(followedByMappings));
+
+                children.addAll(compilePlan(repo, theMapper, resourceType, firstFlatPath, followedByMappings,
+                                            webTemplate, true,
                                             openFhirStringUtils.getFhirPathWithConditions(mapping.getWith().getFhir(),
                                                                                           mapping.getFhirCondition(),
                                                                                           resourceType,
                                                                                           parentFollowedByFhir),
-                                            definedMappingWithOpenEhr, slotContext, possibleRecursion);
+                                            definedMappingWithOpenEhr, slotContext, possibleRecursion));
             }
         }
+        step.kind(OpenEhrToFhirPlanStep.Kind.SLOT)
+                .children(children);
     }
 
     /**
-     * Handles reference mappings (when type is $reference)
+     * Compiles reference mappings (when type is $reference)
      */
-    private void handleReferenceMapping(final Mapping mapping, final String resourceType,
-                                        final String parentFollowedByFhir,
-                                        final String parentFollowedByOpenEhr,
-                                        final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
-                                        final String definedMappingWithOpenEhr, final String fhirPath,
-                                        final boolean isFollowedBy,
-                                        final List<OpenEhrToFhirHelper> helpers, final WebTemplate webTemplate,
-                                        final JsonObject flatJsonObject,
-                                        final String slotContext, final String openehr,
-                                        final boolean possibleRecursion) {
-        final List<Mapping> referencedMapping = mapping.getReference().getMappings();
+    private void compileReferenceMapping(final OpenFhirContextRepository repo,
+                                         final OpenEhrToFhirPlanStep.OpenEhrToFhirPlanStepBuilder step,
+                                         final Mapping mapping, final String resourceType,
+                                         final String parentFollowedByFhir,
+                                         final String parentFollowedByOpenEhr,
+                                         final OpenFhirFhirConnectModelMapper theMapper, final String firstFlatPath,
+                                         final String definedMappingWithOpenEhr, final String fhirPath,
+                                         final boolean isFollowedBy,
+                                         final WebTemplate webTemplate,
+                                         final String slotContext, final String openehr,
+                                         final boolean possibleRecursion) {
         final String wConditions = openFhirStringUtils.getFhirPathWithConditions(mapping.getWith().getFhir(),
                                                                                  mapping.getFhirCondition(),
                                                                                  resourceType, parentFollowedByFhir);
-        openFhirMapperUtils.prepareReferencedMappings(wConditions, openehr, referencedMapping, firstFlatPath);
+        final List<Mapping> referencedMapping = openFhirMapperUtils.prepareReferencedMappings(
+                wConditions, openehr, mapping.getReference().getMappings(), firstFlatPath);
+        mapping.setReference(new FhirConnectReference()
+                                     .withResourceType(mapping.getReference().getResourceType())
+                                     .withMappings(referencedMapping));
+        step.kind(OpenEhrToFhirPlanStep.Kind.REFERENCE);
 
         // now conditions
         if (mapping.getFhirCondition() != null) {
             // if condition of a $reference isn't null, we add it to generated helpers despite being a $reference only, since
             // condition itself needs to be evaluted and added to the generated FHIR
-            addConditionInReferenceMapping(parentFollowedByOpenEhr, parentFollowedByFhir, theMapper, resourceType,
-                                           firstFlatPath, definedMappingWithOpenEhr, fhirPath, mapping, isFollowedBy,
-                                           helpers);
+            step.helper(createConditionInReferenceMapping(parentFollowedByOpenEhr, parentFollowedByFhir, theMapper,
+                                                          resourceType, firstFlatPath, definedMappingWithOpenEhr,
+                                                          fhirPath, mapping, isFollowedBy));
         }
 
         // narrow refeence mapping if openehr condition exists
         final Condition openEhrCondition = mapping.getReference().getMappings().get(0).getOpenehrCondition();
         if (openEhrCondition != null) {
             prepareOpenEhrCondition(openEhrCondition, firstFlatPath, webTemplate);
+            step.referenceOpenEhrCondition(openEhrCondition)
+                    .referenceOpenEhrConditionRoot(parentFollowedByOpenEhr == null
+                                                           ? firstFlatPath
+                                                           : parentFollowedByOpenEhr);
+        }
+
+        // recursive call so all $reference.mappings are handled
+        step.children(compilePlan(repo, theMapper,
+                                  mapping.getReference().getResourceType(),
+                                  firstFlatPath,
+                                  mapping.getReference().getMappings(),
+                                  webTemplate,
+                                  isFollowedBy,
+                                  parentFollowedByFhir,
+                                  parentFollowedByOpenEhr,
+                                  slotContext,
+                                  possibleRecursion));
+    }
 
-            final JsonObject newFlatJsonObject = openEhrConditionEvaluator.splitByOpenEhrCondition(flatJsonObject,
-                                                                                                   openEhrCondition,
-                                                                                                   parentFollowedByOpenEhr
-                                                                                                           == null
-                                                                                                           ? firstFlatPath
-                                                                                                           : parentFollowedByOpenEhr);
-            // newFlatJsonObject now has that one that is being referenced, but indexes will map to the wrong one
-            // so now we fix indexes to point to all "other" ones that are having this one linked to it
-            final HashSet<String> allOtherKeys = new HashSet<>(flatJsonObject.keySet());
-            allOtherKeys.removeAll(newFlatJsonObject.keySet());
-
-            final JsonObject modifiedObject = new JsonObject();
-            for (final String key : allOtherKeys) {
-                final Integer anotherIndex = openFhirStringUtils.getFirstIndex(key);
-                if (anotherIndex == null) {
-                    continue;
-                }
-                // now modify the newFlatJsonObject with this new index
-                for (final Entry<String, JsonElement> stringJsonElementEntry : newFlatJsonObject.entrySet()) {
-                    final String key1 = stringJsonElementEntry.getKey();
-                    final JsonElement value1 = stringJsonElementEntry.getValue();
-                    modifiedObject.add(openFhirStringUtils.replaceFirstIndex(key1, anotherIndex), value1);
-                }
-            }
+    /**
+     * Executes a compiled reference mapping (when type is $reference)
+     */
+    private void executeReferenceMapping(final OpenEhrToFhirPlanStep step,
+                                         final JsonObject flatJsonObject,
+                                         final List<OpenEhrToFhirHelper> helpers) {
+        if (step.getHelper() != null) {
+            helpers.add(withData(step.getHelper(), new ArrayList<>()));
+        }
 
+        if (step.getReferenceOpenEhrCondition() == null) {
             // recursive call so all $reference.mappings are handled
-            prepareOpenEhrToFhirHelpers(theMapper,
-                                        mapping.getReference().getResourceType(),
-                                        firstFlatPath,
-                                        mapping.getReference().getMappings(),
-                                        helpers,
-                                        webTemplate,
-                                        modifiedObject,
-                                        isFollowedBy,
-                                        parentFollowedByFhir,
-                                        parentFollowedByOpenEhr,
-                                        slotContext,
-                                        possibleRecursion);
-        } else {
-            // recursive call so all $reference.mappings are handled
-            prepareOpenEhrToFhirHelpers(theMapper,
-                                        mapping.getReference().getResourceType(),
-                                        firstFlatPath,
-                                        mapping.getReference().getMappings(),
-                                        helpers,
-                                        webTemplate,
-                                        flatJsonObject,
-                                        isFollowedBy,
-                                        parentFollowedByFhir,
-                                        parentFollowedByOpenEhr,
-                                        slotContext,
-                                        possibleRecursion);
+            executePlan(step.getChildren(), flatJsonObject, helpers);
+            return;
+        }
+        final JsonObject newFlatJsonObject = openEhrConditionEvaluator.splitByOpenEhrCondition(flatJsonObject,
+                                                                                               step.getReferenceOpenEhrCondition(),
+                                                                                               step.getReferenceOpenEhrConditionRoot());
+        // newFlatJsonObject now has that one that is being referenced, but indexes will map to the wrong one
+        // so now we fix indexes to point to all "other" ones that are having this one linked to it
+        final HashSet<String> allOtherKeys = new HashSet<>(flatJsonObject.keySet());
+        allOtherKeys.removeAll(newFlatJsonObject.keySet());
+
+        final JsonObject modifiedObject = new JsonObject();
+        for (final String key : allOtherKeys) {
+            final Integer anotherIndex = openFhirStringUtils.getFirstIndex(key);
+            if (anotherIndex == null) {
+                continue;
+            }
+            // now modify the newFlatJsonObject with this new index
+            for (final Entry<String, JsonElement> stringJsonElementEntry : newFlatJsonObject.entrySet()) {
+                final String key1 = stringJsonElementEntry.getKey();
+                final JsonElement value1 = stringJsonElementEntry.getValue();
+                modifiedObject.add(openFhirStringUtils.replaceFirstIndex(key1, anotherIndex), value1);
+            }
         }
 
+        // recursive call so all $reference.mappings are handled
+        executePlan(step.getChildren(), modifiedObject, helpers);
     }
 
     /**
@@ -1405,8 +1719,8 @@ public class OpenEhrToFhir {
             return -1; // goes for all anyway
         }
         final String conditionRoot = mapping.getOpenehrCondition().getTargetRoot();
-        final String matchingKey = flatJsonObject.keySet().stream().filter(k -> k.startsWith(conditionRoot)).findFirst()
-                .orElse(null); // should always be at least one! else we woudln't be here
+        final String matchingKey = openFhirStringUtils.getFlatCompositionIndex(flatJsonObject)
+                .firstKeyStartingWith(conditionRoot); // should always be at least one! else we woudln't be here
         if (matchingKey == null) {
             return -1;
         }
@@ -1970,12 +2284,7 @@ public class OpenEhrToFhir {
      * @return true if a mapping with this prefix exists
      */
     private boolean mappingExistsInValueHolder(final JsonObject valueHolder, final String mappingPrefix) {
-        for (String key : valueHolder.keySet()) {
-            if (key.startsWith(mappingPrefix)) {
-                return true;
-            }
-        }
-        return false;
+        return openFhirStringUtils.getFlatCompositionIndex(valueHolder).anyKeyStartingWith(mappingPrefix);
     }
 
     private OpenEhrToFhirHelper.DataWithIndex handleCoding(final JsonObject valueHolder,
@@ -2038,17 +2347,16 @@ public class OpenEhrToFhir {
      * if condition of a $reference isn't null, we add it to generated helpers despite being a $reference only, since
      * condition itself needs to be evaluted and added to the generated FHIR
      */
-    private void addConditionInReferenceMapping(final String parentFollowedByOpenEhr, final String parentFollowedByFhir,
+    private OpenEhrToFhirHelper createConditionInReferenceMapping(final String parentFollowedByOpenEhr, final String parentFollowedByFhir,
                                                 final OpenFhirFhirConnectModelMapper theMapper,
                                                 final String resourceType, final String firstFlatPath,
                                                 final String definedMappingWithOpenEhr, final String fhirPath,
-                                                final Mapping mapping, final boolean isFollowedBy,
-                                                final List<OpenEhrToFhirHelper> helpers) {
+                                                final Mapping mapping, final boolean isFollowedBy) {
         final String parentFollowedByFhirPath = parentFollowedByFhir == null ? null
                 : parentFollowedByFhir.replace(FhirConnectConst.FHIR_RESOURCE_FC, resourceType);
         final String parentFollowedByOpenEhr1 = parentFollowedByOpenEhr == null ? null
                 : parentFollowedByOpenEhr.replace(FhirConnectConst.OPENEHR_ARCHETYPE_FC, firstFlatPath);
-        OpenEhrToFhirHelper openEhrToFhirHelper = OpenEhrToFhirHelper.builder()
+        return OpenEhrToFhirHelper.builder()
                 .mainArchetype(theMapper.getOpenEhrConfig().getArchetype())
                 .targetResource(resourceType)
                 .openEhrPath(definedMappingWithOpenEhr)
@@ -2062,7 +2370,6 @@ public class OpenEhrToFhir {
                 .condition(mapping.getFhirCondition())
                 .openehrCondition(mapping.getOpenehrCondition())
                 .build();
-        helpers.add(openEhrToFhirHelper);
     }
 
     private String getOpenEhrKey(final String definedMappingWithOpenEhr,
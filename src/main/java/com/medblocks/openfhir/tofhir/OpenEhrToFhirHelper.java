@@ -11,7 +11,7 @@ import lombok.NoArgsConstructor;
 import org.hl7.fhir.r4.model.Base;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class OpenEhrToFhirHelper {
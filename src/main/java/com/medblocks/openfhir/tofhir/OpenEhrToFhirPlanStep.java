@@ -0,0 +1,81 @@
+package com.medblocks.openfhir.tofhir;
+
+import com.medblocks.openfhir.fc.schema.model.Condition;
+import com.medblocks.openfhir.fc.schema.model.Mapping;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * A single step of a precompiled openEHR to FHIR mapping plan. A step holds everything about a mapping that
+ * depends on the template and the model mappers only (openEHR paths resolved against the WebTemplate, prepared
+ * conditions, FHIR paths and helpers without data), so that mapping a Composition is only about matching its flat
+ * paths and extracting data from them.
+ * <p>
+ * Steps are shared between mappings and must not be modified.
+ */
+@Getter
+@Builder
+@AllArgsConstructor
+public class OpenEhrToFhirPlanStep {
+
+    public enum Kind {
+        /**
+         * a mapping of a data point, possibly followed by other mappings
+         */
+        REGULAR,
+        /**
+         * a mapping to a slot archetype, where children are steps of the slot archetype mappers
+         */
+        SLOT,
+        /**
+         * a $reference mapping, where children are steps of the referenced mappings
+         */
+        REFERENCE
+    }
+
+    private final Kind kind;
+
+    /**
+     * openEHR condition of the mapping (already prepared against the template) that narrows down the flat paths
+     * for this step and its children; null if there's none
+     */
+    private final Condition openEhrCondition;
+
+    /**
+     * flat path the openEHR condition is evaluated from
+     */
+    private final String openEhrConditionRoot;
+
+    /**
+     * derived mapping with all paths rewritten, used when extracting values
+     */
+    private final Mapping mapping;
+
+    /**
+     * simplified flat path with regex pattern used to find matching flat paths
+     */
+    private final String openEhrPathRegex;
+
+    private final String rmType;
+
+    private final String hardcodedValue;
+
+    /**
+     * helper without data a regular step produces (or a $reference step with a FHIR condition); null if none
+     */
+    private final OpenEhrToFhirHelper helper;
+
+    /**
+     * openEHR condition of the referenced mappings, narrowing down the flat paths for them; null if there's none
+     */
+    private final Condition referenceOpenEhrCondition;
+
+    private final String referenceOpenEhrConditionRoot;
+
+    /**
+     * steps of followed by, slot archetype or referenced mappings
+     */
+    private final List<OpenEhrToFhirPlanStep> children;
+}
@@ -6,9 +6,9 @@ import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX_ESCAPED;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RESOLVE;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.OpenEhrRmWorker;
+import com.medblocks.openfhir.OpenFhirContextRepository;
 import com.medblocks.openfhir.OpenFhirMappingContext;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.OpenFhirFhirConfig;
@@ -18,7 +18,12 @@ import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
 import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import com.medblocks.openfhir.util.CompositionSink;
+import com.medblocks.openfhir.util.FlatJsonSink;
+import com.medblocks.openfhir.util.Futures;
 import com.medblocks.openfhir.util.OpenEhrPopulator;
+import com.medblocks.openfhir.util.OpenEhrSink;
+import com.medblocks.openfhir.util.RecordingSink;
 import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import com.nedap.archie.rm.composition.Composition;
@@ -26,18 +31,23 @@ import com.nedap.archie.rm.datatypes.CodePhrase;
 import com.nedap.archie.rm.datavalues.quantity.datetime.DvDateTime;
 import com.nedap.archie.rm.generic.PartySelf;
 import com.nedap.archie.rm.support.identification.TerminologyId;
+import jakarta.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Base;
@@ -47,6 +57,7 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import org.pf4j.PluginManager;
@@ -57,11 +68,14 @@ import org.pf4j.PluginManager;
 @Component
 public class FhirToOpenEhr {
 
+    /**
+     * Index entries of a Bundle mapped concurrently are mapped with, until their actual index is known
+     */
+    private static final int PENDING_INDEX = Integer.MAX_VALUE;
+    private static final String PENDING_INDEX_PATH = ":" + PENDING_INDEX;
 
     final private FhirPathR4 fhirPathR4;
     final private OpenFhirStringUtils stringUtils;
-    final private FlatJsonUnmarshaller flatJsonUnmarshaller;
-    final private Gson gson;
     final private OpenEhrRmWorker openEhrRmWorker;
     final private OpenFhirStringUtils openFhirStringUtils;
     final private OpenFhirMappingContext openFhirTemplateRepo;
@@ -69,27 +83,58 @@ public class FhirToOpenEhr {
     final private OpenFhirMapperUtils openFhirMapperUtils;
     final private OpenEhrPopulator openEhrPopulator;
 
-    @Autowired
+    /**
+     * Pool entries of a Bundle are mapped on concurrently, null if they're mapped one after another
+     */
+    final private ForkJoinPool entryPool;
+
     public FhirToOpenEhr(final FhirPathR4 fhirPathR4,
                          final OpenFhirStringUtils stringUtils,
-                         final FlatJsonUnmarshaller flatJsonUnmarshaller,
-                         final Gson gson,
                          final OpenEhrRmWorker openEhrRmWorker,
                          final OpenFhirStringUtils openFhirStringUtils,
                          final OpenFhirMappingContext openFhirTemplateRepo,
                          final OpenEhrCachedUtils openEhrApplicationScopedUtils,
                          final OpenFhirMapperUtils openFhirMapperUtils,
                          final OpenEhrPopulator openEhrPopulator) {
+        this(fhirPathR4, stringUtils, openEhrRmWorker, openFhirStringUtils, openFhirTemplateRepo,
+             openEhrApplicationScopedUtils, openFhirMapperUtils, openEhrPopulator, false, 0);
+    }
+
+    /**
+     * @param parallelEntries whether entries of a Bundle mapped with the same model mapper are mapped
+     *         concurrently; the resulting Composition is the same either way
+     * @param parallelism number of threads entries are mapped on if they're mapped concurrently, 0 for the number
+     *         of available processors
+     */
+    @Autowired
+    public FhirToOpenEhr(final FhirPathR4 fhirPathR4,
+                         final OpenFhirStringUtils stringUtils,
+                         final OpenEhrRmWorker openEhrRmWorker,
+                         final OpenFhirStringUtils openFhirStringUtils,
+                         final OpenFhirMappingContext openFhirTemplateRepo,
+                         final OpenEhrCachedUtils openEhrApplicationScopedUtils,
+                         final OpenFhirMapperUtils openFhirMapperUtils,
+                         final OpenEhrPopulator openEhrPopulator,
+                         @Value("${openfhir.toopenehr.parallel-entries:false}") final boolean parallelEntries,
+                         @Value("${openfhir.toopenehr.parallelism:0}") final int parallelism) {
         this.fhirPathR4 = fhirPathR4;
         this.stringUtils = stringUtils;
-        this.flatJsonUnmarshaller = flatJsonUnmarshaller;
-        this.gson = gson;
         this.openEhrRmWorker = openEhrRmWorker;
         this.openFhirStringUtils = openFhirStringUtils;
         this.openFhirTemplateRepo = openFhirTemplateRepo;
         this.openEhrApplicationScopedUtils = openEhrApplicationScopedUtils;
         this.openFhirMapperUtils = openFhirMapperUtils;
         this.openEhrPopulator = openEhrPopulator;
+        this.entryPool = parallelEntries
+                ? new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors())
+                : null;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (entryPool != null) {
+            entryPool.shutdownNow();
+        }
     }
 
     /**
@@ -103,6 +148,29 @@ public class FhirToOpenEhr {
      */
     public JsonObject fhirToFlatJsonObject(final FhirConnectContext context, final Resource resource,
                                            final OPERATIONALTEMPLATE operationaltemplate) {
+        return fhirToFlatJsonObject(context, resource, operationaltemplate, currentRepository(context));
+    }
+
+    /**
+     * Same as {@link #fhirToFlatJsonObject(FhirConnectContext, Resource, OPERATIONALTEMPLATE)}, with mappers of the
+     * given repository, as resolved for the request, instead of the one currently cached for the template
+     *
+     * @param repo repository of the template of the context mapper
+     */
+    public JsonObject fhirToFlatJsonObject(final FhirConnectContext context, final Resource resource,
+                                           final OPERATIONALTEMPLATE operationaltemplate,
+                                           final OpenFhirContextRepository repo) {
+        final FlatJsonSink sink = new FlatJsonSink();
+        fhirToSink(context, resource, operationaltemplate, repo, sink);
+        return sink.getFlat();
+    }
+
+    /**
+     * Maps FHIR to openEHR, setting mapped values on the given sink by their flat path
+     */
+    private void fhirToSink(final FhirConnectContext context, final Resource resource,
+                            final OPERATIONALTEMPLATE operationaltemplate, final OpenFhirContextRepository repo,
+                            final OpenEhrSink sink) {
 //        final boolean bundle = ResourceType.Bundle.name().equals(context.getFhir().getResourceType()); todo: is this always true? with new context mappings there's no more fhir type
         final boolean bundle = true;
 
@@ -113,25 +181,17 @@ public class FhirToOpenEhr {
         final String templateId = OpenFhirMappingContext.normalizeTemplateId(
                 context.getContext().getTemplate().getId());
 
-        // helper objects for mapping to openEHR, where 'helpers' are regular ones constructed as part of the
-        // mapping and 'coverHelpers' are those that don't directly reference the FHIR Resource but another one
-        // for example a Condition that is part of the Patient's death reason
-        final List<FhirToOpenEhrHelper> helpers = new ArrayList<>();
-        final List<FhirToOpenEhrHelper> coverHelpers = new ArrayList<>();
-
-        // create helpers
-        createHelpers(templateId, toRunEngineOn, null, helpers, coverHelpers, bundle, context.getContext().getStart());
-
-        // join all helpers together
-        helpers.addAll(coverHelpers);
-
-        openFhirStringUtils.fixEscapedDotsInOpenEhrPaths(helpers);
-
-        // modify flat path with correct openEHR path containing occurrences and proper types
-        openEhrRmWorker.fixFlatWithOccurrences(helpers, webTemplate);
+        // helper objects for mapping to openEHR, precompiled per model mapper and selected by the model mappers
+        // relevant for the incoming Resources
+        final List<FhirToOpenEhrHelper> helpers = selectHelpers(templateId, repo, toRunEngineOn, webTemplate,
+                                                                bundle);
 
         // do the actual mapping (evaluate fhir paths and create json flat structure from it, based on helpers)
-        return resolveFhirPaths(helpers, toRunEngineOn);
+        resolveFhirPaths(helpers, toRunEngineOn, sink);
+    }
+
+    private OpenFhirContextRepository currentRepository(final FhirConnectContext context) {
+        return openFhirTemplateRepo.getRepository(context.getContext().getTemplate().getId());
     }
 
     /**
@@ -153,8 +213,9 @@ public class FhirToOpenEhr {
     }
 
     /**
-     * Mapping to a canonical format of a Composition. This method invokes the fhirToFlatJsonObject and then serializes
-     * flat json path output to a canonical format.
+     * Mapping to a canonical format of a Composition. Values are mapped the same way as with fhirToFlatJsonObject,
+     * but are collected for building an RM Composition right away, instead of being serialized to a flat json
+     * that would have to be parsed again.
      *
      * @param context fhir connect context being used for the mappings
      * @param resource FHIR Resource that's being mapped to openEHR
@@ -163,13 +224,26 @@ public class FhirToOpenEhr {
      */
     public Composition fhirToCompositionRm(final FhirConnectContext context, final Resource resource,
                                            final OPERATIONALTEMPLATE operationaltemplate) {
+        return fhirToCompositionRm(context, resource, operationaltemplate, currentRepository(context));
+    }
+
+    /**
+     * Same as {@link #fhirToCompositionRm(FhirConnectContext, Resource, OPERATIONALTEMPLATE)}, with mappers of the
+     * given repository, as resolved for the request, instead of the one currently cached for the template
+     *
+     * @param repo repository of the template of the context mapper
+     */
+    public Composition fhirToCompositionRm(final FhirConnectContext context, final Resource resource,
+                                           final OPERATIONALTEMPLATE operationaltemplate,
+                                           final OpenFhirContextRepository repo) {
         final WebTemplate webTemplate = openEhrApplicationScopedUtils.parseWebTemplate(operationaltemplate);
 
         // invoke the actual mapping logic
-        final JsonObject flattenedWithValues = fhirToFlatJsonObject(context, resource, operationaltemplate);
+        final CompositionSink sink = new CompositionSink();
+        fhirToSink(context, resource, operationaltemplate, repo, sink);
 
-        // unmarshall flat path to a canonical json format
-        final Composition composition = flatJsonUnmarshaller.unmarshal(gson.toJson(flattenedWithValues), webTemplate);
+        // build the Composition from the mapped flat paths
+        final Composition composition = sink.toComposition(webTemplate);
 
         enrichComposition(composition);
 
@@ -211,10 +285,10 @@ public class FhirToOpenEhr {
      *
      * @param helpers used to do the mapping
      * @param resource to be mapped to openEHR
-     * @return JsonObject representing a flat path structure/format of the openEHR Composition
+     * @param finalFlat sink of the openEHR Composition
      */
-    private JsonObject resolveFhirPaths(final List<FhirToOpenEhrHelper> helpers, final Resource resource) {
-        final JsonObject finalFlat = new JsonObject();
+    private void resolveFhirPaths(final List<FhirToOpenEhrHelper> helpers, final Resource resource,
+                                  final OpenEhrSink finalFlat) {
 
         final Map<String, List<FhirToOpenEhrHelper>> byMainArtifact = mapperByMainArtifact(helpers);
         for (Map.Entry<String, List<FhirToOpenEhrHelper>> artifactMapper : byMainArtifact.entrySet()) {
@@ -244,15 +318,18 @@ public class FhirToOpenEhr {
             });
 
         }
-
-        return finalFlat;
     }
 
     /**
-     * Resolve fhir paths from a Bundle
+     * Resolve fhir paths from a Bundle. Each relevant entry is mapped with all the helpers, and the recurring index of
+     * multiple ones is that of the entry among the entries something has been mapped from.
+     * <p>
+     * If there's {@link #entryPool}, entries are mapped concurrently, each to a {@link RecordingSink} of its own with
+     * {@link #PENDING_INDEX} in place of its index, which isn't known before the preceding entries are added. Recorded
+     * values are then added to the sink in the order of the entries, with their index in place of the pending one.
      */
     private void handleBundleExtraction(final Bundle resource, final String lim,
-                                        final List<FhirToOpenEhrHelper> artifactHelpers, final JsonObject finalFlat) {
+                                        final List<FhirToOpenEhrHelper> artifactHelpers, final OpenEhrSink finalFlat) {
         // apply limiting factor
         final List<Base> relevantResources = fhirPathR4.evaluate(resource, lim, Base.class);
 
@@ -263,51 +340,147 @@ public class FhirToOpenEhr {
                      relevantResources.size());
         }
 
-        String mainMultiple = null;
+        final List<List<EntryHelper>> entryHelpers = prepareEntryHelpers(artifactHelpers, relevantResources.size());
+        final boolean parallel = entryPool != null && relevantResources.size() > 1
+                && artifactHelpers.stream().noneMatch(this::hasMappingCode);
+        final List<CompletableFuture<RecordingSink>> recorded = parallel
+                ? recordEntries(relevantResources, entryHelpers) : List.of();
 
         int i = 0;
-        for (final Base relevantResource : relevantResources) {
-            boolean somethingWasAdded = false;
-            for (final FhirToOpenEhrHelper fhirToOpenEhrHelper : artifactHelpers) {
-                final Condition openEhrTypeCondition = fhirToOpenEhrHelper.getTypeCondition();
-                if (openEhrTypeCondition != null
-                        && openEhrTypeCondition.getCriteria().equals(fhirToOpenEhrHelper.getOpenEhrType())) {
-                    continue;
+        try {
+            for (int entry = 0; entry < relevantResources.size(); entry++) {
+                final Base relevantResource = relevantResources.get(entry);
+                final int previousFinalFlatSize = finalFlat.size();
+                if (parallel) {
+                    final String index = ":" + i;
+                    Futures.join(recorded.get(entry)).replay(finalFlat, path -> path.replace(PENDING_INDEX_PATH, index));
+                } else {
+                    mapEntry(entryHelpers.get(entry), relevantResource, i, finalFlat);
                 }
 
-                final FhirToOpenEhrHelper cloned = fhirToOpenEhrHelper.doClone();
+                if (previousFinalFlatSize < finalFlat.size()) {
+                    i++;
+                } else {
+                    log.warn(
+                            "Even though a Resource matched criteria, nothing was added to the openEHR composition from it: {}",
+                            relevantResource.getIdBase());
+                }
+            }
+        } finally {
+            // the ones not started yet aren't needed anymore if an entry failed
+            recorded.forEach(entry -> entry.cancel(false));
+        }
+    }
 
-                // If mappingCode is lost in cloning, set it explicitly
-                if (fhirToOpenEhrHelper.getMappingCode() != null && cloned.getMappingCode() == null) {
-                    cloned.setMappingCode(fhirToOpenEhrHelper.getMappingCode());
+    /**
+     * Decides which helpers get the recurring index of an entry for each of the entries, which depends on the
+     * helpers applied to the preceding entries (only multiple helpers within the path of the first multiple one do)
+     *
+     * @return helpers to map each of the entries with
+     */
+    private List<List<EntryHelper>> prepareEntryHelpers(final List<FhirToOpenEhrHelper> artifactHelpers,
+                                                        final int entries) {
+        // helpers of an entry only depend on the main multiple path as of the previous one
+        final Map<String, List<EntryHelper>> byMainMultiple = new HashMap<>();
+        final Map<String, String> nextMainMultiple = new HashMap<>();
+        final List<List<EntryHelper>> entryHelpers = new ArrayList<>(entries);
+        String mainMultiple = null;
+        for (int entry = 0; entry < entries; entry++) {
+            if (!byMainMultiple.containsKey(mainMultiple)) {
+                String next = mainMultiple;
+                final List<EntryHelper> helpers = new ArrayList<>();
+                for (final FhirToOpenEhrHelper fhirToOpenEhrHelper : artifactHelpers) {
+                    final Condition openEhrTypeCondition = fhirToOpenEhrHelper.getTypeCondition();
+                    if (openEhrTypeCondition != null
+                            && openEhrTypeCondition.getCriteria().equals(fhirToOpenEhrHelper.getOpenEhrType())) {
+                        continue;
+                    }
+                    final boolean recurring = fhirToOpenEhrHelper.getMultiple()
+                            && (next == null || fhirToOpenEhrHelper.getOpenEhrPath().startsWith(next));
+                    if (recurring) {
+                        final String openEhrPath = fhirToOpenEhrHelper.getOpenEhrPath();
+                        next = ignoreMultipleFlag(openEhrPath) ? null : openEhrPath.split(RECURRING_SYNTAX_ESCAPED)[0];
+                    }
+                    helpers.add(new EntryHelper(fhirToOpenEhrHelper, recurring));
                 }
+                byMainMultiple.put(mainMultiple, helpers);
+                nextMainMultiple.put(mainMultiple, next);
+            }
+            entryHelpers.add(byMainMultiple.get(mainMultiple));
+            mainMultiple = nextMainMultiple.get(mainMultiple);
+        }
+        return entryHelpers;
+    }
 
+    /**
+     * Maps a single entry of a Bundle
+     *
+     * @param helpers helpers to map the entry with
+     * @param relevantResource the entry
+     * @param index recurring index of the entry
+     * @param finalFlat sink of the openEHR Composition
+     */
+    private void mapEntry(final List<EntryHelper> helpers, final Base relevantResource, final int index,
+                          final OpenEhrSink finalFlat) {
+        for (final EntryHelper entryHelper : helpers) {
+            final FhirToOpenEhrHelper fhirToOpenEhrHelper = entryHelper.helper();
+            final FhirToOpenEhrHelper cloned = fhirToOpenEhrHelper.doClone();
+
+            // If mappingCode is lost in cloning, set it explicitly
+            if (fhirToOpenEhrHelper.getMappingCode() != null && cloned.getMappingCode() == null) {
+                cloned.setMappingCode(fhirToOpenEhrHelper.getMappingCode());
+            }
 
-                if (fhirToOpenEhrHelper.getMultiple() && (mainMultiple == null || fhirToOpenEhrHelper.getOpenEhrPath()
-                        .startsWith(mainMultiple))) {
+            if (entryHelper.recurring()) {
+                cloned.setOpenEhrPath(
+                        fhirToOpenEhrHelper.getOpenEhrPath().replaceFirst(RECURRING_SYNTAX_ESCAPED, ":" + index));
 
-                    final String openEhrPath = fhirToOpenEhrHelper.getOpenEhrPath();
-                    mainMultiple =
-                            ignoreMultipleFlag(openEhrPath) ? null : openEhrPath.split(RECURRING_SYNTAX_ESCAPED)[0];
-                    cloned.setOpenEhrPath(
-                            fhirToOpenEhrHelper.getOpenEhrPath().replaceFirst(RECURRING_SYNTAX_ESCAPED, ":" + i));
+                fixAllChildrenRecurringElements(cloned,
+                                                cloned.getOpenEhrPath());
+            }
+            addDataPoints(cloned, finalFlat, relevantResource);
+        }
+    }
 
-                    fixAllChildrenRecurringElements(cloned,
-                                                    cloned.getOpenEhrPath());
-                }
-                int previousFinalFlatSize = finalFlat.size();
-                addDataPoints(cloned, finalFlat, relevantResource);
+    /**
+     * Starts mapping all entries, each with {@link #PENDING_INDEX}
+     *
+     * @return values mapped from each of the entries
+     */
+    private List<CompletableFuture<RecordingSink>> recordEntries(final List<Base> relevantResources,
+                                                                 final List<List<EntryHelper>> entryHelpers) {
+        final List<CompletableFuture<RecordingSink>> recorded = new ArrayList<>(relevantResources.size());
+        for (int entry = 0; entry < relevantResources.size(); entry++) {
+            final List<EntryHelper> helpers = entryHelpers.get(entry);
+            final Base relevantResource = relevantResources.get(entry);
+            recorded.add(CompletableFuture.supplyAsync(() -> {
+                final RecordingSink recording = new RecordingSink();
+                mapEntry(helpers, relevantResource, PENDING_INDEX, recording);
+                return recording;
+            }, entryPool));
+        }
+        return recorded;
+    }
 
-                somethingWasAdded = somethingWasAdded || previousFinalFlatSize < finalFlat.size();
-            }
-            if (somethingWasAdded) {
-                i++;
-            } else {
-                log.warn(
-                        "Even though a Resource matched criteria, nothing was added to the openEHR composition from it: {}",
-                        relevantResource.getIdBase());
-            }
+    /**
+     * Helpers with a mapping code are mapped by a plugin that's given the whole flat Composition, so they can't be
+     * mapped to a sink of their own
+     */
+    private boolean hasMappingCode(final FhirToOpenEhrHelper helper) {
+        if (helper.getMappingCode() != null) {
+            return true;
         }
+        return helper.getFhirToOpenEhrHelpers() != null
+                && helper.getFhirToOpenEhrHelpers().stream().anyMatch(this::hasMappingCode);
+    }
+
+    /**
+     * @param helper helper to map an entry with
+     * @param recurring whether the first recurring element of the helper's openEHR path gets the index of the
+     *         entry
+     */
+    private record EntryHelper(FhirToOpenEhrHelper helper, boolean recurring) {
+
     }
 
     private boolean ignoreMultipleFlag(final String openEhrPath) {
@@ -327,8 +500,14 @@ public class FhirToOpenEhr {
 
     JsonObject handleOccurrenceResults(final String openEhrPath, final String openEhrType,
                                        final List<Base> fhirPathResults, final JsonObject finalFlat) {
+        handleOccurrenceResults(openEhrPath, openEhrType, fhirPathResults, new FlatJsonSink(finalFlat));
+        return finalFlat;
+    }
+
+    void handleOccurrenceResults(final String openEhrPath, final String openEhrType,
+                                 final List<Base> fhirPathResults, final OpenEhrSink finalFlat) {
         if (fhirPathResults == null || fhirPathResults.isEmpty()) {
-            return finalFlat;
+            return;
         }
         final boolean noMoreRecurringOptions = !openEhrPath.contains(RECURRING_SYNTAX);
         final String openEhrWithAllReplacedToZeroth = openEhrPath.replaceAll(RECURRING_SYNTAX_ESCAPED, ":0");
@@ -353,7 +532,6 @@ public class FhirToOpenEhr {
                 }
             }
         }
-        return null;
     }
 
 
@@ -368,6 +546,11 @@ public class FhirToOpenEhr {
      * @param toResolveOn FHIR object where we're evaluating fhir path on
      */
     boolean addDataPoints(final FhirToOpenEhrHelper helper, final JsonObject flatComposition, final Base toResolveOn) {
+        return addDataPoints(helper, new FlatJsonSink(flatComposition), toResolveOn);
+    }
+
+    boolean addDataPoints(final FhirToOpenEhrHelper helper, final OpenEhrSink flatComposition,
+                          final Base toResolveOn) {
         List<Base> results;
         final String fhirPath = helper.getFhirPath();
 
@@ -441,14 +624,19 @@ public class FhirToOpenEhr {
                                                             // Use the first converter for now
                                                             FormatConverter converter = converters.get(0);
                                                             
-                                                            // Apply the mapping
+                                                            // Apply the mapping; converters populate a flat json
+                                                            final JsonObject converted = flatComposition instanceof FlatJsonSink flatSink
+                                                                    ? flatSink.getFlat() : new JsonObject();
                                                             boolean success = converter.applyFhirToOpenEhrMapping(
                                                                 helper.getMappingCode(), 
                                                                 thePath, 
                                                                 result, 
                                                                 helper.getOpenEhrType(), 
-                                                                flatComposition
+                                                                converted
                                                             );
+                                                            if (!(flatComposition instanceof FlatJsonSink)) {
+                                                                flatComposition.addAll(converted);
+                                                            }
                                                             
                                                             if (!success) {
                                                                 log.warn("Mapping failed for code: {}", helper.getMappingCode());
@@ -520,43 +708,89 @@ public class FhirToOpenEhr {
 
 
     /**
-     * Creates helpers for each individual model mapper defined for the incoming FHIR Resource
+     * Selects helpers of each individual model mapper defined for the incoming FHIR Resources. Helpers of a model
+     * mapper don't depend on the Resource itself, so they're precompiled once per model mapper and joined here in the
+     * same way they used to be created, i.e. for each Bundle entry and its relevant model mappers, with the regular
+     * ones first and the cover ones after.
+     *
+     * @return helpers to evaluate; these are shared with other mappings and must not be modified
      */
-    void createHelpers(final String templateId, final Resource resource, final Condition parentCondition,
-                       final List<FhirToOpenEhrHelper> helpers, final List<FhirToOpenEhrHelper> coverHelpers,
-                       final boolean bundle, final String startingArchetype) {
-        ((Bundle) resource).getEntry().forEach(entry -> {
+    List<FhirToOpenEhrHelper> selectHelpers(final String templateId, final OpenFhirContextRepository repo,
+                                            final Bundle bundle, final WebTemplate webTemplate,
+                                            final boolean isBundle) {
+        final List<FhirToOpenEhrHelper> helpers = new ArrayList<>();
+        final List<FhirToOpenEhrHelper> coverHelpers = new ArrayList<>();
+        for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
             final List<OpenFhirFhirConnectModelMapper> mapperForResources = openFhirTemplateRepo.getMapperForResource(
-                    entry.getResource());
+                    repo, entry.getResource());
             if (mapperForResources == null || mapperForResources.isEmpty()) {
-                return;
+                continue;
             }
-            for (OpenFhirFhirConnectModelMapper mapperForResource : mapperForResources) {
-                final String mainArchetype = mapperForResource.getOpenEhrConfig().getArchetype();
-                String mainArchetypePath;
-                if (!mainArchetype.contains("CLUSTER")) {
-                    mainArchetypePath = templateId + "/content[" + mainArchetype + "]";
-                } else {
-                    mainArchetypePath = templateId;
+            for (final OpenFhirFhirConnectModelMapper mapperForResource : mapperForResources) {
+                final PrecompiledFhirToOpenEhrHelpers precompiled = openFhirTemplateRepo.getFhirToOpenEhrHelpers(
+                        repo, mapperForResource,
+                        mapper -> compileHelpers(templateId, repo, mapper, webTemplate, isBundle));
+                for (final FhirToOpenEhrHelper helper : precompiled.helpers()) {
+                    if (!precompiled.distinctHelpers().contains(helper) || !helpers.contains(helper)) {
+                        helpers.add(helper);
+                    }
                 }
-                createHelpers(mainArchetype, mapperForResource, templateId, mainArchetypePath,
-                              mapperForResource.getMappings(),
-                              parentCondition, helpers, coverHelpers, bundle,
-                              mapperForResource.getFhirConfig().getMultiple(), false);
+                coverHelpers.addAll(precompiled.coverHelpers());
             }
-        });
+        }
+
+        // join all helpers together
+        helpers.addAll(coverHelpers);
+        return helpers;
+    }
+
+    /**
+     * Creates helpers for a single model mapper and fixes their openEHR paths against the template
+     */
+    PrecompiledFhirToOpenEhrHelpers compileHelpers(final String templateId,
+                                                   final OpenFhirContextRepository repo,
+                                                   final OpenFhirFhirConnectModelMapper mapper,
+                                                   final WebTemplate webTemplate,
+                                                   final boolean bundle) {
+        final List<FhirToOpenEhrHelper> helpers = new ArrayList<>();
+        final List<FhirToOpenEhrHelper> coverHelpers = new ArrayList<>();
+        final String mainArchetype = mapper.getOpenEhrConfig().getArchetype();
+        final String mainArchetypePath;
+        if (!mainArchetype.contains("CLUSTER")) {
+            mainArchetypePath = templateId + "/content[" + mainArchetype + "]";
+        } else {
+            mainArchetypePath = templateId;
+        }
+        createHelpers(mainArchetype, mapper, templateId, repo, mainArchetypePath, mapper.getMappings(), null,
+                      helpers, coverHelpers, bundle, mapper.getFhirConfig().getMultiple(), false);
+
+        // followed by and slot helpers without a data point of their own are only added if an equal one doesn't
+        // exist yet, which also applies when joining them with helpers of other model mappers; type conditions are
+        // compared by identity and are created anew for every model mapper, so helpers with one never equal those
+        // of another model mapper
+        final Set<FhirToOpenEhrHelper> distinctHelpers = Collections.newSetFromMap(new IdentityHashMap<>());
+        helpers.stream()
+                .filter(helper -> OPENEHR_TYPE_NONE.equals(helper.getOpenEhrType()))
+                .filter(helper -> !hasTypeCondition(helper))
+                .forEach(distinctHelpers::add);
+
+        for (final List<FhirToOpenEhrHelper> created : List.of(helpers, coverHelpers)) {
+            openFhirStringUtils.fixEscapedDotsInOpenEhrPaths(created);
+
+            // modify flat path with correct openEHR path containing occurrences and proper types
+            openEhrRmWorker.fixFlatWithOccurrences(created, webTemplate);
+        }
+        return new PrecompiledFhirToOpenEhrHelpers(Collections.unmodifiableList(helpers),
+                                                   Collections.unmodifiableList(coverHelpers),
+                                                   Collections.unmodifiableSet(distinctHelpers));
+    }
 
-//        final List<OpenFhirFhirConnectModelMapper> mappers = openFhirTemplateRepo.getMapperForArchetype(
-//                templateId, startingArchetype);
-//        if (mappers == null || mappers.isEmpty()) {
-//            return;
-//        }
-//        for (OpenFhirFhirConnectModelMapper mapperForResource : mappers) {
-//            final String mainArchetype = mapperForResource.getOpenEhrConfig().getArchetype();
-//            createHelpers(mainArchetype, mapperForResource, templateId, templateId, mapperForResource.getMappings(),
-//                          parentCondition, helpers, coverHelpers, bundle,
-//                          mapperForResource.getFhirConfig().getMultiple(), false);
-//        }
+    private boolean hasTypeCondition(final FhirToOpenEhrHelper helper) {
+        if (helper.getTypeCondition() != null) {
+            return true;
+        }
+        return helper.getFhirToOpenEhrHelpers() != null
+                && helper.getFhirToOpenEhrHelpers().stream().anyMatch(this::hasTypeCondition);
     }
 
     /**
@@ -591,10 +825,33 @@ public class FhirToOpenEhr {
                               // todo: remove this if it turns out it's always true with the new contexts mappings
                               final boolean multiple,
                               final boolean possibleRecursion) {
+        createHelpers(mainArtifact, fhirConnectMapper, templateId, openFhirTemplateRepo.getRepository(templateId),
+                      mainOpenEhrPath, mappings, parentCondition, helpers, coverHelpers, bundle, multiple,
+                      possibleRecursion);
+    }
+
+    /**
+     * Same as {@link #createHelpers(String, OpenFhirFhirConnectModelMapper, String, String, List, Condition, List,
+     * List, boolean, boolean, boolean)}, with slot archetype mappers taken from the given repository of the template
+     */
+    private void createHelpers(final String mainArtifact,
+                               final OpenFhirFhirConnectModelMapper fhirConnectMapper,
+                               final String templateId,
+                               final OpenFhirContextRepository repo,
+                               final String mainOpenEhrPath,
+                               final List<Mapping> mappings,
+                               final Condition parentCondition,
+                               final List<FhirToOpenEhrHelper> helpers,
+                               final List<FhirToOpenEhrHelper> coverHelpers,
+                               final boolean bundle,
+                               final boolean multiple,
+                               final boolean possibleRecursion) {
         if (mappings == null) {
             return;
         }
-        for (final Mapping mapping : mappings) {
+        for (final Mapping originalMapping : mappings) {
+            // mappings come from the cached mappers and must not be modified, paths are rewritten on a derived one
+            final Mapping mapping = originalMapping.derive();
 
             final With with = mapping.getWith();
             if (with == null || (with.getOpenehr() == null && StringUtils.isNotEmpty(with.getValue()))) {
@@ -640,8 +897,9 @@ public class FhirToOpenEhr {
 
 
             if (with.getOpenehr().contains(FhirConnectConst.REFERENCE) && mapping.getReference() != null) {
-                createReferenceMapping(mapping, fhirPath, mainArtifact, fhirConnectMapper, templateId, mainOpenEhrPath,
-                                       parentCondition, helpers, coverHelpers, bundle, multiple, possibleRecursion);
+                createReferenceMapping(mapping, fhirPath, mainArtifact, fhirConnectMapper, templateId, repo,
+                                       mainOpenEhrPath, parentCondition, helpers, coverHelpers, bundle, multiple,
+                                       possibleRecursion);
             } else {
                 final String openehr = createMainMapping(mapping, fhirConnectMapper, initialHelper, mainOpenEhrPath,
                                                          fhirPath, multiple,
@@ -653,14 +911,14 @@ public class FhirToOpenEhr {
                 if (mapping.getFollowedBy() != null) {
                     createFollowedByMappings(initialHelper, mapping, openehr, mainOpenEhrPath, fhirPath, multiple,
                                              innerHelpers,
-                                             fhirConnectMapper, mainArtifact, templateId, coverHelpers, bundle,
-                                             needsToBeAddedToParentHelpers,
+                                             fhirConnectMapper, mainArtifact, templateId, repo, coverHelpers,
+                                             bundle, needsToBeAddedToParentHelpers,
                                              helpers, possibleRecursion);
                 }
                 if (mapping.getSlotArchetype() != null) {
                     createSlotMappings(initialHelper, mapping, openehr, mainOpenEhrPath, fhirPath, multiple,
                                        innerHelpers,
-                                       fhirConnectMapper, mainArtifact, templateId, coverHelpers, bundle,
+                                       fhirConnectMapper, mainArtifact, templateId, repo, coverHelpers, bundle,
                                        needsToBeAddedToParentHelpers,
                                        helpers,
                                        possibleRecursion);
@@ -669,8 +927,16 @@ public class FhirToOpenEhr {
         }
     }
 
-    private void createFollowedByMappings(final Mapping mapping, final String openehr, final String openEhrPath) {
-        for (final Mapping followedByMapping : mapping.getFollowedBy().getMappings()) {
+    /**
+     * Derives followed by mappings of the given mapping with openEHR paths inheriting parent's openEHR path
+     *
+     * @return derived followed by mappings
+     */
+    private List<Mapping> createFollowedByMappings(final Mapping mapping, final String openehr,
+                                                   final String openEhrPath) {
+        final List<Mapping> followedByMappings = openFhirMapperUtils.deriveMappings(
+                mapping.getFollowedBy().getMappings(), false);
+        for (final Mapping followedByMapping : followedByMappings) {
             final With with = followedByMapping.getWith();
             if (with == null || with.getOpenehr() == null && StringUtils.isNotEmpty(with.getValue())) {
                 // this is hardcoding to FHIR, nothing to do here which is mapping to openEHR
@@ -701,6 +967,7 @@ public class FhirToOpenEhr {
             }
 
         }
+        return followedByMappings;
     }
 
     private void createFollowedByMappings(final FhirToOpenEhrHelper initialHelper, final Mapping mapping,
@@ -708,13 +975,12 @@ public class FhirToOpenEhr {
                                           final boolean multiple, final List<FhirToOpenEhrHelper> innerHelpers,
                                           final OpenFhirFhirConnectModelMapper fhirConnectMapper,
                                           final String mainArtifact, final String templateId,
+                                          final OpenFhirContextRepository repo,
                                           final List<FhirToOpenEhrHelper> coverHelpers, final boolean bundle,
                                           final boolean needsToBeAddedToParentHelpers,
                                           final List<FhirToOpenEhrHelper> helpers,
                                           final boolean possibleRecursion) {
-        final List<Mapping> followedByMappings = mapping.getFollowedBy().getMappings();
-
-        createFollowedByMappings(mapping, openehr, mainOpenEhrPath);
+        final List<Mapping> followedByMappings = createFollowedByMappings(mapping, openehr, mainOpenEhrPath);
 
         initialHelper.setOpenEhrPath(openFhirStringUtils.fixOpenEhrPath(openehr, mainOpenEhrPath));
         initialHelper.setFhirPath(openFhirStringUtils.fixFhirPath(fhirPath));
@@ -729,6 +995,7 @@ public class FhirToOpenEhr {
         createHelpers(mainArtifact,
                       fhirConnectMapper,
                       templateId,
+                      repo,
                       mainOpenEhrPath,
                       followedByMappings,
                       null,
@@ -751,12 +1018,12 @@ public class FhirToOpenEhr {
                                     final String openehr, final String mainOpenEhrPath, final String fhirPath,
                                     final boolean multiple, final List<FhirToOpenEhrHelper> innerHelpers,
                                     final OpenFhirFhirConnectModelMapper fhirConnectMapper, final String mainArtifact,
-                                    final String templateId,
+                                    final String templateId, final OpenFhirContextRepository repo,
                                     final List<FhirToOpenEhrHelper> coverHelpers, final boolean bundle,
                                     final boolean needsToBeAddedToParentHelpers,
                                     final List<FhirToOpenEhrHelper> helpers, final boolean breakRecursion) {
         final List<OpenFhirFhirConnectModelMapper> slotArchetypeMapperss = openFhirTemplateRepo.getMapperForArchetype(
-                templateId, mapping.getSlotArchetype());
+                repo, mapping.getSlotArchetype());
         if (slotArchetypeMapperss == null) {
             log.error("Couldn't find referenced slot archetype mapper {}. Referenced in {}", mapping.getSlotArchetype(),
                       mapping.getName());
@@ -766,18 +1033,18 @@ public class FhirToOpenEhr {
                                   mapping.getName()));
         }
 
-        for (OpenFhirFhirConnectModelMapper slotArchetypeMappers : slotArchetypeMapperss) {
-            boolean possibleRecursion = slotArchetypeMappers.getName().equals(fhirConnectMapper.getName());
+        for (OpenFhirFhirConnectModelMapper slotArchetypeMapper : slotArchetypeMapperss) {
+            boolean possibleRecursion = slotArchetypeMapper.getName().equals(fhirConnectMapper.getName());
             if (breakRecursion) {
-                log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMappers.getName());
+                log.warn("Breaking possible infinite recursion with mapping: {}", slotArchetypeMapper.getName());
                 break;
             }
 
             final String openEhrFixed = openehr.replace("/" + FhirConnectConst.REFERENCE, "");
 
-            openFhirMapperUtils.prepareForwardingSlotArchetypeMapperNoFhirPrefix(slotArchetypeMappers,
-                                                                                 fhirConnectMapper, fhirPath,
-                                                                                 openEhrFixed);
+            final OpenFhirFhirConnectModelMapper slotArchetypeMappers = openFhirMapperUtils
+                    .prepareForwardingSlotArchetypeMapperNoFhirPrefix(slotArchetypeMapper, fhirConnectMapper, fhirPath,
+                                                                      openEhrFixed);
 
             initialHelper.setFhirToOpenEhrHelpers(innerHelpers);
 
@@ -790,6 +1057,7 @@ public class FhirToOpenEhr {
             createHelpers(mainArtifact,
                           slotArchetypeMappers,
                           templateId, // templateId
+                          repo,
                           openEhrFixed, // templateId
                           slotArchetypeMappers.getMappings(),
                           null,
@@ -862,19 +1130,22 @@ public class FhirToOpenEhr {
 
     private void createReferenceMapping(final Mapping mapping, final String fhirPath, final String mainArtifact,
                                         final OpenFhirFhirConnectModelMapper fhirConnectMapper,
-                                        final String templateId, final String mainOpenEhrPath,
-                                        final Condition parentCondition,
+                                        final String templateId, final OpenFhirContextRepository repo,
+                                        final String mainOpenEhrPath, final Condition parentCondition,
                                         final List<FhirToOpenEhrHelper> helpers,
                                         final List<FhirToOpenEhrHelper> coverHelpers,
                                         final boolean bundle, final boolean multiple, final boolean possibleRecursion) {
         // a reference mapping; prepare 'reference' mappings
-        final List<Mapping> referencedMapping = mapping.getReference().getMappings();
-        openFhirMapperUtils.prepareReferencedMappings(fhirPath, mapping.getWith().getOpenehr(), referencedMapping,
-                                                      mainOpenEhrPath);
+        final List<Mapping> referencedMapping = openFhirMapperUtils.prepareReferencedMappings(fhirPath,
+                                                                                             mapping.getWith()
+                                                                                                     .getOpenehr(),
+                                                                                             mapping.getReference()
+                                                                                                     .getMappings(),
+                                                                                             mainOpenEhrPath);
 
         // recursively call createHelpers after reference mappings have been prepared
-        createHelpers(mainArtifact, fhirConnectMapper, templateId, mainOpenEhrPath, referencedMapping, parentCondition,
-                      helpers, coverHelpers, bundle, multiple, possibleRecursion);
+        createHelpers(mainArtifact, fhirConnectMapper, templateId, repo, mainOpenEhrPath, referencedMapping,
+                      parentCondition, helpers, coverHelpers, bundle, multiple, possibleRecursion);
     }
 
     /**
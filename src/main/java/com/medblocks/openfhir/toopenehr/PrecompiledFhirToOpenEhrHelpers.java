@@ -0,0 +1,22 @@
+package com.medblocks.openfhir.toopenehr;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Helpers created for a single model mapper of a template, with openEHR paths already fixed against the template's
+ * WebTemplate (escaped dots, occurrences and types). They don't depend on the incoming FHIR Resource, so they're built
+ * once and reused for every mapping that the model mapper is relevant for.
+ * <p>
+ * Helpers are shared between requests and must not be modified; they're cloned before being evaluated.
+ *
+ * @param helpers regular helpers of the model mapper
+ * @param coverHelpers helpers that reference other Resources than the one of the model mapper
+ * @param distinctHelpers those of the regular helpers (by identity) that are only added to the helpers being
+ *         evaluated if an equal one isn't there yet
+ */
+public record PrecompiledFhirToOpenEhrHelpers(List<FhirToOpenEhrHelper> helpers,
+                                              List<FhirToOpenEhrHelper> coverHelpers,
+                                              Set<FhirToOpenEhrHelper> distinctHelpers) {
+
+}
@@ -0,0 +1,49 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Loads values of caches on the calling thread, outside of any lock.
+ * <p>
+ * A synchronous Caffeine cache computes a missing value within the lock of the underlying ConcurrentHashMap bin, so
+ * a load that blocks (reading from the database) or takes long (parsing an OPT) holds a monitor for as long as it
+ * runs, and so do all the threads waiting for it or for another key of the same bin. A virtual thread holding or
+ * waiting for a monitor is pinned to its carrier thread. Here, only an incomplete future is put into the cache under
+ * the lock; the loading thread completes it afterwards, and others waiting for the same key wait on the future, which
+ * doesn't pin them. As with synchronous caches, a key is loaded only once at a time and a load that fails or returns
+ * null doesn't leave anything in the cache.
+ */
+public final class CacheLoads {
+
+    private CacheLoads() {
+    }
+
+    /**
+     * @return value of the given key, loaded with the given loader if it's not in the cache; null if the loader
+     *         returned null
+     * @throws RuntimeException the loader has thrown, also when another thread has been loading the same key
+     */
+    public static <K, V> V get(final AsyncCache<K, V> cache, final K key, final Function<K, V> loader) {
+        final CompletableFuture<V> created = new CompletableFuture<>();
+        final CompletableFuture<V> future = cache.get(key, (k, executor) -> created);
+        if (future == created) {
+            try {
+                created.complete(loader.apply(key));
+            } catch (final RuntimeException | Error e) {
+                created.completeExceptionally(e);
+            }
+        }
+        return Futures.join(future);
+    }
+
+    /**
+     * @return value of the given key if it's in the cache and has been loaded already, without waiting for one that
+     *         is still being loaded and without counting it as a hit or a miss
+     */
+    public static <K, V> V getIfLoaded(final AsyncCache<K, V> cache, final K key) {
+        final CompletableFuture<V> future = cache.asMap().get(key);
+        return future != null && future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+    }
+}
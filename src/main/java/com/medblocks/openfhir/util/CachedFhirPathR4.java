@@ -0,0 +1,74 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.i18n.Msg;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.List;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+
+/**
+ * FhirPathR4 that keeps parsed expressions in a bounded cache key'd by the expression string, so the same FHIR path
+ * is lexed and parsed only once instead of for every Resource and every data point it's evaluated on.
+ * <p>
+ * Evaluating by a String goes through the cache transparently, so existing call sites don't need to change. Where an
+ * expression is known upfront (i.e. when mappers are being prepared), it can be parsed with {@link #compile(String)}
+ * and evaluated with the parsed form directly.
+ */
+public class CachedFhirPathR4 extends FhirPathR4 {
+
+    public static final long DEFAULT_MAX_SIZE = 10_000L;
+
+    private final Cache<String, IParsedExpression> expressions;
+
+    public CachedFhirPathR4(final FhirContext fhirContext) {
+        this(fhirContext, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize max number of parsed expressions kept in the cache
+     */
+    public CachedFhirPathR4(final FhirContext fhirContext, final long maxSize) {
+        super(fhirContext);
+        this.expressions = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns a parsed expression from the cache, parsing it if it's not there yet. Expressions that can not be
+     * parsed are not cached.
+     *
+     * @param expression FHIR path expression
+     * @return parsed expression that can be evaluated with {@link #evaluate(IBase, IParsedExpression, Class)}
+     * @throws FhirPathExecutionException if expression is not a valid FHIR path
+     */
+    public IParsedExpression compile(final String expression) {
+        try {
+            return expressions.get(expression, this::parse);
+        } catch (final FHIRException e) {
+            throw new FhirPathExecutionException(Msg.code(255) + e);
+        }
+    }
+
+    @Override
+    public <T extends IBase> List<T> evaluate(final IBase input, final String path, final Class<T> returnType) {
+        return evaluate(input, compile(path), returnType);
+    }
+
+    /**
+     * @return hit/miss statistics of the parsed expressions cache
+     */
+    public CacheStats getStats() {
+        return expressions.stats();
+    }
+
+    public long size() {
+        return expressions.estimatedSize();
+    }
+}
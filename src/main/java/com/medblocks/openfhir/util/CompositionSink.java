@@ -0,0 +1,125 @@
+package com.medblocks.openfhir.util;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.gson.JsonObject;
+import com.nedap.archie.rm.composition.Composition;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Language;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Setting;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.StdToCompositionWalker;
+import org.ehrbase.openehr.sdk.serialisation.walker.FlatHelper;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValuePath;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValues;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.path.flat.FlatPathDto;
+import org.ehrbase.openehr.sdk.webtemplate.webtemplateskeletonbuilder.WebTemplateSkeletonBuilder;
+
+/**
+ * Sink that builds an RM Composition. Values are kept the way the flat unmarshaller of the SDK keeps them after having
+ * parsed a flat json (as json encoded values key'd by their flat path) and are handed over to the very same walker
+ * once mapping is done, so the Composition is the same as if the flat json had been serialized and unmarshalled,
+ * without serializing and parsing it.
+ */
+public class CompositionSink implements OpenEhrSink {
+
+    private static final String CTX_PREFIX = "ctx";
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    @Override
+    public void add(final String path, final String value) {
+        values.put(path, TextNode.valueOf(value).toString());
+    }
+
+    @Override
+    public void add(final String path, final Boolean value) {
+        values.put(path, value.toString());
+    }
+
+    @Override
+    public void add(final String path, final Integer value) {
+        values.put(path, value.toString());
+    }
+
+    @Override
+    public void add(final String path, final Double value) {
+        if (value.isNaN() || value.isInfinite()) {
+            // same as serializing it to a flat json would
+            throw new IllegalArgumentException(
+                    value + " is not a valid double value as per JSON specification (path " + path + ")");
+        }
+        values.put(path, value.toString());
+    }
+
+    @Override
+    public void addAll(final JsonObject flat) {
+        flat.entrySet().forEach(entry -> values.put(entry.getKey(), entry.getValue().toString()));
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Builds a Composition from the values added, same as
+     * {@link org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller} does.
+     *
+     * @param webTemplate web template of the Composition
+     * @throws UnmarshalException if values can't be set on the Composition
+     */
+    public Composition toComposition(final WebTemplate webTemplate) {
+        try {
+            final Composition composition = WebTemplateSkeletonBuilder.build(webTemplate, false);
+            final StdToCompositionWalker walker = new StdToCompositionWalker();
+            final DefaultValues defaultValues = new DefaultValues(new HashMap<>(values));
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.LANGUAGE)) {
+                defaultValues.addDefaultValue(DefaultValuePath.LANGUAGE,
+                                              FlatHelper.findEnumValueOrThrow(webTemplate.getDefaultLanguage(),
+                                                                              Language.class));
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.TIME)) {
+                defaultValues.addDefaultValue(DefaultValuePath.TIME, OffsetDateTime.now());
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.SETTING)) {
+                defaultValues.addDefaultValue(DefaultValuePath.SETTING, Setting.OTHER_CARE);
+            }
+            final String templateId = composition.getArchetypeDetails().getTemplateId().getValue();
+            walker.walk(composition,
+                        values.entrySet().stream()
+                                .collect(Collectors.toMap(entry -> new FlatPathDto(entry.getKey()),
+                                                          Map.Entry::getValue)),
+                        webTemplate,
+                        defaultValues,
+                        templateId);
+            final Set<String> unconsumed = getUnconsumed(walker.getConsumedPaths());
+            if (!unconsumed.isEmpty()) {
+                throw new UnmarshalException(String.format("Could not consume Parts %s", unconsumed));
+            }
+            return composition;
+        } catch (final IllegalArgumentException e) {
+            if (e.getCause() instanceof DateTimeException) {
+                throw new UnmarshalException(e.getMessage(), e);
+            }
+            throw e;
+        }
+    }
+
+    private Set<String> getUnconsumed(final Set<String> consumed) {
+        if (consumed == null) {
+            return Set.of();
+        }
+        final Set<String> unconsumed = new HashSet<>(values.keySet());
+        unconsumed.removeAll(consumed);
+        unconsumed.removeIf(path -> path.startsWith(CTX_PREFIX));
+        return unconsumed;
+    }
+}
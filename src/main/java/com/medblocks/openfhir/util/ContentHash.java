@@ -0,0 +1,28 @@
+package com.medblocks.openfhir.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Hash of a persisted content, used to tell whether something derived from it (and persisted or cached alongside it)
+ * is still valid.
+ */
+public class ContentHash {
+
+    private ContentHash() {
+    }
+
+    /**
+     * @return SHA-256 hash of the content (hex encoded)
+     */
+    public static String sha256(final String content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                                                    .digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
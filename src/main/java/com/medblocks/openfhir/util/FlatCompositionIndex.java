@@ -0,0 +1,166 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Index of a Composition in a flat format, built so that entries relevant for a mapping can be found without
+ * scanning (and regex matching) every key of the flat json.
+ * <p>
+ * Keys are held:
+ * <ul>
+ *     <li>in a trie of path segments, where segments are key'd by their name without the index (:0) and the pipe
+ *     suffix (|code); every node of the trie knows which keys are underneath it, so "all entries under a path with
+ *     any index on any level" is a walk down the trie</li>
+ *     <li>sorted, so "all entries starting with a prefix" is a range scan</li>
+ *     <li>by the key without the pipe suffix</li>
+ * </ul>
+ * Regardless of the structure used, entries are always returned in the order of the flat json, as that's the order
+ * the flat json has so far been iterated in when mapping.
+ * <p>
+ * The index doesn't follow changes of the underlying JsonObject; it's read-only once built and can be shared
+ * between threads.
+ */
+public class FlatCompositionIndex {
+
+    private final List<String> keys;
+    private final NavigableMap<String, Integer> sortedKeys = new TreeMap<>();
+    private final Map<String, List<Integer>> byKeyWithoutPipe = new HashMap<>();
+    private final Node root = new Node();
+
+    public FlatCompositionIndex(final JsonObject flatComposition) {
+        this.keys = new ArrayList<>(flatComposition.keySet());
+        for (int ordinal = 0; ordinal < keys.size(); ordinal++) {
+            final String key = keys.get(ordinal);
+            sortedKeys.put(key, ordinal);
+            byKeyWithoutPipe.computeIfAbsent(key.split("\\|")[0], k -> new ArrayList<>()).add(ordinal);
+            Node node = root;
+            for (final String segment : key.split("/")) {
+                node = node.children.computeIfAbsent(segmentName(segment), s -> new Node());
+                node.ordinals.add(ordinal);
+            }
+        }
+    }
+
+    /**
+     * @return number of keys indexed
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Finds all keys that begin with the given path segments, where the index of a segment and the pipe suffix of the
+     * last one are ignored. The last segment matches any segment that starts with it, unless it needs to be followed
+     * by a pipe.
+     *
+     * @param segments path segments without indexes and pipe suffixes
+     * @param lastFollowedByPipe whether the last segment needs to be followed by a pipe suffix (or an index)
+     * @return keys in the order of the flat json
+     */
+    public List<String> keysUnder(final List<String> segments, final boolean lastFollowedByPipe) {
+        if (segments.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Node node = root;
+        for (int i = 0; i < segments.size() - 1 && node != null; i++) {
+            node = node.children.get(segments.get(i));
+        }
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        final String last = segments.get(segments.size() - 1);
+        if (lastFollowedByPipe) {
+            final Node lastNode = node.children.get(last);
+            return lastNode == null ? Collections.emptyList() : toKeys(lastNode.ordinals);
+        }
+        final List<Integer> ordinals = new ArrayList<>();
+        for (final Map.Entry<String, Node> child : node.children.tailMap(last, true).entrySet()) {
+            if (!child.getKey().startsWith(last)) {
+                break;
+            }
+            ordinals.addAll(child.getValue().ordinals);
+        }
+        Collections.sort(ordinals);
+        return toKeys(ordinals);
+    }
+
+    /**
+     * @return all keys starting with the given prefix, in the order of the flat json
+     */
+    public List<String> keysStartingWith(final String prefix) {
+        final List<Integer> ordinals = new ArrayList<>();
+        for (final Map.Entry<String, Integer> entry : sortedKeys.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            ordinals.add(entry.getValue());
+        }
+        Collections.sort(ordinals);
+        return toKeys(ordinals);
+    }
+
+    /**
+     * @return first key (in the order of the flat json) starting with the given prefix, null if there's none
+     */
+    public String firstKeyStartingWith(final String prefix) {
+        int first = Integer.MAX_VALUE;
+        for (final Map.Entry<String, Integer> entry : sortedKeys.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            first = Math.min(first, entry.getValue());
+        }
+        return first == Integer.MAX_VALUE ? null : keys.get(first);
+    }
+
+    public boolean anyKeyStartingWith(final String prefix) {
+        final String ceiling = sortedKeys.ceilingKey(prefix);
+        return ceiling != null && ceiling.startsWith(prefix);
+    }
+
+    /**
+     * @return all keys that are the same as the given path up until the pipe, in the order of the flat json
+     */
+    public List<String> keysIgnoringPipe(final String path) {
+        final List<Integer> ordinals = byKeyWithoutPipe.get(path.split("\\|")[0]);
+        return ordinals == null ? Collections.emptyList() : toKeys(ordinals);
+    }
+
+    private List<String> toKeys(final List<Integer> ordinals) {
+        final List<String> result = new ArrayList<>(ordinals.size());
+        for (final Integer ordinal : ordinals) {
+            result.add(keys.get(ordinal));
+        }
+        return result;
+    }
+
+    private static String segmentName(final String segment) {
+        final int pipe = segment.indexOf('|');
+        final String withoutPipe = pipe == -1 ? segment : segment.substring(0, pipe);
+        int indexStart = withoutPipe.length();
+        while (indexStart > 0 && isDigit(withoutPipe.charAt(indexStart - 1))) {
+            indexStart--;
+        }
+        if (indexStart < withoutPipe.length() && indexStart > 0 && withoutPipe.charAt(indexStart - 1) == ':') {
+            return withoutPipe.substring(0, indexStart - 1);
+        }
+        return withoutPipe;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static class Node {
+
+        private final NavigableMap<String, Node> children = new TreeMap<>();
+        private final List<Integer> ordinals = new ArrayList<>();
+    }
+}
@@ -0,0 +1,57 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Sink that writes values to a Composition in a flat json format
+ */
+public class FlatJsonSink implements OpenEhrSink {
+
+    private final JsonObject flat;
+
+    public FlatJsonSink() {
+        this(new JsonObject());
+    }
+
+    /**
+     * @param flat flat json values are added to
+     */
+    public FlatJsonSink(final JsonObject flat) {
+        this.flat = flat;
+    }
+
+    @Override
+    public void add(final String path, final String value) {
+        flat.add(path, new JsonPrimitive(value));
+    }
+
+    @Override
+    public void add(final String path, final Boolean value) {
+        flat.addProperty(path, value);
+    }
+
+    @Override
+    public void add(final String path, final Integer value) {
+        flat.add(path, new JsonPrimitive(value));
+    }
+
+    @Override
+    public void add(final String path, final Double value) {
+        flat.add(path, new JsonPrimitive(value));
+    }
+
+    @Override
+    public void addAll(final JsonObject flat) {
+        flat.entrySet().forEach(entry -> this.flat.add(entry.getKey(), entry.getValue()));
+    }
+
+    @Override
+    public int size() {
+        return flat.size();
+    }
+
+    public JsonObject getFlat() {
+        return flat;
+    }
+}
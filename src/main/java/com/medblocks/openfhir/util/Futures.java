@@ -0,0 +1,32 @@
+package com.medblocks.openfhir.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Waits for futures of work forked to other threads, failing the way the work itself has failed.
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * @return result of the future, once it's completed
+     * @throws RuntimeException the work of the future has thrown, rather than a {@link CompletionException} wrapping
+     *         it
+     */
+    public static <V> V join(final CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
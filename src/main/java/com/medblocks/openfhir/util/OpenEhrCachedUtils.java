@@ -1,68 +1,179 @@
 package com.medblocks.openfhir.util;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.db.ReadOnlyTransactions;
 import com.medblocks.openfhir.db.entity.OptEntity;
 import com.medblocks.openfhir.db.repository.OptRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
 import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.openehr.schemas.v1.TemplateDocument;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.context.annotation.SessionScope;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Utility class used for cached OpenEhr RM that can be otherwise performance issue if
- * created/parsed every time
+ * Application wide cache of parsed operational templates and web templates that can be otherwise performance issue if
+ * created/parsed every time.
+ * <p>
+ * Both caches are key'd by a normalized template id and bounded by weight (length of the OPT content for operational
+ * templates and number of nodes for web templates). Concurrent requests for the same template that is not cached yet
+ * wait for a single parse instead of each parsing it on their own, without holding a lock while it's parsed (see
+ * {@link CacheLoads}). Entries are removed explicitly with {@link #invalidate(String)} when an OPT is created or
+ * updated.
+ * <p>
+ * WebTemplates are not parsed from the OPT but deserialized from the form persisted with it (see
+ * {@link WebTemplateSerializer}), which is kept alongside the cached operational template. If there's no persisted
+ * WebTemplate for the current OPT content and format, it's parsed once and persisted.
  */
 @Component
-@SessionScope
 @Slf4j
 public class OpenEhrCachedUtils {
-    final Map<String, WebTemplate> webTemplates = new HashMap<>();
-    final Map<String, OPERATIONALTEMPLATE> operationalTemplates = new HashMap<>();
+
+    public static final long DEFAULT_OPT_MAX_WEIGHT = 200_000_000L;
+    public static final long DEFAULT_WEB_TEMPLATE_MAX_WEIGHT = 2_000_000L;
+
+    private final AsyncCache<String, WebTemplate> webTemplates;
+    private final AsyncCache<String, ParsedOperationalTemplate> operationalTemplates;
 
     private final OptRepository optRepository;
+    private final ReadOnlyTransactions readOnlyTransactions;
 
+    public OpenEhrCachedUtils(final OptRepository optRepository) {
+        this(optRepository, ReadOnlyTransactions.NONE, DEFAULT_OPT_MAX_WEIGHT, DEFAULT_WEB_TEMPLATE_MAX_WEIGHT);
+    }
+
+    /**
+     * @param optMaxWeight         max sum of OPT content lengths (in characters) kept in the cache
+     * @param webTemplateMaxWeight max sum of web template nodes kept in the cache
+     */
     @Autowired
-    public OpenEhrCachedUtils(OptRepository optRepository) {
+    public OpenEhrCachedUtils(final OptRepository optRepository,
+                              final ReadOnlyTransactions readOnlyTransactions,
+                              @Value("${openfhir.cache.opt.max-weight:200000000}") final long optMaxWeight,
+                              @Value("${openfhir.cache.web-template.max-weight:2000000}") final long webTemplateMaxWeight) {
         this.optRepository = optRepository;
+        this.readOnlyTransactions = readOnlyTransactions;
+        this.operationalTemplates = Caffeine.newBuilder()
+                .maximumWeight(optMaxWeight)
+                .weigher((String id, ParsedOperationalTemplate opt) -> opt.contentLength())
+                .recordStats()
+                .buildAsync();
+        this.webTemplates = Caffeine.newBuilder()
+                .maximumWeight(webTemplateMaxWeight)
+                .weigher((String id, WebTemplate webTemplate) -> weigh(webTemplate))
+                .recordStats()
+                .buildAsync();
     }
 
     public WebTemplate parseWebTemplate(final OPERATIONALTEMPLATE operationaltemplate) {
-        // todo: what if it's changed in the db?
-        if (webTemplates.containsKey(operationaltemplate.getTemplateId().getValue())) {
-            return webTemplates.get(operationaltemplate.getTemplateId().getValue());
-        }
+        final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(
+                operationaltemplate.getTemplateId().getValue());
+        return CacheLoads.get(webTemplates, normalizedTemplateId, id -> loadWebTemplate(id, operationaltemplate));
+    }
 
-        final WebTemplate parser = createParser(operationaltemplate);
-        webTemplates.put(operationaltemplate.getTemplateId().getValue(), parser);
-        return parser;
+    private WebTemplate loadWebTemplate(final String normalizedTemplateId,
+                                        final OPERATIONALTEMPLATE operationaltemplate) {
+        // not counted as a hit or miss of the operational template cache
+        final ParsedOperationalTemplate parsed = CacheLoads.getIfLoaded(operationalTemplates, normalizedTemplateId);
+        if (parsed != null && parsed.operationalTemplate() == operationaltemplate && parsed.webTemplate() != null) {
+            final long start = System.nanoTime();
+            try {
+                final WebTemplate webTemplate = WebTemplateSerializer.deserialize(parsed.webTemplate());
+                log.debug("Deserialized WebTemplate {} in {} ms", normalizedTemplateId,
+                          (System.nanoTime() - start) / 1_000_000);
+                return webTemplate;
+            } catch (final IOException | RuntimeException e) {
+                log.warn("Couldn't deserialize WebTemplate {}, parsing it from the OPT instead", normalizedTemplateId,
+                         e);
+            }
+        }
+        return createWebTemplate(operationaltemplate);
     }
 
-    private WebTemplate createParser(final OPERATIONALTEMPLATE operationaltemplate) {
-        return new OPTParser(operationaltemplate).parse();
+    /**
+     * Parses a WebTemplate without caching it, i.e. for validating an OPT that may not end up persisted.
+     */
+    public WebTemplate createWebTemplate(final OPERATIONALTEMPLATE operationaltemplate) {
+        final long start = System.nanoTime();
+        final WebTemplate webTemplate = new OPTParser(operationaltemplate).parse();
+        log.debug("Parsed WebTemplate {} in {} ms", operationaltemplate.getTemplateId().getValue(),
+                  (System.nanoTime() - start) / 1_000_000);
+        return webTemplate;
     }
 
     public OPERATIONALTEMPLATE getOperationalTemplate(final String templateId) {
-        // todo: what if it's changed in the db?
         final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(templateId);
-        if (operationalTemplates.containsKey(normalizedTemplateId)) {
-            return operationalTemplates.get(normalizedTemplateId);
+        final ParsedOperationalTemplate parsed = CacheLoads.get(operationalTemplates, normalizedTemplateId,
+                                                                this::loadOperationalTemplate);
+        return parsed == null ? null : parsed.operationalTemplate();
+    }
+
+    /**
+     * Loads an operational template from the database and parses it. Returning null means nothing is cached, so
+     * a template that doesn't exist (yet) is looked up again with the next request. Only reading it is done in a
+     * (read-only) transaction, parsing it and persisting its WebTemplate is not.
+     */
+    private ParsedOperationalTemplate loadOperationalTemplate(final String normalizedTemplateId) {
+        final long start = System.nanoTime();
+        final OptEntity byTemplateIdAndUser = readOnlyTransactions.read(
+                () -> optRepository.findByTemplateId(normalizedTemplateId));
+        if (byTemplateIdAndUser == null) {
+            return null;
         }
-        final OptEntity byTemplateIdAndUser = optRepository.findByTemplateId(normalizedTemplateId);
-        if (byTemplateIdAndUser != null) {
-            final OPERATIONALTEMPLATE operationalTemplate = parseOperationalTemplate(byTemplateIdAndUser.getContent());
-            if (operationalTemplate == null) {
-                return null;
+        final String content = byTemplateIdAndUser.getContent();
+        final OPERATIONALTEMPLATE operationalTemplate = parseOperationalTemplate(content);
+        if (operationalTemplate == null) {
+            return null;
+        }
+        final byte[] webTemplate = byTemplateIdAndUser.hasCurrentWebTemplate(WebTemplateSerializer.contentHash(content))
+                ? byTemplateIdAndUser.getWebTemplate()
+                : storeWebTemplate(normalizedTemplateId, byTemplateIdAndUser, operationalTemplate);
+        log.debug("Loaded OPT {} in {} ms", normalizedTemplateId, (System.nanoTime() - start) / 1_000_000);
+        return new ParsedOperationalTemplate(operationalTemplate, Math.max(1, content.length() + webTemplate.length),
+                                             webTemplate);
+    }
+
+    /**
+     * Parses the WebTemplate of an OPT that has none persisted for its current content and format (i.e. created
+     * before WebTemplates were persisted or with a different version of the SDK) and persists it, so it won't have to
+     * be parsed again. It's only persisted if the OPT is still there with the content it has been read with, so a load
+     * can't bring back an OPT deleted or overwrite one upserted in the meantime.
+     *
+     * @return serialized WebTemplate
+     */
+    private byte[] storeWebTemplate(final String normalizedTemplateId, final OptEntity entity,
+                                    final OPERATIONALTEMPLATE operationalTemplate) {
+        final WebTemplate webTemplate = createWebTemplate(operationalTemplate);
+        webTemplates.put(normalizedTemplateId, CompletableFuture.completedFuture(webTemplate));
+        final byte[] serialized = WebTemplateSerializer.serialize(webTemplate);
+        try {
+            final int updated = optRepository.updateWebTemplate(entity.getId(), entity.getContentHash(),
+                                                                WebTemplateSerializer.contentHash(entity.getContent()),
+                                                                WebTemplateSerializer.FORMAT_VERSION, serialized);
+            if (updated > 0) {
+                log.info("Persisted WebTemplate of OPT {} in format {}", normalizedTemplateId,
+                         WebTemplateSerializer.FORMAT_VERSION);
+            } else {
+                log.info("Not persisting WebTemplate of OPT {}, it has been deleted or updated in the meantime",
+                         normalizedTemplateId);
             }
-            operationalTemplates.put(normalizedTemplateId, operationalTemplate);
+        } catch (final Exception e) {
+            log.warn("Couldn't persist WebTemplate of OPT {}, it will be parsed again on the next load",
+                     normalizedTemplateId, e);
         }
-        return operationalTemplates.get(normalizedTemplateId);
+        return serialized;
     }
 
     private OPERATIONALTEMPLATE parseOperationalTemplate(final String templateContent) {
@@ -73,4 +184,65 @@ public class OpenEhrCachedUtils {
             return null;
         }
     }
+
+    /**
+     * Removes cached operational template and web template of the given template, i.e. when an OPT has been
+     * created or updated.
+     *
+     * @param templateId template id, doesn't need to be normalized
+     */
+    public void invalidate(final String templateId) {
+        final String normalizedTemplateId = OpenFhirMappingContext.normalizeTemplateId(templateId);
+        operationalTemplates.synchronous().invalidate(normalizedTemplateId);
+        webTemplates.synchronous().invalidate(normalizedTemplateId);
+        log.info("Invalidated cached OPT and WebTemplate for template {}", normalizedTemplateId);
+    }
+
+    public void invalidateAll() {
+        operationalTemplates.synchronous().invalidateAll();
+        webTemplates.synchronous().invalidateAll();
+    }
+
+    /**
+     * @return hit/miss/load statistics of the operational template and web template caches
+     */
+    public Map<String, CacheStats> getStats() {
+        final Map<String, CacheStats> stats = new LinkedHashMap<>();
+        stats.put("operationalTemplates", operationalTemplates.synchronous().stats());
+        stats.put("webTemplates", webTemplates.synchronous().stats());
+        return stats;
+    }
+
+    @Scheduled(fixedDelayString = "${openfhir.cache.stats-log-interval:PT5M}",
+            initialDelayString = "${openfhir.cache.stats-log-interval:PT5M}")
+    void logStats() {
+        getStats().forEach((name, stats) -> log.info(
+                "Cache {}: hits {}, misses {}, hit rate {}, loads {}, average load time {} ms, evictions {}",
+                name, stats.hitCount(), stats.missCount(), String.format("%.2f", stats.hitRate()), stats.loadCount(),
+                stats.averageLoadPenalty() / 1_000_000, stats.evictionCount()));
+    }
+
+    private int weigh(final WebTemplate webTemplate) {
+        return countNodes(webTemplate.getTree());
+    }
+
+    private int countNodes(final WebTemplateNode node) {
+        if (node == null) {
+            return 1;
+        }
+        int count = 1;
+        for (final WebTemplateNode child : node.getChildren()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    /**
+     * @param contentLength weight of the entry, lengths of the OPT content and the serialized WebTemplate
+     * @param webTemplate serialized WebTemplate of the operational template
+     */
+    private record ParsedOperationalTemplate(OPERATIONALTEMPLATE operationalTemplate, int contentLength,
+                                             byte[] webTemplate) {
+
+    }
 }
@@ -81,11 +81,7 @@ public class OpenEhrConditionEvaluator {
             final String extractedValue = extractedValueJson == null ? "" : extractedValueJson.getAsString();
 
             if (openEhrCondition.getCriteria().contains(extractedValue)) {
-                fullFlatPath.entrySet().forEach((entry) -> {
-                    if (entry.getKey().startsWith(extractedValueKey)) {
-                        modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                    }
-                });
+                addAllStartingWith(extractedValueKey, fullFlatPath, modifiedJsonObject);
                 continue;
             }
 
@@ -94,14 +90,9 @@ public class OpenEhrConditionEvaluator {
                     openEhrKey, extractedValue, openEhrCondition.getCriteria(), extractedValueKey);
             notAddingForThisCondition.add(extractedValueKey);
 
-            fullFlatPath.entrySet().forEach((entry) -> {
-//                if (!entry.getKey().startsWith(extractedValueKey)) {
-//                    modifiedJsonObject.add(entry.getKey(), entry.getValue());
-//                }
-                if (notAddingForThisCondition.stream().noneMatch(extractedValueKey::startsWith)) {
-                    modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                }
-            });
+            if (notAddingForThisCondition.stream().noneMatch(extractedValueKey::startsWith)) {
+                fullFlatPath.entrySet().forEach((entry) -> modifiedJsonObject.add(entry.getKey(), entry.getValue()));
+            }
         }
         return modifiedJsonObject;
     }
@@ -131,17 +122,22 @@ public class OpenEhrConditionEvaluator {
                 }
 
 
-                fullFlatPath.entrySet().forEach((entry) -> {
-                    if (entry.getKey().startsWith(extractedValueKey)) {
-                        modifiedJsonObject.add(entry.getKey(), entry.getValue());
-                    }
-                });
+                addAllStartingWith(extractedValueKey, fullFlatPath, modifiedJsonObject);
             }
 
         }
         return modifiedJsonObject;
     }
 
+    /**
+     * Adds all entries of the flat json that start with the given prefix to the target, in the order of the flat json
+     */
+    private void addAllStartingWith(final String prefix, final JsonObject fullFlatPath, final JsonObject target) {
+        for (final String key : openFhirStringUtils.getFlatCompositionIndex(fullFlatPath).keysStartingWith(prefix)) {
+            target.add(key, fullFlatPath.get(key));
+        }
+    }
+
 
     /**
      * If a mapping has openehrCondition, then the whole JsonObject representing flatPath Composition needs to be split
@@ -5,7 +5,6 @@ import static com.medblocks.openfhir.fc.FhirConnectConst.OPENEHR_TYPE_NONE;
 import static com.medblocks.openfhir.util.OpenFhirStringUtils.RECURRING_SYNTAX;
 
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import java.util.Base64;
 import java.util.List;
@@ -34,7 +33,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 /**
- * Class used for populating openEHR flat path Composition
+ * Class used for populating openEHR flat path Composition, through an {@link OpenEhrSink}
  */
 @Slf4j
 @Component
@@ -56,8 +55,21 @@ public class OpenEhrPopulator {
      * @param openEhrType openEHR type as defined in the fhir connect model mapping
      * @param constructingFlat composition in a flat path format that's being constructed
      */
-    public void setFhirPathValue(String openEhrPath, final Base extractedValue, final String openEhrType,
+    public void setFhirPathValue(final String openEhrPath, final Base extractedValue, final String openEhrType,
                                  final JsonObject constructingFlat) {
+        setFhirPathValue(openEhrPath, extractedValue, openEhrType, new FlatJsonSink(constructingFlat));
+    }
+
+    /**
+     * Adds extracted value to the openEHR Composition being constructed by the given sink
+     *
+     * @param openEhrPath flat path the value should be set on
+     * @param extractedValue value as extracted from a FHIR object
+     * @param openEhrType openEHR type as defined in the fhir connect model mapping
+     * @param constructingFlat sink of the Composition that's being constructed
+     */
+    public void setFhirPathValue(String openEhrPath, final Base extractedValue, final String openEhrType,
+                                 final OpenEhrSink constructingFlat) {
         if (openEhrType == null) {
             addValuePerFhirType(extractedValue, openEhrPath, constructingFlat, openEhrType);
             return;
@@ -161,13 +173,13 @@ public class OpenEhrPopulator {
     }
 
     private void addPrimitive(final Base fhirValue, final String openEhrPath,
-                              final JsonObject constructingFlat) {
+                              final OpenEhrSink constructingFlat) {
         final String primitiveValue = fhirValue.primitiveValue();
 
         addToConstructingFlat(openEhrPath, primitiveValue, constructingFlat);
     }
 
-    private void handleDvMultimedia(final String path, final Base value, final JsonObject flat) {
+    private void handleDvMultimedia(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Attachment attachment) {
             int size = (attachment.getSize() == 0 && attachment.getData() != null) ? attachment.getData().length
                     : attachment.getSize();
@@ -183,7 +195,7 @@ public class OpenEhrPopulator {
         }
     }
 
-    private boolean handleDvQuantity(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvQuantity(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Quantity quantity) {
             if (quantity.getValue() != null) {
                 addToConstructingFlatDouble(path + "|magnitude", quantity.getValue().doubleValue(), flat);
@@ -203,7 +215,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvOrdinal(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvOrdinal(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Quantity quantity) {
             if (quantity.getValue() != null) {
                 addToConstructingFlat(path + "|ordinal", quantity.getValue().toPlainString(), flat);
@@ -217,7 +229,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvProportion(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvProportion(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Quantity quantity) {
             if ("%".equals(quantity.getCode())) {
                 addToConstructingFlatDouble(path + "|denominator", 100.0, flat);
@@ -233,7 +245,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvCount(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvCount(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Quantity quantity) {
             if (quantity.getValue() != null) {
                 addToConstructingFlatInteger(path, quantity.getValue().intValueExact(), flat);
@@ -251,7 +263,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvDateTime(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvDateTime(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof DateTimeType dateTime) {
             if (dateTime.getValue() != null) {
                 final String formattedDate = openFhirMapperUtils.dateTimeToString(dateTime.getValue());
@@ -278,7 +290,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvDate(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvDate(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof DateTimeType dateTime) {
             if (dateTime.getValue() != null) {
                 final String formattedDate = openFhirMapperUtils.dateToString(dateTime.getValue());
@@ -295,7 +307,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvTime(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvTime(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof DateTimeType dateTime) {
             if (dateTime.getValue() != null) {
                 final String formattedDate = openFhirMapperUtils.timeToString(dateTime.getValue());
@@ -317,7 +329,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvCodedText(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvCodedText(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof CodeableConcept codeableConcept) {
             List<Coding> codings = codeableConcept.getCoding();
             if (!codings.isEmpty()) {
@@ -354,7 +366,7 @@ public class OpenEhrPopulator {
      * @param codings The list of codings (first one is skipped as it's the primary coding)
      * @param flat The JSON object to add the mappings to
      */
-    private void addAdditionalCodingsAsMappings(String path, List<Coding> codings, JsonObject flat) {
+    private void addAdditionalCodingsAsMappings(String path, List<Coding> codings, OpenEhrSink flat) {
         for (int i = 1; i < codings.size(); i++) {
             Coding coding = codings.get(i);
             String mappingPath = path + "/_mapping:" + (i-1);
@@ -366,7 +378,7 @@ public class OpenEhrPopulator {
         }
     }
 
-    private boolean handleIdentifier(final String path, final Base value, final JsonObject flat) {
+    private boolean handleIdentifier(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof Identifier identifier) {
             addToConstructingFlat(path + "|id", identifier.getValue(), flat);
             return true;
@@ -379,7 +391,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handlePartyIdentifier(final String path, final Base value, final JsonObject flat) {
+    private boolean handlePartyIdentifier(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof StringType string) {
             addToConstructingFlat(path + "|name", string.getValue(), flat);
             return true;
@@ -398,7 +410,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handlePartyProxy(final String path, final Base value, final JsonObject flat) {
+    private boolean handlePartyProxy(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof StringType string) {
             addToConstructingFlat(path + "|name", string.getValue(), flat);
             return true;
@@ -410,7 +422,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleCodePhrase(final String path, final Base value, final JsonObject flat,
+    private boolean handleCodePhrase(final String path, final Base value, final OpenEhrSink flat,
                                      final String openEhrType) {
         if (value instanceof Coding coding) {
             addToConstructingFlat(path + "|code", coding.getCode(), flat);
@@ -435,7 +447,7 @@ public class OpenEhrPopulator {
         return false;
     }
 
-    private boolean handleDvBool(final String path, final Base value, final JsonObject flat) {
+    private boolean handleDvBool(final String path, final Base value, final OpenEhrSink flat) {
         if (value instanceof BooleanType booleanType) {
             addToConstructingBoolean(path, booleanType.getValue(), flat);
             return true;
@@ -446,7 +458,7 @@ public class OpenEhrPopulator {
     }
 
     private void addValuePerFhirType(final Base fhirValue, final String openEhrPath,
-                                     final JsonObject constructingFlat,
+                                     final OpenEhrSink constructingFlat,
                                      final String openehrType) {
         if (fhirValue instanceof Quantity extractedQuantity) {
             if (extractedQuantity.getValue() != null) {
@@ -476,32 +488,32 @@ public class OpenEhrPopulator {
         }
     }
 
-    final void addToConstructingFlat(final String key, final String value, final JsonObject constructingFlat) {
+    final void addToConstructingFlat(final String key, final String value, final OpenEhrSink constructingFlat) {
         if (StringUtils.isEmpty(value)) {
             return;
         }
         log.debug("Setting value {} on path {}", value, key);
-        constructingFlat.add(key, new JsonPrimitive(value));
+        constructingFlat.add(key, value);
     }
 
-    final void addToConstructingBoolean(final String key, final Boolean value, final JsonObject constructingFlat) {
+    final void addToConstructingBoolean(final String key, final Boolean value, final OpenEhrSink constructingFlat) {
         if (value == null) {
             return;
         }
-        constructingFlat.addProperty(key, value);
+        constructingFlat.add(key, value);
     }
 
-    final void addToConstructingFlatDouble(final String key, final Double value, final JsonObject constructingFlat) {
+    final void addToConstructingFlatDouble(final String key, final Double value, final OpenEhrSink constructingFlat) {
         if (value == null) {
             return;
         }
-        constructingFlat.add(key, new JsonPrimitive(value));
+        constructingFlat.add(key, value);
     }
 
-    final void addToConstructingFlatInteger(final String key, final Integer value, final JsonObject constructingFlat) {
+    final void addToConstructingFlatInteger(final String key, final Integer value, final OpenEhrSink constructingFlat) {
         if (value == null) {
             return;
         }
-        constructingFlat.add(key, new JsonPrimitive(value));
+        constructingFlat.add(key, value);
     }
 }
@@ -0,0 +1,32 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Target of the values mapped from FHIR to openEHR, key'd by their flat path. A value set on a path that already has
+ * one replaces it.
+ * <p>
+ * Implemented by {@link FlatJsonSink} when a Composition in a flat format is what's needed and by
+ * {@link CompositionSink} when it's an RM Composition (i.e. for a canonical format), so the latter doesn't need to go
+ * through a flat json first.
+ */
+public interface OpenEhrSink {
+
+    void add(String path, String value);
+
+    void add(String path, Boolean value);
+
+    void add(String path, Integer value);
+
+    void add(String path, Double value);
+
+    /**
+     * Adds all values of a flat json, i.e. one populated by a {@link com.medblocks.openfhir.plugin.api.FormatConverter}
+     */
+    void addAll(JsonObject flat);
+
+    /**
+     * @return number of paths with a value
+     */
+    int size();
+}
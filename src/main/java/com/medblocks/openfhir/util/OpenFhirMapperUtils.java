@@ -10,8 +10,14 @@ import com.medblocks.openfhir.fc.schema.model.Condition;
 import com.medblocks.openfhir.fc.schema.model.FhirConnectReference;
 import com.medblocks.openfhir.fc.schema.model.Mapping;
 import com.medblocks.openfhir.fc.schema.model.With;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -33,10 +39,10 @@ import org.springframework.stereotype.Component;
 @Component
 public class OpenFhirMapperUtils {
 
-    final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
-    final SimpleDateFormat time2 = new SimpleDateFormat("HH:mm");
-    final SimpleDateFormat sdf2 = new SimpleDateFormat("yyyy-MM-dd");
+    // immutable and thread safe, unlike SimpleDateFormat; dates are formatted and parsed in the system's time zone
+    static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
 
 
     public String getFhirConnectTypeToFhir(final String fhirConnectType) {
@@ -121,21 +127,21 @@ public class OpenFhirMapperUtils {
         if (date == null) {
             return null;
         }
-        return sdf2.format(date);
+        return format(date, DATE);
     }
 
     public String dateTimeToString(final Date date) {
         if (date == null) {
             return null;
         }
-        return sdf.format(date);
+        return format(date, DATE_TIME);
     }
 
     public String timeToString(final Date date) {
         if (date == null) {
             return null;
         }
-        return time.format(date);
+        return format(date, TIME);
     }
 
     public Date stringToDate(final String date) {
@@ -143,26 +149,42 @@ public class OpenFhirMapperUtils {
             return null;
         }
         try {
-            return sdf.parse(date);
-        } catch (ParseException e) {
+            return Date.from(LocalDateTime.from(parsePrefix(date, DATE_TIME))
+                                     .atZone(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
             log.error("Couldn't parse date: {}", date, e);
             try {
-                return sdf2.parse(date);
-            } catch (ParseException ex) {
+                return Date.from(LocalDate.from(parsePrefix(date, DATE))
+                                         .atStartOfDay(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException ex) {
                 log.error("Couldn't parse date: {}", date, e);
             }
         }
         return null;
     }
 
+    private static String format(final Date date, final DateTimeFormatter formatter) {
+        return formatter.format(date.toInstant().atZone(ZoneId.systemDefault()));
+    }
+
     /**
-     * Modifies Mapping.openEhr paths, replacing $reference and $archetype and adding resolve() to FHIR
-     * path so it's evaluated by the fhir path engine
+     * Parses the beginning of the given text and ignores whatever follows, as SimpleDateFormat#parse(String) does
+     */
+    private static TemporalAccessor parsePrefix(final String text, final DateTimeFormatter formatter) {
+        return formatter.parse(text, new ParsePosition(0));
+    }
+
+    /**
+     * Derives referenced mappings with Mapping.openEhr paths modified, replacing $reference and $archetype and adding
+     * resolve() to FHIR path so it's evaluated by the fhir path engine. Given mappings are not modified.
+     *
+     * @return derived referenced mappings with prepared paths
      */
-    public void prepareReferencedMappings(final String parentFhirPath,
-                                          final String openEhrPath,
-                                          final List<Mapping> referencedMapping,
-                                          final String firstFlatPath) {
+    public List<Mapping> prepareReferencedMappings(final String parentFhirPath,
+                                                   final String openEhrPath,
+                                                   final List<Mapping> referencedMappings,
+                                                   final String firstFlatPath) {
+        final List<Mapping> referencedMapping = deriveMappings(referencedMappings, false);
         for (final Mapping mapping : referencedMapping) {
             mapping.getWith().setFhir(parentFhirPath + "." + RESOLVE + "." + mapping.getWith().getFhir());
             if (FhirConnectConst.REFERENCE.equals(openEhrPath) || mapping.getWith().getOpenehr() == null) {
@@ -208,21 +230,24 @@ public class OpenFhirMapperUtils {
                 }
             }
         }
+        return referencedMapping;
     }
 
     /**
-     * Followed by mappers needs to inherit parent's properties. This method makes sure parent's paths are inherited
-     * in followed by mappings
+     * Followed by mappers needs to inherit parent's properties. This method derives followed by mappings with
+     * parent's paths inherited; given mappings are not modified.
      *
-     * @param followedByMappings followed by mappings that need to inherit parent's properties
+     * @param originalFollowedByMappings followed by mappings that need to inherit parent's properties
      * @param fhirPath parent's fhir path as constructed up until now
      * @param openehr parent's openehr path as constructed up until now
+     * @return derived followed by mappings with inherited parent's properties
      */
-    public void prepareFollowedByMappings(final List<Mapping> followedByMappings,
-                                          final String fhirPath,
-                                          final String openehr,
-                                          final String slotContext,
-                                          final Mapping parentMapping) {
+    public List<Mapping> prepareFollowedByMappings(final List<Mapping> originalFollowedByMappings,
+                                                   final String fhirPath,
+                                                   final String openehr,
+                                                   final String slotContext,
+                                                   final Mapping parentMapping) {
+        final List<Mapping> followedByMappings = deriveMappings(originalFollowedByMappings, false);
         for (final Mapping followedByMapping : followedByMappings) {
             final With with = followedByMapping.getWith();
             if (with == null) {
@@ -322,6 +347,7 @@ public class OpenFhirMapperUtils {
             }
 
         }
+        return followedByMappings;
     }
 
 
@@ -333,19 +359,20 @@ public class OpenFhirMapperUtils {
      * @param parentMapper parent mapper
      * @param fhirPath parent's fhir path as constructed up until now
      * @param openEhrPath parent's openehr path as constructed up until now
+     * @return derived slot mapper with inherited parent's properties; given slot mapper is not modified
      */
-    public void prepareForwardingSlotArchetypeMapper(final OpenFhirFhirConnectModelMapper slotArchetypeMappers,
-                                                     final OpenFhirFhirConnectModelMapper parentMapper,
-                                                     final String fhirPath,
-                                                     final String openEhrPath) {
-        slotArchetypeMappers.setFhirConfig(new OpenFhirFhirConfig());
-        slotArchetypeMappers.getFhirConfig().setResource(parentMapper.getFhirConfig().getResource());
-        slotArchetypeMappers.getFhirConfig().setCondition(parentMapper.getFhirConfig().getCondition());
-
-        prepareForwardingSlotArchetypeMappings(slotArchetypeMappers.getMappings(),
-                                               fhirPath,
-                                               openEhrPath,
-                                               true);
+    public OpenFhirFhirConnectModelMapper prepareForwardingSlotArchetypeMapper(
+            final OpenFhirFhirConnectModelMapper slotArchetypeMappers,
+            final OpenFhirFhirConnectModelMapper parentMapper,
+            final String fhirPath,
+            final String openEhrPath) {
+        final OpenFhirFhirConnectModelMapper derived = deriveSlotArchetypeMapper(slotArchetypeMappers, parentMapper);
+
+        derived.setMappings(prepareForwardingSlotArchetypeMappings(slotArchetypeMappers.getMappings(),
+                                                                   fhirPath,
+                                                                   openEhrPath,
+                                                                   true));
+        return derived;
     }
 
     /**
@@ -359,30 +386,70 @@ public class OpenFhirMapperUtils {
      * @param parentMapper parent mapper
      * @param fhirPath parent's fhir path as constructed up until now
      * @param openEhrPath parent's openehr path as constructed up until now
+     * @return derived slot mapper with inherited parent's properties; given slot mapper is not modified
      */
-    public void prepareForwardingSlotArchetypeMapperNoFhirPrefix(
+    public OpenFhirFhirConnectModelMapper prepareForwardingSlotArchetypeMapperNoFhirPrefix(
             final OpenFhirFhirConnectModelMapper slotArchetypeMappers,
             final OpenFhirFhirConnectModelMapper parentMapper,
             final String fhirPath,
             final String openEhrPath) {
-        slotArchetypeMappers.setFhirConfig(new OpenFhirFhirConfig());
-        slotArchetypeMappers.getFhirConfig().setResource(parentMapper.getFhirConfig().getResource());
-        slotArchetypeMappers.getFhirConfig().setCondition(parentMapper.getFhirConfig().getCondition());
+        final OpenFhirFhirConnectModelMapper derived = deriveSlotArchetypeMapper(slotArchetypeMappers, parentMapper);
 
         if (slotArchetypeMappers.getMappings() == null) {
-            return;
+            return derived;
         }
 
-        prepareForwardingSlotArchetypeMappings(slotArchetypeMappers.getMappings(),
-                                               fhirPath,
-                                               openEhrPath,
-                                               false);
+        derived.setMappings(prepareForwardingSlotArchetypeMappings(slotArchetypeMappers.getMappings(),
+                                                                   fhirPath,
+                                                                   openEhrPath,
+                                                                   false));
 
-        for (Mapping slotArchetypeMappersMapping : slotArchetypeMappers.getMappings()) {
+        for (Mapping slotArchetypeMappersMapping : derived.getMappings()) {
             if (slotArchetypeMappersMapping.getWith().getOpenehr() == null) {
                 slotArchetypeMappersMapping.getWith().setOpenehr(openEhrPath);
             }
         }
+        return derived;
+    }
+
+    private OpenFhirFhirConnectModelMapper deriveSlotArchetypeMapper(
+            final OpenFhirFhirConnectModelMapper slotArchetypeMappers,
+            final OpenFhirFhirConnectModelMapper parentMapper) {
+        final OpenFhirFhirConnectModelMapper derived = new OpenFhirFhirConnectModelMapper();
+        derived.setName(slotArchetypeMappers.getName());
+        derived.setOpenEhrConfig(slotArchetypeMappers.getOpenEhrConfig());
+        derived.setMappings(slotArchetypeMappers.getMappings());
+        derived.setFhirConfig(new OpenFhirFhirConfig());
+        derived.getFhirConfig().setResource(parentMapper.getFhirConfig().getResource());
+        derived.getFhirConfig().setCondition(parentMapper.getFhirConfig().getCondition());
+        return derived;
+    }
+
+    /**
+     * Derives given mappings (see {@link Mapping#derive()}) so they can be rewritten for a specific mapping run
+     * without modifying the cached model mappers.
+     *
+     * @param mappings mappings to derive
+     * @param withReferences whether mappings within a reference also need to be derived, because they are
+     *         rewritten as part of the same step
+     * @return a new list of derived mappings
+     */
+    public List<Mapping> deriveMappings(final List<Mapping> mappings, final boolean withReferences) {
+        if (mappings == null) {
+            return null;
+        }
+        final List<Mapping> derived = new ArrayList<>(mappings.size());
+        for (final Mapping mapping : mappings) {
+            final Mapping derivedMapping = mapping.derive();
+            final FhirConnectReference reference = mapping.getReference();
+            if (withReferences && reference != null) {
+                derivedMapping.setReference(new FhirConnectReference()
+                                                    .withResourceType(reference.getResourceType())
+                                                    .withMappings(deriveMappings(reference.getMappings(), true)));
+            }
+            derived.add(derivedMapping);
+        }
+        return derived;
     }
 
 
@@ -398,15 +465,17 @@ public class OpenFhirMapperUtils {
      *         mapping
      *         from FHIR to openEHR where we have inner helpers and paths are always defined as relative
      *         to the parent and not absolute
+     * @return derived mappings with adjusted paths; given mappings are not modified
      */
-    public void prepareForwardingSlotArchetypeMappings(final List<Mapping> forwardMappers,
-                                                       final String fhirPath,
-                                                       final String openEhrPath,
-                                                       boolean fhirPrefixing) {
+    public List<Mapping> prepareForwardingSlotArchetypeMappings(final List<Mapping> originalForwardMappers,
+                                                                final String fhirPath,
+                                                                final String openEhrPath,
+                                                                boolean fhirPrefixing) {
 
-        if (forwardMappers == null) {
-            return;
+        if (originalForwardMappers == null) {
+            return null;
         }
+        final List<Mapping> forwardMappers = deriveMappings(originalForwardMappers, true);
 
         // fix fhir forwarding params
         fixFhirForwardingPaths(forwardMappers, fhirPath, fhirPrefixing);
@@ -416,6 +485,7 @@ public class OpenFhirMapperUtils {
 
         // now conditions
         prepareForwardingSlotArchetypeMappingsConditions(forwardMappers, fhirPath, fhirPrefixing);
+        return forwardMappers;
     }
 
     private void fixFhirForwardingPaths(final List<Mapping> forwardMappers,
@@ -4,7 +4,8 @@ import static com.medblocks.openfhir.fc.FhirConnectConst.CONDITION_OPERATOR_EMPT
 import static com.medblocks.openfhir.fc.FhirConnectConst.CONDITION_OPERATOR_NOT_EMPTY;
 import static com.medblocks.openfhir.fc.FhirConnectConst.FHIR_ROOT_FC;
 
-import com.google.gson.JsonElement;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.fc.FhirConnectConst;
 import com.medblocks.openfhir.fc.schema.model.Condition;
@@ -35,6 +36,16 @@ public class OpenFhirStringUtils {
     public static final String WHERE = "where";
     public static final String RECURRING_SYNTAX = "[n]";
     public static final String RECURRING_SYNTAX_ESCAPED = "\\[n]";
+    private static final String OPTIONAL_INDEX = "(:\\d+)?";
+    private static final String ANY_PIPE_SUFFIX = "(\\|.*)?";
+    private static final Pattern NOT_INDEXABLE = Pattern.compile("[\\\\.\\[\\]{}()*+?^$|:]");
+
+    private final Cache<String, FlatPathPattern> flatPathPatterns = Caffeine.newBuilder()
+            .maximumSize(10_000L)
+            .build();
+    private final Cache<JsonObject, FlatCompositionIndex> flatCompositionIndexes = Caffeine.newBuilder()
+            .weakKeys()
+            .build();
 
     /**
      * Adds regex pattern to the simplified flat path so that we can match all entries in a flat json
@@ -48,9 +59,9 @@ public class OpenFhirStringUtils {
         if (lastOneHasPipe) {
             final String[] partsWithoutLast = Arrays.copyOf(parts, parts.length - 1);
             final String[] lastPart = parts[parts.length - 1].split("\\|");
-            return String.join("(:\\d+)?/", partsWithoutLast) + "(:\\d+)?/" + lastPart[0] + "(:\\d+)?\\|" + lastPart[1];
+            return String.join(OPTIONAL_INDEX + "/", partsWithoutLast) + OPTIONAL_INDEX + "/" + lastPart[0] + OPTIONAL_INDEX + "\\|" + lastPart[1];
         } else {
-            return String.join("(:\\d+)?/", parts) + "(:\\d+)?(\\|.*)?";
+            return String.join(OPTIONAL_INDEX + "/", parts) + OPTIONAL_INDEX + ANY_PIPE_SUFFIX;
         }
     }
 
@@ -383,20 +394,21 @@ public class OpenFhirStringUtils {
             }
             final String targetAttribute = condition.getTargetAttribute();
 
-            if (condition.getTargetRoot().startsWith(FhirConnectConst.FHIR_RESOURCE_FC)) {
-                condition.setTargetRoot(condition.getTargetRoot().replace(FhirConnectConst.FHIR_RESOURCE_FC, resource));
-            }
+            // condition may belong to a cached mapper, so it's not modified
+            final String targetRoot = condition.getTargetRoot().startsWith(FhirConnectConst.FHIR_RESOURCE_FC)
+                    ? condition.getTargetRoot().replace(FhirConnectConst.FHIR_RESOURCE_FC, resource)
+                    : condition.getTargetRoot();
             // add condition in there within the fhirpath itself
             final String base;
-            if (condition.getTargetRoot().startsWith(fhirPath)) {
-                base = condition.getTargetRoot();
+            if (targetRoot.startsWith(fhirPath)) {
+                base = targetRoot;
             } else {
                 base = fhirPath;
             }
             boolean negate = FhirConnectConst.CONDITION_OPERATOR_NOT_OF.equals(condition.getOperator());
             stringJoiner.add(base
-                                     .replace(condition.getTargetRoot(),
-                                              condition.getTargetRoot() + ".where(" + targetAttribute
+                                     .replace(targetRoot,
+                                              targetRoot + ".where(" + targetAttribute
                                                       + ".toString().contains('" + getStringFromCriteria(
                                                       condition.getCriteria()).getCode() + "')" + (negate ? "=false"
                                                       : "") + ")")
@@ -422,20 +434,28 @@ public class OpenFhirStringUtils {
 
     /**
      * Gets all entries from the flat path that match simplified openehr path with regex pattern
+     * <p>
+     * Where the regex pattern has been created with {@link #addRegexPatternToSimplifiedFlatFormat(String)}, only
+     * entries beneath the simplified path within the {@link FlatCompositionIndex} are matched against it, meaning
+     * the match needs to start at the beginning of an entry. Any other pattern is matched against all entries.
      *
      * @param withRegex simplified openehr path with regex pattern
      * @param compositionFlatPath composition in a flat path format
      * @return a list of Strings that match the given flat path with regex pattern
      */
     public List<String> getAllEntriesThatMatch(final String withRegex, final JsonObject compositionFlatPath) {
-        Pattern compiledPattern = Pattern.compile(withRegex);
+        final FlatPathPattern flatPathPattern = flatPathPatterns.get(withRegex, this::toFlatPathPattern);
+        final Iterable<String> candidates = flatPathPattern.segments() == null
+                ? compositionFlatPath.keySet()
+                : getFlatCompositionIndex(compositionFlatPath).keysUnder(flatPathPattern.segments(),
+                                                                         flatPathPattern.lastFollowedByPipe());
         final List<String> match = new ArrayList<>();
-        for (Map.Entry<String, JsonElement> flatEntry : compositionFlatPath.entrySet()) {
-            final Matcher matcher = compiledPattern.matcher(flatEntry.getKey());
+        for (final String key : candidates) {
+            final Matcher matcher = flatPathPattern.pattern().matcher(key);
 
             final List<String> matches = new ArrayList<>();
 
-            while (matcher.find() && !isNotSame(flatEntry.getKey(), matcher.group())) {
+            while (matcher.find() && !isNotSame(key, matcher.group())) {
                 matches.add(matcher.group());
             }
             if (matches.isEmpty()) {
@@ -452,14 +472,62 @@ public class OpenFhirStringUtils {
      */
     public List<String> getAllEntriesThatMatchIgnoringPipe(final String path, final JsonObject compositionFlatPath) {
         final List<String> match = new ArrayList<>();
-        for (final Map.Entry<String, JsonElement> flatEntry : compositionFlatPath.entrySet()) {
-            if (flatEntry.getKey().split("\\|")[0].equals(path.split("\\|")[0])) {
-                match.add(flatEntry.getValue().getAsString());
-            }
+        for (final String key : getFlatCompositionIndex(compositionFlatPath).keysIgnoringPipe(path)) {
+            match.add(compositionFlatPath.get(key).getAsString());
         }
         return match;
     }
 
+    /**
+     * Returns the index of the given Composition in a flat format. Indexes are kept for as long as the JsonObject
+     * itself is around, so the same Composition is indexed only once regardless of how many mappings are evaluated
+     * on it. Flat JsonObjects are not expected to change once they're being mapped; if they do change in size, the
+     * index is rebuilt.
+     */
+    public FlatCompositionIndex getFlatCompositionIndex(final JsonObject compositionFlatPath) {
+        final FlatCompositionIndex index = flatCompositionIndexes.get(compositionFlatPath, FlatCompositionIndex::new);
+        if (index.size() == compositionFlatPath.size()) {
+            return index;
+        }
+        final FlatCompositionIndex rebuilt = new FlatCompositionIndex(compositionFlatPath);
+        flatCompositionIndexes.put(compositionFlatPath, rebuilt);
+        return rebuilt;
+    }
+
+    /**
+     * Reverses {@link #addRegexPatternToSimplifiedFlatFormat(String)} so that the path segments can be looked up in
+     * a {@link FlatCompositionIndex}; segments are left null if the pattern has been created some other way or
+     * if the path itself includes regex syntax, indexes or pipes in the middle of it.
+     */
+    private FlatPathPattern toFlatPathPattern(final String withRegex) {
+        final Pattern pattern = Pattern.compile(withRegex);
+        final String body;
+        final boolean lastFollowedByPipe;
+        if (withRegex.endsWith(OPTIONAL_INDEX + ANY_PIPE_SUFFIX)) {
+            body = withRegex.substring(0, withRegex.length() - (OPTIONAL_INDEX + ANY_PIPE_SUFFIX).length());
+            lastFollowedByPipe = false;
+        } else if (withRegex.contains(OPTIONAL_INDEX + "\\|")) {
+            body = withRegex.substring(0, withRegex.lastIndexOf(OPTIONAL_INDEX + "\\|"));
+            lastFollowedByPipe = true;
+        } else {
+            return new FlatPathPattern(pattern, null, false);
+        }
+        final List<String> segments = Arrays.asList(body.split(Pattern.quote(OPTIONAL_INDEX + "/"), -1));
+        if (segments.stream().anyMatch(segment -> segment.isEmpty() || NOT_INDEXABLE.matcher(segment).find())) {
+            return new FlatPathPattern(pattern, null, false);
+        }
+        return new FlatPathPattern(pattern, segments, lastFollowedByPipe);
+    }
+
+    /**
+     * @param pattern compiled regex pattern
+     * @param segments path segments the pattern has been created from, null if it can't be looked up in an index
+     * @param lastFollowedByPipe whether the pattern requires a specific pipe suffix after the last segment
+     */
+    private record FlatPathPattern(Pattern pattern, List<String> segments, boolean lastFollowedByPipe) {
+
+    }
+
 
     /**
      * If the only difference is a digit, for example
@@ -594,7 +662,7 @@ public class OpenFhirStringUtils {
      * @return fhir path amended with the .where clause as constructed from the given Condition
      */
     public String getFhirPathWithConditions(String originalFhirPath,
-                                            final Condition condition,
+                                            Condition condition,
                                             final String resource,
                                             final String parentPath) {
         originalFhirPath = originalFhirPath.replace(FhirConnectConst.FHIR_RESOURCE_FC, resource);
@@ -602,7 +670,8 @@ public class OpenFhirStringUtils {
                 && condition.getTargetAttribute() == null
                 && condition.getTargetAttributes() != null
                 && !condition.getTargetAttributes().isEmpty()) {
-            // fallback until it's entirely deprecated
+            // fallback until it's entirely deprecated; on a copy as condition may belong to a cached mapper
+            condition = condition.copy();
             condition.setTargetAttribute(condition.getTargetAttributes().get(0));
         }
         if (condition == null
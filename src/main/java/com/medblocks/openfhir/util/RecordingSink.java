@@ -0,0 +1,74 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Sink that records values in the order they're added, so they can be added to another sink later on, i.e. once
+ * the values preceding them have been
+ */
+public class RecordingSink implements OpenEhrSink {
+
+    private final List<BiConsumer<OpenEhrSink, UnaryOperator<String>>> recorded = new ArrayList<>();
+    private final Set<String> paths = new HashSet<>();
+
+    @Override
+    public void add(final String path, final String value) {
+        record(path, (sink, rewrite) -> sink.add(rewrite.apply(path), value));
+    }
+
+    @Override
+    public void add(final String path, final Boolean value) {
+        record(path, (sink, rewrite) -> sink.add(rewrite.apply(path), value));
+    }
+
+    @Override
+    public void add(final String path, final Integer value) {
+        record(path, (sink, rewrite) -> sink.add(rewrite.apply(path), value));
+    }
+
+    @Override
+    public void add(final String path, final Double value) {
+        record(path, (sink, rewrite) -> sink.add(rewrite.apply(path), value));
+    }
+
+    @Override
+    public void addAll(final JsonObject flat) {
+        paths.addAll(flat.keySet());
+        recorded.add((sink, rewrite) -> {
+            final JsonObject rewritten = new JsonObject();
+            flat.entrySet().forEach(value -> rewritten.add(rewrite.apply(value.getKey()), value.getValue()));
+            sink.addAll(rewritten);
+        });
+    }
+
+    @Override
+    public int size() {
+        return paths.size();
+    }
+
+    /**
+     * Adds all recorded values to the given sink, in the same order they've been added to this one
+     */
+    public void replay(final OpenEhrSink sink) {
+        replay(sink, UnaryOperator.identity());
+    }
+
+    /**
+     * Adds all recorded values to the given sink, in the same order they've been added to this one, each with its
+     * path rewritten, i.e. to give it an index that wasn't known yet when it was recorded
+     */
+    public void replay(final OpenEhrSink sink, final UnaryOperator<String> rewrite) {
+        recorded.forEach(add -> add.accept(sink, rewrite));
+    }
+
+    private void record(final String path, final BiConsumer<OpenEhrSink, UnaryOperator<String>> add) {
+        paths.add(path);
+        recorded.add(add);
+    }
+}
@@ -0,0 +1,111 @@
+package com.medblocks.openfhir.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nedap.archie.rm.composition.Composition;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Language;
+import org.ehrbase.openehr.sdk.generator.commons.shareddefinition.Setting;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.StdToCompositionWalker;
+import org.ehrbase.openehr.sdk.serialisation.jsonencoding.ArchieObjectMapperProvider;
+import org.ehrbase.openehr.sdk.serialisation.walker.FlatHelper;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValuePath;
+import org.ehrbase.openehr.sdk.serialisation.walker.defaultvalues.DefaultValues;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.path.flat.FlatPathDto;
+import org.ehrbase.openehr.sdk.webtemplate.webtemplateskeletonbuilder.WebTemplateSkeletonBuilder;
+
+/**
+ * {@link FlatJsonUnmarshaller} that also unmarshals a Composition in a flat format from a stream.
+ * <p>
+ * The unmarshaller of EHRbase only takes the whole Composition as a String, which it then parses into a json tree,
+ * only to take the json of each value from it. Here, the json of each value is read from the stream one after
+ * another, so neither the String nor the tree of the whole Composition is ever built. Otherwise, it unmarshals the
+ * same way, with the same default values and failing on the same values that can't be consumed.
+ */
+public class StreamingFlatJsonUnmarshaller extends FlatJsonUnmarshaller {
+
+    private static final ObjectMapper OBJECT_MAPPER = ArchieObjectMapperProvider.getObjectMapper();
+
+    /**
+     * @param flat stream of the Composition in a flat format; not closed
+     * @throws UnmarshalException if the Composition isn't valid json or has values that can't be unmarshalled
+     */
+    public Composition unmarshal(final Reader flat, final WebTemplate webTemplate) {
+        try {
+            final Map<String, String> currentValues = readValues(OBJECT_MAPPER.createParser(flat));
+            final Composition composition = WebTemplateSkeletonBuilder.build(webTemplate, false);
+            final StdToCompositionWalker walker = new StdToCompositionWalker();
+            final DefaultValues defaultValues = new DefaultValues(currentValues);
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.LANGUAGE)) {
+                defaultValues.addDefaultValue(DefaultValuePath.LANGUAGE,
+                                              FlatHelper.findEnumValueOrThrow(webTemplate.getDefaultLanguage(),
+                                                                              Language.class));
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.TIME)) {
+                defaultValues.addDefaultValue(DefaultValuePath.TIME, OffsetDateTime.now());
+            }
+            if (!defaultValues.containsDefaultValue(DefaultValuePath.SETTING)) {
+                defaultValues.addDefaultValue(DefaultValuePath.SETTING, Setting.OTHER_CARE);
+            }
+            final String templateId = composition.getArchetypeDetails().getTemplateId().getValue();
+            walker.walk(composition,
+                        currentValues.entrySet().stream().collect(Collectors.toMap(
+                                entry -> new FlatPathDto(entry.getKey()), Map.Entry::getValue)),
+                        webTemplate, defaultValues, templateId);
+            final Set<String> unconsumed = getUnconsumed(walker.getConsumedPaths(), currentValues);
+            if (!unconsumed.isEmpty()) {
+                throw new UnmarshalException(String.format("Could not consume Parts %s", unconsumed));
+            }
+            return composition;
+        } catch (final JsonProcessingException e) {
+            throw new UnmarshalException(e.getMessage(), e);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (final IllegalArgumentException e) {
+            if (e.getCause() instanceof DateTimeException) {
+                throw new UnmarshalException(e.getMessage(), e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return json of each value of the top level object by its flat path, as EHRbase takes them; empty if there's
+     *         no top level object
+     */
+    private static Map<String, String> readValues(final JsonParser parser) throws IOException {
+        final Map<String, String> values = new HashMap<>();
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return values;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String path = parser.currentName();
+            parser.nextToken();
+            final TreeNode value = parser.readValueAsTree();
+            values.put(path, value == null ? "null" : value.toString());
+        }
+        return values;
+    }
+
+    private static Set<String> getUnconsumed(final Set<String> consumedPaths, final Map<String, String> values) {
+        final Set<String> unconsumed = new HashSet<>(values.keySet());
+        unconsumed.removeAll(consumedPaths);
+        unconsumed.removeIf(path -> path.startsWith("ctx"));
+        return unconsumed;
+    }
+}
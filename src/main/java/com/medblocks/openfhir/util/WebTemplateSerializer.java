@@ -0,0 +1,130 @@
+package com.medblocks.openfhir.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.ehrbase.openehr.sdk.aql.webtemplatepath.AqlPath;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+
+/**
+ * Compact binary form of a parsed WebTemplate, so it can be persisted alongside its OPT and loaded without parsing
+ * the OPT with the OPTParser again, which takes seconds for large templates.
+ * <p>
+ * WebTemplate is serialized with Java serialization (keeping nodes shared within the tree shared and paths already
+ * formatted by the nodes) and gzipped. AqlPaths are not serializable and are written as formatted paths instead,
+ * parsed again when reading.
+ * <p>
+ * A serialized WebTemplate is only valid for the OPT content it was parsed from (see {@link #contentHash(String)})
+ * and for the format it was written in (see {@link #FORMAT_VERSION}), which changes with the SDK the WebTemplate
+ * model comes from.
+ */
+@Slf4j
+public class WebTemplateSerializer {
+
+    public static final String FORMAT_VERSION = "1-" + sdkVersion();
+
+    /**
+     * Only the classes a WebTemplate is made of, and limits far above what the largest templates take (a template
+     * of tens of thousands of nodes takes a few MB), so a corrupted or forged row can't take the heap or the stack
+     */
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=200;maxrefs=20000000;maxbytes=536870912;maxarray=10000000;"
+                    + "java.lang.Object;java.lang.String;java.lang.Enum;java.lang.Number;java.lang.Boolean;java.lang.Integer;"
+                    + "java.lang.Long;java.lang.Double;java.util.ArrayList;java.util.HashMap;java.util.LinkedHashMap;"
+                    + "java.util.Map$Entry;org.ehrbase.openehr.sdk.webtemplate.model.*;"
+                    + SerializedAqlPath.class.getName() + ";"
+                    // what SerializedAqlPath is resolved to is checked as well
+                    + AqlPath.class.getName() + ";!*");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private WebTemplateSerializer() {
+    }
+
+    public static byte[] serialize(final WebTemplate webTemplate) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new WebTemplateOutputStream(new GZIPOutputStream(bytes, BUFFER_SIZE))) {
+            out.writeObject(webTemplate);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Couldn't serialize WebTemplate " + webTemplate.getTemplateId(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the WebTemplate can't be read, i.e. because it was written by a different version of
+     *         the SDK
+     */
+    public static WebTemplate deserialize(final byte[] serialized) throws IOException {
+        try (final ObjectInputStream in = new WebTemplateInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(serialized), BUFFER_SIZE), BUFFER_SIZE))) {
+            in.setObjectInputFilter(FILTER);
+            return (WebTemplate) in.readObject();
+        } catch (final ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Serialized WebTemplate is not valid", e);
+        }
+    }
+
+    /**
+     * @return SHA-256 hash of the OPT content (hex encoded), which a serialized WebTemplate is valid for
+     */
+    public static String contentHash(final String content) {
+        return ContentHash.sha256(content);
+    }
+
+    private static String sdkVersion() {
+        try (final InputStream pom = WebTemplate.class.getResourceAsStream(
+                "/META-INF/maven/org.ehrbase.openehr.sdk/web-template/pom.properties")) {
+            if (pom == null) {
+                return "unknown";
+            }
+            final Properties properties = new Properties();
+            properties.load(pom);
+            return properties.getProperty("version", "unknown");
+        } catch (final IOException e) {
+            log.warn("Couldn't read version of the openEHR SDK", e);
+            return "unknown";
+        }
+    }
+
+    private record SerializedAqlPath(String path) implements Serializable {
+
+    }
+
+    private static class WebTemplateOutputStream extends ObjectOutputStream {
+
+        WebTemplateOutputStream(final OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(final Object obj) {
+            return obj instanceof AqlPath aqlPath ? new SerializedAqlPath(aqlPath.format(true)) : obj;
+        }
+    }
+
+    private static class WebTemplateInputStream extends ObjectInputStream {
+
+        WebTemplateInputStream(final InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(final Object obj) {
+            return obj instanceof SerializedAqlPath aqlPath ? AqlPath.parse(aqlPath.path()) : obj;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectContextMetadata;
+import com.medblocks.openfhir.db.repository.FhirConnectContextRepository;
+import com.medblocks.openfhir.fc.schema.context.Context;
+import com.medblocks.openfhir.fc.schema.context.ContextProfile;
+import com.medblocks.openfhir.fc.schema.context.ContextTemplate;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FhirConnectContextIndexTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final List<FhirConnectContextEntity> contexts = new ArrayList<>();
+    private FhirConnectContextIndex index;
+
+    @Before
+    public void init() {
+        contexts.addAll(Arrays.asList(context("for-all", null),
+                                      context("blood-pressure", "http://example.org/StructureDefinition/bp"),
+                                      context("observation", "Observation"),
+                                      context("condition", "[http://example.org/StructureDefinition/condition]")));
+        final FhirConnectContextRepository repository = new FhirConnectContextRepository() {
+            @Override
+            public FhirConnectContextEntity findByTemplateId(final String templateId) {
+                lookups.incrementAndGet();
+                return contexts.stream()
+                        .filter(context -> context.getFhirConnectContext().getContext().getTemplate() != null
+                                && templateId.equals(
+                                context.getFhirConnectContext().getContext().getTemplate().getId()))
+                        .findFirst().orElse(null);
+            }
+
+            @Override
+            public List<FhirConnectContextEntity> findAll() {
+                loads.incrementAndGet();
+                return new ArrayList<>(contexts);
+            }
+
+            @Override
+            public List<FhirConnectContextMetadata> findAllMetadata() {
+                return null;
+            }
+
+            @Override
+            public FhirConnectContextEntity save(final FhirConnectContextEntity entity) {
+                return entity;
+            }
+
+            @Override
+            public FhirConnectContextEntity byId(final String id) {
+                return null;
+            }
+
+            @Override
+            public void deleteAll() {
+            }
+        };
+        index = new FhirConnectContextIndex(repository, new OpenFhirStringUtils());
+    }
+
+    @Test
+    public void findForResource() {
+        Assert.assertEquals("blood-pressure",
+                            index.findForResource(withProfile(new Observation(),
+                                                              "http://example.org/StructureDefinition/bp")).getId());
+        Assert.assertEquals("condition", index.findForResource(
+                withProfile(new Condition(), "http://example.org/StructureDefinition/condition")).getId());
+        // profile is contained in the resource profile
+        Assert.assertEquals("observation", index.findForResource(
+                withProfile(new Observation(), "http://hl7.org/fhir/StructureDefinition/Observation")).getId());
+        // no matching profile
+        Assert.assertEquals("for-all", index.findForResource(new Observation()).getId());
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void findForBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(withProfile(new Condition(), "http://example.org/StructureDefinition/condition"));
+        bundle.addEntry().setResource(withProfile(new Observation(), "http://example.org/StructureDefinition/bp"));
+        // first one in the order of contexts wins, not the first entry
+        Assert.assertEquals("blood-pressure", index.findForResource(bundle).getId());
+    }
+
+    @Test
+    public void invalidate() {
+        Assert.assertEquals(Arrays.asList(null, "http://example.org/StructureDefinition/bp", "Observation",
+                                          "[http://example.org/StructureDefinition/condition]"),
+                            index.getValidProfiles());
+        contexts.add(0, context("new-blood-pressure", "http://example.org/StructureDefinition/bp"));
+        Assert.assertEquals(4, index.getValidProfiles().size());
+
+        index.invalidate();
+
+        Assert.assertEquals(5, index.getValidProfiles().size());
+        Assert.assertEquals("new-blood-pressure",
+                            index.findForResource(withProfile(new Observation(),
+                                                              "http://example.org/StructureDefinition/bp")).getId());
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void findByTemplateId() {
+        contexts.add(withTemplate(context("growth-chart", null), "Growth chart"));
+        Assert.assertEquals("growth-chart", index.findByTemplateId("Growth chart").getId());
+        Assert.assertEquals("growth-chart", index.findByTemplateId("Growth chart").getId());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(0, lookups.get());
+
+        // not in the index (yet), looked up in the repository every time
+        contexts.add(withTemplate(context("blood-pressure-2", null), "Blood Pressure"));
+        Assert.assertEquals("blood-pressure-2", index.findByTemplateId("Blood Pressure").getId());
+        Assert.assertNull(index.findByTemplateId("no such template"));
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(2, lookups.get());
+
+        index.invalidate();
+        Assert.assertEquals("blood-pressure-2", index.findByTemplateId("Blood Pressure").getId());
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(2, lookups.get());
+    }
+
+    private FhirConnectContextEntity withTemplate(final FhirConnectContextEntity context, final String templateId) {
+        final ContextTemplate template = new ContextTemplate();
+        template.setId(templateId);
+        context.getFhirConnectContext().getContext().setTemplate(template);
+        return context;
+    }
+
+    private FhirConnectContextEntity context(final String id, final String profileUrl) {
+        final ContextProfile profile = new ContextProfile();
+        profile.setUrl(profileUrl);
+        final Context context = new Context();
+        context.setProfile(profile);
+        final FhirConnectContext fhirConnectContext = new FhirConnectContext();
+        fhirConnectContext.setContext(context);
+        return FhirConnectContextEntity.builder().id(id).fhirConnectContext(fhirConnectContext).build();
+    }
+
+    private Resource withProfile(final Resource resource, final String profile) {
+        resource.getMeta().addProfile(profile);
+        return resource;
+    }
+}
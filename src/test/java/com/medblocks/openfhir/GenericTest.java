@@ -11,6 +11,7 @@ import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
 import com.medblocks.openfhir.tofhir.IntermediateCacheProcessing;
 import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
 import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
+import com.medblocks.openfhir.util.CachedFhirPathR4;
 import com.medblocks.openfhir.util.FhirConnectModelMerger;
 import com.medblocks.openfhir.util.FhirInstanceCreator;
 import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
@@ -25,9 +26,9 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import org.apache.commons.io.IOUtils;
 import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -40,10 +41,10 @@ import org.yaml.snakeyaml.Yaml;
 
 public abstract class GenericTest {
 
-    final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+    protected final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
     final OpenFhirMapperUtils openFhirMapperUtils = new OpenFhirMapperUtils();
-    final FhirConnectModelMerger fhirConnectModelMerger = new FhirConnectModelMerger();
-    protected final FhirPathR4 fhirPath = new FhirPathR4(FhirContext.forR4());
+    protected final FhirConnectModelMerger fhirConnectModelMerger = new FhirConnectModelMerger();
+    protected FhirPathR4 fhirPath;
     final JsonParser jsonParser = (JsonParser) FhirContext.forR4().newJsonParser();
 
     protected TestOpenFhirMappingContext repo;
@@ -56,7 +57,8 @@ public abstract class GenericTest {
 
     @Before
     public void init() {
-        repo = new TestOpenFhirMappingContext(fhirPath, openFhirStringUtils, fhirConnectModelMerger);
+        fhirPath = createFhirPath();
+        repo = createRepo();
         fhirPath.setEvaluationContext(new IFhirPathEvaluationContext() {
             // todo!!
             @Override
@@ -65,41 +67,67 @@ public abstract class GenericTest {
             }
         });
 
-        final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(openFhirStringUtils);
-        openEhrToFhir = new OpenEhrToFhir(new FlatJsonMarshaller(),
-                                          repo,
-                                          new OpenEhrCachedUtils(null),
-                                          new Gson(),
-                                          openFhirStringUtils,
-                                          new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
-                                          new OpenFhirMapperUtils(),
-                                          new FhirInstancePopulator(),
-                                          new FhirInstanceCreator(openFhirStringUtils, fhirInstanceCreatorUtility),
-                                          fhirInstanceCreatorUtility,
-                                          fhirPath,
-                                          new IntermediateCacheProcessing(openFhirStringUtils),
-                                          new OpenEhrConditionEvaluator(openFhirStringUtils));
-        fhirToOpenEhr = new FhirToOpenEhr(fhirPath,
-                                          new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
-                                          new Gson(),
-                                          new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
-                                          openFhirStringUtils,
-                                          repo,
-                                          new OpenEhrCachedUtils(null),
-                                          new OpenFhirMapperUtils(),
-                                          new OpenEhrPopulator(new OpenFhirMapperUtils()));
+        openEhrToFhir = createOpenEhrToFhir(false, 0);
+        fhirToOpenEhr = createFhirToOpenEhr(false, 0);
 
         prepareState();
     }
 
+    protected FhirPathR4 createFhirPath() {
+        return new CachedFhirPathR4(FhirContext.forR4());
+    }
+
+    protected TestOpenFhirMappingContext createRepo() {
+        return new TestOpenFhirMappingContext(fhirPath, openFhirStringUtils, fhirConnectModelMerger);
+    }
+
+    /**
+     * @return mapper to FHIR on {@link #repo} and {@link #fhirPath}, mapping archetypes concurrently on the given
+     *         number of threads or one after another
+     */
+    protected OpenEhrToFhir createOpenEhrToFhir(final boolean parallelArchetypes, final int parallelism) {
+        final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(openFhirStringUtils);
+        return new OpenEhrToFhir(new FlatJsonMarshaller(),
+                                 repo,
+                                 new OpenEhrCachedUtils(null),
+                                 new Gson(),
+                                 openFhirStringUtils,
+                                 new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
+                                 new OpenFhirMapperUtils(),
+                                 new FhirInstancePopulator(),
+                                 new FhirInstanceCreator(openFhirStringUtils, fhirInstanceCreatorUtility),
+                                 fhirInstanceCreatorUtility,
+                                 fhirPath,
+                                 new IntermediateCacheProcessing(openFhirStringUtils),
+                                 new OpenEhrConditionEvaluator(openFhirStringUtils),
+                                 parallelArchetypes,
+                                 parallelism);
+    }
+
+    /**
+     * @return mapper to openEHR on {@link #repo} and {@link #fhirPath}, mapping entries of Bundles concurrently on
+     *         the given number of threads or one after another
+     */
+    protected FhirToOpenEhr createFhirToOpenEhr(final boolean parallelEntries, final int parallelism) {
+        return new FhirToOpenEhr(fhirPath,
+                                 new OpenFhirStringUtils(),
+                                 new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
+                                 openFhirStringUtils,
+                                 repo,
+                                 new OpenEhrCachedUtils(null),
+                                 new OpenFhirMapperUtils(),
+                                 new OpenEhrPopulator(new OpenFhirMapperUtils()),
+                                 parallelEntries,
+                                 parallelism);
+    }
+
     protected abstract void prepareState();
 
 
     protected String getFlat(final String path) {
         final InputStream inputStream = this.getClass().getResourceAsStream(path);
         try {
-            return IOUtils.toString(inputStream);
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -122,4 +150,12 @@ public abstract class GenericTest {
             throw new RuntimeException(e);
         }
     }
+
+    protected OPERATIONALTEMPLATE getOperationalTemplate(final String path) {
+        try {
+            return TemplateDocument.Factory.parse(getFlat(path)).getTemplate();
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
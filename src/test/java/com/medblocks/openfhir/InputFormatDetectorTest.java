@@ -0,0 +1,99 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.InputFormatDetector.DetectedOpenEhr;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InputFormatDetectorTest {
+
+    private final InputFormatDetector detector = new InputFormatDetector();
+
+    @Test
+    public void detectOpenEhr() throws IOException {
+        final String flat = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"));
+        final String canonical = IOUtils.toString(
+                getClass().getResourceAsStream("/growth_chart/growth_chart_composition.json"));
+
+        Assert.assertEquals(new DetectedOpenEhr(InputFormat.FLAT, "growth_chart"), detector.detectOpenEhr(flat, null));
+        Assert.assertEquals(new DetectedOpenEhr(InputFormat.CANONICAL, "Growth chart"),
+                            detector.detectOpenEhr(canonical, null));
+        // template id of a canonical Composition is found regardless of the order of attributes
+        Assert.assertEquals(new DetectedOpenEhr(InputFormat.CANONICAL, "abc"), detector.detectOpenEhr(
+                "{\"archetype_details\": {\"template_id\": {\"value\": \"abc\"}}, \"_type\": \"COMPOSITION\"}", null));
+        // not json, left for the parser to fail on
+        Assert.assertEquals(InputFormat.CANONICAL, detector.detectOpenEhr("not json", null).format());
+
+        Assert.assertEquals(1, detector.getCounts().get(InputFormat.FLAT).longValue());
+        Assert.assertEquals(3, detector.getCounts().get(InputFormat.CANONICAL).longValue());
+    }
+
+    @Test
+    public void publishesCounts() {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        detector.bindTo(registry);
+        detector.detectOpenEhr("{\"growth_chart/language|code\": \"en\"}", null);
+        detector.detectFhir("{\"resourceType\": \"Bundle\"}");
+        detector.detectFhir("{\"resourceType\": \"Bundle\"}");
+
+        Assert.assertEquals(1, registry.get("openfhir.input.formats").tag("format", "flat").functionCounter().count(), 0);
+        Assert.assertEquals(2, registry.get("openfhir.input.formats").tag("format", "fhir_bundle")
+                .functionCounter().count(), 0);
+        Assert.assertEquals(0, registry.get("openfhir.input.formats").tag("format", "canonical")
+                .functionCounter().count(), 0);
+    }
+
+    @Test
+    public void detectOpenEhr_requested() {
+        Assert.assertEquals(new DetectedOpenEhr(InputFormat.FLAT, "growth_chart"),
+                            detector.detectOpenEhr("{\"growth_chart/language|code\": \"en\"}", InputFormat.FLAT));
+        Assert.assertEquals(InputFormat.CANONICAL,
+                            detector.detectOpenEhr("{\"growth_chart/language|code\": \"en\"}",
+                                                   InputFormat.CANONICAL).format());
+    }
+
+    @Test
+    public void detectFhir() {
+        Assert.assertEquals(InputFormat.FHIR_BUNDLE,
+                            detector.detectFhir("{\"id\": \"1\", \"resourceType\": \"Bundle\", \"entry\": []}"));
+        Assert.assertEquals(InputFormat.FHIR_RESOURCE,
+                            detector.detectFhir("{\"code\": {\"text\": \"Bundle\"}, \"resourceType\": \"Observation\"}"));
+        Assert.assertEquals(InputFormat.FHIR_RESOURCE, detector.detectFhir("{"));
+        Assert.assertEquals(1, detector.getCounts().get(InputFormat.FHIR_BUNDLE).longValue());
+        Assert.assertEquals(2, detector.getCounts().get(InputFormat.FHIR_RESOURCE).longValue());
+    }
+
+    @Test
+    public void detect_fromStream() throws IOException {
+        final String flat = "{\"growth_chart/language|code\": \"en\"}";
+        final BufferedReader flatReader = new BufferedReader(new StringReader(flat), 16);
+        Assert.assertEquals(new DetectedOpenEhr(InputFormat.FLAT, "growth_chart"),
+                            detector.detectOpenEhr(flatReader, null));
+        // stream is reset, so it can be parsed as a whole
+        Assert.assertEquals(flat, IOUtils.toString(flatReader));
+
+        // resourceType beyond the sniff limit isn't found, yet the stream is still reset
+        final String bundle = "{\"id\": \"" + "1".repeat(InputFormatDetector.SNIFF_LIMIT)
+                + "\", \"resourceType\": \"Bundle\"}";
+        final BufferedReader bundleReader = new BufferedReader(new StringReader(bundle));
+        Assert.assertEquals(InputFormat.FHIR_RESOURCE, detector.detectFhir(bundleReader));
+        Assert.assertEquals(bundle, IOUtils.toString(bundleReader));
+    }
+
+    @Test
+    public void requestedOpenEhr() {
+        Assert.assertEquals(InputFormat.FLAT, InputFormat.requestedOpenEhr("Flat", null));
+        Assert.assertEquals(InputFormat.CANONICAL, InputFormat.requestedOpenEhr("canonical", InputFormat.FLAT_CONTENT_TYPE));
+        Assert.assertEquals(InputFormat.FLAT, InputFormat.requestedOpenEhr(null, InputFormat.FLAT_CONTENT_TYPE));
+        Assert.assertNull(InputFormat.requestedOpenEhr(null, "application/json"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestedOpenEhr_unsupported() {
+        InputFormat.requestedOpenEhr("xml", null);
+    }
+}
@@ -0,0 +1,145 @@
+package com.medblocks.openfhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.medblocks.openfhir.db.ReadOnlyTransactions;
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectContextMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectModelMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.OptMemoryRepository;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.util.FhirConnectModelMerger;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import com.medblocks.openfhir.util.WebTemplateSerializer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+
+/**
+ * Changes are made directly in the repositories, the way another instance sharing the database would make them
+ */
+public class MappingStateRefresherTest {
+
+    private static final String TEMPLATE_ID = "Blood Pressure";
+
+    private final OptMemoryRepository optRepository = new OptMemoryRepository();
+    private final FhirConnectContextMemoryRepository contextRepository = new FhirConnectContextMemoryRepository();
+    private final FhirConnectModelMemoryRepository modelRepository = new FhirConnectModelMemoryRepository();
+
+    private OpenEhrCachedUtils cachedUtils;
+    private ProdOpenFhirMappingContext mappingContext;
+    private FhirConnectContextIndex contextIndex;
+    private MappingStateRefresher refresher;
+
+    private FhirConnectContext context;
+    private FhirConnectModel model;
+    private OptEntity opt;
+
+    @Before
+    public void init() throws IOException {
+        final ObjectMapper yaml = OpenFhirTestUtility.getYaml();
+        context = yaml.readValue(getClass().getResourceAsStream("/blood_pressure/simple-blood-pressure.context.yml"),
+                                 FhirConnectContext.class);
+        model = yaml.readValue(getClass().getResourceAsStream("/blood_pressure/blood-pressure.model.yml"),
+                               FhirConnectModel.class);
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/blood_pressure/Blood Pressure.opt"),
+                                                StandardCharsets.UTF_8);
+        opt = new OptEntity(null, content, OpenFhirMappingContext.normalizeTemplateId(TEMPLATE_ID), TEMPLATE_ID,
+                            TEMPLATE_ID);
+        opt.setContentHash(WebTemplateSerializer.contentHash(content));
+        optRepository.save(opt);
+        save(FhirConnectContextEntity.builder().fhirConnectContext(context).build());
+        save(FhirConnectModelEntity.builder().fhirConnectModel(model).build());
+
+        cachedUtils = new OpenEhrCachedUtils(optRepository);
+        mappingContext = new ProdOpenFhirMappingContext(new FhirPathR4(FhirContext.forR4()),
+                                                        new OpenFhirStringUtils(), modelRepository,
+                                                        new FhirConnectModelMerger());
+        contextIndex = new FhirConnectContextIndex(contextRepository, new OpenFhirStringUtils());
+        refresher = new MappingStateRefresher(optRepository, contextRepository, modelRepository,
+                                              ReadOnlyTransactions.NONE, cachedUtils, mappingContext, contextIndex);
+        refresher.refresh();
+    }
+
+    @Test
+    public void unchanged() {
+        final OPERATIONALTEMPLATE operationalTemplate = cachedUtils.getOperationalTemplate(TEMPLATE_ID);
+        final OpenFhirContextRepository repository = mappingContext.initMappingCache(context, null, null);
+        final FhirConnectContextEntity indexed = contextIndex.findByTemplateId(TEMPLATE_ID);
+
+        refresher.refresh();
+
+        Assert.assertSame(operationalTemplate, cachedUtils.getOperationalTemplate(TEMPLATE_ID));
+        Assert.assertSame(repository, mappingContext.initMappingCache(context, null, null));
+        Assert.assertSame(indexed, contextIndex.findByTemplateId(TEMPLATE_ID));
+    }
+
+    @Test
+    public void optChanged() {
+        final OPERATIONALTEMPLATE operationalTemplate = cachedUtils.getOperationalTemplate(TEMPLATE_ID);
+        final OpenFhirContextRepository repository = mappingContext.initMappingCache(context, null, null);
+
+        opt.setContent(opt.getContent() + "\n");
+        opt.setContentHash(WebTemplateSerializer.contentHash(opt.getContent()));
+        optRepository.save(opt);
+        // not before the next refresh
+        Assert.assertSame(operationalTemplate, cachedUtils.getOperationalTemplate(TEMPLATE_ID));
+
+        refresher.refresh();
+
+        Assert.assertNotSame(operationalTemplate, cachedUtils.getOperationalTemplate(TEMPLATE_ID));
+        Assert.assertNotSame(repository, mappingContext.initMappingCache(context, null, null));
+    }
+
+    @Test
+    public void modelChanged() {
+        final OpenFhirContextRepository repository = mappingContext.initMappingCache(context, null, null);
+        final FhirConnectModelEntity entity = modelRepository.findAll().get(0);
+        final FhirConnectModel changed = model.copy();
+        changed.getMappings().remove(changed.getMappings().size() - 1);
+        entity.setFhirConnectModel(changed);
+        save(entity);
+
+        refresher.refresh();
+
+        final OpenFhirContextRepository rebuilt = mappingContext.initMappingCache(context, null, null);
+        Assert.assertNotSame(repository, rebuilt);
+        final String name = model.getMetadata().getName();
+        Assert.assertTrue(rebuilt.getMappers().get(name).get(0).getMappings().size()
+                                  < repository.getMappers().get(name).get(0).getMappings().size());
+    }
+
+    @Test
+    public void contextAdded() {
+        Assert.assertNotNull(contextIndex.findByTemplateId(TEMPLATE_ID));
+        Assert.assertEquals(1, contextIndex.getValidProfiles().size());
+        final FhirConnectContext other = OpenFhirTestUtility.getYaml().convertValue(context, FhirConnectContext.class);
+        other.getContext().getTemplate().setId("Other Blood Pressure");
+        save(FhirConnectContextEntity.builder().fhirConnectContext(other).build());
+
+        refresher.refresh();
+
+        Assert.assertEquals(2, contextIndex.getValidProfiles().size());
+        Assert.assertNotNull(contextIndex.findByTemplateId("Other Blood Pressure"));
+    }
+
+    private void save(final FhirConnectContextEntity entity) {
+        entity.prePersist();
+        contextRepository.save(entity);
+    }
+
+    private void save(final FhirConnectModelEntity entity) {
+        entity.prePersist();
+        modelRepository.save(entity);
+    }
+}
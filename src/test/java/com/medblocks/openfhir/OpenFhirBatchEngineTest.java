@@ -0,0 +1,93 @@
+package com.medblocks.openfhir;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenFhirBatchEngine.BatchResult;
+import com.medblocks.openfhir.OpenFhirEngine.ResolvedTemplate;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenFhirBatchEngineTest {
+
+    /**
+     * Engine that "maps" a line of a number n by sleeping for a while (the longer, the lower n is) and writing a
+     * pretty printed json with n; a line "fail" can't be mapped
+     */
+    private static class SleepingEngine extends OpenFhirEngine {
+
+        private final Set<Map<String, ResolvedTemplate>> resolvedTemplates = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        SleepingEngine() {
+            super(null, null, null, null, null, new InputFormatDetector(), null, null, new Gson(), null, false);
+        }
+
+        @Override
+        public void toFhir(final Reader openEhrCompositionJson, final String incomingTemplateId,
+                           final InputFormat requestedFormat, final Writer fhir,
+                           final Map<String, ResolvedTemplate> resolvedTemplates) throws IOException {
+            this.resolvedTemplates.add(resolvedTemplates);
+            final String line = IOUtils.toString(openEhrCompositionJson);
+            if ("fail".equals(line)) {
+                throw new IllegalArgumentException("can't map " + line);
+            }
+            final int n = Integer.parseInt(line);
+            try {
+                Thread.sleep((10 - n % 10) * 5L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            fhir.write("{\n  \"n\": " + n + ",\n  \"text\": \"a b\"\n}");
+        }
+    }
+
+    @Test
+    public void toFhir_inInputOrder() throws IOException {
+        final SleepingEngine engine = new SleepingEngine();
+        final OpenFhirBatchEngine batchEngine = new OpenFhirBatchEngine(engine, new Gson(), 4, 3);
+        try {
+            final StringBuilder input = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                input.append(i).append('\n');
+                if (i == 5) {
+                    input.append("fail\n\n");
+                }
+            }
+
+            final StringWriter output = new StringWriter();
+            final BatchResult result = batchEngine.toFhir(new StringReader(input.toString()), null, null, output);
+
+            Assert.assertEquals(21, result.lines());
+            Assert.assertEquals(1, result.failed());
+            final String[] lines = output.toString().split("\n");
+            Assert.assertEquals(21, lines.length);
+            int expected = 0;
+            for (int i = 0; i < lines.length; i++) {
+                final JsonObject line = new Gson().fromJson(lines[i], JsonObject.class);
+                if (i == 6) {
+                    // line 7 of the input, with the error in place of the mapped result
+                    Assert.assertEquals(7, line.get("line").getAsInt());
+                    Assert.assertEquals(400, line.get("status").getAsInt());
+                    Assert.assertEquals("can't map fail", line.get("error").getAsString());
+                    continue;
+                }
+                Assert.assertEquals("{\"n\": " + expected + ",\"text\": \"a b\"}", lines[i]);
+                Assert.assertEquals(expected++, line.get("n").getAsInt());
+            }
+            // templates are resolved once for the whole batch
+            Assert.assertEquals(1, engine.resolvedTemplates.size());
+        } finally {
+            batchEngine.shutdown();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.medblocks.openfhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.medblocks.openfhir.OpenFhirBatchEngine.BatchResult;
+import com.medblocks.openfhir.bloodpressure.BloodPressureToOpenEhrTest;
+import com.medblocks.openfhir.db.entity.FhirConnectContextEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectContextMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.FhirConnectModelMemoryRepository;
+import com.medblocks.openfhir.db.repository.memory.OptMemoryRepository;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.rest.AdmissionControl;
+import com.medblocks.openfhir.tofhir.IntermediateCacheProcessing;
+import com.medblocks.openfhir.tofhir.OpenEhrToFhir;
+import com.medblocks.openfhir.toopenehr.FhirToOpenEhr;
+import com.medblocks.openfhir.util.CachedFhirPathR4;
+import com.medblocks.openfhir.util.FhirConnectModelMerger;
+import com.medblocks.openfhir.util.FhirInstanceCreator;
+import com.medblocks.openfhir.util.FhirInstanceCreatorUtility;
+import com.medblocks.openfhir.util.FhirInstancePopulator;
+import com.medblocks.openfhir.util.OpenEhrCachedUtils;
+import com.medblocks.openfhir.util.OpenEhrConditionEvaluator;
+import com.medblocks.openfhir.util.OpenEhrPopulator;
+import com.medblocks.openfhir.util.OpenFhirMapperUtils;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import com.medblocks.openfhir.util.StreamingFlatJsonUnmarshaller;
+import com.medblocks.openfhir.util.WebTemplateSerializer;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.marshal.FlatJsonMarshaller;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+
+/**
+ * Invalidates the cached repository of a template right after a mapping has resolved it, the way an upsert or a
+ * refresh on another thread would, and expects the mapping to still use all of its mappers.
+ */
+public class OpenFhirEngineInvalidationTest {
+
+    private static final String TEMPLATE_ID = "Blood Pressure";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+    private final FhirPathR4 fhirPath = new CachedFhirPathR4(fhirContext);
+    private final OptMemoryRepository optRepository = new OptMemoryRepository();
+    private final FhirConnectContextMemoryRepository contextRepository = new FhirConnectContextMemoryRepository();
+    private final FhirConnectModelMemoryRepository modelRepository = new FhirConnectModelMemoryRepository();
+
+    /**
+     * Number of times the cached repository of a template has been invalidated right after being resolved
+     */
+    private final AtomicInteger invalidations = new AtomicInteger();
+    private boolean invalidateAfterResolving;
+
+    private OpenFhirEngine engine;
+    private String flat;
+
+    @Before
+    public void init() throws IOException {
+        final ObjectMapper yaml = OpenFhirTestUtility.getYaml();
+        final FhirConnectContext context = yaml.readValue(
+                getClass().getResourceAsStream("/blood_pressure/simple-blood-pressure.context.yml"),
+                FhirConnectContext.class);
+        final FhirConnectModel model = yaml.readValue(
+                getClass().getResourceAsStream("/blood_pressure/blood-pressure.model.yml"), FhirConnectModel.class);
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/blood_pressure/Blood Pressure.opt"),
+                                                StandardCharsets.UTF_8);
+        final OptEntity opt = new OptEntity(null, content, OpenFhirMappingContext.normalizeTemplateId(TEMPLATE_ID),
+                                            TEMPLATE_ID, TEMPLATE_ID);
+        opt.setContentHash(WebTemplateSerializer.contentHash(content));
+        optRepository.save(opt);
+        final FhirConnectContextEntity contextEntity = FhirConnectContextEntity.builder()
+                .fhirConnectContext(context).build();
+        contextEntity.prePersist();
+        contextRepository.save(contextEntity);
+        final FhirConnectModelEntity modelEntity = FhirConnectModelEntity.builder().fhirConnectModel(model).build();
+        modelEntity.prePersist();
+        modelRepository.save(modelEntity);
+        flat = IOUtils.toString(getClass().getResourceAsStream("/blood_pressure/blood-pressure_flat.json"),
+                                StandardCharsets.UTF_8);
+
+        fhirPath.setEvaluationContext(new IFhirPathEvaluationContext() {
+            @Override
+            public IBase resolveReference(@Nonnull IIdType theReference, @Nullable IBase theContext) {
+                return ((Reference) theContext).getResource();
+            }
+        });
+        final ProdOpenFhirMappingContext mappingContext = new ProdOpenFhirMappingContext(
+                fhirPath, openFhirStringUtils, modelRepository, new FhirConnectModelMerger()) {
+            @Override
+            public OpenFhirContextRepository initMappingCache(final FhirConnectContext context,
+                                                              final OPERATIONALTEMPLATE operationaltemplate,
+                                                              final WebTemplate webTemplate) {
+                final OpenFhirContextRepository resolved = super.initMappingCache(context, operationaltemplate,
+                                                                                  webTemplate);
+                if (invalidateAfterResolving) {
+                    invalidateTemplate(context.getContext().getTemplate().getId());
+                    invalidations.incrementAndGet();
+                }
+                return resolved;
+            }
+        };
+        final OpenEhrCachedUtils cachedUtils = new OpenEhrCachedUtils(optRepository);
+        final OpenFhirMapperUtils openFhirMapperUtils = new OpenFhirMapperUtils();
+        final FhirInstanceCreatorUtility fhirInstanceCreatorUtility = new FhirInstanceCreatorUtility(
+                openFhirStringUtils);
+        final OpenEhrToFhir openEhrToFhir = new OpenEhrToFhir(new FlatJsonMarshaller(),
+                                                              mappingContext,
+                                                              cachedUtils,
+                                                              new Gson(),
+                                                              openFhirStringUtils,
+                                                              new OpenEhrRmWorker(openFhirStringUtils,
+                                                                                  openFhirMapperUtils),
+                                                              openFhirMapperUtils,
+                                                              new FhirInstancePopulator(),
+                                                              new FhirInstanceCreator(openFhirStringUtils,
+                                                                                      fhirInstanceCreatorUtility),
+                                                              fhirInstanceCreatorUtility,
+                                                              fhirPath,
+                                                              new IntermediateCacheProcessing(openFhirStringUtils),
+                                                              new OpenEhrConditionEvaluator(openFhirStringUtils));
+        final FhirToOpenEhr fhirToOpenEhr = new FhirToOpenEhr(fhirPath,
+                                                              openFhirStringUtils,
+                                                              new OpenEhrRmWorker(openFhirStringUtils,
+                                                                                  openFhirMapperUtils),
+                                                              openFhirStringUtils,
+                                                              mappingContext,
+                                                              cachedUtils,
+                                                              openFhirMapperUtils,
+                                                              new OpenEhrPopulator(openFhirMapperUtils));
+        engine = new OpenFhirEngine(fhirToOpenEhr,
+                                    openEhrToFhir,
+                                    new FhirConnectContextIndex(contextRepository, openFhirStringUtils),
+                                    fhirContext,
+                                    cachedUtils,
+                                    new InputFormatDetector(),
+                                    new StreamingFlatJsonUnmarshaller(),
+                                    mappingContext,
+                                    new Gson(),
+                                    new AdmissionControl(0, 0, 0, 0, 1),
+                                    false);
+    }
+
+    @Test
+    public void toFhir() {
+        final String expected = engine.toFhir(flat, TEMPLATE_ID);
+        Assert.assertFalse(fhirContext.newJsonParser().parseResource(Bundle.class, expected).getEntry().isEmpty());
+
+        invalidateAfterResolving = true;
+        Assert.assertEquals(expected, engine.toFhir(flat, TEMPLATE_ID));
+        Assert.assertEquals(1, invalidations.get());
+    }
+
+    @Test
+    public void toOpenEhr() {
+        final String resource = fhirContext.newJsonParser().encodeResourceToString(
+                BloodPressureToOpenEhrTest.testBloodPressureObservation());
+        final String expected = engine.toOpenEhr(resource, TEMPLATE_ID, true);
+        Assert.assertFalse(new Gson().fromJson(expected, JsonObject.class).isEmpty());
+
+        invalidateAfterResolving = true;
+        Assert.assertEquals(expected, engine.toOpenEhr(resource, TEMPLATE_ID, true));
+        Assert.assertEquals(1, invalidations.get());
+    }
+
+    @Test
+    public void batch() throws IOException {
+        final String expected = new Gson().fromJson(engine.toFhir(flat, TEMPLATE_ID), JsonObject.class).toString();
+        final String line = new Gson().fromJson(flat, JsonObject.class).toString();
+        final OpenFhirBatchEngine batchEngine = new OpenFhirBatchEngine(engine, new Gson(), 4, 4);
+        try {
+            invalidateAfterResolving = true;
+            final StringWriter output = new StringWriter();
+            final BatchResult result = batchEngine.toFhir(new StringReader((line + "\n").repeat(10)), TEMPLATE_ID,
+                                                          InputFormat.FLAT, output);
+
+            Assert.assertEquals(0, result.failed());
+            // resolved (and right away invalidated) once, yet all lines are mapped with the repository resolved
+            Assert.assertEquals(1, invalidations.get());
+            final String[] lines = output.toString().split("\n");
+            Assert.assertEquals(10, lines.length);
+            for (final String mapped : lines) {
+                Assert.assertEquals(expected, mapped);
+            }
+        } finally {
+            batchEngine.shutdown();
+        }
+    }
+}
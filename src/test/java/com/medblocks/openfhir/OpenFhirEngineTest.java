@@ -16,11 +16,12 @@ public class OpenFhirEngineTest {
                 null,
                 null,
                 null,
+                new InputFormatDetector(),
                 null,
                 null,
+                new Gson(),
                 null,
-                null,
-                new Gson());
+                false);
         final String flatJson = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"));
         final String templateIdFromOpenEhr = openFhirEngine.getTemplateIdFromOpenEhr(flatJson);
         Assert.assertEquals("growth_chart", templateIdFromOpenEhr);
@@ -0,0 +1,127 @@
+package com.medblocks.openfhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
+import com.medblocks.openfhir.db.repository.FhirConnectModelRepository;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.util.FhirConnectModelMerger;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProdOpenFhirMappingContextTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private ProdOpenFhirMappingContext mappingContext;
+    private FhirConnectContext context;
+
+    @Before
+    public void init() throws IOException {
+        final ObjectMapper yaml = OpenFhirTestUtility.getYaml();
+        context = yaml.readValue(getClass().getResourceAsStream("/blood_pressure/simple-blood-pressure.context.yml"),
+                                 FhirConnectContext.class);
+        final FhirConnectModel model = yaml.readValue(
+                getClass().getResourceAsStream("/blood_pressure/blood-pressure.model.yml"), FhirConnectModel.class);
+        final FhirConnectModelRepository modelRepository = new FhirConnectModelRepository() {
+            @Override
+            public List<FhirConnectModelEntity> findByArchetype(final List<String> archetype) {
+                return null;
+            }
+
+            @Override
+            public List<FhirConnectModelEntity> findByName(final List<String> name) {
+                loads.incrementAndGet();
+                return List.of(FhirConnectModelEntity.builder().fhirConnectModel(model).build());
+            }
+
+            @Override
+            public List<FhirConnectModelMetadata> findMetadataByName(final List<String> name) {
+                return null;
+            }
+
+            @Override
+            public List<FhirConnectModelMetadata> findAllMetadata() {
+                return null;
+            }
+
+            @Override
+            public List<FhirConnectModelEntity> findAll() {
+                return null;
+            }
+
+            @Override
+            public FhirConnectModelEntity byId(final String id) {
+                return null;
+            }
+
+            @Override
+            public FhirConnectModelEntity save(final FhirConnectModelEntity entity) {
+                return entity;
+            }
+
+            @Override
+            public void deleteAll() {
+            }
+        };
+        mappingContext = new ProdOpenFhirMappingContext(new FhirPathR4(FhirContext.forR4()),
+                                                        new OpenFhirStringUtils(),
+                                                        modelRepository,
+                                                        new FhirConnectModelMerger());
+    }
+
+    @Test
+    public void repositoryIsBuiltOnlyOnce() {
+        final OpenFhirContextRepository first = mappingContext.initMappingCache(context, null, null);
+        final OpenFhirContextRepository second = mappingContext.initMappingCache(context, null, null);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, loads.get());
+        Assert.assertNotNull(mappingContext.getMapperForArchetype("Blood Pressure", "OBSERVATION.blood_pressure.v2"));
+    }
+
+    @Test
+    public void invalidateTemplate() {
+        final OpenFhirContextRepository first = mappingContext.initMappingCache(context, null, null);
+        mappingContext.invalidateTemplate("some other template");
+        Assert.assertSame(first, mappingContext.initMappingCache(context, null, null));
+
+        mappingContext.invalidateTemplate("Blood Pressure");
+        Assert.assertNotSame(first, mappingContext.initMappingCache(context, null, null));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void invalidateModel() {
+        final OpenFhirContextRepository first = mappingContext.initMappingCache(context, null, null);
+        mappingContext.invalidateModel("some.other.model");
+        Assert.assertSame(first, mappingContext.initMappingCache(context, null, null));
+
+        mappingContext.invalidateModel("OBSERVATION.blood_pressure.v2");
+        Assert.assertNull(mappingContext.getMapperForArchetype("Blood Pressure", "OBSERVATION.blood_pressure.v2"));
+        Assert.assertNotSame(first, mappingContext.initMappingCache(context, null, null));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void getMapperForResource() {
+        mappingContext.initMappingCache(context, null, null);
+        // registered by both name and archetype, but returned only once
+        final List<OpenFhirFhirConnectModelMapper> mappers = mappingContext.getMapperForResource("Blood Pressure",
+                                                                                                 new Observation());
+        Assert.assertEquals(1, mappers.size());
+        Assert.assertEquals("OBSERVATION.blood_pressure.v2", mappers.get(0).getName());
+
+        Assert.assertNull(mappingContext.getMapperForResource("Blood Pressure", new Condition()));
+    }
+}
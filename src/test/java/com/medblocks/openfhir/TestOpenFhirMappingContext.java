@@ -22,10 +22,16 @@ import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
 import org.openehr.schemas.v1.TemplateDocument;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.annotation.RequestScope;
 
+/**
+ * Mapping context with repositories initialized straight from test resources. Only a bean with the test profile, so
+ * an application started from the tests (i.e. by the CLI) only ever has the {@link ProdOpenFhirMappingContext}.
+ */
 @Component
+@Profile("test")
 @RequestScope
 @Slf4j
 public class TestOpenFhirMappingContext extends OpenFhirMappingContext {
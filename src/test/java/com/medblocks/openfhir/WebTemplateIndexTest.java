@@ -0,0 +1,60 @@
+package com.medblocks.openfhir;
+
+import com.medblocks.openfhir.util.OpenFhirMapperUtils;
+import com.medblocks.openfhir.util.OpenFhirStringUtils;
+import java.util.List;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class WebTemplateIndexTest {
+
+    private WebTemplate webTemplate;
+    private WebTemplateIndex index;
+
+    @SneakyThrows
+    @Before
+    public void init() {
+        final String opt = IOUtils.toString(getClass().getResourceAsStream("/blood_pressure/Blood Pressure.opt"));
+        webTemplate = new OPTParser(TemplateDocument.Factory.parse(opt).getTemplate()).parse();
+        index = new WebTemplateIndex(webTemplate);
+    }
+
+    @Test
+    public void siblings() {
+        final List<WebTemplateNode> children = webTemplate.getTree().getChildren();
+        final WebTemplateIndex.Siblings siblings = index.siblings(children);
+        Assert.assertSame(siblings, index.siblings(children));
+        for (final WebTemplateNode child : children) {
+            Assert.assertSame(children.stream().filter(c -> c.getId().equals(child.getId())).findFirst().get(),
+                              siblings.findById(child.getId()));
+            Assert.assertTrue(siblings.containsId(child.getId()));
+            Assert.assertSame(webTemplate.getTree(), index.getParent(child));
+            Assert.assertEquals(child.getAqlPath(true), index.getAqlPath(child).withPredicates());
+            Assert.assertNotNull(siblings.findByAqlPath(index.format(child.getAqlPath(true))));
+        }
+        Assert.assertNull(siblings.findById("does_not_exist"));
+        Assert.assertNull(index.getParent(webTemplate.getTree()));
+    }
+
+    @Test
+    public void format() {
+        final String path = "/content[openEHR-EHR-OBSERVATION.blood_pressure.v2 and name/value='Blood pressure']";
+        final WebTemplateIndex.FormattedAqlPath formatted = index.format(path);
+        Assert.assertEquals(path, formatted.withPredicates());
+        Assert.assertEquals("/content[openEHR-EHR-OBSERVATION.blood_pressure.v2]", formatted.withoutPredicates());
+        Assert.assertSame(formatted, index.format(path));
+    }
+
+    @Test
+    public void indexIsReusedPerWebTemplate() {
+        final OpenEhrRmWorker worker = new OpenEhrRmWorker(new OpenFhirStringUtils(), new OpenFhirMapperUtils());
+        Assert.assertSame(worker.getIndex(webTemplate), worker.getIndex(webTemplate));
+    }
+}
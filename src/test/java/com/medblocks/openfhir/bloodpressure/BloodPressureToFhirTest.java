@@ -1,8 +1,16 @@
 package com.medblocks.openfhir.bloodpressure;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.medblocks.openfhir.GenericTest;
+import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.tofhir.OpenEhrToFhirPlanStep;
 import com.nedap.archie.rm.composition.Composition;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 import lombok.SneakyThrows;
 import org.apache.commons.io.IOUtils;
@@ -45,6 +53,36 @@ public class BloodPressureToFhirTest extends GenericTest {
         assertBloodPressureFhir(bundle);
     }
 
+    @Test
+    public void bloodPressureToFhir_precompiledPlan() {
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(getFlat(HELPER_LOCATION + FLAT),
+                                                                             new OPTParser(
+                                                                                     operationaltemplate).parse());
+        assertBloodPressureFhir(openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+        final Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> plans = repo.getRepository()
+                .get(OpenFhirMappingContext.normalizeTemplateId("Blood Pressure")).getOpenEhrToFhirPlans();
+        Assert.assertEquals(1, plans.size());
+        final Map<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> afterFirst = new HashMap<>(plans);
+
+        // second mapping reuses the plan as it is
+        assertBloodPressureFhir(openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+        Assert.assertEquals(1, plans.size());
+        afterFirst.forEach((mapper, plan) -> Assert.assertSame(plan, plans.get(mapper)));
+    }
+
+    @Test
+    public void bloodPressureToFhir_directFlat() {
+        final JsonObject flat = new Gson().fromJson(getFlat(HELPER_LOCATION + FLAT), JsonObject.class);
+        assertBloodPressureFhir(openEhrToFhir.flatToFhir(context, flat, operationaltemplate));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bloodPressureToFhir_directFlat_notOfTemplate() {
+        final JsonObject flat = new Gson().fromJson(getFlat(HELPER_LOCATION + FLAT), JsonObject.class);
+        flat.addProperty("blood_pressure/not_in_template:0/any_event:0/systolic|magnitude", 120);
+        openEhrToFhir.flatToFhir(context, flat, operationaltemplate);
+    }
+
     @Test
     public void testLocationMappingToFhir() throws IOException {
         // Create a flat JSON with location_of_measurement mapping
@@ -2,6 +2,9 @@ package com.medblocks.openfhir.bloodpressure;
 
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.GenericTest;
+import com.medblocks.openfhir.OpenFhirMappingContext;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.toopenehr.PrecompiledFhirToOpenEhrHelpers;
 import com.nedap.archie.rm.composition.Composition;
 import com.nedap.archie.rm.datastructures.Element;
 import com.nedap.archie.rm.datavalues.DvCodedText;
@@ -18,6 +21,9 @@ import org.hl7.fhir.r4.model.Reference;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class BloodPressureToOpenEhrTest extends GenericTest {
 
     final String MODEL_MAPPINGS = "/blood_pressure/";
@@ -72,6 +78,26 @@ public class BloodPressureToOpenEhrTest extends GenericTest {
                                     .getAsString());
     }
 
+    @Test
+    public void testBloodPressure_precompiledHelpers() {
+        final JsonObject first = fhirToOpenEhr.fhirToFlatJsonObject(context, testBloodPressureObservation(),
+                                                                    operationaltemplate);
+        final Map<OpenFhirFhirConnectModelMapper, PrecompiledFhirToOpenEhrHelpers> compiled = repo.getRepository()
+                .get(OpenFhirMappingContext.normalizeTemplateId("Blood Pressure")).getFhirToOpenEhrHelpers();
+        Assert.assertEquals(1, compiled.size());
+        final Map<OpenFhirFhirConnectModelMapper, PrecompiledFhirToOpenEhrHelpers> afterFirst = new HashMap<>(compiled);
+        final String helpersAfterFirst = compiled.values().toString();
+
+        final JsonObject second = fhirToOpenEhr.fhirToFlatJsonObject(context, testBloodPressureObservation(),
+                                                                     operationaltemplate);
+
+        // helpers are reused as they are and evaluating them doesn't modify them
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(1, compiled.size());
+        afterFirst.forEach((mapper, helpers) -> Assert.assertSame(helpers, compiled.get(mapper)));
+        Assert.assertEquals(helpersAfterFirst, compiled.values().toString());
+    }
+
     @Test
     public void testBloodPressure_RM() {
         final Composition composition = fhirToOpenEhr.fhirToCompositionRm(context,
@@ -0,0 +1,62 @@
+package com.medblocks.openfhir.cli;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OpenFhirCliTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void convert_toFhir() throws IOException {
+        final Path bootstrap = folder.newFolder("bootstrap").toPath();
+        for (final String file : List.of("Growth chart.opt", "growth-chart.context.yml", "body-height.model.yml",
+                                         "body-weight.model.yml", "himss-body-mass-index.model.yml",
+                                         "himss-head-circumference.model.yml")) {
+            FileUtils.copyURLToFile(getClass().getResource("/growth_chart/" + file),
+                                    bootstrap.resolve(file).toFile());
+        }
+        final String composition = IOUtils.toString(
+                getClass().getResourceAsStream("/growth_chart/growth_chart_composition.json"), StandardCharsets.UTF_8);
+        final File input = folder.newFile("compositions.ndjson");
+        Files.writeString(input.toPath(), JsonParser.parseString(composition) + "\n{\"not\": \"a composition\"}\n"
+                + JsonParser.parseString(composition) + "\n");
+        final Path output = folder.getRoot().toPath().resolve("out/fhir.ndjson");
+
+        final int exitCode = OpenFhirCli.run("--bootstrap=" + bootstrap, "--direction=tofhir",
+                                             "--input=" + input, "--output=" + output, "--threads=2");
+
+        // one of the records failed
+        Assert.assertEquals(2, exitCode);
+        final List<String> bundles = Files.readAllLines(output);
+        Assert.assertEquals(2, bundles.size());
+        for (final String bundle : bundles) {
+            final JsonObject json = JsonParser.parseString(bundle).getAsJsonObject();
+            Assert.assertEquals("Bundle", json.get("resourceType").getAsString());
+            Assert.assertFalse(json.getAsJsonArray("entry").isEmpty());
+        }
+        final List<String> failures = Files.readAllLines(output.resolveSibling("fhir.ndjson.failures.ndjson"));
+        Assert.assertEquals(1, failures.size());
+        final JsonObject failure = JsonParser.parseString(failures.get(0)).getAsJsonObject();
+        Assert.assertEquals("compositions.ndjson", failure.get("source").getAsString());
+        Assert.assertEquals(2, failure.get("line").getAsInt());
+    }
+
+    @Test
+    public void convert_invalidOptions() {
+        Assert.assertEquals(1, OpenFhirCli.run("--direction=sideways"));
+    }
+}
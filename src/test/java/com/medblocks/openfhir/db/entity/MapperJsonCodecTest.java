@@ -0,0 +1,80 @@
+package com.medblocks.openfhir.db.entity;
+
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MapperJsonCodecTest {
+
+    private FhirConnectModel model;
+
+    @Before
+    public void init() throws IOException {
+        MapperJsonCodec.clear();
+        model = OpenFhirTestUtility.getYaml().readValue(
+                getClass().getResourceAsStream("/blood_pressure/blood-pressure.model.yml"), FhirConnectModel.class);
+    }
+
+    private FhirConnectModelEntity persisted(final FhirConnectModel model) {
+        final FhirConnectModelEntity entity = FhirConnectModelEntity.builder().id("model-1")
+                .fhirConnectModel(model).build();
+        entity.prePersist();
+        return entity;
+    }
+
+    /**
+     * what loading the row of the given entity from the database would result in
+     */
+    private FhirConnectModelEntity load(final FhirConnectModelEntity persisted, final String contentHash) {
+        final FhirConnectModelEntity loaded = new FhirConnectModelEntity();
+        loaded.id = persisted.id;
+        loaded.fhirConnectModelJson = persisted.fhirConnectModelJson;
+        loaded.contentHash = contentHash;
+        loaded.postLoad();
+        return loaded;
+    }
+
+    @Test
+    public void unchangedRowIsDecodedOnce() {
+        final FhirConnectModelEntity persisted = persisted(model);
+        Assert.assertEquals(64, persisted.getContentHash().length());
+
+        final FhirConnectModel first = load(persisted, persisted.getContentHash()).getFhirConnectModel();
+        Assert.assertEquals(model.getMetadata().getName(), first.getMetadata().getName());
+        Assert.assertEquals("model-1", first.getId());
+        Assert.assertSame(first, load(persisted, persisted.getContentHash()).getFhirConnectModel());
+        // rows persisted without a hash
+        Assert.assertSame(first, load(persisted, null).getFhirConnectModel());
+    }
+
+    @Test
+    public void changedRowIsDecodedAgain() {
+        final FhirConnectModelEntity persisted = persisted(model);
+        final FhirConnectModel first = load(persisted, persisted.getContentHash()).getFhirConnectModel();
+
+        model.getMetadata().setName("changed");
+        final FhirConnectModelEntity changed = persisted(model);
+        Assert.assertNotEquals(persisted.getContentHash(), changed.getContentHash());
+
+        final FhirConnectModel second = load(changed, changed.getContentHash()).getFhirConnectModel();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("changed", second.getMetadata().getName());
+    }
+
+    @Test
+    public void copyDoesNotShareMappings() {
+        final FhirConnectModel loaded = load(persisted(model), null).getFhirConnectModel();
+        final FhirConnectModel copy = loaded.copy();
+        final int mappings = loaded.getMappings().size();
+
+        copy.getMappings().get(0).setName("changed");
+        copy.getMappings().remove(mappings - 1);
+
+        Assert.assertEquals(mappings, loaded.getMappings().size());
+        Assert.assertNotEquals("changed", loaded.getMappings().get(0).getName());
+        Assert.assertSame(loaded.getMetadata(), copy.getMetadata());
+    }
+}
@@ -0,0 +1,45 @@
+package com.medblocks.openfhir.db.repository.memory;
+
+import com.medblocks.openfhir.db.entity.FhirConnectModelEntity;
+import com.medblocks.openfhir.db.entity.FhirConnectModelMetadata;
+import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.entity.OptMetadata;
+import com.medblocks.openfhir.fc.schema.model.FhirConnectModel;
+import com.medblocks.openfhir.util.OpenFhirTestUtility;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataProjectionTest {
+
+    @Test
+    public void optMetadata() {
+        final OptMemoryRepository repository = new OptMemoryRepository();
+        final OptEntity opt = new OptEntity(null, "<template/>", "Growth chart", "Growth chart", "Growth chart");
+        opt.setContentHash("hash");
+        repository.save(opt);
+
+        final OptMetadata metadata = repository.findMetadataByTemplateId("Growth chart");
+        Assert.assertEquals(opt.getId(), metadata.id());
+        Assert.assertEquals("Growth chart", metadata.templateId());
+        Assert.assertEquals("hash", metadata.contentHash());
+        Assert.assertNull(repository.findMetadataByTemplateId("no such template"));
+        Assert.assertEquals(List.of(metadata), repository.findAllMetadata());
+    }
+
+    @Test
+    public void modelMetadata() throws IOException {
+        final FhirConnectModel model = OpenFhirTestUtility.getYaml().readValue(
+                getClass().getResourceAsStream("/blood_pressure/blood-pressure.model.yml"), FhirConnectModel.class);
+        final FhirConnectModelMemoryRepository repository = new FhirConnectModelMemoryRepository();
+        repository.save(FhirConnectModelEntity.builder().fhirConnectModel(model).build());
+
+        final List<FhirConnectModelMetadata> metadata =
+                repository.findMetadataByName(List.of(model.getMetadata().getName()));
+        Assert.assertEquals(1, metadata.size());
+        Assert.assertEquals(model.getMetadata().getName(), metadata.get(0).name());
+        Assert.assertEquals(model.getSpec().getOpenEhrConfig().getArchetype(), metadata.get(0).archetype());
+        Assert.assertTrue(repository.findMetadataByName(List.of("no such model")).isEmpty());
+    }
+}
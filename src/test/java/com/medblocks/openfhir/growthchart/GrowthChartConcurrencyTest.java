@@ -0,0 +1,93 @@
+package com.medblocks.openfhir.growthchart;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.gson.Gson;
+import com.medblocks.openfhir.GenericTest;
+import com.nedap.archie.rm.composition.Composition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Maps the growth chart in both directions from many threads at once, all sharing the same mapping beans, and
+ * expects every single result to be the same as the one mapped on a single thread.
+ */
+public class GrowthChartConcurrencyTest extends GenericTest {
+
+    private static final int THREADS = 16;
+    private static final int MAPPINGS_PER_THREAD = 10;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Gson gson = new Gson();
+    private String bundle;
+    private String flat;
+
+    @SneakyThrows
+    @Override
+    protected void prepareState() {
+        context = getContext("/growth_chart/growth-chart.context.yml");
+        operationaltemplateSerialized = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/Growth chart.opt"));
+        operationaltemplate = getOperationalTemplate();
+        repo.initRepository(context, operationaltemplate, getClass().getResource("/growth_chart/").getFile());
+        webTemplate = new OPTParser(operationaltemplate).parse();
+        bundle = fhirContext.newJsonParser().encodeResourceToString(GrowthChartToOpenEhrTest.growthChartTestBundle());
+        flat = getFlat("/growth_chart/growth_chart_flat.json");
+    }
+
+    @Test
+    public void bothDirections() throws Exception {
+        final String expectedFlat = toOpenEhr();
+        final String expectedBundle = toFhir();
+        Assert.assertNotEquals("{}", expectedFlat);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<?>> mappings = new ArrayList<>();
+            for (int i = 0; i < THREADS * MAPPINGS_PER_THREAD; i++) {
+                // both directions interleaved, so date formatting and parsing run concurrently as well
+                mappings.add(executor.submit(i % 2 == 0
+                                                     ? expect(expectedFlat, this::toOpenEhr)
+                                                     : expect(expectedBundle, this::toFhir)));
+            }
+            for (final Future<?> mapping : mappings) {
+                mapping.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Void> expect(final String expected, final Callable<String> mapping) {
+        return () -> {
+            Assert.assertEquals(expected, mapping.call());
+            return null;
+        };
+    }
+
+    /**
+     * Parses the Bundle with a parser of its own, as requests do, and maps it to a flat Composition
+     */
+    private String toOpenEhr() {
+        final Bundle parsed = fhirContext.newJsonParser().parseResource(Bundle.class, bundle);
+        return gson.toJson(fhirToOpenEhr.fhirToFlatJsonObject(context, parsed, operationaltemplate));
+    }
+
+    /**
+     * Maps the flat Composition to a Bundle and encodes it with a parser of its own, as requests do
+     */
+    private String toFhir() {
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(flat, webTemplate);
+        return fhirContext.newJsonParser().encodeResourceToString(
+                openEhrToFhir.compositionToFhir(context, composition, operationaltemplate));
+    }
+}
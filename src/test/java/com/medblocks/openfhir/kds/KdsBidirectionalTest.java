@@ -106,8 +106,6 @@ public abstract class KdsBidirectionalTest {
                                           new OpenEhrConditionEvaluator(openFhirStringUtils));
         fhirToOpenEhr = new FhirToOpenEhr(fhirPath,
                                           new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
-                                          new Gson(),
                                           new OpenEhrRmWorker(openFhirStringUtils, openFhirMapperUtils),
                                           openFhirStringUtils,
                                           repo,
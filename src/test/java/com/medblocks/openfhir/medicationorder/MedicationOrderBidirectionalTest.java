@@ -1,5 +1,6 @@
 package com.medblocks.openfhir.medicationorder;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.medblocks.openfhir.GenericTest;
@@ -156,4 +157,22 @@ public class MedicationOrderBidirectionalTest extends GenericTest {
         }
     }
 
+    @Test
+    public void mappingDoesNotModifyCachedMappers() throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final String cachedBefore = cachedMappers(objectMapper);
+
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(getFlat(HELPER_LOCATION + FLAT),
+                                                                             webTemplate);
+        openEhrToFhir.compositionToFhir(context, composition, operationaltemplate);
+        fhirToOpenEhr.fhirToCompositionRm(context, MedicationOrderToOpenEhrTest.testMedicationMedicationRequestBundle(),
+                                          operationaltemplate);
+
+        Assert.assertEquals(cachedBefore, cachedMappers(objectMapper));
+    }
+
+    private String cachedMappers(final ObjectMapper objectMapper) throws IOException {
+        return objectMapper.writeValueAsString(repo.getRepository().get("medication_order").getMappers());
+    }
+
 }
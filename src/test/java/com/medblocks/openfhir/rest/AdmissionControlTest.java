@@ -0,0 +1,341 @@
+package com.medblocks.openfhir.rest;
+
+import com.google.gson.Gson;
+import com.medblocks.openfhir.InputFormatDetector;
+import com.medblocks.openfhir.OpenFhirEngine;
+import com.medblocks.openfhir.rest.AdmissionControl.Metrics;
+import com.medblocks.openfhir.rest.AdmissionControl.Permit;
+import com.medblocks.openfhir.rest.AdmissionControl.Rejection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void maxInFlight() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(2, 0, 0, 0, 1);
+        final Permit first = admissionControl.admit("a", 10);
+        final Permit second = admissionControl.admit("b", 10);
+        assertRejected(Rejection.MAX_IN_FLIGHT, () -> admissionControl.admit("c", 10));
+
+        first.close();
+        admissionControl.admit("c", 10).close();
+        second.close();
+
+        final Metrics metrics = admissionControl.metrics();
+        Assert.assertEquals(0, metrics.inFlight());
+        Assert.assertEquals(0, metrics.bytesInFlight());
+        Assert.assertTrue(metrics.inFlightByTemplate().isEmpty());
+        Assert.assertEquals(3, metrics.admitted());
+        Assert.assertEquals(1L, (long) metrics.rejected().get(Rejection.MAX_IN_FLIGHT));
+    }
+
+    @Test
+    public void maxInFlightPerTemplate() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 1, 0, 0, 1);
+        try (Permit ignored = admissionControl.admit("a", 10)) {
+            assertRejected(Rejection.MAX_IN_FLIGHT_PER_TEMPLATE, () -> admissionControl.admit("a", 10));
+            // other templates and requests without a template aren't limited by it
+            admissionControl.admit("b", 10).close();
+            admissionControl.admit(null, 10).close();
+            admissionControl.admit(null, 10).close();
+            Assert.assertEquals(1, (int) admissionControl.metrics().inFlightByTemplate().get("a"));
+        }
+        admissionControl.admit("a", 10).close();
+    }
+
+    @Test
+    public void maxBytesInFlight() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 0, 100, 0, 1);
+        try (Permit ignored = admissionControl.admit("a", 60)) {
+            Assert.assertEquals(60, admissionControl.metrics().bytesInFlight());
+            assertRejected(Rejection.MAX_BYTES_IN_FLIGHT, () -> admissionControl.admit("a", 50));
+            admissionControl.admit("a", 40).close();
+        }
+        assertRejected(Rejection.BODY_TOO_LARGE, () -> admissionControl.admit("a", 101));
+        admissionControl.admit("a", 100).close();
+    }
+
+    @Test
+    public void waitsForRequestsInFlight() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1, 0, 0, 10_000, 1);
+        final Permit first = admissionControl.admit("a", 10);
+        final CompletableFuture<Permit> second = CompletableFuture.supplyAsync(() -> admit(admissionControl));
+        while (admissionControl.metrics().queued() == 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(second.isDone());
+
+        first.close();
+        second.get(10, TimeUnit.SECONDS).close();
+        Assert.assertEquals(0, admissionControl.metrics().queued());
+        Assert.assertEquals(2, admissionControl.metrics().admitted());
+    }
+
+    @Test
+    public void rejectedAfterQueueTimeout() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1, 0, 0, 50, 1);
+        try (Permit ignored = admissionControl.admit("a", 10)) {
+            assertRejected(Rejection.MAX_IN_FLIGHT, () -> admissionControl.admit("a", 10));
+        }
+        Assert.assertEquals(0, admissionControl.metrics().queued());
+    }
+
+    @Test
+    public void publishesMetrics() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1, 0, 100, 0, 1);
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        admissionControl.bindTo(registry);
+
+        try (Permit ignored = admissionControl.admit("a", 60)) {
+            Assert.assertEquals(1, registry.get("openfhir.admission.in.flight").gauge().value(), 0);
+            Assert.assertEquals(60, registry.get("openfhir.admission.bytes.in.flight").gauge().value(), 0);
+            assertRejected(Rejection.MAX_IN_FLIGHT, () -> admissionControl.admit("b", 10));
+        }
+        assertRejected(Rejection.BODY_TOO_LARGE, () -> admissionControl.admit("b", 101));
+
+        Assert.assertEquals(0, registry.get("openfhir.admission.in.flight").gauge().value(), 0);
+        Assert.assertEquals(0, registry.get("openfhir.admission.queued").gauge().value(), 0);
+        Assert.assertEquals(1, registry.get("openfhir.admission.admitted").functionCounter().count(), 0);
+        Assert.assertEquals(1, registry.get("openfhir.admission.rejected").tag("reason", "max_in_flight")
+                .tag("status", "503").functionCounter().count(), 0);
+        Assert.assertEquals(1, registry.get("openfhir.admission.rejected").tag("reason", "body_too_large")
+                .tag("status", "413").functionCounter().count(), 0);
+        Assert.assertEquals(0, registry.get("openfhir.admission.rejected").tag("reason", "max_bytes_in_flight")
+                .functionCounter().count(), 0);
+    }
+
+    @Test
+    public void filterRespondsToRejectedRequests() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1, 1, 100, 0, 5);
+        final AdmissionFilter filter = new AdmissionFilter(admissionControl);
+
+        try (Permit ignored = admissionControl.admit("a", 10)) {
+            final MockHttpServletResponse overloaded = filter(filter, request("/openfhir/toopenehr", "b", 10));
+            Assert.assertEquals(503, overloaded.getStatus());
+            Assert.assertEquals("5", overloaded.getHeader(HttpHeaders.RETRY_AFTER));
+        }
+        try (Permit ignored = admissionControl.admit("a", 10)) {
+            // global limit is hit before the template's
+            Assert.assertEquals(503, filter(filter, request("/openfhir/toopenehr", "a", 10)).getStatus());
+        }
+
+        final MockHttpServletResponse tooLarge = filter(filter, request("/openfhir/toopenehr", "a", 101));
+        Assert.assertEquals(413, tooLarge.getStatus());
+        Assert.assertNull(tooLarge.getHeader(HttpHeaders.RETRY_AFTER));
+
+        // bodies of batches aren't counted
+        Assert.assertEquals(200, filter(filter, request("/openfhir/toopenehr/$batch", "a", 101)).getStatus());
+        Assert.assertEquals(200, filter(filter, request("/openfhir/toopenehr", "a", -1)).getStatus());
+        Assert.assertEquals(0, admissionControl.metrics().inFlight());
+    }
+
+    @Test
+    public void filterCountsRequestsOfTemplateOnceKnown() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 1, 0, 0, 5);
+        final AdmissionFilter filter = new AdmissionFilter(admissionControl);
+        final int[] inFlight = new int[2];
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("/openfhir/tofhir", null, 10), response, (req, res) -> {
+            Assert.assertTrue(admissionControl.metrics().inFlightByTemplate().isEmpty());
+            admissionControl.admitTemplate("a");
+            inFlight[0] = admissionControl.metrics().inFlightByTemplate().get("a");
+
+            final MockHttpServletResponse sameTemplate = new MockHttpServletResponse();
+            filter.doFilter(request("/openfhir/tofhir", null, 10), sameTemplate,
+                            (sameReq, sameRes) -> admissionControl.admitTemplate("a"));
+            Assert.assertEquals(429, sameTemplate.getStatus());
+            Assert.assertEquals("5", sameTemplate.getHeader(HttpHeaders.RETRY_AFTER));
+        });
+        Assert.assertEquals(1, inFlight[0]);
+        Assert.assertEquals(200, response.getStatus());
+
+        // a request given its template upfront is counted for it only once
+        filter.doFilter(request("/openfhir/tofhir", "a", 10), new MockHttpServletResponse(), (req, res) -> {
+            admissionControl.admitTemplate("a");
+            inFlight[1] = admissionControl.metrics().inFlightByTemplate().get("a");
+        });
+        Assert.assertEquals(1, inFlight[1]);
+        Assert.assertTrue(admissionControl.metrics().inFlightByTemplate().isEmpty());
+        // not bound to a request
+        admissionControl.admitTemplate("a");
+        Assert.assertTrue(admissionControl.metrics().inFlightByTemplate().isEmpty());
+    }
+
+    @Test
+    public void filterCountsCompositionsForTheirTemplateWithoutParameter() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 1, 0, 0, 5);
+        final AdmissionFilter filter = new AdmissionFilter(admissionControl);
+        final OpenFhirEngine engine = new OpenFhirEngine(null, null, null, null, null, new InputFormatDetector(),
+                                                         null, null, new Gson(), admissionControl, false);
+        final FilterChain toFhir = (req, res) -> engine.toFhir(req.getReader(), null, null, res.getWriter());
+
+        // template of a canonical Composition is in its archetype_details
+        try (Permit ignored = admissionControl.admit("Growth chart", 0)) {
+            final MockHttpServletResponse canonical = new MockHttpServletResponse();
+            filter.doFilter(request("/openfhir/tofhir", "/growth_chart/growth_chart_composition.json"), canonical,
+                            toFhir);
+            Assert.assertEquals(429, canonical.getStatus());
+        }
+        // template of a flat Composition is the prefix of its paths
+        try (Permit ignored = admissionControl.admit("growth_chart", 0)) {
+            final MockHttpServletResponse flat = new MockHttpServletResponse();
+            filter.doFilter(request("/openfhir/tofhir", "/growth_chart/growth_chart_flat.json"), flat, toFhir);
+            Assert.assertEquals(429, flat.getStatus());
+        }
+        Assert.assertEquals(2L, (long) admissionControl.metrics().rejected().get(Rejection.MAX_IN_FLIGHT_PER_TEMPLATE));
+        Assert.assertEquals(0, admissionControl.metrics().inFlight());
+    }
+
+    @Test
+    public void filterCountsChunkedBodiesAsTheyAreRead() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 0, 100, 0, 5);
+        final AdmissionFilter filter = new AdmissionFilter(admissionControl);
+        final long[] bytesInFlight = new long[1];
+
+        final MockHttpServletResponse withinBudget = new MockHttpServletResponse();
+        filter.doFilter(chunked("/openfhir/toopenehr", 80), withinBudget, (req, res) -> {
+            Assert.assertEquals(0, admissionControl.metrics().bytesInFlight());
+            Assert.assertEquals(80, req.getInputStream().readAllBytes().length);
+            bytesInFlight[0] = admissionControl.metrics().bytesInFlight();
+        });
+        Assert.assertEquals(200, withinBudget.getStatus());
+        Assert.assertEquals(80, bytesInFlight[0]);
+        Assert.assertEquals(0, admissionControl.metrics().bytesInFlight());
+
+        // larger than the budget, read through the reader and rejected part way through
+        final MockHttpServletResponse tooLarge = new MockHttpServletResponse();
+        filter.doFilter(chunked("/openfhir/toopenehr", 1000), tooLarge,
+                        (req, res) -> IOUtils.toString(req.getReader()));
+        Assert.assertEquals(413, tooLarge.getStatus());
+        Assert.assertNull(tooLarge.getHeader(HttpHeaders.RETRY_AFTER));
+
+        // rejected even if whatever read the body responds to the failure itself, as long as it's not committed
+        final MockHttpServletResponse handled = new MockHttpServletResponse();
+        filter.doFilter(chunked("/openfhir/toopenehr", 1000), handled, (req, res) -> {
+            try {
+                req.getInputStream().readAllBytes();
+            } catch (final RuntimeException e) {
+                ((HttpServletResponse) res).setStatus(400);
+                res.getWriter().write(String.valueOf(e.getMessage()));
+            }
+        });
+        Assert.assertEquals(413, handled.getStatus());
+
+        // over what's left of the budget while other bodies are in flight
+        try (Permit ignored = admissionControl.admit("a", 60)) {
+            final MockHttpServletResponse overloaded = new MockHttpServletResponse();
+            filter.doFilter(chunked("/openfhir/toopenehr", 50), overloaded,
+                            (req, res) -> req.getInputStream().readAllBytes());
+            Assert.assertEquals(503, overloaded.getStatus());
+            Assert.assertEquals("5", overloaded.getHeader(HttpHeaders.RETRY_AFTER));
+        }
+
+        final Metrics metrics = admissionControl.metrics();
+        Assert.assertEquals(0, metrics.inFlight());
+        Assert.assertEquals(0, metrics.bytesInFlight());
+        Assert.assertEquals(2L, (long) metrics.rejected().get(Rejection.BODY_TOO_LARGE));
+        Assert.assertEquals(1L, (long) metrics.rejected().get(Rejection.MAX_BYTES_IN_FLIGHT));
+    }
+
+    @Test
+    public void filterCountsRequestsOfTemplate() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(0, 1, 0, 0, 5);
+        final AdmissionFilter filter = new AdmissionFilter(admissionControl);
+        final MockHttpServletRequest request = request("/openfhir/tofhir", "a", 10);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final int[] inFlight = new int[1];
+        filter.doFilter(request, response, (req, res) -> {
+            inFlight[0] = admissionControl.metrics().inFlightByTemplate().get("a");
+            final MockHttpServletResponse sameTemplate = filter(filter, request("/openfhir/tofhir", "a", 10));
+            Assert.assertEquals(429, sameTemplate.getStatus());
+            Assert.assertEquals("5", sameTemplate.getHeader(HttpHeaders.RETRY_AFTER));
+        });
+        Assert.assertEquals(1, inFlight[0]);
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertTrue(admissionControl.metrics().inFlightByTemplate().isEmpty());
+    }
+
+    private static MockHttpServletRequest request(final String uri, final String templateId, final int bytes) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setParameter("templateId", templateId);
+        if (bytes >= 0) {
+            request.setContent(new byte[bytes]);
+        }
+        return request;
+    }
+
+    /**
+     * @return request without a templateId parameter, with the given resource as its body
+     */
+    private MockHttpServletRequest request(final String uri, final String bodyPath) throws IOException {
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setContentType("application/json");
+        request.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        request.setContent(IOUtils.toByteArray(getClass().getResourceAsStream(bodyPath)));
+        return request;
+    }
+
+    /**
+     * @return request with a body of the given size but without a Content-Length, as with chunked bodies
+     */
+    private static MockHttpServletRequest chunked(final String uri, final int bytes) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", uri) {
+            @Override
+            public int getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public long getContentLengthLong() {
+                return -1;
+            }
+        };
+        request.setContent(new byte[bytes]);
+        return request;
+    }
+
+    private static MockHttpServletResponse filter(final AdmissionFilter filter, final MockHttpServletRequest request) {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            filter.doFilter(request, response, new MockFilterChain());
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+        return response;
+    }
+
+    private static Permit admit(final AdmissionControl admissionControl) {
+        try {
+            return admissionControl.admit("a", 10);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void assertRejected(final Rejection expected, final Admission admission) throws Exception {
+        try {
+            admission.admit().close();
+            Assert.fail("Expected to be rejected with " + expected);
+        } catch (final AdmissionRejectedException e) {
+            Assert.assertEquals(expected, e.getRejection());
+        }
+    }
+
+    private interface Admission {
+
+        Permit admit() throws Exception;
+    }
+}
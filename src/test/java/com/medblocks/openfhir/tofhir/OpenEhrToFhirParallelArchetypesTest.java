@@ -0,0 +1,117 @@
+package com.medblocks.openfhir.tofhir;
+
+import com.medblocks.openfhir.GenericTest;
+import com.medblocks.openfhir.OpenFhirContextRepository;
+import com.medblocks.openfhir.TestOpenFhirMappingContext;
+import com.medblocks.openfhir.fc.OpenFhirFhirConnectModelMapper;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.nedap.archie.rm.composition.Composition;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+
+/**
+ * Maps Compositions of the bidirectional test suites with archetypes mapped one after another and concurrently, and
+ * expects the very same Bundle from both.
+ */
+public class OpenEhrToFhirParallelArchetypesTest extends GenericTest {
+
+    private static final int PARALLEL_RUNS = 5;
+
+    private final Set<String> mappingThreads = ConcurrentHashMap.newKeySet();
+    private OpenEhrToFhir parallel;
+
+    @Override
+    protected void prepareState() {
+        parallel = createOpenEhrToFhir(true, 4);
+    }
+
+    @Override
+    protected TestOpenFhirMappingContext createRepo() {
+        return new TestOpenFhirMappingContext(fhirPath, openFhirStringUtils, fhirConnectModelMerger) {
+            @Override
+            public List<OpenEhrToFhirPlanStep> getOpenEhrToFhirPlan(final OpenFhirContextRepository specificRepo,
+                                                                    final OpenFhirFhirConnectModelMapper mapper,
+                                                                    final Function<OpenFhirFhirConnectModelMapper, List<OpenEhrToFhirPlanStep>> compiler) {
+                mappingThreads.add(Thread.currentThread().getName());
+                return super.getOpenEhrToFhirPlan(specificRepo, mapper, compiler);
+            }
+        };
+    }
+
+    @After
+    public void shutdown() {
+        parallel.shutdown();
+    }
+
+    @Test
+    public void growthChart() {
+        assertSameBundles("/growth_chart/", "/growth_chart/growth-chart.context.yml",
+                          "/growth_chart/Growth chart.opt", "/growth_chart/growth_chart_flat.json");
+        // archetypes have actually been mapped concurrently
+        Assert.assertTrue(mappingThreads.stream().anyMatch(thread -> thread.startsWith("ForkJoinPool")));
+    }
+
+    @Test
+    public void bloodPressure() {
+        assertSameBundles("/blood_pressure/", "/blood_pressure/simple-blood-pressure.context.yml",
+                          "/blood_pressure/Blood Pressure.opt", "/blood_pressure/blood-pressure_flat.json");
+    }
+
+    @Test
+    public void medicationOrder() {
+        assertSameBundles("/medication_order/", "/medication_order/medication-order.context.yml",
+                          "/medication_order/medication order.opt", "/medication_order/medication_order_flat.json");
+    }
+
+    @Test
+    public void kds() {
+        final String kds = "/kds_new/projects/org.highmed/KDS/";
+        assertSameBundles("/kds_new/", kds + "diagnose/KDS_diagnose.context.yaml",
+                          "/kds/diagnose/KDS_Diagnose.opt",
+                          "/kds/diagnose/KDS_Diagnose_multiple_Composition.flat.json");
+        assertSameBundles("/kds_new/", kds + "fall/KDS_fall_einfach.context.yaml",
+                          "/kds/fall/KDS_Fall_einfach.opt", "/kds/fall/KDS_Fall_einfach.flat.json");
+        assertSameBundles("/kds_new/", kds + "laborauftrag/KDS_laborauftrag.context.yaml",
+                          "/kds/laborauftrag/KDS_Laborauftrag.opt", "/kds/laborauftrag/KDS_Laborauftrag.flat.json");
+        assertSameBundles("/kds_new/", kds + "laborbericht/KDS_laborbericht.context.yaml",
+                          "/kds/laborbericht/KDS_Laborbericht.opt",
+                          "/kds/laborbericht/KDS_Laborbericht_multiples.flat.json");
+        assertSameBundles("/kds_new/", kds + "medikationseintrag/KDS_medikationseintrag.context.yaml",
+                          "/kds/medikationseintrag/KDS_Medikationseintrag.opt",
+                          "/kds/medikationseintrag/KDS_Medikationseintrag.flat.json");
+        assertSameBundles("/kds_new/", kds + "medikationsverabreichung/KDS_medikationsverabreichung.context.yaml",
+                          "/kds/medikationsverabreichung/KDS_Medikamentenverabreichungen.opt",
+                          "/kds/medikationsverabreichung/KDS_Medikamentenverabreichungen.flat.json");
+        assertSameBundles("/kds_new/", kds + "procedure/procedure.context.yaml",
+                          "/kds/procedure/KDS_Prozedur.opt", "/kds/procedure/KDS_Prozedur.flat.json");
+        assertSameBundles("/kds_new/", kds + "studienteilnahme/studienteilnahme.context.yaml",
+                          "/kds/studienteilnahme/Studienteilnahme.opt",
+                          "/kds/studienteilnahme/studienteilnahme.flat.json");
+    }
+
+    private void assertSameBundles(final String modelMappings, final String contextPath, final String optPath,
+                                   final String flatPath) {
+        final FhirConnectContext context = getContext(contextPath);
+        final OPERATIONALTEMPLATE operationalTemplate = getOperationalTemplate(optPath);
+        repo.initRepository(context, operationalTemplate, getClass().getResource(modelMappings).getFile());
+        final Composition composition = new FlatJsonUnmarshaller().unmarshal(
+                getFlat(flatPath), new OPTParser(operationalTemplate).parse());
+
+        final Bundle expected = openEhrToFhir.compositionToFhir(context, composition, operationalTemplate);
+        Assert.assertFalse(expected.getEntry().isEmpty());
+        for (int i = 0; i < PARALLEL_RUNS; i++) {
+            // deep comparison, including the order of entries; not all of the Bundles can be encoded
+            Assert.assertTrue(flatPath, expected.equalsDeep(
+                    parallel.compositionToFhir(context, composition, operationalTemplate)));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.medblocks.openfhir.toopenehr;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.gson.Gson;
+import com.medblocks.openfhir.GenericTest;
+import com.medblocks.openfhir.fc.schema.context.FhirConnectContext;
+import com.medblocks.openfhir.growthchart.GrowthChartToOpenEhrTest;
+import com.medblocks.openfhir.medicationorder.MedicationOrderToOpenEhrTest;
+import com.medblocks.openfhir.util.CachedFhirPathR4;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+
+/**
+ * Maps Bundles of the to openEHR test suites with entries mapped one after another and concurrently, and expects
+ * the very same flat Composition from both.
+ */
+public class FhirToOpenEhrParallelEntriesTest extends GenericTest {
+
+    private static final int PARALLEL_RUNS = 5;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Gson gson = new Gson();
+    private final Set<String> mappingThreads = ConcurrentHashMap.newKeySet();
+    private FhirToOpenEhr parallel;
+
+    @Override
+    protected void prepareState() {
+        parallel = createFhirToOpenEhr(true, 4);
+    }
+
+    @Override
+    protected FhirPathR4 createFhirPath() {
+        return new CachedFhirPathR4(fhirContext) {
+            @Override
+            public <T extends IBase> List<T> evaluate(final IBase input, final String path,
+                                                      final Class<T> returnType) {
+                mappingThreads.add(Thread.currentThread().getName());
+                return super.evaluate(input, path, returnType);
+            }
+        };
+    }
+
+    @After
+    public void shutdown() {
+        parallel.shutdown();
+    }
+
+    @Test
+    public void growthChart() {
+        assertSameFlats("/growth_chart/", "/growth_chart/growth-chart.context.yml", "/growth_chart/Growth chart.opt",
+                        GrowthChartToOpenEhrTest.growthChartTestBundle());
+        // entries have actually been mapped concurrently
+        Assert.assertTrue(mappingThreads.stream().anyMatch(thread -> thread.startsWith("ForkJoinPool")));
+    }
+
+    @Test
+    public void growthChartWithEntryNothingIsMappedFrom() {
+        // following entries get another index than they would have otherwise
+        final Bundle bundle = GrowthChartToOpenEhrTest.growthChartTestBundle();
+        final Observation empty = new Observation();
+        empty.addCategory(new CodeableConcept(new Coding(null, "weight", null)));
+        bundle.getEntry().add(1, new Bundle.BundleEntryComponent().setResource(empty));
+
+        assertSameFlats("/growth_chart/", "/growth_chart/growth-chart.context.yml", "/growth_chart/Growth chart.opt",
+                        bundle);
+    }
+
+    @Test
+    public void medicationOrder() {
+        assertSameFlats("/medication_order/", "/medication_order/medication-order.context.yml",
+                        "/medication_order/medication order.opt",
+                        MedicationOrderToOpenEhrTest.testMedicationMedicationRequestBundle());
+    }
+
+    @Test
+    public void news2() {
+        assertSameFlats("/news2/", "/news2/NEWS2_Context_Mapping.context.yaml", "/news2/NEWS2 Encounter Parent.opt",
+                        bundle("/news2/exampleBundle.json"));
+    }
+
+    @Test
+    public void kds() {
+        final String kds = "/kds_new/projects/org.highmed/KDS/";
+        assertSameFlats("/kds_new/", kds + "diagnose/KDS_diagnose.context.yaml", "/kds/diagnose/KDS_Diagnose.opt",
+                        bundle("/kds/diagnose/KDS_Diagnose_bundle_whole.json"));
+        assertSameFlats("/kds_new/", kds + "fall/KDS_fall_einfach.context.yaml", "/kds/fall/KDS_Fall_einfach.opt",
+                        bundle("/kds/fall/KDS_Fall_einfach_Bundle.json"));
+        assertSameFlats("/kds_new/", kds + "laborauftrag/KDS_laborauftrag.context.yaml",
+                        "/kds/laborauftrag/KDS_Laborauftrag.opt",
+                        bundle("/kds/laborauftrag/KDS_Laborauftrag_bundle.json"));
+        assertSameFlats("/kds_new/", kds + "laborbericht/KDS_laborbericht.context.yaml",
+                        "/kds/laborbericht/KDS_Laborbericht.opt",
+                        bundle("/kds/laborbericht/KDS_Laborbericht_bundle.json"));
+        assertSameFlats("/kds_new/", kds + "medikationseintrag/KDS_medikationseintrag.context.yaml",
+                        "/kds/medikationseintrag/KDS_Medikationseintrag.opt",
+                        bundle("/kds/medikationseintrag/KDS_Medikationseintrag_v1-Fhir-Bundle-input.json"));
+        assertSameFlats("/kds_new/", kds + "medikationsverabreichung/KDS_medikationsverabreichung.context.yaml",
+                        "/kds/medikationsverabreichung/KDS_Medikamentenverabreichungen.opt",
+                        bundle("/kds/medikationsverabreichung/KDS_Medikamentenverabreichungen_Bundle.json"));
+        assertSameFlats("/kds_new/", kds + "procedure/procedure.context.yaml", "/kds/procedure/KDS_Prozedur.opt",
+                        bundle("/kds/procedure/KDS_Prozedur_bundle.json"));
+        assertSameFlats("/kds_new/", kds + "studienteilnahme/studienteilnahme.context.yaml",
+                        "/kds/studienteilnahme/Studienteilnahme.opt",
+                        bundle("/kds/studienteilnahme/studienteilnahme_bundle.json"));
+    }
+
+    private void assertSameFlats(final String modelMappings, final String contextPath, final String optPath,
+                                 final Bundle bundle) {
+        final FhirConnectContext context = getContext(contextPath);
+        final OPERATIONALTEMPLATE operationalTemplate = getOperationalTemplate(optPath);
+        repo.initRepository(context, operationalTemplate, getClass().getResource(modelMappings).getFile());
+
+        // serialized, so the order of the flat paths is compared as well
+        final String expected = gson.toJson(fhirToOpenEhr.fhirToFlatJsonObject(context, bundle, operationalTemplate));
+        Assert.assertNotEquals("{}", expected);
+        for (int i = 0; i < PARALLEL_RUNS; i++) {
+            Assert.assertEquals(contextPath, expected,
+                                gson.toJson(parallel.fhirToFlatJsonObject(context, bundle, operationalTemplate)));
+        }
+    }
+
+    private Bundle bundle(final String path) {
+        return fhirContext.newJsonParser().parseResource(Bundle.class, getClass().getResourceAsStream(path));
+    }
+}
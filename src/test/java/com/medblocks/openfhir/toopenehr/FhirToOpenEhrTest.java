@@ -12,7 +12,6 @@ import com.medblocks.openfhir.util.OpenFhirMapperUtils;
 import com.medblocks.openfhir.util.OpenFhirStringUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
-import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Patient;
@@ -34,8 +33,6 @@ public class FhirToOpenEhrTest {
     public void init() {
         fhirToOpenEhr = new FhirToOpenEhr(fhirPathR4,
                                           new OpenFhirStringUtils(),
-                                          new FlatJsonUnmarshaller(),
-                                          new Gson(),
                                           new OpenEhrRmWorker(openFhirStringUtils, new OpenFhirMapperUtils()),
                                           openFhirStringUtils,
                                           repo,
@@ -0,0 +1,81 @@
+package com.medblocks.openfhir.util;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CacheLoadsTest {
+
+    private final AsyncCache<String, String> cache = Caffeine.newBuilder().recordStats().buildAsync();
+
+    @Test
+    public void loadedOnceByConcurrentCallers() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> CacheLoads.get(cache, "key", k -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "value";
+            })));
+            Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+            // not loaded yet, so not returned either
+            Assert.assertNull(CacheLoads.getIfLoaded(cache, "key"));
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> CacheLoads.get(cache, "key", k -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+            }
+            release.countDown();
+            for (final Future<String> result : results) {
+                Assert.assertEquals("value", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals("value", CacheLoads.getIfLoaded(cache, "key"));
+        Assert.assertEquals(1, cache.synchronous().stats().loadSuccessCount());
+    }
+
+    @Test
+    public void nullIsNotCached() {
+        Assert.assertNull(CacheLoads.get(cache, "key", k -> null));
+        Assert.assertEquals("value", CacheLoads.get(cache, "key", k -> "value"));
+    }
+
+    @Test
+    public void failureIsNotCached() {
+        try {
+            CacheLoads.get(cache, "key", k -> {
+                throw new IllegalArgumentException("can't load " + k);
+            });
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertEquals("can't load key", e.getMessage());
+        }
+        Assert.assertEquals("value", CacheLoads.get(cache, "key", k -> "value"));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
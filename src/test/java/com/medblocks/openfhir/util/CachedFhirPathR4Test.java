@@ -0,0 +1,49 @@
+package com.medblocks.openfhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
+import java.util.List;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachedFhirPathR4Test {
+
+    private final CachedFhirPathR4 fhirPath = new CachedFhirPathR4(FhirContext.forR4(), 2);
+
+    @Test
+    public void expressionIsParsedOnlyOnce() {
+        final Observation first = new Observation();
+        first.setValue(new Quantity(120));
+        final Observation second = new Observation();
+        second.setValue(new Quantity(80));
+
+        final List<Base> firstResult = fhirPath.evaluate(first, "Observation.value.value", Base.class);
+        final List<Base> secondResult = fhirPath.evaluate(second, "Observation.value.value", Base.class);
+
+        Assert.assertEquals("120", firstResult.get(0).primitiveValue());
+        Assert.assertEquals("80", secondResult.get(0).primitiveValue());
+        Assert.assertEquals(1, fhirPath.getStats().missCount());
+        Assert.assertEquals(1, fhirPath.getStats().hitCount());
+    }
+
+    @Test
+    public void compile() {
+        final IParsedExpression parsed = fhirPath.compile("Observation.status");
+        Assert.assertSame(parsed, fhirPath.compile("Observation.status"));
+        final Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        Assert.assertEquals("final", fhirPath.evaluateFirst(observation, parsed, Base.class).get().primitiveValue());
+    }
+
+    @Test
+    public void invalidExpressionIsNotCached() {
+        Assert.assertThrows(FhirPathExecutionException.class, () -> fhirPath.compile("Observation.where("));
+        Assert.assertThrows(FhirPathExecutionException.class,
+                            () -> fhirPath.evaluate(new Observation(), "Observation.where(", Base.class));
+        Assert.assertEquals(0, fhirPath.size());
+    }
+}
@@ -0,0 +1,77 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.nio.charset.StandardCharsets;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.serialisation.jsonencoding.CanonicalJson;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class CompositionSinkTest {
+
+    private WebTemplate webTemplate;
+    private JsonObject flat;
+
+    @SneakyThrows
+    @Before
+    public void init() {
+        final String opt = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/Growth chart.opt"),
+                                             StandardCharsets.UTF_8);
+        webTemplate = new OPTParser(TemplateDocument.Factory.parse(opt).getTemplate()).parse();
+        flat = JsonParser.parseString(IOUtils.toString(
+                getClass().getResourceAsStream("/growth_chart/growth_chart_flat.json"), StandardCharsets.UTF_8))
+                .getAsJsonObject();
+    }
+
+    @Test
+    public void sameAsFlatUnmarshaller() {
+        final CompositionSink sink = new CompositionSink();
+        flat.entrySet().forEach(entry -> {
+            final JsonPrimitive value = entry.getValue().getAsJsonPrimitive();
+            if (value.isBoolean()) {
+                sink.add(entry.getKey(), value.getAsBoolean());
+            } else if (value.isNumber() && value.getAsString().contains(".")) {
+                sink.add(entry.getKey(), value.getAsDouble());
+            } else if (value.isNumber()) {
+                sink.add(entry.getKey(), value.getAsInt());
+            } else {
+                sink.add(entry.getKey(), value.getAsString());
+            }
+        });
+        Assert.assertEquals(flat.size(), sink.size());
+
+        final CanonicalJson canonicalJson = new CanonicalJson();
+        Assert.assertEquals(
+                canonicalJson.marshal(new FlatJsonUnmarshaller().unmarshal(new Gson().toJson(flat), webTemplate)),
+                canonicalJson.marshal(sink.toComposition(webTemplate)));
+    }
+
+    @Test
+    public void addAll() {
+        final CompositionSink sink = new CompositionSink();
+        sink.addAll(flat);
+
+        final CanonicalJson canonicalJson = new CanonicalJson();
+        Assert.assertEquals(
+                canonicalJson.marshal(new FlatJsonUnmarshaller().unmarshal(new Gson().toJson(flat), webTemplate)),
+                canonicalJson.marshal(sink.toComposition(webTemplate)));
+    }
+
+    @Test(expected = UnmarshalException.class)
+    public void unknownPath() {
+        final CompositionSink sink = new CompositionSink();
+        sink.addAll(flat);
+        sink.add("growth_chart/no_such_thing", "value");
+        sink.toComposition(webTemplate);
+    }
+}
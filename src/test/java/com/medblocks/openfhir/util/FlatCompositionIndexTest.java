@@ -0,0 +1,88 @@
+package com.medblocks.openfhir.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlatCompositionIndexTest {
+
+    private JsonObject flatJsonObject;
+    private FlatCompositionIndex index;
+
+    @Before
+    public void init() {
+        flatJsonObject = new JsonObject();
+        Arrays.asList("laborbericht/laborbefund/any_event:1/pro_laboranalyt:0/result_status|code",
+                      "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|code",
+                      "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|value",
+                      "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status_time",
+                      "laborbericht/laborbefund/any_event:0/pro_laboranalyt:1/analyt",
+                      "laborbericht/language|code")
+                .forEach(key -> flatJsonObject.add(key, new JsonPrimitive(key)));
+        index = new FlatCompositionIndex(flatJsonObject);
+    }
+
+    @Test
+    public void keysUnder() {
+        final List<String> segments = Arrays.asList("laborbericht", "laborbefund", "any_event", "pro_laboranalyt",
+                                                    "result_status");
+        // last segment is a prefix as well, in the order of the flat json
+        Assert.assertEquals(Arrays.asList("laborbericht/laborbefund/any_event:1/pro_laboranalyt:0/result_status|code",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|code",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|value",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status_time"),
+                            index.keysUnder(segments, false));
+        Assert.assertEquals(3, index.keysUnder(segments, true).size());
+        Assert.assertEquals(5, index.keysUnder(Arrays.asList("laborbericht", "laborbefund"), false).size());
+        Assert.assertTrue(index.keysUnder(Arrays.asList("laborbericht", "any_event"), false).isEmpty());
+    }
+
+    @Test
+    public void keysStartingWith() {
+        Assert.assertEquals(Arrays.asList("laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|code",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|value",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status_time",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:1/analyt"),
+                            index.keysStartingWith("laborbericht/laborbefund/any_event:0"));
+        Assert.assertEquals("laborbericht/laborbefund/any_event:1/pro_laboranalyt:0/result_status|code",
+                            index.firstKeyStartingWith("laborbericht/laborbefund/any_event"));
+        Assert.assertNull(index.firstKeyStartingWith("laborbericht/laborbefund/any_event:2"));
+        Assert.assertTrue(index.anyKeyStartingWith("laborbericht/lang"));
+        Assert.assertFalse(index.anyKeyStartingWith("laborbericht/laborbefund/any_event:2"));
+    }
+
+    @Test
+    public void keysIgnoringPipe() {
+        Assert.assertEquals(Arrays.asList("laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|code",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|value"),
+                            index.keysIgnoringPipe(
+                                    "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|terminology"));
+        Assert.assertTrue(index.keysIgnoringPipe("laborbericht/language/code").isEmpty());
+    }
+
+    @Test
+    public void indexIsReusedPerFlatComposition() {
+        final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+        final FlatCompositionIndex index = openFhirStringUtils.getFlatCompositionIndex(flatJsonObject);
+        Assert.assertSame(index, openFhirStringUtils.getFlatCompositionIndex(flatJsonObject));
+
+        flatJsonObject.add("laborbericht/laborbefund/any_event:2/pro_laboranalyt:0/analyt", new JsonPrimitive("x"));
+        final FlatCompositionIndex rebuilt = openFhirStringUtils.getFlatCompositionIndex(flatJsonObject);
+        Assert.assertNotSame(index, rebuilt);
+        Assert.assertEquals(7, rebuilt.size());
+    }
+
+    @Test
+    public void getAllEntriesThatMatch() {
+        final OpenFhirStringUtils openFhirStringUtils = new OpenFhirStringUtils();
+        final String withRegex = openFhirStringUtils.addRegexPatternToSimplifiedFlatFormat(
+                "laborbericht/laborbefund/any_event/pro_laboranalyt/result_status|code");
+        Assert.assertEquals(Arrays.asList("laborbericht/laborbefund/any_event:1/pro_laboranalyt:0/result_status|code",
+                                          "laborbericht/laborbefund/any_event:0/pro_laboranalyt:0/result_status|code"),
+                            openFhirStringUtils.getAllEntriesThatMatch(withRegex, flatJsonObject));
+    }
+}
@@ -0,0 +1,160 @@
+package com.medblocks.openfhir.util;
+
+import com.medblocks.openfhir.db.entity.OptEntity;
+import com.medblocks.openfhir.db.repository.memory.OptMemoryRepository;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openehr.schemas.v1.OPERATIONALTEMPLATE;
+
+public class OpenEhrCachedUtilsTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger parses = new AtomicInteger();
+    /**
+     * Run right after an OPT is read, i.e. a change made by another pod in the meantime
+     */
+    private Runnable afterRead = () -> {
+    };
+    private OptMemoryRepository optRepository;
+    private OpenEhrCachedUtils cachedUtils;
+
+    @Before
+    public void init() throws IOException {
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/blood_pressure/Blood Pressure.opt"));
+        optRepository = new OptMemoryRepository() {
+            @Override
+            public OptEntity findByTemplateId(final String templateId) {
+                loads.incrementAndGet();
+                final OptEntity opt = super.findByTemplateId(templateId);
+                // as read from a database, not the instance that's stored
+                final OptEntity read = opt == null ? null : opt.copy();
+                afterRead.run();
+                return read;
+            }
+        };
+        optRepository.save(new OptEntity(null, content, "blood_pressure", null, null));
+        cachedUtils = new CountingCachedUtils();
+    }
+
+    private class CountingCachedUtils extends OpenEhrCachedUtils {
+
+        CountingCachedUtils() {
+            super(optRepository);
+        }
+
+        @Override
+        public WebTemplate createWebTemplate(final OPERATIONALTEMPLATE operationaltemplate) {
+            parses.incrementAndGet();
+            return super.createWebTemplate(operationaltemplate);
+        }
+    }
+
+    @Test
+    public void concurrentLoadsParseOnlyOnce() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<OPERATIONALTEMPLATE>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(() -> cachedUtils.getOperationalTemplate("Blood Pressure")));
+            }
+            final OPERATIONALTEMPLATE first = futures.get(0).get();
+            Assert.assertNotNull(first);
+            for (final Future<OPERATIONALTEMPLATE> future : futures) {
+                Assert.assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(31, cachedUtils.getStats().get("operationalTemplates").hitCount());
+    }
+
+    @Test
+    public void missingTemplateIsNotCached() {
+        Assert.assertNull(cachedUtils.getOperationalTemplate("non existing"));
+        Assert.assertNull(cachedUtils.getOperationalTemplate("non existing"));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void invalidate() {
+        final OPERATIONALTEMPLATE operationalTemplate = cachedUtils.getOperationalTemplate("Blood Pressure");
+        final WebTemplate webTemplate = cachedUtils.parseWebTemplate(operationalTemplate);
+        Assert.assertSame(webTemplate, cachedUtils.parseWebTemplate(operationalTemplate));
+
+        cachedUtils.invalidate("Blood Pressure");
+
+        final OPERATIONALTEMPLATE reloaded = cachedUtils.getOperationalTemplate("Blood Pressure");
+        Assert.assertNotSame(operationalTemplate, reloaded);
+        Assert.assertNotSame(webTemplate, cachedUtils.parseWebTemplate(reloaded));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void persistedWebTemplate() {
+        final WebTemplate webTemplate = cachedUtils.parseWebTemplate(
+                cachedUtils.getOperationalTemplate("Blood Pressure"));
+        // parsed once and persisted along with the OPT
+        Assert.assertEquals(1, parses.get());
+        Assert.assertNotNull(saved().getWebTemplate());
+        Assert.assertEquals(WebTemplateSerializer.FORMAT_VERSION, saved().getWebTemplateFormat());
+
+        // i.e. a new pod
+        final OpenEhrCachedUtils coldCachedUtils = new CountingCachedUtils();
+        final WebTemplate loaded = coldCachedUtils.parseWebTemplate(
+                coldCachedUtils.getOperationalTemplate("Blood Pressure"));
+        Assert.assertEquals(1, parses.get());
+        Assert.assertNotSame(webTemplate, loaded);
+        Assert.assertEquals(webTemplate, loaded);
+    }
+
+    @Test
+    public void persistedWebTemplateOfOtherFormat() {
+        cachedUtils.parseWebTemplate(cachedUtils.getOperationalTemplate("Blood Pressure"));
+        saved().setWebTemplateFormat("0");
+
+        final OpenEhrCachedUtils coldCachedUtils = new CountingCachedUtils();
+        Assert.assertNotNull(coldCachedUtils.parseWebTemplate(coldCachedUtils.getOperationalTemplate(
+                "Blood Pressure")));
+        // parsed again and persisted in the current format
+        Assert.assertEquals(2, parses.get());
+        Assert.assertEquals(WebTemplateSerializer.FORMAT_VERSION, saved().getWebTemplateFormat());
+    }
+
+    @Test
+    public void deletedOptIsNotPersistedAgain() {
+        afterRead = optRepository::deleteAll;
+
+        Assert.assertNotNull(cachedUtils.parseWebTemplate(cachedUtils.getOperationalTemplate("Blood Pressure")));
+        Assert.assertTrue(optRepository.findAll().isEmpty());
+    }
+
+    @Test
+    public void upsertedOptIsNotOverwritten() {
+        afterRead = () -> {
+            final OptEntity upserted = saved().copy();
+            upserted.setContent("upserted");
+            upserted.setContentHash(WebTemplateSerializer.contentHash("upserted"));
+            optRepository.save(upserted);
+        };
+
+        Assert.assertNotNull(cachedUtils.parseWebTemplate(cachedUtils.getOperationalTemplate("Blood Pressure")));
+        Assert.assertEquals("upserted", saved().getContent());
+        Assert.assertEquals(WebTemplateSerializer.contentHash("upserted"), saved().getContentHash());
+        Assert.assertNull(saved().getWebTemplate());
+    }
+
+    private OptEntity saved() {
+        return optRepository.findAll().get(0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.medblocks.openfhir.util;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.serialisation.exception.UnmarshalException;
+import org.ehrbase.openehr.sdk.serialisation.flatencoding.std.umarshal.FlatJsonUnmarshaller;
+import org.ehrbase.openehr.sdk.serialisation.jsonencoding.CanonicalJson;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class StreamingFlatJsonUnmarshallerTest {
+
+    private final StreamingFlatJsonUnmarshaller unmarshaller = new StreamingFlatJsonUnmarshaller();
+
+    @Test
+    public void sameAsFlatUnmarshaller() {
+        assertSameAsFlatUnmarshaller("/growth_chart/Growth chart.opt", "/growth_chart/growth_chart_flat.json");
+        assertSameAsFlatUnmarshaller("/blood_pressure/Blood Pressure.opt", "/blood_pressure/blood-pressure_flat.json");
+        assertSameAsFlatUnmarshaller("/medication_order/medication order.opt",
+                                     "/medication_order/medication_order_flat.json");
+        assertSameAsFlatUnmarshaller("/kds/diagnose/KDS_Diagnose.opt",
+                                     "/kds/diagnose/KDS_Diagnose_multiple_Composition.flat.json");
+    }
+
+    @Test(expected = UnmarshalException.class)
+    public void unknownPath() {
+        final WebTemplate webTemplate = webTemplate("/growth_chart/Growth chart.opt");
+        final String flat = resource("/growth_chart/growth_chart_flat.json");
+        unmarshaller.unmarshal(new StringReader(flat.replaceFirst("\\{", "{\"growth_chart/no_such_thing\": 1,")),
+                               webTemplate);
+    }
+
+    @Test(expected = UnmarshalException.class)
+    public void invalidJson() {
+        final WebTemplate webTemplate = webTemplate("/growth_chart/Growth chart.opt");
+        unmarshaller.unmarshal(new StringReader("{\"growth_chart/language|code\": "), webTemplate);
+    }
+
+    private void assertSameAsFlatUnmarshaller(final String optPath, final String flatPath) {
+        final WebTemplate webTemplate = webTemplate(optPath);
+        final String flat = resource(flatPath);
+
+        final CanonicalJson canonicalJson = new CanonicalJson();
+        Assert.assertEquals(flatPath,
+                            canonicalJson.marshal(new FlatJsonUnmarshaller().unmarshal(flat, webTemplate)),
+                            canonicalJson.marshal(unmarshaller.unmarshal(new StringReader(flat), webTemplate)));
+    }
+
+    @SneakyThrows
+    private WebTemplate webTemplate(final String optPath) {
+        return new OPTParser(TemplateDocument.Factory.parse(resource(optPath)).getTemplate()).parse();
+    }
+
+    @SneakyThrows
+    private String resource(final String path) {
+        return IOUtils.toString(getClass().getResourceAsStream(path), StandardCharsets.UTF_8);
+    }
+}
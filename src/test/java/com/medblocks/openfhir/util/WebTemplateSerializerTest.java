@@ -0,0 +1,86 @@
+package com.medblocks.openfhir.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplate;
+import org.ehrbase.openehr.sdk.webtemplate.model.WebTemplateNode;
+import org.ehrbase.openehr.sdk.webtemplate.parser.OPTParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openehr.schemas.v1.TemplateDocument;
+
+public class WebTemplateSerializerTest {
+
+    private static class Foreign implements Serializable {
+
+    }
+
+    @SneakyThrows
+    private WebTemplate parse(final String opt) {
+        return new OPTParser(TemplateDocument.Factory.parse(getClass().getResourceAsStream(opt)).getTemplate())
+                .parse();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (final String opt : new String[]{"/growth_chart/Growth chart.opt", "/kds/laborbericht/KDS_Laborbericht.opt"}) {
+            final WebTemplate webTemplate = parse(opt);
+            final WebTemplate deserialized = WebTemplateSerializer.deserialize(
+                    WebTemplateSerializer.serialize(webTemplate));
+            Assert.assertEquals(webTemplate, deserialized);
+            final WebTemplateNode node = deserialized.getTree().getChildren().get(0);
+            Assert.assertEquals(webTemplate.getTree().getChildren().get(0).getAqlPathDto(), node.getAqlPathDto());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherClasses() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeObject(new Foreign());
+        }
+        WebTemplateSerializer.deserialize(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherClassesOfJavaBase() throws IOException {
+        deserialize(new TreeSet<>(Set.of("a")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTooDeepGraphs() throws IOException {
+        List<Object> nested = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final List<Object> parent = new ArrayList<>();
+            parent.add(nested);
+            nested = parent;
+        }
+        deserialize(nested);
+    }
+
+    private static void deserialize(final Object object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeObject(object);
+        }
+        WebTemplateSerializer.deserialize(bytes.toByteArray());
+    }
+
+    @Test
+    public void contentHash() throws IOException {
+        final String content = IOUtils.toString(getClass().getResourceAsStream("/growth_chart/Growth chart.opt"));
+        Assert.assertEquals(WebTemplateSerializer.contentHash(content), WebTemplateSerializer.contentHash(content));
+        Assert.assertNotEquals(WebTemplateSerializer.contentHash(content),
+                               WebTemplateSerializer.contentHash(content + " "));
+        Assert.assertEquals(64, WebTemplateSerializer.contentHash(content).length());
+    }
+}